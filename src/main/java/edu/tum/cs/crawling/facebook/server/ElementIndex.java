@@ -0,0 +1,134 @@
+package edu.tum.cs.crawling.facebook.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Index of the elements of a document by tag name and class attribute, and by tag name and ID, built in a single pass
+ * over the document. Looking up the elements with a given class below an element replaces a scan of the whole subtree
+ * (as with the XPath expression ".//div[@class='...']"), which is repeated for every post of a timeline otherwise.
+ * The class attribute has to match exactly, as with XPath. The document must not be modified after the index has
+ * been built.
+ */
+class ElementIndex {
+
+	/** positions of an element and its last descendant in document order */
+	private static class Range {
+		final int start;
+		int end;
+
+		Range(int start) {
+			this.start = start;
+		}
+	}
+
+	private final Map<Element, Range> ranges = new IdentityHashMap<Element, Range>();
+	/** by tag name and attribute value, in document order */
+	private final Map<String, List<Element>> elementsByClass = new HashMap<String, List<Element>>();
+	private final Map<String, List<Element>> elementsById = new HashMap<String, List<Element>>();
+	private int numElements;
+
+	private final Comparator<Element> documentOrder = new Comparator<Element>() {
+		@Override
+		public int compare(Element e1, Element e2) {
+			return Integer.compare(ranges.get(e1).start, ranges.get(e2).start);
+		}
+	};
+
+	ElementIndex(Document doc) {
+		Element root = doc.getDocumentElement();
+		if (root != null)
+			addElement(root);
+	}
+
+	private static String key(String tagName, String value) {
+		// tag names cannot contain spaces
+		return tagName + ' ' + value;
+	}
+
+	private static void add(Map<String, List<Element>> map, String key, Element element) {
+		List<Element> elements = map.get(key);
+		if (elements == null) {
+			elements = new ArrayList<Element>(1);
+			map.put(key, elements);
+		}
+		elements.add(element);
+	}
+
+	private void addElement(Element element) {
+		Range range = new Range(numElements++);
+		ranges.put(element, range);
+		if (element.hasAttribute("class"))
+			add(elementsByClass, key(element.getNodeName(), element.getAttribute("class")), element);
+		if (element.hasAttribute("id"))
+			add(elementsById, key(element.getNodeName(), element.getAttribute("id")), element);
+
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE)
+				addElement((Element) child);
+		}
+		range.end = numElements - 1;
+	}
+
+	/**
+	 * @return the elements of the list that are descendants of the context node, as a read-only view of the index
+	 */
+	private List<Element> getDescendants(Node context, List<Element> elements) {
+		if (elements == null)
+			return Collections.emptyList();
+		if (context.getNodeType() == Node.DOCUMENT_NODE)
+			return Collections.unmodifiableList(elements);
+		Range range = ranges.get(context);
+		if (range == null)
+			throw new IllegalArgumentException("node not in the indexed document");
+
+		// the descendants are a contiguous part of the list, since the list is in document order
+		int from = lowerBound(elements, range.start + 1);
+		int to = lowerBound(elements, range.end + 1);
+		return Collections.unmodifiableList(elements.subList(from, to));
+	}
+
+	/**
+	 * @return the index of the first element in the list at or after the position
+	 */
+	private int lowerBound(List<Element> elements, int position) {
+		int low = 0;
+		int high = elements.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (ranges.get(elements.get(mid)).start < position)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * @return the descendants of the context node with the tag name and class attribute, in document order
+	 */
+	List<Element> getElementsByClass(Node context, String tagName, String className) {
+		return getDescendants(context, elementsByClass.get(key(tagName, className)));
+	}
+
+	/**
+	 * @return the descendants of the context node with the tag name and ID, in document order
+	 */
+	List<Element> getElementsById(Node context, String tagName, String id) {
+		return getDescendants(context, elementsById.get(key(tagName, id)));
+	}
+
+	void sortInDocumentOrder(List<Element> elements) {
+		Collections.sort(elements, documentOrder);
+	}
+
+}
@@ -0,0 +1,277 @@
+package edu.tum.cs.crawling.facebook.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.tum.cs.crawling.facebook.entities.*;
+import edu.tum.cs.util.LruCache;
+
+/**
+ * Resolves the Facebook IDs of the persons, places, and sites in a user profile to their database IDs. All IDs of a
+ * profile are collected first and then looked up with one multi-row select per table; the missing entities are
+ * inserted with one multi-row insert. Person IDs can additionally be taken from a cache that is shared by all
+ * profiles.
+ */
+class EntityIdResolver {
+
+	/** maximum number of entities in one statement */
+	private static final int maxRowsPerStatement = 500;
+
+	private static class Table {
+		final String name;
+		final String idColumn;
+		final String fbIdColumn;
+		/** names of the entities that have not been resolved yet, by Facebook ID */
+		final Map<String, String> pending = new LinkedHashMap<String, String>();
+		final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+		Table(String name, String idColumn, String fbIdColumn) {
+			this.name = name;
+			this.idColumn = idColumn;
+			this.fbIdColumn = fbIdColumn;
+		}
+
+		void add(String fbId, String entityName) {
+			if (!ids.containsKey(fbId) && !pending.containsKey(fbId))
+				pending.put(fbId, entityName);
+		}
+	}
+
+	private final Table persons = new Table("person", "personId", "personFbId");
+	private final Table places = new Table("place", "placeId", "placeFbId");
+	private final Table sites = new Table("site", "siteId", "siteFbId");
+	private final LruCache<String, Integer> personIdCache;
+	private Connection conn;
+
+	/**
+	 * @param personIdCache cache of person IDs by Facebook ID, or null
+	 */
+	EntityIdResolver(LruCache<String, Integer> personIdCache) {
+		this.personIdCache = personIdCache;
+	}
+
+	/**
+	 * Collects the Facebook IDs of all persons, places, and sites in the profile.
+	 */
+	void addProfile(UserProfile profile) {
+		addPerson(profile.getUser());
+		addPersons(profile.getFriends());
+		for (Site site : profile.getLikedsites())
+			addSite(site);
+		for (Post post : profile.getPosts())
+			addPost(post);
+
+		PersonDetails details = profile.getDetails();
+		if (details.getFamily() != null) {
+			for (FamilyMember member : details.getFamily())
+				addPerson(member.getPerson());
+		}
+		if (details.getEducation() != null) {
+			for (EducationItem educ : details.getEducation()) {
+				if (educ.getClasses() != null) {
+					for (EducationClass course : educ.getClasses())
+						addPersons(course.getPersons());
+				}
+			}
+		}
+		if (details.getWork() != null) {
+			for (WorkItem work : details.getWork()) {
+				if (work.getProjects() != null) {
+					for (WorkProject project : work.getProjects())
+						addPersons(project.getPersons());
+				}
+			}
+		}
+	}
+
+	private void addPerson(Person person) {
+		persons.add(person.getId(), person.getName());
+	}
+
+	private void addPersons(Set<Person> persons) {
+		if (persons != null) {
+			for (Person person : persons)
+				addPerson(person);
+		}
+	}
+
+	private void addSite(Site site) {
+		sites.add(site.getId(), site.getName());
+	}
+
+	private void addPost(Post post) {
+		if (post instanceof NormalPost) {
+			NormalPost normalPost = (NormalPost) post;
+			NormalPostHeader header = normalPost.getHeader();
+			addPerson(header.getSender());
+			if (header.getSharedVia() != null)
+				addPerson(header.getSharedVia());
+			addPersons(header.getPersons());
+			if (header.getPlace() != null)
+				places.add(header.getPlace().getId(), header.getPlace().getName());
+			addPersons(normalPost.getMentionedPersons());
+			if (normalPost.getMentionedSites() != null) {
+				for (Site site : normalPost.getMentionedSites())
+					addSite(site);
+			}
+			if (normalPost.getEmbeddedContent() instanceof Post)
+				addPost((Post) normalPost.getEmbeddedContent());
+		} else if (post instanceof SmallPost)
+			addPerson(((SmallPost) post).getHeader().getSender());
+
+		addPersons(post.getLikes());
+		for (Comment comment : post.getComments()) {
+			addPerson(comment.getSender());
+			addPersons(comment.getLikes());
+		}
+	}
+
+	/**
+	 * Looks up the database IDs of all collected entities, inserting the ones that are not yet in the database. The
+	 * connection is also used for entities that are requested later without having been collected.
+	 */
+	void resolve(Connection conn) throws SQLException {
+		this.conn = conn;
+		if (personIdCache != null) {
+			Iterator<String> it = persons.pending.keySet().iterator();
+			while (it.hasNext()) {
+				String fbId = it.next();
+				Integer id = personIdCache.get(fbId);
+				if (id != null) {
+					persons.ids.put(fbId, id);
+					it.remove();
+				}
+			}
+		}
+		resolve(conn, persons);
+		resolve(conn, places);
+		resolve(conn, sites);
+	}
+
+	private static void resolve(Connection conn, Table table) throws SQLException {
+		if (table.pending.isEmpty())
+			return;
+		List<String> fbIds = new ArrayList<String>(table.pending.keySet());
+		for (int start = 0; start < fbIds.size(); start += maxRowsPerStatement)
+			select(conn, table, fbIds.subList(start, Math.min(start + maxRowsPerStatement, fbIds.size())), false);
+
+		// insert the missing entities; if another transaction inserts one of them concurrently, it is skipped here;
+		// all transactions insert in the order of the Facebook IDs, so that they lock the rows in the same order.
+		// The rows are read again with a locking read, since the snapshot of a repeatable read transaction does not
+		// contain the rows that other transactions committed after it was taken.
+		fbIds = new ArrayList<String>(table.pending.keySet());
+		if (fbIds.isEmpty())
+			return;
+		Collections.sort(fbIds);
+		for (int start = 0; start < fbIds.size(); start += maxRowsPerStatement) {
+			List<String> chunk = fbIds.subList(start, Math.min(start + maxRowsPerStatement, fbIds.size()));
+			int numSkipped = chunk.size() - insert(conn, table, chunk);
+			select(conn, table, chunk, true);
+			// rows that were inserted but cannot be found, e.g. because INSERT IGNORE truncated their Facebook ID,
+			// would be missing on every retry
+			int numMissing = 0;
+			for (String fbId : chunk) {
+				if (table.pending.containsKey(fbId))
+					numMissing++;
+			}
+			if (numMissing > numSkipped)
+				throw new SQLException("could not find " + numMissing + " rows inserted into " + table.name);
+		}
+		// the rows were skipped, but are not visible yet: a serialization failure, the transaction can be retried
+		if (!table.pending.isEmpty())
+			throw new SQLException("could not insert " + table.pending.size() + " rows into " + table.name, "40001");
+	}
+
+	private static String placeholders(String placeholder, int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++)
+			sb.append((i > 0) ? ", " : "").append(placeholder);
+		return sb.toString();
+	}
+
+	/**
+	 * @param lock whether to read the latest committed rows and lock them, instead of reading from the snapshot
+	 */
+	private static void select(Connection conn, Table table, List<String> fbIds, boolean lock) throws SQLException {
+		PreparedStatement st = conn.prepareStatement("select " + table.fbIdColumn + ", " + table.idColumn + " from " +
+				table.name + " where " + table.fbIdColumn + " in (" + placeholders("?", fbIds.size()) + ")" +
+				(lock ? " lock in share mode" : ""));
+		try {
+			for (int i = 0; i < fbIds.size(); i++)
+				st.setString(i + 1, fbIds.get(i));
+			ResultSet rs = st.executeQuery();
+			try {
+				while (rs.next()) {
+					String fbId = rs.getString(1);
+					table.ids.put(fbId, rs.getInt(2));
+					table.pending.remove(fbId);
+				}
+			} finally {
+				rs.close();
+			}
+		} finally {
+			st.close();
+		}
+	}
+
+	/**
+	 * @return the number of inserted rows, without the ones that were skipped because they already exist
+	 */
+	private static int insert(Connection conn, Table table, List<String> fbIds) throws SQLException {
+		PreparedStatement st = conn.prepareStatement("insert ignore into " + table.name + "(" + table.fbIdColumn +
+				", name) values " + placeholders("(?, ?)", fbIds.size()));
+		try {
+			int idx = 1;
+			for (String fbId : fbIds) {
+				st.setString(idx++, fbId);
+				st.setString(idx++, FacebookDao.truncateString(table.pending.get(fbId), 512, table.name + ".name"));
+			}
+			return st.executeUpdate();
+		} finally {
+			st.close();
+		}
+	}
+
+	private int getId(Table table, String fbId, String name) throws SQLException {
+		Integer id = table.ids.get(fbId);
+		if (id == null) {
+			// not collected beforehand, resolve on its own
+			table.add(fbId, name);
+			resolve(conn, table);
+			id = table.ids.get(fbId);
+		}
+		return id;
+	}
+
+	int getPersonId(String fbId, String name) throws SQLException {
+		return getId(persons, fbId, name);
+	}
+
+	int getPlaceId(Place place) throws SQLException {
+		return getId(places, place.getId(), place.getName());
+	}
+
+	int getSiteId(Site site) throws SQLException {
+		return getId(sites, site.getId(), site.getName());
+	}
+
+	/**
+	 * Adds the resolved person IDs to the shared cache. Must only be called after the transaction has been committed,
+	 * since the IDs of inserted persons are lost on a rollback.
+	 */
+	void commit() {
+		if (personIdCache != null)
+			personIdCache.putAll(persons.ids);
+	}
+
+}
@@ -27,9 +27,7 @@ public class FacebookCrawlerServer extends LogConfigurator {
 
 	public void runServer() {
 		UserProfileWorker.submitArchives(WarcArchiver.getInstance().getUnprocessedArchives());
-		UserProfileWorker profileWorker = new UserProfileWorker();
-		Thread profileWorkerThread = new Thread(profileWorker);
-		profileWorkerThread.start();
+		UserProfileWorker.start();
 
 		ServerStatistics statistics = new ServerStatistics();
 		ExecutorService pool = Executors.newCachedThreadPool();
@@ -45,8 +43,7 @@ public class FacebookCrawlerServer extends LogConfigurator {
 		} finally {
 			try {
 				logger.info("waiting for user profile processing to finish");
-				profileWorkerThread.interrupt();
-				profileWorkerThread.join();
+				UserProfileWorker.stop();
 
 				logger.info("shutting down server");
 				pool.shutdown();
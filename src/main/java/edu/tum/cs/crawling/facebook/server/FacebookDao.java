@@ -6,7 +6,6 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
@@ -17,6 +16,7 @@ import javax.sql.DataSource;
 import com.mchange.v2.c3p0.DataSources;
 
 import edu.tum.cs.crawling.facebook.entities.*;
+import edu.tum.cs.util.LruCache;
 
 public class FacebookDao {
 
@@ -34,6 +34,8 @@ public class FacebookDao {
 
 	private static final Logger logger = Logger.getLogger(FacebookDao.class.getName());
 	private static final int batchSize = 1000;
+	/** number of times a transaction is tried if it conflicts with concurrent ones */
+	private static final int maxAttempts = 3;
 	private static DataSource pooledDataSource;
 
 	public static void initialize(String databaseIp, String databaseName, String userName, String password)
@@ -43,8 +45,8 @@ public class FacebookDao {
 
 	public static void initialize(String databaseIp, String databaseName, String userName, String password,
 			boolean createTables) throws ClassNotFoundException, SQLException {
-		// connect to database
-		String url = "jdbc:mysql://" + databaseIp + "/" + databaseName;
+		// connect to database; batches of inserts are sent as multi-row inserts
+		String url = "jdbc:mysql://" + databaseIp + "/" + databaseName + "?rewriteBatchedStatements=true";
 		DataSource unpooledDataSource = DataSources.unpooledDataSource(url, userName, password);
 		pooledDataSource = DataSources.pooledDataSource(unpooledDataSource);
 
@@ -314,25 +316,73 @@ public class FacebookDao {
 	}
 
 	public static void saveUserProfile(UserProfile profile) throws Exception {
-		String userId = profile.getUser().getId();
-		String userName = profile.getUser().getName();
+		saveUserProfile(profile, null);
+	}
 
+	/**
+	 * Saves the profile in one transaction. The persons, places, and sites of the profile are resolved to database IDs
+	 * up front, in bulk. Every statement is prepared once per transaction, and the rows of the child tables are
+	 * inserted in batches at the end. If the transaction conflicts with a concurrent one, it is retried.
+	 * @param personIdCache cache of person IDs by Facebook ID, which is shared between profiles, or null
+	 */
+	public static void saveUserProfile(UserProfile profile, LruCache<String, Integer> personIdCache) throws Exception {
 		assessCompleteness(profile);
 
+		for (int attempt = 1; ; attempt++) {
+			try {
+				saveUserProfileTransaction(profile, personIdCache);
+				return;
+			} catch (SQLException ex) {
+				if ((attempt >= maxAttempts) || !isConflict(ex))
+					throw ex;
+				logger.warning("conflict while saving profile '" + profile.getUser().getId() + "', retrying: " +
+						ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return true if the exception is caused by a concurrent transaction: a deadlock, a lock wait timeout, or a
+	 *	serialization failure, which includes entities that a concurrent transaction inserted while they were resolved
+	 */
+	private static boolean isConflict(SQLException ex) {
+		for (SQLException e = ex; e != null; e = e.getNextException()) {
+			int errorCode = e.getErrorCode();
+			if ("40001".equals(e.getSQLState()) || (errorCode == 1213) || (errorCode == 1205))
+				return true;
+		}
+		return false;
+	}
+
+	private static void saveUserProfileTransaction(UserProfile profile, LruCache<String, Integer> personIdCache)
+			throws Exception {
+		String userId = profile.getUser().getId();
+		String userName = profile.getUser().getName();
+
+		EntityIdResolver ids = new EntityIdResolver(personIdCache);
+		ids.addProfile(profile);
 		Connection conn = getConnection();
+		StatementCache statements = new StatementCache(conn, batchSize);
 		try {
 			conn.setAutoCommit(false);
-			savePosts(conn, profile.getPosts(), userId, userName);
-			saveFriends(conn, profile.getFriends(), userId, userName);
-			saveSiteLikes(conn, profile.getUser(), profile.getLikedsites());
-			savePersonDetails(conn, profile.getDetails(), profile.getNumFriends(), profile.getLanguage(), userId,
-					userName);
+			ids.resolve(conn);
+			savePosts(statements, ids, profile.getPosts(), userId, userName);
+			saveFriends(statements, ids, profile.getFriends(), userId, userName);
+			saveSiteLikes(statements, ids, profile.getUser(), profile.getLikedsites());
+			savePersonDetails(statements, ids, profile.getDetails(), profile.getNumFriends(), profile.getLanguage(),
+					userId, userName);
+			statements.executeBatches();
 			conn.commit();
+			ids.commit();
 		} catch (Exception ex) {
 			conn.rollback();
 			throw ex;
 		} finally {
-			conn.close();
+			try {
+				statements.close();
+			} finally {
+				conn.close();
+			}
 		}
 	}
 
@@ -369,7 +419,7 @@ public class FacebookDao {
 		return new Timestamp(date.getTime());
 	}
 
-	private static String truncateString(String s, int maxLength, String field) {
+	static String truncateString(String s, int maxLength, String field) {
 		if(s.length() > maxLength) {
 			logger.warning("truncating value of '" + field + "' from " + s.length() + " to " + maxLength + " chars");
 			s = s.substring(0, maxLength);
@@ -377,147 +427,37 @@ public class FacebookDao {
 		return s;
 	}
 
-	/**
-	 * Retrieves the PersonId of the specified person from the database. If the person is not yet in the database, it
-	 * is saved first.
-	 * @param userid Facebook ID string of the person
-	 * @param name full name of the person
-	 * @return personid database ID of the specified person
-	 * @throws SQLException
-	 */
-	private static int getPersonId(Connection conn, String userFbId, String name) throws SQLException {
-		PreparedStatement getPersonId = conn.prepareStatement("select personId from person where personFbId=?");
-		try {
-			getPersonId.setString(1, userFbId);
-			ResultSet rs = getPersonId.executeQuery();
-			try {
-				if(rs.next())
-					return rs.getInt("personId");
-				return insertPerson(conn, userFbId, name);	// user is not yet in database, insert
-			} finally {
-				rs.close();
-			}
-		} finally {
-			getPersonId.close();
-		}
-	}
-
-	private static int insertPerson(Connection conn, String userFbId, String name) throws SQLException {
-		PreparedStatement insertPerson = conn.prepareStatement("insert into person(personFbId, name) values(?, ?)",
-				Statement.RETURN_GENERATED_KEYS);
+	private static int getGeneratedKey(PreparedStatement st) throws SQLException {
+		ResultSet res = st.getGeneratedKeys();
 		try {
-			insertPerson.setString(1, userFbId);
-			insertPerson.setString(2, truncateString(name, 512, "person.name"));
-			insertPerson.executeUpdate();
-			ResultSet res = insertPerson.getGeneratedKeys();
-			try {
-				res.next();
-				return res.getInt(1);	// key of inserted row, same as personId
-			} finally {
-				res.close();
-			}
+			res.next();
+			return res.getInt(1);
 		} finally {
-			insertPerson.close();
+			res.close();
 		}
 	}
 
-	private static int getPlaceId(Connection conn, Place place) throws SQLException {
-		PreparedStatement getPlaceId = conn.prepareStatement("select placeId from place where placeFbId=?");
+	private static EmbeddableObjectReference getEmbeddableObjectReference(StatementCache statements,
+			EntityIdResolver ids, EmbeddableObject obj, Person owner, boolean isStub) throws SQLException {
+		PreparedStatement getEmbeddableObjectId = statements.get("select objectId, isStub from embeddableobject " +
+				"where objectFbId=?");
+		getEmbeddableObjectId.setString(1, obj.getId());
+		ResultSet rs = getEmbeddableObjectId.executeQuery();
 		try {
-			getPlaceId.setString(1, place.getId());
-			ResultSet rs = getPlaceId.executeQuery();
-			try {
-				if(rs.next())
-					return rs.getInt("placeId");
-				return insertPlace(conn, place);	// place is not yet in database, insert
-			} finally {
-				rs.close();
+			if(rs.next()) {
+				int id = rs.getInt("objectId");
+				if(rs.getBoolean("isStub") && !isStub)	// replacing stub with actual object, update status flag
+					return updateEmbeddableObject(statements, id);
+				return new EmbeddableObjectReference(rs.getInt("objectId"), true, false);
 			}
 		} finally {
-			getPlaceId.close();
+			rs.close();
 		}
+		return insertEmbeddableObject(statements, ids, obj, owner, isStub);
 	}
 
-	private static int insertPlace(Connection conn, Place place) throws SQLException {
-		PreparedStatement insertPlace = conn.prepareStatement("insert into place(placeFbId, name) values(?, ?)",
-				Statement.RETURN_GENERATED_KEYS);
-		try {
-			insertPlace.setString(1, place.getId());
-			insertPlace.setString(2, truncateString(place.getName(), 512, "place.name"));
-			insertPlace.executeUpdate();
-			ResultSet res = insertPlace.getGeneratedKeys();
-			try {
-				res.next();
-				return res.getInt(1);
-			} finally {
-				res.close();
-			}
-		} finally {
-			insertPlace.close();
-		}
-	}
-
-	private static int getSiteId(Connection conn, Site site) throws SQLException {
-		PreparedStatement getSiteId = conn.prepareStatement("select siteId from site where siteFbId=?");
-		try {
-			getSiteId.setString(1, site.getId());
-			ResultSet rs = getSiteId.executeQuery();
-			try {
-				if(rs.next())
-					return rs.getInt("siteId");
-				return insertSite(conn, site);	// site is not yet in database, insert
-			} finally {
-				rs.close();
-			}
-		} finally {
-			getSiteId.close();
-		}
-	}
-
-	private static int insertSite(Connection conn, Site site) throws SQLException {
-		PreparedStatement insertSite = conn.prepareStatement("insert into site(siteFbId, name) values(?, ?)",
-				Statement.RETURN_GENERATED_KEYS);
-		try {
-			insertSite.setString(1, site.getId());
-			insertSite.setString(2, truncateString(site.getName(), 512, "site.name"));
-			insertSite.executeUpdate();
-			ResultSet res = insertSite.getGeneratedKeys();
-			try {
-				res.next();
-				return res.getInt(1);
-			} finally {
-				res.close();
-			}
-		} finally {
-			insertSite.close();
-		}
-	}
-
-	private static EmbeddableObjectReference getEmbeddableObjectReference(Connection conn, EmbeddableObject obj,
-			Person owner, boolean isStub) throws SQLException {
-		PreparedStatement getEmbeddableObjectId = conn.prepareStatement("select objectId, isStub " +
-				"from embeddableobject where objectFbId=?");
-		try {
-			getEmbeddableObjectId.setString(1, obj.getId());
-			ResultSet rs = getEmbeddableObjectId.executeQuery();
-			try {
-				if(rs.next()) {
-					int id = rs.getInt("objectId");
-					if(rs.getBoolean("isStub") && !isStub)	// replacing stub with actual object, update status flag
-						return updateEmbeddableObject(conn, id);
-					return new EmbeddableObjectReference(rs.getInt("objectId"), true, false);
-				}
-				return insertEmbeddableObject(conn, obj, owner, isStub);
-			} finally {
-				rs.close();
-			}
-		} finally {
-			getEmbeddableObjectId.close();
-		}
-	}
-
-	private static EmbeddableObjectReference insertEmbeddableObject(Connection conn, EmbeddableObject obj, Person owner,
-			boolean isStub) throws SQLException {
+	private static EmbeddableObjectReference insertEmbeddableObject(StatementCache statements, EntityIdResolver ids,
+			EmbeddableObject obj, Person owner, boolean isStub) throws SQLException {
 		// determine object type
 		int type;
 		if (obj instanceof Video)
@@ -534,124 +474,99 @@ public class FacebookDao {
 			throw new RuntimeException("unknown embeddable object type " + obj.getClass().getName());
 
 		// object is not yet in database, insert
-		int personId = getPersonId(conn, owner.getId(), owner.getName());
-
-		PreparedStatement insertEmbeddableObject = conn.prepareStatement("insert into embeddableobject(objectFbId, " +
-				"type, personId, isStub) values(?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
-		try {
-			insertEmbeddableObject.setString(1, obj.getId());
-			insertEmbeddableObject.setInt(2, type);
-			insertEmbeddableObject.setInt(3, personId);
-			insertEmbeddableObject.setBoolean(4, isStub);
-			insertEmbeddableObject.executeUpdate();
-			ResultSet res = insertEmbeddableObject.getGeneratedKeys();
-			try {
-				res.next();
-				return new EmbeddableObjectReference(res.getInt(1), false, true);
-			} finally {
-				res.close();
-			}
-		} finally {
-			insertEmbeddableObject.close();
-		}
+		int personId = ids.getPersonId(owner.getId(), owner.getName());
+
+		PreparedStatement insertEmbeddableObject = statements.getReturningKeys("insert into embeddableobject(" +
+				"objectFbId, type, personId, isStub) values(?, ?, ?, ?)");
+		insertEmbeddableObject.setString(1, obj.getId());
+		insertEmbeddableObject.setInt(2, type);
+		insertEmbeddableObject.setInt(3, personId);
+		insertEmbeddableObject.setBoolean(4, isStub);
+		insertEmbeddableObject.executeUpdate();
+		return new EmbeddableObjectReference(getGeneratedKey(insertEmbeddableObject), false, true);
 	}
 
-	private static EmbeddableObjectReference updateEmbeddableObject(Connection conn, int id) throws SQLException {
-		PreparedStatement updateEmbeddableObject = conn.prepareStatement("update embeddableobject set isStub=0 where " +
+	private static EmbeddableObjectReference updateEmbeddableObject(StatementCache statements, int id)
+			throws SQLException {
+		PreparedStatement updateEmbeddableObject = statements.get("update embeddableobject set isStub=0 where " +
 				"objectId=?");
-		try {
-			updateEmbeddableObject.setInt(1, id);
-			updateEmbeddableObject.executeUpdate();
-			return new EmbeddableObjectReference(id, true, true);
-		} finally {
-			updateEmbeddableObject.close();
-		}
+		updateEmbeddableObject.setInt(1, id);
+		updateEmbeddableObject.executeUpdate();
+		return new EmbeddableObjectReference(id, true, true);
 	}
 
-	private static int saveVideo(Connection conn, Video video, Person owner, boolean isStub) throws SQLException {
-		EmbeddableObjectReference ref = getEmbeddableObjectReference(conn, video, owner, isStub);
+	private static int saveVideo(StatementCache statements, EntityIdResolver ids, Video video, Person owner,
+			boolean isStub) throws SQLException {
+		EmbeddableObjectReference ref = getEmbeddableObjectReference(statements, ids, video, owner, isStub);
 		if (ref.needsUpdate) {
 			PreparedStatement st;
 			if (ref.present)
-				st = conn.prepareStatement("update video set title=?, shareComment=? where objectId=?");
+				st = statements.get("update video set title=?, shareComment=? where objectId=?");
 			else
-				st = conn.prepareStatement("insert into video(title, shareComment, objectId) values(?, ?, ?)");
-			try {
-				st.setString(1, truncateString(video.getTitle(), 200, "video.title"));
-				st.setString(2, video.getShareComment());
-				st.setInt(3, ref.id);
-				st.executeUpdate();
-			} finally {
-				st.close();
-			}
+				st = statements.get("insert into video(title, shareComment, objectId) values(?, ?, ?)");
+			st.setString(1, truncateString(video.getTitle(), 200, "video.title"));
+			st.setString(2, video.getShareComment());
+			st.setInt(3, ref.id);
+			st.executeUpdate();
 		}
 		return ref.id;
 	}
 
-	private static int saveLink(Connection conn, Link link, Person owner, boolean isStub) throws SQLException {
-		EmbeddableObjectReference ref = getEmbeddableObjectReference(conn, link, owner, isStub);
+	private static int saveLink(StatementCache statements, EntityIdResolver ids, Link link, Person owner,
+			boolean isStub) throws SQLException {
+		EmbeddableObjectReference ref = getEmbeddableObjectReference(statements, ids, link, owner, isStub);
 		if (ref.needsUpdate) {
 			PreparedStatement st;
 			if (ref.present)
-				st = conn.prepareStatement("update link set url=? where objectId=?");
+				st = statements.get("update link set url=? where objectId=?");
 			else
-				st = conn.prepareStatement("insert into link(url, objectId) values(?, ?)");
-			try {
-				st.setString(1, truncateString(link.getUrl(), 2083, "link.url"));
-				st.setInt(2, ref.id);
-				st.executeUpdate();
-			} finally {
-				st.close();
-			}
+				st = statements.get("insert into link(url, objectId) values(?, ?)");
+			st.setString(1, truncateString(link.getUrl(), 2083, "link.url"));
+			st.setInt(2, ref.id);
+			st.executeUpdate();
 		}
 		return ref.id;
 	}
 
-	private static int savePhotoAlbum(Connection conn, PhotoAlbum album, Person owner, boolean isStub)
-			throws SQLException {
-		EmbeddableObjectReference ref = getEmbeddableObjectReference(conn, album, owner, isStub);
+	private static int savePhotoAlbum(StatementCache statements, EntityIdResolver ids, PhotoAlbum album,
+			Person owner, boolean isStub) throws SQLException {
+		EmbeddableObjectReference ref = getEmbeddableObjectReference(statements, ids, album, owner, isStub);
 		if (ref.needsUpdate) {
 			PreparedStatement st;
 			if (ref.present)
-				st = conn.prepareStatement("update photoalbum set name=?, shareComment=? where objectId=?");
+				st = statements.get("update photoalbum set name=?, shareComment=? where objectId=?");
 			else
-				st = conn.prepareStatement("insert into photoalbum(name, shareComment, objectId) values(?, ?, ?)");
-			try {
-				st.setString(1, truncateString(album.getName(), 512, "photoalbum.name"));
-				st.setString(2, album.getShareComment());
-				st.setInt(3, ref.id);
-				st.executeUpdate();
-			} finally {
-				st.close();
-			}
+				st = statements.get("insert into photoalbum(name, shareComment, objectId) values(?, ?, ?)");
+			st.setString(1, truncateString(album.getName(), 512, "photoalbum.name"));
+			st.setString(2, album.getShareComment());
+			st.setInt(3, ref.id);
+			st.executeUpdate();
 		}
 		return ref.id;
 	}
 
-	private static int savePhoto(Connection conn, Photo photo, Person owner, boolean isStub) throws SQLException {
-		EmbeddableObjectReference ref = getEmbeddableObjectReference(conn, photo, owner, isStub);
+	private static int savePhoto(StatementCache statements, EntityIdResolver ids, Photo photo, Person owner,
+			boolean isStub) throws SQLException {
+		EmbeddableObjectReference ref = getEmbeddableObjectReference(statements, ids, photo, owner, isStub);
 		if (ref.needsUpdate) {
 			// insert dummy album if actual parent album not yet in DB
-			int albumId = savePhotoAlbum(conn, new PhotoAlbum(photo.getAlbumId(), "", ""), owner, true);
+			int albumId = savePhotoAlbum(statements, ids, new PhotoAlbum(photo.getAlbumId(), "", ""), owner, true);
 
 			PreparedStatement st;
 			if (ref.present)
-				st = conn.prepareStatement("update photo set albumId=?, shareComment=? where objectId=?");
+				st = statements.get("update photo set albumId=?, shareComment=? where objectId=?");
 			else
-				st = conn.prepareStatement("insert into photo(albumId, shareComment, objectId) values(?, ?, ?)");
-			try {
-				st.setInt(1, albumId);
-				st.setString(2, photo.getShareComment());
-				st.setInt(3, ref.id);
-				st.executeUpdate();
-			} finally {
-				st.close();
-			}
+				st = statements.get("insert into photo(albumId, shareComment, objectId) values(?, ?, ?)");
+			st.setInt(1, albumId);
+			st.setString(2, photo.getShareComment());
+			st.setInt(3, ref.id);
+			st.executeUpdate();
 		}
 		return ref.id;
 	}
 
-	private static Integer saveEmbeddedContent(Connection conn, NormalPost post) throws SQLException {
+	private static Integer saveEmbeddedContent(StatementCache statements, EntityIdResolver ids, NormalPost post)
+			throws SQLException {
 		Integer objectId = null;
 		EmbeddableObject obj = post.getEmbeddedContent();
 		if (obj != null) {
@@ -663,15 +578,15 @@ public class FacebookDao {
 				embeddedIsStub = false;
 			}
 			if (obj instanceof Video)
-				objectId = saveVideo(conn, (Video) obj, embeddedOwner, embeddedIsStub);
+				objectId = saveVideo(statements, ids, (Video) obj, embeddedOwner, embeddedIsStub);
 			else if (obj instanceof Link)
-				objectId = saveLink(conn, (Link) obj, embeddedOwner, embeddedIsStub);
+				objectId = saveLink(statements, ids, (Link) obj, embeddedOwner, embeddedIsStub);
 			else if (obj instanceof PhotoAlbum)
-				objectId = savePhotoAlbum(conn, (PhotoAlbum) obj, embeddedOwner, embeddedIsStub);
+				objectId = savePhotoAlbum(statements, ids, (PhotoAlbum) obj, embeddedOwner, embeddedIsStub);
 			else if (obj instanceof Photo)
-				objectId = savePhoto(conn, (Photo) obj, embeddedOwner, embeddedIsStub);
+				objectId = savePhoto(statements, ids, (Photo) obj, embeddedOwner, embeddedIsStub);
 			else if (obj instanceof EmbeddableNormalPost)
-				objectId = saveEmbeddableNormalPost(conn, (EmbeddableNormalPost) obj, 0, embeddedOwner,
+				objectId = saveEmbeddableNormalPost(statements, ids, (EmbeddableNormalPost) obj, 0, embeddedOwner,
 						embeddedOwner.getId(), embeddedOwner.getName(), embeddedIsStub)[0];
 			else
 				throw new RuntimeException("unknown embedded content type " + obj);
@@ -679,11 +594,12 @@ public class FacebookDao {
 		return objectId;
 	}
 
-	private static int[] saveEmbeddableNormalPost(Connection conn, EmbeddableNormalPost post, int postIdx, Person owner,
-			String curUserId, String curUserName, boolean isStub) throws SQLException {
+	private static int[] saveEmbeddableNormalPost(StatementCache statements, EntityIdResolver ids,
+			EmbeddableNormalPost post, int postIdx, Person owner, String curUserId, String curUserName,
+			boolean isStub) throws SQLException {
 		int postId = -1;
 
-		EmbeddableObjectReference ref = getEmbeddableObjectReference(conn, post, owner, isStub);
+		EmbeddableObjectReference ref = getEmbeddableObjectReference(statements, ids, post, owner, isStub);
 		boolean savePost = ref.needsUpdate;
 		if (ref.present) {
 			if (!ref.needsUpdate && !isStub) {
@@ -693,52 +609,45 @@ public class FacebookDao {
 				savePost = true;
 			} else {
 				// the common case: either the full post or a stub is already in the DB -> get the post ID
-				PreparedStatement getEmbeddablePostId = conn.prepareStatement("select postId from embeddablepost " +
+				PreparedStatement getEmbeddablePostId = statements.get("select postId from embeddablepost " +
 						"where objectId=?");
+				getEmbeddablePostId.setInt(1, ref.id);
+				ResultSet rs = getEmbeddablePostId.executeQuery();
 				try {
-					getEmbeddablePostId.setInt(1, ref.id);
-					ResultSet rs = getEmbeddablePostId.executeQuery();
-					try {
-						rs.next();
-						postId = rs.getInt(1);
-					} finally {
-						rs.close();
-					}
+					rs.next();
+					postId = rs.getInt(1);
 				} finally {
-					getEmbeddablePostId.close();
+					rs.close();
 				}
 			}
 		}
 
 		if (savePost) {
-			int newPostId = insertPost(conn, post, postId, postIdx, curUserId, curUserName);
+			int newPostId = insertPost(statements, ids, post, postId, postIdx, curUserId, curUserName);
 
 			NormalPostHeader header = post.getHeader();
 			Integer placeId = null;
 			Place place = header.getPlace();
 			if (place != null)
-				placeId = getPlaceId(conn, place);
+				placeId = ids.getPlaceId(place);
 
-			Integer objectId = saveEmbeddedContent(conn, post);
+			Integer objectId = saveEmbeddedContent(statements, ids, post);
 
+			// not batched, since the row is read back when the post is seen again
 			PreparedStatement st;
 			if (postId != -1)
-				st = conn.prepareStatement("update embeddablepost set postId=?, type=?, placeId=?, embeddedId=? " +
+				st = statements.get("update embeddablepost set postId=?, type=?, placeId=?, embeddedId=? " +
 						"where objectId=?");
 			else
-				st = conn.prepareStatement("insert into embeddablepost(postId, type, placeId, embeddedId, objectId) " +
+				st = statements.get("insert into embeddablepost(postId, type, placeId, embeddedId, objectId) " +
 						"values(?, ?, ?, ?, ?)");
-			try {
-				postId = newPostId;
-				st.setInt(1, postId);
-				st.setInt(2, header.getType().ordinal());
-				st.setObject(3, placeId, java.sql.Types.INTEGER);
-				st.setObject(4, objectId, java.sql.Types.INTEGER);
-				st.setInt(5, ref.id);
-				st.executeUpdate();
-			} finally {
-				st.close();
-			}
+			postId = newPostId;
+			st.setInt(1, postId);
+			st.setInt(2, header.getType().ordinal());
+			st.setObject(3, placeId, java.sql.Types.INTEGER);
+			st.setObject(4, objectId, java.sql.Types.INTEGER);
+			st.setInt(5, ref.id);
+			st.executeUpdate();
 		}
 
 		return new int[] { ref.id, postId };
@@ -747,38 +656,25 @@ public class FacebookDao {
 	/**
 	 * Saves the specified site likes in the database.
 	 */
-	private static void saveSiteLikes(Connection conn, Person p, Set<Site> sitelikes) throws SQLException {
-		int personId = getPersonId(conn, p.getId(), p.getName());
-
-		List<Integer> siteIds = new ArrayList<Integer>(sitelikes.size());
-		for (Site site : sitelikes)
-			siteIds.add(getSiteId(conn, site));
-
-		PreparedStatement insertSiteLikes = conn.prepareStatement("insert into sitelikes(personId, siteId) " +
-				"values(?, ?)");
-		try {
-			// from http://viralpatel.net/blogs/batch-insert-in-java-jdbc/
-			int count = 0;
-			for(Integer siteId : siteIds) {
-				insertSiteLikes.setInt(1, personId);
-				insertSiteLikes.setInt(2, siteId);
-				insertSiteLikes.addBatch();
-
-				if(++count % batchSize == 0) {
-					insertSiteLikes.executeBatch();
-				}
-			}
-			insertSiteLikes.executeBatch();
-		} finally {
-			insertSiteLikes.close();
+	private static void saveSiteLikes(StatementCache statements, EntityIdResolver ids, Person p,
+			Set<Site> sitelikes) throws SQLException {
+		int personId = ids.getPersonId(p.getId(), p.getName());
+
+		PreparedStatement insertSiteLikes = statements.get("insert into sitelikes(personId, siteId) values(?, ?)");
+		for (Site site : sitelikes) {
+			insertSiteLikes.setInt(1, personId);
+			insertSiteLikes.setInt(2, ids.getSiteId(site));
+			statements.addBatch(insertSiteLikes);
 		}
 	}
 
 	/**
-	 * Saves a list of posts, including Video, LifeEvent, and similar child elements in the database.
+	 * Saves a list of posts, including Video, LifeEvent, and similar child elements in the database. Posts are
+	 * inserted right away, since their IDs are needed for the child elements; the rows of the child tables are
+	 * added to the batches of the statement cache.
 	 */
-	private static void savePosts(Connection conn, List<Post> postList, String userid, String username)
-			throws SQLException {
+	private static void savePosts(StatementCache statements, EntityIdResolver ids, List<Post> postList,
+			String userid, String username) throws SQLException {
 		int postIdx = 0;
 		for(Post element : postList) {
 			// Insertion and possible update of embeddable posts is handled by saveEmbeddableNormalPost. We assume that
@@ -786,7 +682,7 @@ public class FacebookDao {
 			// with the actual post later on, no update logic is needed for the respective child tables.
 			int postid = -1;
 			if (!(element instanceof EmbeddableNormalPost))	// common fields of all post types
-				postid = insertPost(conn, element, -1, postIdx++, userid, username);
+				postid = insertPost(statements, ids, element, -1, postIdx++, userid, username);
 
 			// specific fields of post type
 			NormalPostHeader header = null;
@@ -796,8 +692,8 @@ public class FacebookDao {
 				header = ((EmbeddableNormalPost) element).getHeader();
 				mentionedPersons = ((EmbeddableNormalPost) element).getMentionedPersons();
 				mentionedSites = ((EmbeddableNormalPost) element).getMentionedSites();
-				postid = saveEmbeddableNormalPost(conn, (EmbeddableNormalPost) element, postIdx++, header.getSender(),
-						userid, username, false)[1];
+				postid = saveEmbeddableNormalPost(statements, ids, (EmbeddableNormalPost) element, postIdx++,
+						header.getSender(), userid, username, false)[1];
 			} else if(element instanceof NormalPost) {
 				header = ((NormalPost) element).getHeader();
 				mentionedPersons = ((NormalPost) element).getMentionedPersons();
@@ -806,156 +702,103 @@ public class FacebookDao {
 				Integer placeId = null;
 				Place place = header.getPlace();
 				if (place != null)
-					placeId = getPlaceId(conn, place);
+					placeId = ids.getPlaceId(place);
 
-				Integer objectId = saveEmbeddedContent(conn, (NormalPost) element);
+				Integer objectId = saveEmbeddedContent(statements, ids, (NormalPost) element);
 
-				PreparedStatement insertNormalPost = conn.prepareStatement("insert into normalpost(postId, type, " +
-						"placeId, embeddedId) values(?, ?, ?, ?)");
-				try {
-					insertNormalPost.setInt(1, postid);
-					insertNormalPost.setInt(2, header.getType().ordinal());
-					insertNormalPost.setObject(3, placeId, java.sql.Types.INTEGER);
-					insertNormalPost.setObject(4, objectId, java.sql.Types.INTEGER);
-					insertNormalPost.executeUpdate();
-				} finally {
-					insertNormalPost.close();
-				}
+				PreparedStatement insertNormalPost = statements.get("insert into normalpost(postId, type, placeId, " +
+						"embeddedId) values(?, ?, ?, ?)");
+				insertNormalPost.setInt(1, postid);
+				insertNormalPost.setInt(2, header.getType().ordinal());
+				insertNormalPost.setObject(3, placeId, java.sql.Types.INTEGER);
+				insertNormalPost.setObject(4, objectId, java.sql.Types.INTEGER);
+				statements.addBatch(insertNormalPost);
 			} else if(element instanceof LifeEvent) {
-				PreparedStatement insertLifeEvent = conn.prepareStatement("insert into lifeevent(postId, title, " +
-						"subtitle) values(?, ?, ?)");
-				try {
-					insertLifeEvent.setInt(1, postid);
-					insertLifeEvent.setString(2, truncateString(((LifeEvent) element).getTitle(), 512,
-							"lifeevent.title"));
-					insertLifeEvent.setString(3, truncateString(((LifeEvent) element).getSubtitle(), 512,
-							"lifeevent.subtitle"));
-					insertLifeEvent.executeUpdate();
-				} finally {
-					insertLifeEvent.close();
-				}
+				PreparedStatement insertLifeEvent = statements.get("insert into lifeevent(postId, title, subtitle) " +
+						"values(?, ?, ?)");
+				insertLifeEvent.setInt(1, postid);
+				insertLifeEvent.setString(2, truncateString(((LifeEvent) element).getTitle(), 512,
+						"lifeevent.title"));
+				insertLifeEvent.setString(3, truncateString(((LifeEvent) element).getSubtitle(), 512,
+						"lifeevent.subtitle"));
+				statements.addBatch(insertLifeEvent);
 			}
 			// otherwise it is a SmallPost without any specific fields
 
 			// save associated people
-			Set<Person> persons;
-			if(header != null) {
-				persons = header.getPersons();
-				if(persons != null) {
-					PreparedStatement insertWithperson = conn.prepareStatement("insert into withperson(postId, " +
-							"personId) values(?, ?)");
-					try {
-						for(Person p : persons) {
-							int personid = getPersonId(conn, p.getId(), p.getName());
-							insertWithperson.setInt(1, postid);
-							insertWithperson.setInt(2, personid);
-							insertWithperson.executeUpdate();
-						}
-					} finally {
-						insertWithperson.close();
-					}
+			if((header != null) && (header.getPersons() != null)) {
+				PreparedStatement insertWithperson = statements.get("insert into withperson(postId, personId) " +
+						"values(?, ?)");
+				for(Person p : header.getPersons()) {
+					insertWithperson.setInt(1, postid);
+					insertWithperson.setInt(2, ids.getPersonId(p.getId(), p.getName()));
+					statements.addBatch(insertWithperson);
 				}
 			}
 
 			// save mentioned persons/sites
 			if(mentionedPersons != null) {
-				PreparedStatement insertMentionedPerson = conn.prepareStatement("insert into mentionedperson(postId, " +
+				PreparedStatement insertMentionedPerson = statements.get("insert into mentionedperson(postId, " +
 						"personId) values(?, ?)");
-				try {
-					for(Person p : mentionedPersons) {
-						int personid = getPersonId(conn, p.getId(), p.getName());
-						insertMentionedPerson.setInt(1, postid);
-						insertMentionedPerson.setInt(2, personid);
-						insertMentionedPerson.executeUpdate();
-					}
-				} finally {
-					insertMentionedPerson.close();
+				for(Person p : mentionedPersons) {
+					insertMentionedPerson.setInt(1, postid);
+					insertMentionedPerson.setInt(2, ids.getPersonId(p.getId(), p.getName()));
+					statements.addBatch(insertMentionedPerson);
 				}
 			}
 			if(mentionedSites != null) {
-				PreparedStatement insertMentionedSite = conn.prepareStatement("insert into mentionedsite(postId, " +
-						"siteId) values(?, ?)");
-				try {
-					for(Site s : mentionedSites) {
-						int siteid = getSiteId(conn, s);
-						insertMentionedSite.setInt(1, postid);
-						insertMentionedSite.setInt(2, siteid);
-						insertMentionedSite.executeUpdate();
-					}
-				} finally {
-					insertMentionedSite.close();
+				PreparedStatement insertMentionedSite = statements.get("insert into mentionedsite(postId, siteId) " +
+						"values(?, ?)");
+				for(Site s : mentionedSites) {
+					insertMentionedSite.setInt(1, postid);
+					insertMentionedSite.setInt(2, ids.getSiteId(s));
+					statements.addBatch(insertMentionedSite);
 				}
 			}
 
 			// save likes
-			savePostLikes(conn, postid, element.getLikes());
+			savePostLikes(statements, ids, postid, element.getLikes());
 
 			// save comments
-			PreparedStatement insertComment = conn.prepareStatement("insert into comment(commentId, parentId) " +
-					"values(?, ?)");
-			try {
-				int commentIdx = 0;
-				for(Comment comm : element.getComments()) {
-					// insert post
-					int childpostid = insertPost(conn, comm, commentIdx++, userid, username);
-					// insert comment
-					insertComment.setInt(1, childpostid);
-					insertComment.setInt(2, postid);
-					insertComment.executeUpdate();
-					// insert likes of comment
-					savePostLikes(conn, childpostid, comm.getLikes());
-				}
-			} finally {
-				insertComment.close();
+			PreparedStatement insertComment = statements.get("insert into comment(commentId, parentId) values(?, ?)");
+			int commentIdx = 0;
+			for(Comment comm : element.getComments()) {
+				// insert post
+				int childpostid = insertPost(statements, ids, comm, commentIdx++, userid, username);
+				// insert comment
+				insertComment.setInt(1, childpostid);
+				insertComment.setInt(2, postid);
+				statements.addBatch(insertComment);
+				// insert likes of comment
+				savePostLikes(statements, ids, childpostid, comm.getLikes());
 			}
 		}
 	}
 
-	private static void savePostLikes(Connection conn, int postId, Set<Person> likes) throws SQLException {
-		PreparedStatement insertLikes = conn.prepareStatement("insert into likes(personId, postId) values(?, ?)");
-		try {
-			int i = 0;
-			for(Person p : likes) {
-				int personId = getPersonId(conn, p.getId(), p.getName());
-				insertLikes.setInt(1, personId);
-				insertLikes.setInt(2, postId);
-				insertLikes.addBatch();
-
-				if(++i % batchSize == 0)
-					insertLikes.executeBatch();
-			}
-			insertLikes.executeBatch();
-		} finally {
-			insertLikes.close();
+	private static void savePostLikes(StatementCache statements, EntityIdResolver ids, int postId, Set<Person> likes)
+			throws SQLException {
+		PreparedStatement insertLikes = statements.get("insert into likes(personId, postId) values(?, ?)");
+		for(Person p : likes) {
+			insertLikes.setInt(1, ids.getPersonId(p.getId(), p.getName()));
+			insertLikes.setInt(2, postId);
+			statements.addBatch(insertLikes);
 		}
 	}
 
 	/**
 	 * Save list of friends of the specified user in the database.
 	 */
-	private static void saveFriends(Connection conn, Set<Person> friends, String userid, String username)
-			throws SQLException {
-		int personid = getPersonId(conn, userid, username);
-
-		PreparedStatement insertFriends = conn.prepareStatement("insert into friendswith(personId, friendId) " +
-				"values(?, ?)");
-		try {
-			int i = 0;
-			for(Person p : friends) {
-				// "friendship" edges on Facebook are always undirected, but we only store the edges going out from the
-				// currently crawled user to save space and avoid problems trying to insert the same edge twice.
-				int friendid = getPersonId(conn, p.getId(), p.getName());
-				insertFriends.setInt(1, personid);
-				insertFriends.setInt(2, friendid);
-				insertFriends.addBatch();
-
-				if(++i % (batchSize/2) == 0) {
-					insertFriends.executeBatch();
-				}
-			}
-			insertFriends.executeBatch();
-		} finally {
-			insertFriends.close();
+	private static void saveFriends(StatementCache statements, EntityIdResolver ids, Set<Person> friends,
+			String userid, String username) throws SQLException {
+		int personid = ids.getPersonId(userid, username);
+
+		PreparedStatement insertFriends = statements.get("insert into friendswith(personId, friendId) values(?, ?)");
+		for(Person p : friends) {
+			// "friendship" edges on Facebook are always undirected, but we only store the edges going out from the
+			// currently crawled user to save space and avoid problems trying to insert the same edge twice.
+			insertFriends.setInt(1, personid);
+			insertFriends.setInt(2, ids.getPersonId(p.getId(), p.getName()));
+			statements.addBatch(insertFriends);
 		}
 	}
 
@@ -963,226 +806,155 @@ public class FacebookDao {
 	 * Save personal data such as date of birth, place of residence, or email address. If user has not yet been saved in
 	 * database, insert him first.
 	 */
-	private static void savePersonDetails(Connection conn, PersonDetails details, int numberOfFriends, String language,
-			String userid, String username) throws SQLException {
-		int personid = getPersonId(conn, userid, username);
+	private static void savePersonDetails(StatementCache statements, EntityIdResolver ids, PersonDetails details,
+			int numberOfFriends, String language, String userid, String username) throws SQLException {
+		int personid = ids.getPersonId(userid, username);
 
-		PreparedStatement insertPersonDetails = conn.prepareStatement("insert into persondetails(personId, gender," +
+		PreparedStatement insertPersonDetails = statements.get("insert into persondetails(personId, gender," +
 				"interestedin, birthday, religion, religionFbId, politics, politicsFbId, phonenumber, address, " +
 				"homepage, email, relationshipstatus, currentresidence, currentresidenceFbId, hometown, " +
 				"hometownFbId, bio, quotes, numfriends, detectedlanguage) values(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, " +
 				"?, ?, ?, ?, ?, ?, ?, ?, ?)");
-		try {
-			insertPersonDetails.setInt(1,personid);
-			insertPersonDetails.setString(2,String.valueOf(details.getGender()));
-			insertPersonDetails.setString(3,String.valueOf(details.getInterestedin()));
-			insertPersonDetails.setTimestamp(4,convertDate(details.getBirthdate()));
-			insertPersonDetails.setString(5,truncateString(details.getReligion(), 45, "persondetails.religion"));
-			insertPersonDetails.setString(6,details.getReligionid());
-			insertPersonDetails.setString(7,truncateString(details.getPolitics(), 45, "persondetails.politics"));
-			insertPersonDetails.setString(8,details.getPoliticsid());
-			insertPersonDetails.setString(9,truncateString(details.getTelephonenumber(), 45,
-					"persondetails.phonenumber"));
-			insertPersonDetails.setString(10,truncateString(details.getAddress(), 256, "persondetails.address"));
-			insertPersonDetails.setString(11,truncateString(details.getHomepage(), 64, "persondetails.homepage"));
-			insertPersonDetails.setString(12,truncateString(details.getEmail(), 256, "persondetails.email"));
-			insertPersonDetails.setString(13,truncateString(details.getRelationshipstatus(), 45,
-					"persondetails.relationshipstatus"));
-			insertPersonDetails.setString(14,truncateString(details.getCurrentresidence(), 45,
-					"persondetails.currentresidence"));
-			insertPersonDetails.setString(15,details.getCurrentresidenceid());
-			insertPersonDetails.setString(16,truncateString(details.getHometown(), 45, "persondetails.hometown"));
-			insertPersonDetails.setString(17,details.getHometownid());
-			insertPersonDetails.setString(18,details.getBio());
-			insertPersonDetails.setString(19,details.getQuotes());
-			insertPersonDetails.setInt(20,Math.max(0, numberOfFriends));
-			insertPersonDetails.setString(21,truncateString(language, 5, "persondetails.detectedlanguage"));
-			insertPersonDetails.executeUpdate();
-		} finally {
-			insertPersonDetails.close();
-		}
+		insertPersonDetails.setInt(1,personid);
+		insertPersonDetails.setString(2,String.valueOf(details.getGender()));
+		insertPersonDetails.setString(3,String.valueOf(details.getInterestedin()));
+		insertPersonDetails.setTimestamp(4,convertDate(details.getBirthdate()));
+		insertPersonDetails.setString(5,truncateString(details.getReligion(), 45, "persondetails.religion"));
+		insertPersonDetails.setString(6,details.getReligionid());
+		insertPersonDetails.setString(7,truncateString(details.getPolitics(), 45, "persondetails.politics"));
+		insertPersonDetails.setString(8,details.getPoliticsid());
+		insertPersonDetails.setString(9,truncateString(details.getTelephonenumber(), 45,
+				"persondetails.phonenumber"));
+		insertPersonDetails.setString(10,truncateString(details.getAddress(), 256, "persondetails.address"));
+		insertPersonDetails.setString(11,truncateString(details.getHomepage(), 64, "persondetails.homepage"));
+		insertPersonDetails.setString(12,truncateString(details.getEmail(), 256, "persondetails.email"));
+		insertPersonDetails.setString(13,truncateString(details.getRelationshipstatus(), 45,
+				"persondetails.relationshipstatus"));
+		insertPersonDetails.setString(14,truncateString(details.getCurrentresidence(), 45,
+				"persondetails.currentresidence"));
+		insertPersonDetails.setString(15,details.getCurrentresidenceid());
+		insertPersonDetails.setString(16,truncateString(details.getHometown(), 45, "persondetails.hometown"));
+		insertPersonDetails.setString(17,details.getHometownid());
+		insertPersonDetails.setString(18,details.getBio());
+		insertPersonDetails.setString(19,details.getQuotes());
+		insertPersonDetails.setInt(20,Math.max(0, numberOfFriends));
+		insertPersonDetails.setString(21,truncateString(language, 5, "persondetails.detectedlanguage"));
+		insertPersonDetails.executeUpdate();
 
 		// save spoken languages
 		if(details.getSpokenlanguages() != null) {
-			PreparedStatement insertSpokenLanguages = conn.prepareStatement("insert into spokenlanguages(personId, " +
+			PreparedStatement insertSpokenLanguages = statements.get("insert into spokenlanguages(personId, " +
 					"language) values(?, ?)");
-			try {
-				for(String s : details.getSpokenlanguages()) {
-					insertSpokenLanguages.setInt(1, personid);
-					insertSpokenLanguages.setString(2, truncateString(s, 64, "spokenlanguages.language"));
-					insertSpokenLanguages.executeUpdate();
-				}
-			} finally {
-				insertSpokenLanguages.close();
+			for(String s : details.getSpokenlanguages()) {
+				insertSpokenLanguages.setInt(1, personid);
+				insertSpokenLanguages.setString(2, truncateString(s, 64, "spokenlanguages.language"));
+				statements.addBatch(insertSpokenLanguages);
 			}
 		}
 
 		// save family
 		Set<FamilyMember> family;
 		if((family = details.getFamily()) != null) {
-			PreparedStatement insertFamilyMember = conn.prepareStatement("insert into familymember(personId, " +
+			PreparedStatement insertFamilyMember = statements.get("insert into familymember(personId, " +
 					"familymemberId, role) values(?, ?, ?)");
-			try {
-				for(FamilyMember member : family) {
-					insertFamilyMember.setInt(1, personid);
-					int memberid = getPersonId(conn, member.getPerson().getId(), member.getPerson().getName());
-					insertFamilyMember.setInt(2, memberid);
-					insertFamilyMember.setString(3, truncateString(member.getRelation(), 45, "familymember.role"));
-					insertFamilyMember.executeUpdate();
-				}
-			} finally {
-				insertFamilyMember.close();
+			for(FamilyMember member : family) {
+				insertFamilyMember.setInt(1, personid);
+				insertFamilyMember.setInt(2, ids.getPersonId(member.getPerson().getId(),
+						member.getPerson().getName()));
+				insertFamilyMember.setString(3, truncateString(member.getRelation(), 45, "familymember.role"));
+				statements.addBatch(insertFamilyMember);
 			}
 		}
 
 		// save education data
 		List<EducationItem> education;
 		if((education = details.getEducation()) != null) {
-			PreparedStatement insertEducationItem = conn.prepareStatement("insert into educationitem(personId, " +
-					"`index`, name, educationFbId, timeperiod, type, field) values(?, ?, ?, ?, ?, ?, ?)",
-					Statement.RETURN_GENERATED_KEYS);
-			try {
-				int itemIdx = 0;
-				for(EducationItem educ : education) {
-					insertEducationItem.setInt(1, personid);
-					insertEducationItem.setInt(2, itemIdx++);
-					insertEducationItem.setString(3, truncateString(educ.getName(), 64, "educationitem.name"));
-					insertEducationItem.setString(4, educ.getId());
-					insertEducationItem.setString(5, truncateString(educ.getTimeperiod(), 45,
-							"educationitem.timeperiod"));
-					insertEducationItem.setString(6, truncateString(educ.getType(), 64, "educationitem.type"));
-					insertEducationItem.setString(7, truncateString(educ.getField(), 256, "educationitem.field"));
-					insertEducationItem.executeUpdate();
-					int educationitemid;
-					ResultSet res = insertEducationItem.getGeneratedKeys();
-					try {
-						res.next();
-						educationitemid = res.getInt(1);
-					} finally {
-						res.close();
-					}
-
-					// If current education has courses, save them as well.
-					if(educ.getClasses() == null)
-						continue;
-					PreparedStatement insertEducationClass = conn.prepareStatement(
-							"insert into educationclass(parentId, `index`, name, description) values(?, ?, ?, ?)",
-							Statement.RETURN_GENERATED_KEYS);
-					try {
-						int classIdx = 0;
-						for(EducationClass course : educ.getClasses()) {
-							insertEducationClass.setInt(1, educationitemid);
-							insertEducationClass.setInt(2, classIdx++);
-							insertEducationClass.setString(3, truncateString(course.getName(), 64,
-									"educationclass.name"));
-							insertEducationClass.setString(4, truncateString(course.getDescription(), 200,
-									"educationclass.description"));
-							insertEducationClass.executeUpdate();
-							int educationclassid;
-							ResultSet rset = insertEducationClass.getGeneratedKeys();
-							try {
-								rset.next();
-								educationclassid = rset.getInt(1);
-							} finally {
-								rset.close();
-							}
-
-							// If course has associated people, save them as well.
-							PreparedStatement insertEducationwithPerson = conn.prepareStatement(
-									"insert into educationwithperson(educationclassId, personId) values(?, ?)");
-							try {
-								for(Person p : course.getPersons()) {
-									int classpersonid = getPersonId(conn, p.getId(), p.getName());
-									insertEducationwithPerson.setInt(1, educationclassid);
-									insertEducationwithPerson.setInt(2, classpersonid);
-									insertEducationwithPerson.executeUpdate();
-								}
-							} finally {
-								insertEducationwithPerson.close();
-							}
-						}
-					} finally {
-						insertEducationClass.close();
+			PreparedStatement insertEducationItem = statements.getReturningKeys("insert into educationitem(personId, " +
+					"`index`, name, educationFbId, timeperiod, type, field) values(?, ?, ?, ?, ?, ?, ?)");
+			int itemIdx = 0;
+			for(EducationItem educ : education) {
+				insertEducationItem.setInt(1, personid);
+				insertEducationItem.setInt(2, itemIdx++);
+				insertEducationItem.setString(3, truncateString(educ.getName(), 64, "educationitem.name"));
+				insertEducationItem.setString(4, educ.getId());
+				insertEducationItem.setString(5, truncateString(educ.getTimeperiod(), 45, "educationitem.timeperiod"));
+				insertEducationItem.setString(6, truncateString(educ.getType(), 64, "educationitem.type"));
+				insertEducationItem.setString(7, truncateString(educ.getField(), 256, "educationitem.field"));
+				insertEducationItem.executeUpdate();
+				int educationitemid = getGeneratedKey(insertEducationItem);
+
+				// If current education has courses, save them as well.
+				if(educ.getClasses() == null)
+					continue;
+				PreparedStatement insertEducationClass = statements.getReturningKeys(
+						"insert into educationclass(parentId, `index`, name, description) values(?, ?, ?, ?)");
+				int classIdx = 0;
+				for(EducationClass course : educ.getClasses()) {
+					insertEducationClass.setInt(1, educationitemid);
+					insertEducationClass.setInt(2, classIdx++);
+					insertEducationClass.setString(3, truncateString(course.getName(), 64, "educationclass.name"));
+					insertEducationClass.setString(4, truncateString(course.getDescription(), 200,
+							"educationclass.description"));
+					insertEducationClass.executeUpdate();
+					int educationclassid = getGeneratedKey(insertEducationClass);
+
+					// If course has associated people, save them as well.
+					PreparedStatement insertEducationwithPerson = statements.get(
+							"insert into educationwithperson(educationclassId, personId) values(?, ?)");
+					for(Person p : course.getPersons()) {
+						insertEducationwithPerson.setInt(1, educationclassid);
+						insertEducationwithPerson.setInt(2, ids.getPersonId(p.getId(), p.getName()));
+						statements.addBatch(insertEducationwithPerson);
 					}
 				}
-			} finally {
-				insertEducationItem.close();
 			}
 		}
 
 		// Insert workplaces, if present.
 		List<WorkItem> work;
 		if((work = details.getWork()) != null) {
-			PreparedStatement insertWorkItem = conn.prepareStatement("insert into workitem(personId, `index`, name, " +
-					"workFbId, title, timeperiod, place, description) values(?, ?, ?, ?, ?, ?, ?, ?)",
-					Statement.RETURN_GENERATED_KEYS);
-			try {
-				int itemIdx = 0;
-				for(WorkItem w : work) {
-					insertWorkItem.setInt(1, personid);
-					insertWorkItem.setInt(2, itemIdx++);
-					insertWorkItem.setString(3, truncateString(w.getName(), 256, "workitem.name"));
-					insertWorkItem.setString(4, w.getId());
-					insertWorkItem.setString(5, truncateString(w.getTitle(), 64, "workitem.title"));
-					insertWorkItem.setString(6, truncateString(w.getTimeperiod(), 45, "workitem.timeperiod"));
-					insertWorkItem.setString(7, truncateString(w.getPlace(), 45, "workitem.place"));
-					insertWorkItem.setString(8, truncateString(w.getDescription(), 200, "workitem.description"));
-					insertWorkItem.executeUpdate();
-					int workitemid;
-					ResultSet res = insertWorkItem.getGeneratedKeys();
-					try {
-						res.next();
-						workitemid = res.getInt(1);
-					} finally {
-						res.close();
-					}
-
-					// If current workplace has associated projects, save them as well.
-					if(w.getProjects() == null)
-						continue;
-					PreparedStatement insertWorkProject = conn.prepareStatement(
-							"insert into workproject(parentId, `index`, name, timeperiod, description) " +
-							"values(?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
-					try {
-						int projectIdx = 0;
-						for(WorkProject project : w.getProjects()) {
-							insertWorkProject.setInt(1, workitemid);
-							insertWorkProject.setInt(2, projectIdx++);
-							insertWorkProject.setString(3, truncateString(project.getName(), 64, "workproject.name"));
-							insertWorkProject.setString(4, truncateString(project.getTimeperiod(), 45,
-									"workproject.timeperiod"));
-							insertWorkProject.setString(5, truncateString(project.getDescription(), 200,
-									"workproject.description"));
-							insertWorkProject.executeUpdate();
-							int workprojectid;
-							ResultSet rset = insertWorkProject.getGeneratedKeys();
-							try {
-								rset.next();
-								workprojectid = rset.getInt(1);
-							} finally {
-								rset.close();
-							}
-
-							// If the project has associated people, save them as well.
-							PreparedStatement insertWorkwithPerson = conn.prepareStatement(
-									"insert into workwithperson(workprojectId, personId) values(?, ?)");
-							try {
-								for(Person p : project.getPersons()) {
-									int workprojectpersonid = getPersonId(conn, p.getId(), p.getName());
-									insertWorkwithPerson.setInt(1, workprojectid);
-									insertWorkwithPerson.setInt(2, workprojectpersonid);
-									insertWorkwithPerson.executeUpdate();
-								}
-							} finally {
-								insertWorkwithPerson.close();
-							}
-						}
-					} finally {
-						insertWorkProject.close();
+			PreparedStatement insertWorkItem = statements.getReturningKeys("insert into workitem(personId, `index`, " +
+					"name, workFbId, title, timeperiod, place, description) values(?, ?, ?, ?, ?, ?, ?, ?)");
+			int itemIdx = 0;
+			for(WorkItem w : work) {
+				insertWorkItem.setInt(1, personid);
+				insertWorkItem.setInt(2, itemIdx++);
+				insertWorkItem.setString(3, truncateString(w.getName(), 256, "workitem.name"));
+				insertWorkItem.setString(4, w.getId());
+				insertWorkItem.setString(5, truncateString(w.getTitle(), 64, "workitem.title"));
+				insertWorkItem.setString(6, truncateString(w.getTimeperiod(), 45, "workitem.timeperiod"));
+				insertWorkItem.setString(7, truncateString(w.getPlace(), 45, "workitem.place"));
+				insertWorkItem.setString(8, truncateString(w.getDescription(), 200, "workitem.description"));
+				insertWorkItem.executeUpdate();
+				int workitemid = getGeneratedKey(insertWorkItem);
+
+				// If current workplace has associated projects, save them as well.
+				if(w.getProjects() == null)
+					continue;
+				PreparedStatement insertWorkProject = statements.getReturningKeys(
+						"insert into workproject(parentId, `index`, name, timeperiod, description) " +
+						"values(?, ?, ?, ?, ?)");
+				int projectIdx = 0;
+				for(WorkProject project : w.getProjects()) {
+					insertWorkProject.setInt(1, workitemid);
+					insertWorkProject.setInt(2, projectIdx++);
+					insertWorkProject.setString(3, truncateString(project.getName(), 64, "workproject.name"));
+					insertWorkProject.setString(4, truncateString(project.getTimeperiod(), 45,
+							"workproject.timeperiod"));
+					insertWorkProject.setString(5, truncateString(project.getDescription(), 200,
+							"workproject.description"));
+					insertWorkProject.executeUpdate();
+					int workprojectid = getGeneratedKey(insertWorkProject);
+
+					// If the project has associated people, save them as well.
+					PreparedStatement insertWorkwithPerson = statements.get(
+							"insert into workwithperson(workprojectId, personId) values(?, ?)");
+					for(Person p : project.getPersons()) {
+						insertWorkwithPerson.setInt(1, workprojectid);
+						insertWorkwithPerson.setInt(2, ids.getPersonId(p.getId(), p.getName()));
+						statements.addBatch(insertWorkwithPerson);
 					}
 				}
-			} finally {
-				insertWorkItem.close();
 			}
 		}
 	}
@@ -1190,8 +962,8 @@ public class FacebookDao {
 	/**
 	 * Save Post in database and return PostId.
 	 */
-	private static int insertPost(Connection conn, Post element, int existingPostId, int index, String curUserId,
-			String curUserName) throws SQLException {
+	private static int insertPost(StatementCache statements, EntityIdResolver ids, Post element, int existingPostId,
+			int index, String curUserId, String curUserName) throws SQLException {
 		int type;	// post type; value 1 is reserved for Comment
 		String userid;
 		String name;
@@ -1220,74 +992,53 @@ public class FacebookDao {
 		String text = element.getText();
 
 		// determine personid
-		int personid = getPersonId(conn, userid, name);
-		int wallid = getPersonId(conn, curUserId, curUserName);
+		int personid = ids.getPersonId(userid, name);
+		int wallid = ids.getPersonId(curUserId, curUserName);
 		// save actual Post
 		PreparedStatement st;
 		if (existingPostId >= 0)
-			st = conn.prepareStatement("update post set type=?, personId=?, wallId=?, `index`=?, date=?, text=? " +
+			st = statements.get("update post set type=?, personId=?, wallId=?, `index`=?, date=?, text=? " +
 					"where postId=?");
 		else
-			st = conn.prepareStatement("insert into post(type, personId, wallId, `index`, date, text) " +
-					"values(?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
-		try {
-			st.setInt(1, type);
-			st.setInt(2, personid);
-			st.setInt(3, wallid);
-			st.setInt(4, index);
-			st.setTimestamp(5, dateandtime);
-			st.setString(6, text);
-			if (existingPostId >= 0)
-				st.setInt(7, existingPostId);
-			st.executeUpdate();
+			st = statements.getReturningKeys("insert into post(type, personId, wallId, `index`, date, text) " +
+					"values(?, ?, ?, ?, ?, ?)");
+		st.setInt(1, type);
+		st.setInt(2, personid);
+		st.setInt(3, wallid);
+		st.setInt(4, index);
+		st.setTimestamp(5, dateandtime);
+		st.setString(6, text);
+		if (existingPostId >= 0)
+			st.setInt(7, existingPostId);
+		st.executeUpdate();
 
-			if (existingPostId < 0) {
-				ResultSet res = st.getGeneratedKeys();
-				try {
-					res.next();
-					return res.getInt(1);
-				} finally {
-					res.close();
-				}
-			}
-		} finally {
-			st.close();
-		}
+		if (existingPostId < 0)
+			return getGeneratedKey(st);
 		return existingPostId;
 	}
 
 	/**
 	 * Save comment in database and return postid.
 	 */
-	private static int insertPost(Connection conn, Comment element, int index, String curUserId, String curUserName)
-			throws SQLException {
+	private static int insertPost(StatementCache statements, EntityIdResolver ids, Comment element, int index,
+			String curUserId, String curUserName) throws SQLException {
 		String userid = element.getSender().getId();
 		String name = element.getSender().getName();
 		Timestamp dateandtime = convertDate(element.getTime());
 		String text = element.getText();
 
-		int personid = getPersonId(conn, userid, name);
-		int wallid = getPersonId(conn, curUserId, curUserName);
-
-		PreparedStatement insertComment = conn.prepareStatement("insert into post(type, personId, wallId, `index`, " +
-				"date, text) values(1, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
-		try {
-			insertComment.setInt(1, personid);
-			insertComment.setInt(2, wallid);
-			insertComment.setInt(3, index);
-			insertComment.setTimestamp(4, dateandtime);
-			insertComment.setString(5, text);
-			insertComment.executeUpdate();
-			ResultSet res = insertComment.getGeneratedKeys();
-			try {
-				res.next();
-				return res.getInt(1);
-			} finally {
-				res.close();
-			}
-		} finally {
-			insertComment.close();
-		}
+		int personid = ids.getPersonId(userid, name);
+		int wallid = ids.getPersonId(curUserId, curUserName);
+
+		PreparedStatement insertComment = statements.getReturningKeys("insert into post(type, personId, wallId, " +
+				"`index`, date, text) values(1, ?, ?, ?, ?, ?)");
+		insertComment.setInt(1, personid);
+		insertComment.setInt(2, wallid);
+		insertComment.setInt(3, index);
+		insertComment.setTimestamp(4, dateandtime);
+		insertComment.setString(5, text);
+		insertComment.executeUpdate();
+		return getGeneratedKey(insertComment);
 	}
 
 }
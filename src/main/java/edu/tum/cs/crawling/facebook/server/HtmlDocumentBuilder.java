@@ -0,0 +1,101 @@
+package edu.tum.cs.crawling.facebook.server;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.htmlcleaner.BaseToken;
+import org.htmlcleaner.CData;
+import org.htmlcleaner.CleanerProperties;
+import org.htmlcleaner.ContentNode;
+import org.htmlcleaner.DoctypeToken;
+import org.htmlcleaner.HtmlCleaner;
+import org.htmlcleaner.TagNode;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Parses HTML pages into W3C DOM documents. The page is cleaned by HtmlCleaner and the cleaned tree is converted into
+ * a DOM in the same way as by the DomSerializer of HtmlCleaner, but without comments, and with a document builder that
+ * is reused for all pages. Each part of the cleaned tree is released as soon as it has been converted, so that the
+ * two trees of a large page are not held in memory completely at the same time.
+ * <p>
+ * HTML entities are converted to Unicode characters, except in attribute values. Not thread-safe.
+ */
+class HtmlDocumentBuilder {
+
+	private final HtmlCleaner cleaner = new HtmlCleaner();
+	private final DocumentBuilder documentBuilder;
+
+	HtmlDocumentBuilder() {
+		CleanerProperties props = cleaner.getProperties();
+		props.setDeserializeEntities(true);
+		// comments are not part of the text content of elements, no XPath expression of the extractors selects them
+		props.setOmitComments(true);
+		try {
+			documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		} catch (ParserConfigurationException ex) {
+			throw new RuntimeException("error creating document builder", ex);
+		}
+	}
+
+	Document parse(String source) {
+		TagNode root = cleaner.clean(source);
+		Document doc;
+		DoctypeToken docType = root.getDocType();
+		if (docType != null) {
+			String qualifiedName = docType.getPart1();
+			if (qualifiedName == null || qualifiedName.equals("HTML"))
+				qualifiedName = "html";
+			DOMImplementation impl = documentBuilder.getDOMImplementation();
+			Map<String, String> nsDeclarations = root.getNamespaceDeclarations();
+			String namespaceUri = (nsDeclarations != null) ? nsDeclarations.get("") : null;
+			doc = impl.createDocument(namespaceUri, qualifiedName,
+					impl.createDocumentType(qualifiedName, docType.getPublicId(), docType.getSystemId()));
+		} else {
+			doc = documentBuilder.newDocument();
+			doc.appendChild(doc.createElement(root.getName()));
+		}
+
+		Element rootElement = doc.getDocumentElement();
+		setAttributes(rootElement, root);
+		appendChildren(doc, rootElement, root);
+		return doc;
+	}
+
+	private static void setAttributes(Element element, TagNode node) {
+		for (Map.Entry<String, String> attr : node.getAttributes().entrySet()) {
+			element.setAttribute(attr.getKey(), attr.getValue());
+			if (attr.getKey().equalsIgnoreCase("id"))
+				element.setIdAttribute(attr.getKey(), true);
+		}
+	}
+
+	private void appendChildren(Document doc, Element element, TagNode node) {
+		List<? extends BaseToken> children = node.getAllChildren();
+		// like the DomSerializer, CDATA sections are only kept in script and style elements
+		boolean useCdata = cleaner.getProperties().isUseCdataFor(node.getName());
+		for (BaseToken child : children) {
+			if (child instanceof CData) {
+				if (useCdata)
+					element.appendChild(doc.createCDATASection(((CData) child).getContentWithoutStartAndEndTokens()));
+			} else if (child instanceof ContentNode) {
+				String text = ((ContentNode) child).getContent();
+				element.appendChild(useCdata ? doc.createCDATASection(text) : doc.createTextNode(text));
+			} else if (child instanceof TagNode) {
+				TagNode childNode = (TagNode) child;
+				Element childElement = doc.createElement(childNode.getName());
+				setAttributes(childElement, childNode);
+				element.appendChild(childElement);
+				appendChildren(doc, childElement, childNode);
+			}
+		}
+		// the subtree is not needed anymore
+		node.removeAllChildren();
+	}
+
+}
@@ -5,11 +5,13 @@ import java.util.logging.Logger;
 
 import edu.tum.cs.crawling.facebook.entities.UserProfile;
 import edu.tum.cs.util.LanguageDetection;
+import edu.tum.cs.util.LruCache;
 import edu.tum.cs.util.LogConfigurator;
 
 public class ProcessArchives extends LogConfigurator {
 
 	private static final Logger logger = Logger.getLogger(ProcessArchives.class.getName());
+	private static final LruCache<String, Integer> personIdCache = new LruCache<String, Integer>(200000);
 
 	private static void processArchive(File archiveFile) throws Exception {
 		WarcArchiver.Archive archive = WarcArchiver.loadPageSource(archiveFile);
@@ -17,7 +19,7 @@ public class ProcessArchives extends LogConfigurator {
 				archive.pageSource, false);
 		UserProfile profile = extractor.extractProfile();
 		if (profile != null)
-			FacebookDao.saveUserProfile(profile);
+			FacebookDao.saveUserProfile(profile, personIdCache);
 	}
 
 	public static void main(String[] args) throws Exception {
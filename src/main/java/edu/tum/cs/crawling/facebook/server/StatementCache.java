@@ -0,0 +1,100 @@
+package edu.tum.cs.crawling.facebook.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The prepared statements of a connection. Each statement is prepared when it is first needed and then reused until
+ * the cache is closed. Statements can collect rows in JDBC batches, which are executed together by executeBatches(),
+ * or when a batch reaches its maximum size.
+ */
+class StatementCache {
+
+	private final Connection conn;
+	private final int maxBatchSize;
+	private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+	private final Map<String, PreparedStatement> statementsReturningKeys = new HashMap<String, PreparedStatement>();
+	/** number of rows in the pending batch of each statement, in the order of the first row */
+	private final Map<PreparedStatement, Integer> batchSizes = new LinkedHashMap<PreparedStatement, Integer>();
+
+	StatementCache(Connection conn, int maxBatchSize) {
+		this.conn = conn;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	Connection getConnection() {
+		return conn;
+	}
+
+	PreparedStatement get(String sql) throws SQLException {
+		PreparedStatement st = statements.get(sql);
+		if (st == null) {
+			st = conn.prepareStatement(sql);
+			statements.put(sql, st);
+		}
+		return st;
+	}
+
+	/**
+	 * @return a statement that returns the keys of the inserted row
+	 */
+	PreparedStatement getReturningKeys(String sql) throws SQLException {
+		PreparedStatement st = statementsReturningKeys.get(sql);
+		if (st == null) {
+			st = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+			statementsReturningKeys.put(sql, st);
+		}
+		return st;
+	}
+
+	/**
+	 * Adds the current parameters of the statement to its batch. Rows must not be read back before the batches have
+	 * been executed.
+	 */
+	void addBatch(PreparedStatement st) throws SQLException {
+		st.addBatch();
+		Integer size = batchSizes.get(st);
+		size = (size == null) ? 1 : size + 1;
+		if (size < maxBatchSize) {
+			batchSizes.put(st, size);
+		} else {
+			st.executeBatch();
+			batchSizes.remove(st);
+		}
+	}
+
+	void executeBatches() throws SQLException {
+		for (PreparedStatement st : batchSizes.keySet())
+			st.executeBatch();
+		batchSizes.clear();
+	}
+
+	/**
+	 * Closes all statements; pending batches are discarded.
+	 */
+	void close() throws SQLException {
+		SQLException error = null;
+		List<PreparedStatement> all = new ArrayList<PreparedStatement>(statements.values());
+		all.addAll(statementsReturningKeys.values());
+		for (PreparedStatement st : all) {
+			try {
+				st.close();
+			} catch (SQLException ex) {
+				error = ex;
+			}
+		}
+		statements.clear();
+		statementsReturningKeys.clear();
+		batchSizes.clear();
+		if (error != null)
+			throw error;
+	}
+
+}
@@ -1,16 +1,13 @@
 package edu.tum.cs.crawling.facebook.server;
 
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.htmlcleaner.DomSerializer;
-import org.htmlcleaner.HtmlCleaner;
-import org.htmlcleaner.TagNode;
 import org.jaxen.JaxenException;
 import org.jaxen.XPath;
 import org.jaxen.dom.DOMXPath;
@@ -19,13 +16,22 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import edu.tum.cs.crawling.facebook.entities.UserProfile;
+import edu.tum.cs.util.LruCache;
 
 public abstract class UserProfileExtractor {
 
 	protected static final Logger logger = Logger.getLogger(UserProfileExtractor.class.getName());
 
-	private final HtmlCleaner cleaner = new HtmlCleaner();
-	private final Map<String, XPath> xpCache = new HashMap<String, XPath>();
+	/** compiled XPath expressions of all extractors; Jaxen XPath objects can be used by several threads at once */
+	private static final ConcurrentMap<String, XPath> xpCache = new ConcurrentHashMap<String, XPath>();
+	/** key of the ElementIndex in the user data of a document */
+	private static final String indexKey = ElementIndex.class.getName();
+
+	/** number of parsed pages that are kept for the case that they are fetched again */
+	private static final int maxCachedDocuments = 4;
+
+	private final HtmlDocumentBuilder documentBuilder = new HtmlDocumentBuilder();
+	private final LruCache<String, Document> documentCache = new LruCache<String, Document>(maxCachedDocuments);
 
 	private final Map<String, String> pageSource;
 	private final boolean ignoreErrors;
@@ -33,14 +39,15 @@ public abstract class UserProfileExtractor {
 	public UserProfileExtractor(Map<String, String> pageSource, boolean ignoreErrors) {
 		this.pageSource = pageSource;
 		this.ignoreErrors = ignoreErrors;
-		cleaner.getProperties().setDeserializeEntities(true);
 	}
 
-	private XPath prepareXPath(String path) throws JaxenException {
+	private static XPath prepareXPath(String path) throws JaxenException {
 		XPath xp = xpCache.get(path);
 		if (xp == null) {
 			xp = new DOMXPath(path);
-			xpCache.put(path, xp);
+			XPath existing = xpCache.putIfAbsent(path, xp);
+			if (existing != null)
+				xp = existing;
 		}
 		return xp;
 	}
@@ -63,7 +70,75 @@ public abstract class UserProfileExtractor {
 		}
 	}
 
+	private static ElementIndex getIndex(Node node) {
+		Document doc = (node.getNodeType() == Node.DOCUMENT_NODE) ? (Document) node : node.getOwnerDocument();
+		ElementIndex index = (ElementIndex) doc.getUserData(indexKey);
+		if (index == null) {
+			index = new ElementIndex(doc);
+			doc.setUserData(indexKey, index, null);
+		}
+		return index;
+	}
+
+	private List<Element> findElements(ElementIndex index, List<Element> elements, String path) {
+		if (path == null || elements.isEmpty())
+			return elements;
+		List<Element> result = new ArrayList<Element>();
+		for (Element e : elements)
+			result.addAll(findElements(e, path));
+		if (elements.size() > 1)
+			index.sortInDocumentOrder(result);
+		return result;
+	}
+
+	/**
+	 * Same as findElements(parent, ".//tagName[@class=\"className\"]/path"), but uses an index of the document
+	 * instead of scanning all descendants.
+	 *
+	 * @param path relative path from the elements with the class, or null for these elements
+	 */
+	protected List<Element> findElementsByClass(Node parent, String tagName, String className, String path) {
+		ElementIndex index = getIndex(parent);
+		return findElements(index, index.getElementsByClass(parent, tagName, className), path);
+	}
+
+	protected List<Element> findElementsByClass(Node parent, String tagName, String className) {
+		return findElementsByClass(parent, tagName, className, null);
+	}
+
+	protected Element findElementByClass(Node parent, String tagName, String className, String path) {
+		List<Element> elements = findElementsByClass(parent, tagName, className, path);
+		return elements.isEmpty() ? null : elements.get(0);
+	}
+
+	protected Element findElementByClass(Node parent, String tagName, String className) {
+		return findElementByClass(parent, tagName, className, null);
+	}
+
+	/**
+	 * Same as findElements(parent, ".//tagName[@id=\"id\"]/path"), but uses an index of the document.
+	 *
+	 * @param path relative path from the elements with the ID, or null for these elements
+	 */
+	protected List<Element> findElementsById(Node parent, String tagName, String id, String path) {
+		ElementIndex index = getIndex(parent);
+		return findElements(index, index.getElementsById(parent, tagName, id), path);
+	}
+
+	protected Element findElementById(Node parent, String tagName, String id, String path) {
+		List<Element> elements = findElementsById(parent, tagName, id, path);
+		return elements.isEmpty() ? null : elements.get(0);
+	}
+
+	/**
+	 * @return the parsed page; the document must not be modified, since it is returned again if the page is fetched
+	 *         another time
+	 */
 	protected Document fetchPage(String url) {
+		Document doc = documentCache.get(url);
+		if (doc != null)
+			return doc;
+
 		String source = pageSource.get(url);
 		if (source == null) {
 			if (ignoreErrors) {
@@ -74,13 +149,8 @@ public abstract class UserProfileExtractor {
 		}
 
 		// build DOM tree and convert HTML entities to Unicode characters (except in attribute values!)
-		TagNode root = cleaner.clean(source);
-		Document doc;
-		try {
-			doc = new DomSerializer(cleaner.getProperties(), false).createDOM(root);
-		} catch (ParserConfigurationException ex) {
-			throw new RuntimeException("error creating parser for URL '" + url + "'", ex);
-		}
+		doc = documentBuilder.parse(source);
+		documentCache.put(url, doc);
 		return doc;
 	}
 
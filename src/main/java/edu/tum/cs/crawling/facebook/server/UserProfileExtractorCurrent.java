@@ -24,11 +24,8 @@ import net.arnx.jsonic.JSON;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
-import com.cybozu.labs.langdetect.Detector;
-import com.cybozu.labs.langdetect.DetectorFactory;
-import com.cybozu.labs.langdetect.LangDetectException;
-
 import edu.tum.cs.crawling.facebook.entities.*;
+import edu.tum.cs.util.LanguageDetection;
 
 public class UserProfileExtractorCurrent extends UserProfileExtractor {
 
@@ -272,8 +269,8 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 		String postId = null;
 		Date time = null;
 		Place place = null;
-		List<Element> subHeaderElements = findElements(headerElem,
-				".//span[@class=\"fsm fwn fcg\"]/a[@class=\"_5pcq\"]");
+		List<Element> subHeaderElements = findElementsByClass(headerElem, "span", "fsm fwn fcg",
+				"./a[@class=\"_5pcq\"]");
 		if (!subHeaderElements.isEmpty()) {
 			// extract post ID; if the URL does not match the pattern given below, the header belongs to a "story" (e.g.
 			// "answered n survey questions"), which has a different structure
@@ -314,9 +311,9 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 		boolean hasParticipantsOrPlace = false;
 		List<Element> links = null;
 		if (postType == NormalPostHeader.Type.LINKVIA)
-			links = findElements(headerElem, ".//span[@class=\"fcg\"]/span[@class=\"fwb\"]/a");
+			links = findElementsByClass(headerElem, "span", "fcg", "./span[@class=\"fwb\"]/a");
 		else
-			links = findElements(headerElem, ".//span[@class=\"fcg\"]/a");
+			links = findElementsByClass(headerElem, "span", "fcg", "./a");
 
 		switch (postType) {
 		case LINKVIA:
@@ -362,9 +359,9 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 	}
 
 	private Link extractLink(Element postContainer) {
-		Element link = findElement(postContainer, ".//div[@class=\"_6m3\"]/div[@class=\"mbs _6m6\"]/a");
+		Element link = findElementByClass(postContainer, "div", "_6m3", "./div[@class=\"mbs _6m6\"]/a");
 		if (link == null) {
-			link = findElement(postContainer, ".//div[@class=\"_6m3\"]/a");
+			link = findElementByClass(postContainer, "div", "_6m3", "./a");
 			if (link == null)
 				return null;
 		}
@@ -373,7 +370,7 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 
 	private PhotoAlbum extractPhotoAlbum(Element postContainer) {
 		Element headerElem = findElement(postContainer, "./div/div[@class=\"_3dp _29k\"]");
-		Element link = findElement(headerElem, ".//span[@class=\"fcg\"]/a[contains(@href, \"/media/set/\")]");
+		Element link = findElementByClass(headerElem, "span", "fcg", "./a[contains(@href, \"/media/set/\")]");
 		if (link == null)
 			return null;
 
@@ -394,10 +391,10 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 		// in case of shared album, need to get name from share comment header
 		String name;
 		String shareComment = "";
-		Element e = findElement(postContainer, ".//div[@class=\"mbs fwn fcg\"]/span/a");
+		Element e = findElementByClass(postContainer, "div", "mbs fwn fcg", "./span/a");
 		if (e != null) {
 			name = e.getTextContent();
-			e = findElement(postContainer, ".//div[@class=\"mtm _5pco\"]");
+			e = findElementByClass(postContainer, "div", "mtm _5pco");
 			if (e != null)
 				shareComment = collectTextContent(e);
 		} else
@@ -408,16 +405,16 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 
 	private EmbeddableObject extractPhotoOrVideo(Element postContainer) {
 		// TODO: there is a third pattern, ".//div[@class=\"mtm\"]/div/div/a"
-		Element link = findElement(postContainer, ".//div[@class=\"mtm\"]/div/a");
+		Element link = findElementByClass(postContainer, "div", "mtm", "./div/a");
 		if (link == null) {
-			link = findElement(postContainer, ".//div[@class=\"mtm\"]/a");
+			link = findElementByClass(postContainer, "div", "mtm", "./a");
 			if (link == null)
 				return null;
 		}
 
 		// quote from original post (optional)
 		String shareComment = "";
-		Element e = findElement(postContainer, ".//div[@class=\"mtm _5pco\"]");
+		Element e = findElementByClass(postContainer, "div", "mtm _5pco");
 		if (e != null)
 			shareComment = collectTextContent(e);
 
@@ -467,7 +464,7 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 	}
 
 	private EmbeddableNormalPost extractSharedPost(NormalPostHeader header, Element postContainer) {
-		Element link = findElement(postContainer, ".//div[@class=\"_5pcn fwb\"]/a");
+		Element link = findElementByClass(postContainer, "div", "_5pcn fwb", "./a");
 		if (link == null)
 			return null;
 
@@ -484,7 +481,7 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 		Person originalAuthor = new Person(personId, link.getTextContent());
 
 		String content = "";
-		Element e = findElement(postContainer, ".//div[@class=\"mtm _5pco\"]");
+		Element e = findElementByClass(postContainer, "div", "mtm _5pco");
 		if (e != null)
 			content = collectTextContent(e);
 
@@ -555,7 +552,7 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 		String title = "";
 		String subTitle = "";
 
-		Element contentElem = findElement(postContainer, ".//div[@class=\"mtm\"]/div");
+		Element contentElem = findElementByClass(postContainer, "div", "mtm", "./div");
 		if (contentElem != null) {
 			Element e = findElement(contentElem, "./div[@class=\"_6nm\"]");
 			if (e != null)
@@ -587,7 +584,7 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 		}
 		Person sender = new Person(getIdFromUrl(e.getAttribute("href")), e.getTextContent());
 
-		e = findElement(commentElem, ".//span[@class=\"UFICommentBody\"]");
+		e = findElementByClass(commentElem, "span", "UFICommentBody");
 		String text = e.getTextContent();
 
 		Date time = null;
@@ -603,7 +600,7 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 		Comment c = new Comment(sender, time, text);
 
 		String likeLink = null;
-		e = findElement(commentElem, ".//a[@class=\"UFICommentLikeButton\"]");
+		e = findElementByClass(commentElem, "a", "UFICommentLikeButton");
 		if (e != null) {
 			likeLink = e.getAttribute("href");
 			unresolvedLikes.put(c, relativeToMobileUrl(likeLink));
@@ -635,7 +632,7 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 			post = extractSmallPost(header, postContainer);
 
 		// extract likes
-		for (Element like : findElements(postContainer, ".//div[@class=\"UFILikeSentenceText\"]/span/a")) {
+		for (Element like : findElementsByClass(postContainer, "div", "UFILikeSentenceText", "./span/a")) {
 			String url = like.getAttribute("href");
 			if (url.contains("/browse/likes?id="))
 				unresolvedPostLikes.put(post, relativeToMobileUrl(url));
@@ -644,7 +641,7 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 		}
 
 		// extract comments
-		List<Element> comments = findElements(postContainer, ".//div[@class=\"UFICommentContentBlock\"]");
+		List<Element> comments = findElementsByClass(postContainer, "div", "UFICommentContentBlock");
 		for (Element commentElem : comments) {
 			Comment c = extractComment(commentElem, unresolvedCommentLikes);
 			if (c != null)
@@ -781,7 +778,7 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 
 	private Map<String, Element> parseDetailsSection(Document doc, String name) {
 		Map<String, Element> entries = new HashMap<String, Element>();
-		List<Element> rows = findElements(doc, "//div[@id=\"" + name + "\"]/div/div/div");
+		List<Element> rows = findElementsById(doc, "div", name, "./div/div/div");
 		for (Element row : rows) {
 			String key = row.getAttribute("title");
 			Element value = findElement(row, "./table/tbody/tr/td[2]/div");	// class ID varies for different users!
@@ -883,18 +880,18 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 
 		// biography, i.e. "about <first name>" section
 		String bio = "";
-		Element textElement = findElement(doc, "//div[@id=\"bio\"]/div/div/div");
+		Element textElement = findElementById(doc, "div", "bio", "./div/div/div");
 		if (textElement != null)
 			bio = textElement.getTextContent();
 
 		// favorite quotes
 		String quotes = "";
-		textElement = findElement(doc, "//div[@id=\"quote\"]/div/div/div");
+		textElement = findElementById(doc, "div", "quote", "./div/div/div");
 		if (textElement != null)
 			quotes = textElement.getTextContent();
 
 		Set<FamilyMember> family = new HashSet<FamilyMember>();
-		List<Element> items = findElements(doc, "//div[@id=\"family\"]/div/div/div");
+		List<Element> items = findElementsById(doc, "div", "family", "./div/div/div");
 		for (Element item : items) {
 			// If the other person has not yet accepted the request, some elements are missing. Also, we're deliberately
 			// ignoring relatives without a Facebook account (first "h3" does not contain an "a"), because they lack an
@@ -908,7 +905,7 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 		}
 
 		String relationshipStatus = "";
-		Element relItem = findElement(doc, "//div[@id=\"relationship\"]/div/div/div/div");
+		Element relItem = findElementById(doc, "div", "relationship", "./div/div/div/div");
 		if (relItem != null) {
 			relationshipStatus = relItem.getTextContent();
 			int cutPos = -1;
@@ -926,7 +923,7 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 		Map<Collection<Person>, String> unresolvedPersons = new HashMap<Collection<Person>, String>();
 
 		List<WorkItem> work = new ArrayList<WorkItem>();
-		items = findElements(doc, "//div[@id=\"work\"]/div/div/div");
+		items = findElementsById(doc, "div", "work", "./div/div/div");
 		for (Element item : items) {
 			List<Element> lines = findElements(item, "./div/div/div/span");
 			String[] workName = parseOptionalLink(lines.get(0));
@@ -986,7 +983,7 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 		}
 
 		List<EducationItem> education = new ArrayList<EducationItem>();
-		items = findElements(doc, "//div[@id=\"education\"]/div/div/div");
+		items = findElementsById(doc, "div", "education", "./div/div/div");
 		for (Element item : items) {
 			List<Element> lines = findElements(item, "./div/div/div/span");
 			String[] educationName = parseOptionalLink(lines.get(0));
@@ -1057,17 +1054,14 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 		}
 
 		String language = "";
-		try {
-			if (text.length() > 0) {
-				Detector languageDetector = DetectorFactory.create();
-				languageDetector.append(text.toString());
-				language = languageDetector.detect();
-				logger.fine("detected language: " + language);
-			} else
-				logger.info("no textual content, skipping language detection");
-		} catch (LangDetectException e) {
-			logger.log(Level.WARNING, "error detecting languge", e);
-		}
+		if (text.length() > 0) {
+			language = LanguageDetection.detect(text.toString());
+			logger.fine("detected language: " + language);
+			// the column only holds language codes
+			if (language.equals(LanguageDetection.UNKNOWN_LANGUAGE))
+				language = "";
+		} else
+			logger.info("no textual content, skipping language detection");
 		return language;
 	}
 
@@ -1075,7 +1069,7 @@ public class UserProfileExtractorCurrent extends UserProfileExtractor {
 	public UserProfile extractProfile() {
 		Document doc = fetchPage("https://www.facebook.com/" + userId);
 
-		Element nameElement = findElement(doc, "//div[@id=\"fbProfileCover\"]//a[@class=\"_8_2\"]");
+		Element nameElement = findElementById(doc, "div", "fbProfileCover", ".//a[@class=\"_8_2\"]");
 		String userName = nameElement.getTextContent();
 		int pos = userName.indexOf('(');
 		if (pos >= 0)	// remove "alternate name" in parentheses if present
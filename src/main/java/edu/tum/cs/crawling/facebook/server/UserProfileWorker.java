@@ -2,7 +2,9 @@ package edu.tum.cs.crawling.facebook.server;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -11,7 +13,14 @@ import java.util.logging.Logger;
 
 import edu.tum.cs.crawling.facebook.entities.Person;
 import edu.tum.cs.crawling.facebook.entities.UserProfile;
+import edu.tum.cs.util.LruCache;
 
+/**
+ * Extracts the user profiles from the archived page sources and saves them in the database. A pool of workers takes
+ * the archives from a shared queue and extracts the profiles in parallel. The profiles are saved by a smaller number
+ * of writers; a profile always goes to the writer of its user, so that the profiles of a user are saved one after the
+ * other.
+ */
 public class UserProfileWorker implements Runnable {
 
 	private static final Logger logger = Logger.getLogger(UserProfileWorker.class.getName());
@@ -19,56 +28,155 @@ public class UserProfileWorker implements Runnable {
 	private static final WarcArchiver warcArchiver = WarcArchiver.getInstance();
 
 	private static final BlockingQueue<File> workQueue = new LinkedBlockingQueue<File>();
+	/** archives that have been submitted, but not yet completely processed */
 	private static final AtomicInteger pendingProfiles = new AtomicInteger(0);
 
+	/** database IDs of recently seen persons, by Facebook ID; friends and likers recur across profiles */
+	private static final LruCache<String, Integer> personIdCache = new LruCache<String, Integer>(200000);
+
+	private static final int numWorkers = Integer.getInteger("edu.tum.cs.crawling.facebook.profileWorkers",
+			Runtime.getRuntime().availableProcessors());
+	private static final int numWriters = Integer.getInteger("edu.tum.cs.crawling.facebook.profileWriters",
+			Math.max(1, numWorkers / 2));
+
+	private static final Thread[] workerThreads = new Thread[numWorkers];
+	private static final Thread[] writerThreads = new Thread[numWriters];
+	private static final ProfileWriter[] writers = new ProfileWriter[numWriters];
+
+	private static class ExtractedProfile {
+		final String userId;
+		final UserProfile profile;
+
+		ExtractedProfile(String userId, UserProfile profile) {
+			this.userId = userId;
+			this.profile = profile;
+		}
+	}
+
+	/** tells a writer to stop after saving all profiles before it */
+	private static final ExtractedProfile endOfQueue = new ExtractedProfile(null, null);
+
+	private static class ProfileWriter implements Runnable {
+		/** bounded, so that the workers don't extract profiles much faster than they can be saved */
+		final BlockingQueue<ExtractedProfile> queue = new ArrayBlockingQueue<ExtractedProfile>(4);
+
+		@Override
+		public void run() {
+			while (true) {
+				ExtractedProfile item;
+				try {
+					item = queue.take();
+				} catch (InterruptedException ex) {
+					break;
+				}
+				if (item == endOfQueue)
+					break;
+
+				try {
+					UserProfile profile = item.profile;
+					FacebookDao.saveUserProfile(profile, personIdCache);
+
+					if (profile.getLanguage().equals("en")) {
+						List<String> friendIds = new ArrayList<String>(profile.getFriends().size());
+						for (Person p : profile.getFriends())
+							friendIds.add(p.getId());
+						// in the same order for all writers, so that concurrent inserts don't deadlock
+						Collections.sort(friendIds);
+						idBroker.addUserIds(friendIds);
+					}
+					warcArchiver.setIdProcessed(item.userId);
+				} catch (Exception ex) {
+					logger.log(Level.SEVERE, "error while saving profile '" + item.userId + "'", ex);
+				} finally {
+					pendingProfiles.decrementAndGet();
+				}
+			}
+		}
+	}
+
 	@Override
 	public void run() {
 		while (!Thread.interrupted()) {
 			File archiveFile;
 			try {
-				pendingProfiles.getAndIncrement();
 				archiveFile = workQueue.take();
 			} catch (InterruptedException ex) {
-				pendingProfiles.decrementAndGet();
 				break;
 			}
 
-			WarcArchiver.Archive archive = null;
+			boolean handedOver = false;
 			try {
-				archive = WarcArchiver.loadPageSource(archiveFile);
+				WarcArchiver.Archive archive = WarcArchiver.loadPageSource(archiveFile);
 				UserProfileExtractor extractor = UserProfileExtractor.createExtractor(archive.date, archive.userId,
 						archive.pageSource, false);
 				UserProfile profile = extractor.extractProfile();
 				if (profile != null) {
-					FacebookDao.saveUserProfile(profile);
-
-					if (profile.getLanguage().equals("en")) {
-						List<String> friendIds = new ArrayList<String>(profile.getFriends().size());
-						for (Person p : profile.getFriends())
-							friendIds.add(p.getId());
-						idBroker.addUserIds(friendIds);
-					}
-				} else
+					// partition by user, the writer decrements the number of pending profiles
+					int partition = (archive.userId.hashCode() & Integer.MAX_VALUE) % numWriters;
+					writers[partition].queue.put(new ExtractedProfile(archive.userId, profile));
+					handedOver = true;
+				} else {
 					logger.warning("missing or incomplete user profile in file '" + archiveFile + "'");
-				warcArchiver.setIdProcessed(archive.userId);
+					warcArchiver.setIdProcessed(archive.userId);
+				}
+			} catch (InterruptedException ex) {
+				break;
 			} catch (Exception ex) {
 				logger.log(Level.SEVERE, "error while processing profile '" + archiveFile + "'", ex);
 			} finally {
-				pendingProfiles.decrementAndGet();
+				if (!handedOver)
+					pendingProfiles.decrementAndGet();
 			}
 		}
 	}
 
+	/**
+	 * Starts the workers and writers. Their number can be set with the system properties
+	 * edu.tum.cs.crawling.facebook.profileWorkers and edu.tum.cs.crawling.facebook.profileWriters.
+	 */
+	public static synchronized void start() {
+		logger.info("starting " + numWorkers + " profile workers and " + numWriters + " writers");
+		for (int i = 0; i < numWriters; i++) {
+			writers[i] = new ProfileWriter();
+			writerThreads[i] = new Thread(writers[i], "profile writer " + (i + 1));
+			writerThreads[i].start();
+		}
+		for (int i = 0; i < numWorkers; i++) {
+			workerThreads[i] = new Thread(new UserProfileWorker(), "profile worker " + (i + 1));
+			workerThreads[i].start();
+		}
+	}
+
+	/**
+	 * Stops the workers, and the writers after they have saved the profiles that have already been extracted.
+	 * Archives that have not been processed yet are processed after the next start.
+	 */
+	public static synchronized void stop() throws InterruptedException {
+		for (Thread thread : workerThreads)
+			thread.interrupt();
+		for (Thread thread : workerThreads)
+			thread.join();
+		for (ProfileWriter writer : writers)
+			writer.queue.put(endOfQueue);
+		for (Thread thread : writerThreads)
+			thread.join();
+	}
+
 	public static void submitArchive(File archiveFile) {
+		pendingProfiles.incrementAndGet();
 		workQueue.add(archiveFile);
 	}
 
 	public static void submitArchives(List<File> archiveFiles) {
+		pendingProfiles.addAndGet(archiveFiles.size());
 		workQueue.addAll(archiveFiles);
 	}
 
+	/**
+	 * @return the number of archives that have been submitted, but whose profiles are not yet saved
+	 */
 	public static int getNumPendingProfiles() {
-		return workQueue.size() + pendingProfiles.get();
+		return pendingProfiles.get();
 	}
 
 }
@@ -0,0 +1,219 @@
+package edu.tum.cs.crawling.twitter.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.tum.cs.crawling.twitter.protocol.BinaryProtocol;
+import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject;
+import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject;
+import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject.ServerStatus;
+
+/**
+ * Delivers crawled batches to the server in a background thread, so that crawling does not wait for the server.
+ * Batches wait in a bounded queue in memory. If the queue is full or the server cannot be reached, batches are spilled
+ * to files in a spool directory and delivered from there once the server is reachable again, also after a restart. A
+ * batch that the server does not acknowledge with OK is spooled in the same way. A spooled batch that the server has
+ * rejected too often is renamed to .bad, like a spool file that cannot be read, so that it does not block the others.
+ */
+class DeliveryQueue implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(DeliveryQueue.class.getName());
+
+	private static final String spoolPrefix = "delivery-";
+	private static final String spoolSuffix = ".bin";
+
+	private static final int defaultMaxRejections = 10;
+
+	/** sends a request to the server */
+	interface Sender {
+		ServerResponseObject sendRequest(ClientRequestObject cro) throws IOException, InterruptedException;
+	}
+
+	/** the server was reached, but did not store the batch */
+	private static class RejectedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		RejectedException(ServerStatus status) {
+			super("Server returned status " + status);
+		}
+	}
+
+	private final Sender sender;
+	private final File spoolDir;
+	private final long retryDelayMs;
+	private final int maxRejections;
+	/** number of times the server rejected a spool file, by name */
+	private final Map<String, Integer> rejections = new HashMap<String, Integer>();
+	private final BlockingQueue<ClientRequestObject> queue;
+	private final Thread thread;
+	private volatile boolean closing = false;
+	private long spoolSequence = 0;
+
+	public DeliveryQueue(Sender sender, File spoolDir, int capacity, long retryDelayMs) throws IOException {
+		this(sender, spoolDir, capacity, retryDelayMs, defaultMaxRejections);
+	}
+
+	DeliveryQueue(Sender sender, File spoolDir, int capacity, long retryDelayMs, int maxRejections)
+			throws IOException {
+		this.sender = sender;
+		this.spoolDir = spoolDir;
+		this.retryDelayMs = retryDelayMs;
+		this.maxRejections = maxRejections;
+		this.queue = new ArrayBlockingQueue<ClientRequestObject>(capacity);
+		if (!spoolDir.isDirectory() && !spoolDir.mkdirs())
+			throw new IOException("Could not create spool directory " + spoolDir);
+		int numSpooled = listSpoolFiles().length;
+		if (numSpooled > 0)
+			logger.info(numSpooled + " spooled deliveries found in " + spoolDir);
+		thread = new Thread(this, "delivery");
+		thread.start();
+	}
+
+	/**
+	 * Queues a batch for delivery. Never waits for the server; if the queue is full, the batch is spilled to disk.
+	 */
+	public void add(ClientRequestObject cro) throws IOException {
+		if (closing)
+			throw new IllegalStateException("delivery queue is closed");
+		if (!queue.offer(cro)) {
+			logger.info("Delivery queue is full, spooling batch to disk");
+			spool(cro);
+		}
+	}
+
+	/**
+	 * Delivers the queued batches and stops the delivery thread. Batches that cannot be delivered are spooled.
+	 */
+	public void close() throws InterruptedException {
+		closing = true;
+		thread.join();
+	}
+
+	private File[] listSpoolFiles() {
+		File[] files = spoolDir.listFiles();
+		if (files == null)
+			return new File[0];
+		int n = 0;
+		for (File file : files) {
+			if (file.getName().startsWith(spoolPrefix) && file.getName().endsWith(spoolSuffix))
+				files[n++] = file;
+		}
+		files = Arrays.copyOf(files, n);
+		Arrays.sort(files); // oldest first
+		return files;
+	}
+
+	private synchronized void spool(ClientRequestObject cro) throws IOException {
+		String name = String.format("%s%013d-%06d%s", spoolPrefix, System.currentTimeMillis(), spoolSequence++,
+				spoolSuffix);
+		File tmpFile = new File(spoolDir, name + ".tmp");
+		FileOutputStream os = new FileOutputStream(tmpFile);
+		try {
+			os.write(BinaryProtocol.encodeRequest(cro));
+			os.getFD().sync();
+		} finally {
+			os.close();
+		}
+		if (!tmpFile.renameTo(new File(spoolDir, name)))
+			throw new IOException("Could not rename " + tmpFile);
+	}
+
+	private void spoolOrDiscard(ClientRequestObject cro) {
+		try {
+			spool(cro);
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, "Could not spool delivery, discarding " + cro.getUsers().size() + " users and " +
+					cro.getTweets().size() + " tweets", ex);
+		}
+	}
+
+	private void deliver(ClientRequestObject cro) throws IOException, InterruptedException {
+		logger.info("Reporting " + cro.getUsers().size() + " users and " + cro.getTweets().size() + " tweets");
+		ServerResponseObject sro = sender.sendRequest(cro);
+		// the server did not store the batch, it is spooled and sent again like after a connection failure
+		if (sro.getStatus() != ServerStatus.OK)
+			throw new RejectedException(sro.getStatus());
+	}
+
+	private void moveAside(File file, Exception cause) {
+		rejections.remove(file.getName());
+		if (!file.renameTo(new File(spoolDir, file.getName() + ".bad")))
+			throw new IllegalStateException("Could not rename " + file, cause);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				ClientRequestObject cro = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (cro != null) {
+					try {
+						deliver(cro);
+					} catch (IOException ex) {
+						logger.log(Level.WARNING, "Could not deliver batch, spooling it to disk: " + ex.getMessage());
+						spoolOrDiscard(cro);
+						if (!closing)
+							Thread.sleep(retryDelayMs);
+					}
+					continue;
+				}
+
+				if (closing)
+					break;
+
+				// deliver spooled batches while there is nothing new
+				File[] files = listSpoolFiles();
+				if (files.length > 0) {
+					File file = files[0];
+					try {
+						cro = BinaryProtocol.decodeRequest(Files.readAllBytes(file.toPath()));
+					} catch (IOException ex) {
+						logger.log(Level.SEVERE, "Could not read spooled batch " + file.getName(), ex);
+						moveAside(file, ex);
+						continue;
+					}
+					try {
+						deliver(cro);
+						rejections.remove(file.getName());
+						if (!file.delete())
+							logger.warning("Could not delete " + file);
+					} catch (RejectedException ex) {
+						Integer numRejections = rejections.get(file.getName());
+						numRejections = (numRejections == null) ? 1 : numRejections + 1;
+						if (numRejections >= maxRejections) {
+							logger.log(Level.SEVERE, "Spooled batch " + file.getName() + " was rejected " +
+									numRejections + " times, giving up", ex);
+							moveAside(file, ex);
+							continue;
+						}
+						rejections.put(file.getName(), numRejections);
+						logger.log(Level.WARNING, "Spooled batch " + file.getName() + " was rejected: " +
+								ex.getMessage() + ", retrying in " + (retryDelayMs / 1000) + "s");
+						Thread.sleep(retryDelayMs);
+					} catch (IOException ex) {
+						logger.log(Level.WARNING, "Could not deliver spooled batch " + file.getName() + ": " +
+								ex.getMessage() + ", retrying in " + (retryDelayMs / 1000) + "s");
+						Thread.sleep(retryDelayMs);
+					}
+				}
+			}
+		} catch (InterruptedException ex) {
+			// spool the remaining batches below
+		}
+
+		ClientRequestObject cro;
+		while ((cro = queue.poll()) != null)
+			spoolOrDiscard(cro);
+	}
+
+}
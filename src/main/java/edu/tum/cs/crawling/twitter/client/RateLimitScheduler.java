@@ -0,0 +1,165 @@
+package edu.tum.cs.crawling.twitter.client;
+
+import java.util.Date;
+import java.util.logging.Logger;
+
+import twitter4j.RateLimitStatus;
+
+/**
+ * Schedules the requests of one account to the rate limited Twitter endpoints. Every endpoint has its own token bucket
+ * holding the requests that remain in the current rate limit window. The bucket is refilled when the window is reset
+ * and corrected with the rate limit headers of every response, so waiting for one endpoint never delays requests to
+ * another one. Requests that do not fit into the current window are given a slot in one of the following windows.
+ */
+class RateLimitScheduler {
+
+	private static final Logger logger = Logger.getLogger(RateLimitScheduler.class.getName());
+
+	/** length of a rate limit window */
+	static final long windowMs = 15 * 60 * 1000;
+
+	/** requests are only sent this long after the reset time reported by Twitter to allow for clock skew */
+	static final long resetMarginMs = 2000;
+
+	/** Twitter REST endpoints used by the crawler, with their documented number of requests per window */
+	enum Endpoint {
+		USER_TIMELINE(180), FOLLOWERS_IDS(15), FRIENDS_IDS(15);
+
+		final int defaultLimit;
+
+		private Endpoint(int defaultLimit) {
+			this.defaultLimit = defaultLimit;
+		}
+	}
+
+	/** source of time, can be replaced by a simulated clock in tests */
+	interface Clock {
+		long currentTimeMillis();
+
+		void sleep(long ms) throws InterruptedException;
+	}
+
+	static final Clock systemClock = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public void sleep(long ms) throws InterruptedException {
+			Thread.sleep(ms);
+		}
+	};
+
+	private static class Bucket {
+		int limit;
+		int remaining;
+		/** end of the current window, 0 if no window has been started yet */
+		long resetAt = 0;
+		/** number of requests that have been given a slot in one of the following windows */
+		int reservedAhead = 0;
+
+		Bucket(int limit) {
+			this.limit = limit;
+			this.remaining = limit;
+		}
+
+		/** starts the next window, the requests reserved for it are taken from the new tokens */
+		void startNextWindow(long now) {
+			int taken = Math.min(reservedAhead, limit);
+			reservedAhead -= taken;
+			remaining = limit - taken;
+			if ((resetAt > 0) && (now < (resetAt + windowMs)))
+				resetAt += windowMs;
+			else
+				resetAt = now + windowMs;
+		}
+	}
+
+	private final Clock clock;
+	private final Bucket[] buckets = new Bucket[Endpoint.values().length];
+
+	public RateLimitScheduler() {
+		this(systemClock);
+	}
+
+	RateLimitScheduler(Clock clock) {
+		this.clock = clock;
+		for (Endpoint endpoint : Endpoint.values())
+			buckets[endpoint.ordinal()] = new Bucket(endpoint.defaultLimit);
+	}
+
+	/**
+	 * Takes a token for a request to the endpoint.
+	 * @return the time in ms until the request may be sent
+	 */
+	synchronized long reserve(Endpoint endpoint) {
+		Bucket bucket = buckets[endpoint.ordinal()];
+		long now = clock.currentTimeMillis();
+		if (now >= bucket.resetAt)
+			bucket.startNextWindow(now);
+		if (bucket.remaining > 0) {
+			bucket.remaining--;
+			return 0;
+		}
+		int slot = bucket.reservedAhead++;
+		return (bucket.resetAt + ((slot / bucket.limit) * windowMs)) - now;
+	}
+
+	/**
+	 * Blocks until a request to the endpoint may be sent.
+	 */
+	public void acquire(Endpoint endpoint) throws InterruptedException {
+		long waitMs = reserve(endpoint);
+		if (waitMs <= 0)
+			return;
+		if (waitMs >= 60 * 1000) {
+			logger.info("Rate limit of " + endpoint + " reached, waiting for " + Math.round(waitMs / 1000.0 / 60.0) +
+					"m until " + new Date(clock.currentTimeMillis() + waitMs));
+		}
+		clock.sleep(waitMs);
+	}
+
+	/**
+	 * Corrects the bucket of the endpoint with the rate limit headers of a response.
+	 */
+	public synchronized void update(Endpoint endpoint, RateLimitStatus status) {
+		if (status == null)
+			return;
+		Bucket bucket = buckets[endpoint.ordinal()];
+		long now = clock.currentTimeMillis();
+		long resetAt = now + (status.getSecondsUntilReset() * 1000L) + resetMarginMs;
+		if (status.getLimit() > 0)
+			bucket.limit = status.getLimit();
+		// Twitter has already started a window that we still consider to be in the future
+		if ((bucket.resetAt == 0) || (resetAt > (bucket.resetAt + (windowMs / 2))))
+			bucket.startNextWindow(now);
+		bucket.resetAt = resetAt;
+		// requests that are still in flight are not contained in the header
+		bucket.remaining = Math.min(bucket.remaining, status.getRemaining());
+	}
+
+	/**
+	 * Empties the bucket of the endpoint after Twitter refused a request because of the rate limit.
+	 */
+	public synchronized void rateLimitExceeded(Endpoint endpoint, RateLimitStatus status) {
+		Bucket bucket = buckets[endpoint.ordinal()];
+		long now = clock.currentTimeMillis();
+		if ((status != null) && (status.getSecondsUntilReset() > 0))
+			bucket.resetAt = now + (status.getSecondsUntilReset() * 1000L) + resetMarginMs;
+		else if (bucket.resetAt <= now)
+			bucket.resetAt = now + windowMs;
+		bucket.remaining = 0;
+	}
+
+	/**
+	 * @return the number of requests to the endpoint that can be sent in the current window without waiting
+	 */
+	public synchronized int getRemaining(Endpoint endpoint) {
+		Bucket bucket = buckets[endpoint.ordinal()];
+		if (clock.currentTimeMillis() >= bucket.resetAt)
+			return Math.max(bucket.limit - bucket.reservedAhead, 0);
+		return bucket.remaining;
+	}
+
+}
@@ -0,0 +1,71 @@
+package edu.tum.cs.crawling.twitter.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import edu.tum.cs.crawling.twitter.protocol.BinaryProtocol;
+import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject;
+import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject;
+
+/**
+ * Long-lived connection to the dumper server using the {@link BinaryProtocol}. Requests are answered in order, so
+ * concurrent callers are serialized. The connection is opened on demand and re-opened after an I/O error.
+ */
+class ServerConnection {
+
+	private final String host;
+	private final int port;
+	private final boolean compress;
+
+	private Socket socket;
+	private InputStream is;
+	private OutputStream os;
+
+	public ServerConnection(String host, int port, boolean compress) {
+		this.host = host;
+		this.port = port;
+		this.compress = compress;
+	}
+
+	private void open() throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		is = new BufferedInputStream(socket.getInputStream());
+		os = new BufferedOutputStream(socket.getOutputStream());
+		BinaryProtocol.writeHandshake(os, compress);
+	}
+
+	public synchronized ServerResponseObject sendRequest(ClientRequestObject cro) throws IOException {
+		try {
+			if (socket == null)
+				open();
+			BinaryProtocol.writeFrame(os, BinaryProtocol.encodeRequest(cro), compress);
+			byte[] response = BinaryProtocol.readFrame(is);
+			if (response == null)
+				throw new EOFException("connection closed by server");
+			return BinaryProtocol.decodeResponse(response);
+		} catch (IOException ex) {
+			close();
+			throw ex;
+		}
+	}
+
+	public synchronized void close() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException ex) {
+				// ignore
+			}
+			socket = null;
+			is = null;
+			os = null;
+		}
+	}
+
+}
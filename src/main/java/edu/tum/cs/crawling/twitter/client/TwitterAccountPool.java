@@ -0,0 +1,209 @@
+package edu.tum.cs.crawling.twitter.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.tum.cs.crawling.twitter.client.RateLimitScheduler.Endpoint;
+import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject;
+import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject.ClientRequestType;
+import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject.FollowFriendUser;
+import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject.FurtherCrawlingUserData;
+
+/**
+ * Crawls with several Twitter accounts at once. Every account has its own {@link TwitterFetcher}; the users of a batch
+ * are divided between the accounts in proportion to the requests each account has left in the current rate limit
+ * window, and the results are merged into a single request to the server.
+ */
+public class TwitterAccountPool {
+
+	private final List<TwitterFetcher> fetchers;
+	private final ExecutorService executor;
+
+	public TwitterAccountPool(List<TwitterFetcher> fetchers) {
+		if (fetchers.isEmpty())
+			throw new IllegalArgumentException("no Twitter accounts");
+		this.fetchers = new ArrayList<TwitterFetcher>(fetchers);
+		this.executor = Executors.newFixedThreadPool(fetchers.size(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "account " + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Reads the credentials of all accounts. The first account uses the keys consumerKey, consumerSecret, token and
+	 * tokenSecret, further accounts append ".2", ".3" etc. to these keys. An account without its own consumer key
+	 * uses the one of the first account.
+	 * @return one fetcher per account, or an empty list if the credentials of the first account are missing
+	 */
+	public static List<TwitterFetcher> createFetchers(Properties properties) {
+		List<TwitterFetcher> fetchers = new ArrayList<TwitterFetcher>();
+		String defaultConsumerKey = properties.getProperty("consumerKey");
+		String defaultConsumerSecret = properties.getProperty("consumerSecret");
+		for (int i = 1; ; i++) {
+			String suffix = (i == 1) ? "" : ("." + i);
+			String token = properties.getProperty("token" + suffix);
+			String tokenSecret = properties.getProperty("tokenSecret" + suffix);
+			String consumerKey = properties.getProperty("consumerKey" + suffix, defaultConsumerKey);
+			String consumerSecret = properties.getProperty("consumerSecret" + suffix, defaultConsumerSecret);
+			if (isEmpty(token) || isEmpty(tokenSecret) || isEmpty(consumerKey) || isEmpty(consumerSecret))
+				break;
+			fetchers.add(new TwitterFetcher(consumerKey, consumerSecret, token, tokenSecret));
+		}
+		return fetchers;
+	}
+
+	private static boolean isEmpty(String s) {
+		return (s == null) || s.isEmpty();
+	}
+
+	public int size() {
+		return fetchers.size();
+	}
+
+	/**
+	 * @return the number of requests to the endpoint all accounts can send in the current window without waiting
+	 */
+	public int getRemaining(Endpoint endpoint) {
+		int remaining = 0;
+		for (TwitterFetcher fetcher : fetchers)
+			remaining += fetcher.getRemaining(endpoint);
+		return remaining;
+	}
+
+	/**
+	 * Divides the items between the accounts, every account gets a share proportional to its weight.
+	 */
+	static <T> List<Set<T>> partition(Collection<T> items, int[] weights) {
+		List<Set<T>> parts = new ArrayList<Set<T>>(weights.length);
+		for (int i = 0; i < weights.length; i++)
+			parts.add(new LinkedHashSet<T>());
+		for (T item : items) {
+			// the account that is furthest behind its share gets the next item
+			int best = 0;
+			for (int i = 1; i < weights.length; i++) {
+				if (((long) weights[i] * (parts.get(best).size() + 1)) >
+						((long) weights[best] * (parts.get(i).size() + 1)))
+					best = i;
+			}
+			parts.get(best).add(item);
+		}
+		return parts;
+	}
+
+	private int[] getWeights(Endpoint endpoint) {
+		int[] weights = new int[fetchers.size()];
+		for (int i = 0; i < weights.length; i++)
+			weights[i] = fetchers.get(i).getRemaining(endpoint) + 1;
+		return weights;
+	}
+
+	private static ClientRequestObject merge(List<Future<ClientRequestObject>> futures, ClientRequestType type)
+			throws InterruptedException {
+		ClientRequestObject cro = new ClientRequestObject();
+		cro.setRequestType(type);
+		try {
+			for (Future<ClientRequestObject> future : futures) {
+				ClientRequestObject part;
+				try {
+					part = future.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof InterruptedException)
+						throw (InterruptedException) e.getCause();
+					if (e.getCause() instanceof RuntimeException)
+						throw (RuntimeException) e.getCause();
+					throw new IllegalStateException(e.getCause());
+				}
+				cro.getUsers().addAll(part.getUsers());
+				cro.getTweets().addAll(part.getTweets());
+				cro.getFailedUserScreenNames().addAll(part.getFailedUserScreenNames());
+			}
+		} finally {
+			for (Future<ClientRequestObject> future : futures)
+				future.cancel(true);
+		}
+		return cro;
+	}
+
+	public ClientRequestObject getTweetsAndUsersForIds(Set<Long> userIds, Set<String> screenNames)
+			throws InterruptedException {
+		int[] weights = getWeights(Endpoint.USER_TIMELINE);
+		List<Set<Long>> userIdParts = partition(userIds, weights);
+		List<Set<String>> screenNameParts = partition(screenNames, weights);
+		List<Future<ClientRequestObject>> futures = new ArrayList<Future<ClientRequestObject>>(fetchers.size());
+		for (int i = 0; i < fetchers.size(); i++) {
+			final TwitterFetcher fetcher = fetchers.get(i);
+			final Set<Long> fetcherUserIds = userIdParts.get(i);
+			final Set<String> fetcherScreenNames = screenNameParts.get(i);
+			if (fetcherUserIds.isEmpty() && fetcherScreenNames.isEmpty())
+				continue;
+			futures.add(executor.submit(new Callable<ClientRequestObject>() {
+				@Override
+				public ClientRequestObject call() throws Exception {
+					return fetcher.getTweetsAndUsersForIds(fetcherUserIds, fetcherScreenNames);
+				}
+			}));
+		}
+		return merge(futures, ClientRequestType.DELIVER_TWEETS_AND_USERS);
+	}
+
+	public ClientRequestObject getFurtherTweetsForUserIds(Set<FurtherCrawlingUserData> furtherCrawlingUsers,
+			final int maxTweetsPerUser, final Date firstDate) throws InterruptedException {
+		List<Set<FurtherCrawlingUserData>> parts = partition(furtherCrawlingUsers,
+				getWeights(Endpoint.USER_TIMELINE));
+		List<Future<ClientRequestObject>> futures = new ArrayList<Future<ClientRequestObject>>(fetchers.size());
+		for (int i = 0; i < fetchers.size(); i++) {
+			final TwitterFetcher fetcher = fetchers.get(i);
+			final Set<FurtherCrawlingUserData> part = parts.get(i);
+			if (part.isEmpty())
+				continue;
+			futures.add(executor.submit(new Callable<ClientRequestObject>() {
+				@Override
+				public ClientRequestObject call() throws Exception {
+					return fetcher.getFurtherTweetsForUserIds(part, maxTweetsPerUser, firstDate);
+				}
+			}));
+		}
+		return merge(futures, ClientRequestType.DELIVER_TWEETS_AND_USERS);
+	}
+
+	public ClientRequestObject getFriendsAndFollowers(Set<FollowFriendUser> userIds) throws InterruptedException {
+		int[] weights = getWeights(Endpoint.FOLLOWERS_IDS);
+		int[] friendsWeights = getWeights(Endpoint.FRIENDS_IDS);
+		for (int i = 0; i < weights.length; i++)
+			weights[i] = Math.min(weights[i], friendsWeights[i]);
+		List<Set<FollowFriendUser>> parts = partition(userIds, weights);
+		List<Future<ClientRequestObject>> futures = new ArrayList<Future<ClientRequestObject>>(fetchers.size());
+		for (int i = 0; i < fetchers.size(); i++) {
+			final TwitterFetcher fetcher = fetchers.get(i);
+			final Set<FollowFriendUser> part = parts.get(i);
+			if (part.isEmpty())
+				continue;
+			futures.add(executor.submit(new Callable<ClientRequestObject>() {
+				@Override
+				public ClientRequestObject call() throws Exception {
+					return fetcher.getFriendsAndFollowers(part);
+				}
+			}));
+		}
+		return merge(futures, ClientRequestType.DELIVER_FOLLOWERS_AND_FRIENDS);
+	}
+
+}
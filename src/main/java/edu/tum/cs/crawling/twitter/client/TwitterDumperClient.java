@@ -1,17 +1,22 @@
 package edu.tum.cs.crawling.twitter.client;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import edu.tum.cs.crawling.twitter.client.RateLimitScheduler.Endpoint;
 import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject;
 import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject.ClientRequestType;
 import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject;
@@ -28,11 +33,9 @@ public class TwitterDumperClient extends LogConfigurator {
 
 	private final String host;
 	private final int port;
+	private final ServerConnection connection;
 
-	private final String consumerKey;
-	private final String consumerSecret;
-	private final String token;
-	private final String tokenSecret;
+	private final TwitterAccountPool accounts;
 
 	private static enum FetchMode {
 		TWEETS_AND_USERS, FURTHER_TWEETS, FRIENDS_AND_FOLLOWERS
@@ -43,137 +46,140 @@ public class TwitterDumperClient extends LogConfigurator {
 	private final int maxTweetsPerUser;
 	private final Date firstDate;
 
-	public TwitterDumperClient(String host, int port, String consumerKey, String consumerSecret, String token,
-			String tokenSecret, FetchMode fetchMode, int usersPerRequest, int maxTweetsPerUser, Date firstDate) {
+	private final File spoolDir;
+	private final int deliveryQueueSize;
+
+	public TwitterDumperClient(String host, int port, TwitterAccountPool accounts, FetchMode fetchMode,
+			int usersPerRequest, int maxTweetsPerUser, Date firstDate, boolean compress, File spoolDir,
+			int deliveryQueueSize) {
 		this.host = host;
 		this.port = port;
-		this.consumerKey = consumerKey;
-		this.consumerSecret = consumerSecret;
-		this.token = token;
-		this.tokenSecret = tokenSecret;
+		this.connection = new ServerConnection(host, port, compress);
+		this.accounts = accounts;
 		this.fetchMode = fetchMode;
 		this.usersPerRequest = usersPerRequest;
 		this.maxTweetsPerUser = maxTweetsPerUser;
 		this.firstDate = firstDate;
+		this.spoolDir = spoolDir;
+		this.deliveryQueueSize = deliveryQueueSize;
 	}
 
-	public void startClient() throws InterruptedException {
-		logger.info("Starting client for server " + host + ":" + port);
-		TwitterFetcher tf = new TwitterFetcher(consumerKey, consumerSecret, token, tokenSecret);
-		while (!Thread.interrupted()) {
-			switch (fetchMode) {
-			case TWEETS_AND_USERS:
-				fetchTweetsAndUsers(tf);
-				break;
-			case FURTHER_TWEETS:
-				fetchFurtherTweets(tf);
-				break;
-			case FRIENDS_AND_FOLLOWERS:
-				fetchFriendsAndFollowers(tf);
-				break;
-			}
+	private ServerResponseObject sendRequest(ClientRequestObject cro) throws IOException, InterruptedException {
+		int delay = 1;
+		ServerResponseObject sro;
+		while ((sro = connection.sendRequest(cro)).getStatus() == ServerStatus.RETRY) {
+			logger.info("Server is busy, retrying in " + delay + "s");
+			Thread.sleep(delay * 1000);
+			delay = Math.min(2 * delay, waitingTimeWhileError);
 		}
+		return sro;
 	}
 
-	private abstract class ServerTransaction {
-		protected abstract ClientRequestObject processResponse(ServerResponseObject sro) throws InterruptedException;
-
-		private ServerResponseObject sendRequest(ClientRequestObject cro) throws IOException, ClassNotFoundException {
-			Socket socket = new Socket(host, port);
-			ObjectOutputStream oos = null;
-			ObjectInputStream ois = null;
-			try {
-				oos = new ObjectOutputStream(socket.getOutputStream());
-				ois = new ObjectInputStream(socket.getInputStream());
-				oos.writeObject(cro);
-				oos.flush();
-				return (ServerResponseObject) ois.readObject();
-			} finally {
-				try {
-					if (oos != null)
-						oos.close();
-					if (ois != null)
-						ois.close();
-				} finally {
-					socket.close();
-				}
-			}
+	/**
+	 * Requests the next IDs to crawl in the background.
+	 */
+	private Future<ServerResponseObject> requestIds(ExecutorService executor) {
+		final ClientRequestObject cro = new ClientRequestObject();
+		// number of users the remaining requests of the endpoints used by the fetch mode are good for
+		int currentRateLimit = 0;
+		switch (fetchMode) {
+		case TWEETS_AND_USERS:
+			cro.setRequestType(ClientRequestType.REQUEST_IDS);
+			currentRateLimit = accounts.getRemaining(Endpoint.USER_TIMELINE) / 5;
+			break;
+		case FURTHER_TWEETS:
+			cro.setRequestType(ClientRequestType.REQUEST_IDS_FOR_FURTHER_TWEETS);
+			currentRateLimit = accounts.getRemaining(Endpoint.USER_TIMELINE) / 5;
+			break;
+		case FRIENDS_AND_FOLLOWERS:
+			// every user needs at least one request to both endpoints
+			cro.setRequestType(ClientRequestType.REQUEST_IDS_FOR_FOLLOWER_FRIENDS);
+			currentRateLimit = Math.min(accounts.getRemaining(Endpoint.FOLLOWERS_IDS),
+					accounts.getRemaining(Endpoint.FRIENDS_IDS));
+			break;
 		}
-
-		public void perform(ClientRequestType req, int currentRateLimit) throws InterruptedException {
-			try {
-				// Request IDs to fetch
-				ClientRequestObject cro = new ClientRequestObject();
-				// At least one ID and at most userPerRequest or current rate limit / 5, whichever is smaller
-				cro.setNumberOfIds(Math.max(Math.min(usersPerRequest, currentRateLimit / 5), 1));
-				cro.setRequestType(req);
+		// At least one ID and at most userPerRequest per account or the current rate limit, whichever is smaller
+		cro.setNumberOfIds(Math.max(Math.min(usersPerRequest * accounts.size(), currentRateLimit), 1));
+		return executor.submit(new Callable<ServerResponseObject>() {
+			@Override
+			public ServerResponseObject call() throws Exception {
 				logger.info("Requesting " + cro.getNumberOfIds() + " IDs from server");
-
-				ServerResponseObject sro = sendRequest(cro);
-				cro = processResponse(sro);
-
-				// Report IDs
-				logger.log(Level.INFO, "Reporting " + cro.getUsers().size() + " users and " + cro.getTweets().size() + " tweets");
-				sro = sendRequest(cro);
-				if (sro.getStatus() != ServerStatus.OK)
-					logger.warning("Server returned status " + sro.getStatus());
-			} catch (ClassNotFoundException e) {
-				logger.log(Level.SEVERE, "Server response class not found, terminate", e);
-				System.exit(0);
-			} catch (IOException e) {
-				logger.log(Level.WARNING, e.getClass().getSimpleName() + ": '" + e.getMessage() + "' retrying in " +
-						waitingTimeWhileError + "s");
-				Thread.sleep(waitingTimeWhileError * 1000);
+				return sendRequest(cro);
 			}
-		}
+		});
 	}
 
-	private void fetchFriendsAndFollowers(final TwitterFetcher tf) throws InterruptedException {
-		ServerTransaction t = new ServerTransaction() {
-			@Override
-			protected ClientRequestObject processResponse(ServerResponseObject sro) throws InterruptedException {
-				Set<FollowFriendUser> userIds = sro.getFollowFriendsUsers();
-				if (userIds.isEmpty()) {
-					logger.warning("Got no IDs, exiting");
-					System.exit(0);
-				}
-				logger.info("Got " + userIds.size() + " IDs");
-				return tf.getFriendsAndFollowers(userIds);
-			}
-		};
-		t.perform(ClientRequestType.REQUEST_IDS_FOR_FOLLOWER_FRIENDS, tf.getCurrentRateLimit());
+	/**
+	 * Crawls the IDs sent by the server.
+	 * @return the batch to deliver, or null if the server did not send any IDs
+	 */
+	private ClientRequestObject crawl(ServerResponseObject sro) throws InterruptedException {
+		switch (fetchMode) {
+		case TWEETS_AND_USERS:
+			Set<Long> userIds = sro.getIds();
+			Set<String> screenNames = sro.getScreenNames();
+			if (userIds.isEmpty() && screenNames.isEmpty())
+				return null;
+			logger.info("Got " + userIds.size() + " IDs and " + screenNames.size() + " screen names");
+			return accounts.getTweetsAndUsersForIds(userIds, screenNames);
+		case FURTHER_TWEETS:
+			Set<FurtherCrawlingUserData> furtherCrawlingUsers = sro.getFurtherCrawlingUsers();
+			if (furtherCrawlingUsers.isEmpty())
+				return null;
+			return accounts.getFurtherTweetsForUserIds(furtherCrawlingUsers, maxTweetsPerUser, firstDate);
+		case FRIENDS_AND_FOLLOWERS:
+			Set<FollowFriendUser> followFriendUsers = sro.getFollowFriendsUsers();
+			if (followFriendUsers.isEmpty())
+				return null;
+			logger.info("Got " + followFriendUsers.size() + " IDs");
+			return accounts.getFriendsAndFollowers(followFriendUsers);
+		}
+		throw new IllegalStateException("unknown fetch mode " + fetchMode);
 	}
 
-	private void fetchTweetsAndUsers(final TwitterFetcher tf) throws InterruptedException {
-		ServerTransaction t = new ServerTransaction() {
+	/**
+	 * Crawls until the server runs out of IDs. The next IDs are requested while the current ones are crawled, and
+	 * crawled batches are delivered in the background.
+	 */
+	public void startClient() throws InterruptedException, IOException {
+		logger.info("Starting client for server " + host + ":" + port + " with " + accounts.size() + " accounts");
+		DeliveryQueue deliveries = new DeliveryQueue(new DeliveryQueue.Sender() {
 			@Override
-			protected ClientRequestObject processResponse(ServerResponseObject sro) throws InterruptedException {
-				Set<Long> userIds = sro.getIds();
-				Set<String> screenNames = sro.getScreenNames();
-				if (userIds.isEmpty()) {
-					logger.warning("Got no IDs, exiting");
-					System.exit(0);
-				}
-				logger.info("Got " + userIds.size() + " IDs and " + screenNames.size() + " screen names");
-				return tf.getTweetsAndUsersForIds(userIds, screenNames);
+			public ServerResponseObject sendRequest(ClientRequestObject cro) throws IOException, InterruptedException {
+				return TwitterDumperClient.this.sendRequest(cro);
 			}
-		};
-		t.perform(ClientRequestType.REQUEST_IDS, tf.getCurrentRateLimit());
-	}
+		}, spoolDir, deliveryQueueSize, waitingTimeWhileError * 1000);
+		ExecutorService idRequester = Executors.newSingleThreadExecutor();
+		Future<ServerResponseObject> nextIds = requestIds(idRequester);
+		try {
+			while (!Thread.interrupted()) {
+				ServerResponseObject sro;
+				try {
+					sro = nextIds.get();
+				} catch (ExecutionException e) {
+					if (!(e.getCause() instanceof IOException))
+						throw new IllegalStateException(e.getCause());
+					logger.log(Level.WARNING, e.getCause().getClass().getSimpleName() + ": '" +
+							e.getCause().getMessage() + "' retrying in " + waitingTimeWhileError + "s");
+					Thread.sleep(waitingTimeWhileError * 1000);
+					nextIds = requestIds(idRequester);
+					continue;
+				}
 
-	private void fetchFurtherTweets(final TwitterFetcher tf) throws InterruptedException {
-		ServerTransaction t = new ServerTransaction() {
-			@Override
-			protected ClientRequestObject processResponse(ServerResponseObject sro) throws InterruptedException {
-				Set<FurtherCrawlingUserData> furtherCrawlingUsers = sro.getFurtherCrawlingUsers();
-				if (furtherCrawlingUsers.isEmpty()) {
+				nextIds = requestIds(idRequester);
+				ClientRequestObject cro = crawl(sro);
+				if (cro == null) {
 					logger.warning("Got no IDs, exiting");
-					System.exit(0);
+					break;
 				}
-				return tf.getFurtherTweetsForUserIds(furtherCrawlingUsers, maxTweetsPerUser, firstDate);
+				deliveries.add(cro);
 			}
-		};
-		t.perform(ClientRequestType.REQUEST_IDS_FOR_FURTHER_TWEETS, tf.getCurrentRateLimit());
+		} finally {
+			nextIds.cancel(true);
+			idRequester.shutdownNow();
+			deliveries.close();
+			connection.close();
+		}
 	}
 
 	public static void main(String[] args) throws Exception {
@@ -187,16 +193,12 @@ public class TwitterDumperClient extends LogConfigurator {
 		String host = properties.getProperty("server.host");
 		int port = Integer.parseInt(properties.getProperty("server.port"));
 		int usersPerRequest = Integer.parseInt(properties.getProperty("client.userRequestSize"));
+		boolean compress = Boolean.parseBoolean(properties.getProperty("server.compression", "true"));
+		File spoolDir = new File(properties.getProperty("client.spoolDir", "spool"));
+		int deliveryQueueSize = Integer.parseInt(properties.getProperty("client.deliveryQueueSize", "4"));
 
-		String consumerKey = properties.getProperty("consumerKey");
-		String consumerSecret = properties.getProperty("consumerSecret");
-		String token = properties.getProperty("token");
-		String tokenSecret = properties.getProperty("tokenSecret");
-
-		if ((consumerKey == null) || consumerKey.isEmpty() ||
-			(consumerSecret == null) || consumerSecret.isEmpty() ||
-			(token == null) || token.isEmpty() ||
-			(tokenSecret == null) || tokenSecret.isEmpty()) {
+		List<TwitterFetcher> fetchers = TwitterAccountPool.createFetchers(properties);
+		if (fetchers.isEmpty()) {
 			logger.severe("Set consumerKey, consumerSecret, token and tokenSecret in twitter.properties.");
 			return;
 		}
@@ -209,8 +211,8 @@ public class TwitterDumperClient extends LogConfigurator {
 		if (maxTweetsPerUser <= 0)
 			maxTweetsPerUser = Integer.MAX_VALUE;	// no limit
 
-		TwitterDumperClient tdc = new TwitterDumperClient(host, port, consumerKey, consumerSecret, token, tokenSecret,
-				fetchMode, usersPerRequest, maxTweetsPerUser, firstDate);
+		TwitterDumperClient tdc = new TwitterDumperClient(host, port, new TwitterAccountPool(fetchers), fetchMode,
+				usersPerRequest, maxTweetsPerUser, firstDate, compress, spoolDir, deliveryQueueSize);
 		tdc.startClient();
 	}
 
@@ -1,16 +1,23 @@
 package edu.tum.cs.crawling.twitter.client;
 
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.cybozu.labs.langdetect.Detector;
-import com.cybozu.labs.langdetect.DetectorFactory;
-import com.cybozu.labs.langdetect.LangDetectException;
-
+import edu.tum.cs.crawling.twitter.client.RateLimitScheduler.Endpoint;
 import edu.tum.cs.crawling.twitter.entities.Tweet;
 import edu.tum.cs.crawling.twitter.entities.TwitterUser;
 import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject;
@@ -21,40 +28,76 @@ import edu.tum.cs.util.LanguageDetection;
 
 import twitter4j.IDs;
 import twitter4j.Paging;
-import twitter4j.RateLimitStatusEvent;
-import twitter4j.RateLimitStatusListener;
 import twitter4j.ResponseList;
 import twitter4j.Status;
 import twitter4j.Twitter;
 import twitter4j.TwitterException;
 import twitter4j.TwitterFactory;
+import twitter4j.TwitterResponse;
 import twitter4j.User;
 import twitter4j.auth.AccessToken;
 import twitter4j.conf.ConfigurationBuilder;
 
+/**
+ * Fetches tweets, users, followers and friends for one account. Timelines, follower IDs and friend IDs are fetched by
+ * separate groups of threads, each gated by the {@link RateLimitScheduler}, so that the requests for one user overlap
+ * with those for other users and an exhausted endpoint does not hold up the others.
+ */
 public class TwitterFetcher {
 
 	private static final Logger logger = Logger.getLogger(TwitterFetcher.class.getName());
 
 	private static final int FOLLOW_LIMIT = 25000;
 	private static final int FRIEND_LIMIT = 25000;
-	private static final int WAIT_MS_BETWEEEN_REQUESTS = 1000;
+	private static final int TOO_MANY_REQUESTS = 429;
+	private static final int ENHANCE_YOUR_CALM = 420;
+
+	private static final int timelineThreads = 4;
+	private static final int idsThreads = 2;
 
-	private long usersDone = 0;
-	private long usersSuccessful = 0;
-	private long usersError = 0;
-	private long usersIgnored = 0;
-	private long usersWithTooManyFollowers = 0;
-	private long usersWithTooManyFriends = 0;
-	private long usersWithTooManyFriendsAndFollowers = 0;
-	private long usersSecured = 0;
+	private final AtomicLong usersDone = new AtomicLong();
+	private final AtomicLong usersSuccessful = new AtomicLong();
+	private final AtomicLong usersError = new AtomicLong();
+	private final AtomicLong usersIgnored = new AtomicLong();
+	private final AtomicLong usersWithTooManyFollowers = new AtomicLong();
+	private final AtomicLong usersWithTooManyFriends = new AtomicLong();
+	private final AtomicLong usersWithTooManyFriendsAndFollowers = new AtomicLong();
+	private final AtomicLong usersSecured = new AtomicLong();
 
 	private final Twitter twitter;
-	private int currentRateLimit = Integer.MAX_VALUE;
+	private final RateLimitScheduler scheduler;
+	private final ExecutorService timelineExecutor;
+	private final ExecutorService followersExecutor;
+	private final ExecutorService friendsExecutor;
+
+	/** tweets and user fetched from a timeline, the followers and friends may still be fetched in the background */
+	private static class FetchedUser {
+		Collection<Tweet> tweets = Collections.emptyList();
+		TwitterUser user;
+		Future<List<long[]>> followerIds;
+		Future<List<long[]>> friendIds;
+		String failedScreenName;
+	}
+
+	/** a request to one of the rate limited endpoints */
+	private static abstract class Request<T extends TwitterResponse> {
+		abstract T execute() throws TwitterException;
+	}
 
 	public TwitterFetcher(String consumerKey, String consumerSecret, String token, String tokenSecret) {
+		this(createTwitter(consumerKey, consumerSecret, token, tokenSecret), new RateLimitScheduler());
+	}
+
+	TwitterFetcher(Twitter twitter, RateLimitScheduler scheduler) {
 		LanguageDetection.loadProfilesFromResources();
+		this.twitter = twitter;
+		this.scheduler = scheduler;
+		timelineExecutor = createExecutor("timeline", timelineThreads);
+		followersExecutor = createExecutor("followers", idsThreads);
+		friendsExecutor = createExecutor("friends", idsThreads);
+	}
 
+	private static Twitter createTwitter(String consumerKey, String consumerSecret, String token, String tokenSecret) {
 		// In case of retweets, Twitter includes the original tweet (the tweet at the beginning of the retweet chain) in
 		// the JSON response; the flag "includeRTsEnabled" tells twitter4j to return the original tweet as a separate
 		// Status object.
@@ -63,32 +106,21 @@ public class TwitterFetcher {
 				.setIncludeRTsEnabled(true)
 				.build());
 
-		twitter = factory.getInstance();
+		Twitter twitter = factory.getInstance();
 		twitter.setOAuthConsumer(consumerKey, consumerSecret);
 		twitter.setOAuthAccessToken(new AccessToken(token, tokenSecret));
-		twitter.addRateLimitStatusListener(new RateLimitStatusListener() {
-			@Override
-			public void onRateLimitStatus(RateLimitStatusEvent evt) {
-				setCurrentRateLimit(evt.getRateLimitStatus().getRemaining());
-				if (evt.getRateLimitStatus().getRemaining() == 0)
-					onRateLimitReached(evt);
-			}
-
-			@Override
-			public void onRateLimitReached(RateLimitStatusEvent evt) {
-				try {
-					int sleepingMs = 1000 * (evt.getRateLimitStatus().getSecondsUntilReset() + 30);
-					sleepingMs = Math.max(sleepingMs, 60 * 1000);
+		return twitter;
+	}
 
-					GregorianCalendar cal = new GregorianCalendar();
-					cal.add(Calendar.MILLISECOND, sleepingMs);
+	private static ExecutorService createExecutor(final String name, int numThreads) {
+		return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
 
-					logger.info("Sleeping now for " + (int) Math.round((sleepingMs / 1000.0 / 60.0)) + "m until " +
-							cal.getTime());
-					Thread.sleep(sleepingMs);
-				} catch (InterruptedException e) {
-					// ignore
-				}
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + " fetcher " + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
 			}
 		});
 	}
@@ -101,100 +133,284 @@ public class TwitterFetcher {
 				" tooManyFriendsAndFollowers:" + usersWithTooManyFriendsAndFollowers);
 	}
 
+	/**
+	 * Sends a request once the scheduler permits it. Requests refused because of the rate limit are repeated.
+	 */
+	private <T extends TwitterResponse> T execute(Endpoint endpoint, Request<T> request)
+			throws TwitterException, InterruptedException {
+		while (true) {
+			scheduler.acquire(endpoint);
+			try {
+				T response = request.execute();
+				scheduler.update(endpoint, response.getRateLimitStatus());
+				return response;
+			} catch (TwitterException e) {
+				if ((e.getStatusCode() != TOO_MANY_REQUESTS) && (e.getStatusCode() != ENHANCE_YOUR_CALM)) {
+					scheduler.update(endpoint, e.getRateLimitStatus());
+					throw e;
+				}
+				logger.info("Request to " + endpoint + " refused because of the rate limit, retrying");
+				scheduler.rateLimitExceeded(endpoint, e.getRateLimitStatus());
+			}
+		}
+	}
+
+	private ResponseList<Status> getUserTimeline(final long userId, final Paging paging)
+			throws TwitterException, InterruptedException {
+		return execute(Endpoint.USER_TIMELINE, new Request<ResponseList<Status>>() {
+			@Override
+			ResponseList<Status> execute() throws TwitterException {
+				return twitter.getUserTimeline(userId, paging);
+			}
+		});
+	}
+
+	private ResponseList<Status> getUserTimeline(final String screenName, final Paging paging)
+			throws TwitterException, InterruptedException {
+		return execute(Endpoint.USER_TIMELINE, new Request<ResponseList<Status>>() {
+			@Override
+			ResponseList<Status> execute() throws TwitterException {
+				return twitter.getUserTimeline(screenName, paging);
+			}
+		});
+	}
+
+	/**
+	 * @return all pages of follower IDs
+	 */
+	private List<long[]> getFollowerIds(final long userId) throws TwitterException, InterruptedException {
+		List<long[]> pages = new ArrayList<long[]>();
+		long cursor = -1;
+		do {
+			final long currentCursor = cursor;
+			IDs followers = execute(Endpoint.FOLLOWERS_IDS, new Request<IDs>() {
+				@Override
+				IDs execute() throws TwitterException {
+					return twitter.getFollowersIDs(userId, currentCursor);
+				}
+			});
+			pages.add(followers.getIDs());
+			cursor = followers.hasNext() ? followers.getNextCursor() : 0;
+		} while (cursor != 0);
+		return pages;
+	}
+
+	/**
+	 * @return all pages of friend IDs
+	 */
+	private List<long[]> getFriendIds(final long userId) throws TwitterException, InterruptedException {
+		List<long[]> pages = new ArrayList<long[]>();
+		long cursor = -1;
+		do {
+			final long currentCursor = cursor;
+			IDs friends = execute(Endpoint.FRIENDS_IDS, new Request<IDs>() {
+				@Override
+				IDs execute() throws TwitterException {
+					return twitter.getFriendsIDs(userId, currentCursor);
+				}
+			});
+			pages.add(friends.getIDs());
+			cursor = friends.hasNext() ? friends.getNextCursor() : 0;
+		} while (cursor != 0);
+		return pages;
+	}
+
+	private Future<List<long[]>> submitFollowerIds(final long userId) {
+		return followersExecutor.submit(new Callable<List<long[]>>() {
+			@Override
+			public List<long[]> call() throws Exception {
+				return getFollowerIds(userId);
+			}
+		});
+	}
+
+	private Future<List<long[]>> submitFriendIds(final long userId) {
+		return friendsExecutor.submit(new Callable<List<long[]>>() {
+			@Override
+			public List<long[]> call() throws Exception {
+				return getFriendIds(userId);
+			}
+		});
+	}
+
+	private static <T> T getResult(Future<T> future) throws TwitterException, InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof TwitterException)
+				throw (TwitterException) cause;
+			if (cause instanceof InterruptedException)
+				throw (InterruptedException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private static void cancelAll(List<? extends Future<?>> futures) {
+		for (Future<?> future : futures)
+			future.cancel(true);
+	}
+
+	/**
+	 * Waits for the followers and friends of the user to be fetched and adds them to the user.
+	 */
+	private static void addFollowersAndFriends(FetchedUser fetchedUser) throws TwitterException, InterruptedException {
+		try {
+			if (fetchedUser.followerIds != null) {
+				for (long[] ids : getResult(fetchedUser.followerIds))
+					fetchedUser.user.getFollowersFriends().addFollowers(ids);
+			}
+			if (fetchedUser.friendIds != null) {
+				for (long[] ids : getResult(fetchedUser.friendIds))
+					fetchedUser.user.getFollowersFriends().addFriends(ids);
+			}
+		} finally {
+			if (fetchedUser.followerIds != null)
+				fetchedUser.followerIds.cancel(true);
+			if (fetchedUser.friendIds != null)
+				fetchedUser.friendIds.cancel(true);
+		}
+	}
+
+	private TwitterUser createFailedUser(long userId, TwitterException e) {
+		TwitterUser user = new TwitterUser();
+		user.setId(userId);
+		user.setCrawlingFailed(true);
+		user.setCrawledAt(new Date());
+		if (e.getCause() != null) {
+			if (e.getCause().getMessage() != null)
+				user.setCrawlingFailedCause(e.getCause().getMessage());
+			else
+				user.setCrawlingFailedCause(e.getClass().getName());
+		} else {
+			if (e.getMessage() != null)
+				user.setCrawlingFailedCause(e.getMessage());
+			else
+				user.setCrawlingFailedCause(e.getClass().getName());
+		}
+
+		logger.warning(user.getCrawlingFailedCause());
+		usersError.incrementAndGet();
+		return user;
+	}
+
 	public ClientRequestObject getTweetsAndUsersForIds(Set<Long> userIds, Set<String> screenNames)
 			throws InterruptedException {
-		Paging tweetsPaging = new Paging(1, 200);
 		ClientRequestObject cro = new ClientRequestObject();
 		cro.setRequestType(ClientRequestType.DELIVER_TWEETS_AND_USERS);
 
-		for (long userId : userIds) {
-			try {
-				ResponseList<Status> tweets = twitter.getUserTimeline(userId, tweetsPaging);
-				if (tweets.size() > 0) {
-					handleTweets(cro, tweets);
-				} else {
-					TwitterUser user = new TwitterUser();
-					user.setId(userId);
-					user.setIgnored(true);
-					user.setCrawledAt(new Date());
-					cro.getUsers().add(user);
-				}
-			} catch (TwitterException e) {
-				if ((e.getCause() == null) && e.getErrorMessage().equals("Not authorized")) {
-					TwitterUser user = new TwitterUser();
-					user.setId(userId);
-					user.setSecured(true);
-					user.setCrawledAt(new Date());
-					cro.getUsers().add(user);
-					usersSecured++;
-				} else {
-					TwitterUser user = new TwitterUser();
-					user.setId(userId);
-					user.setCrawlingFailed(true);
-					user.setCrawledAt(new Date());
-					if (e.getCause() != null) {
-						if (e.getCause().getMessage() != null)
-							user.setCrawlingFailedCause(e.getCause().getMessage());
-						else
-							user.setCrawlingFailedCause(e.getClass().getName());
-					} else {
-						if (e.getMessage() != null)
-							user.setCrawlingFailedCause(e.getMessage());
-						else
-							user.setCrawlingFailedCause(e.getClass().getName());
+		List<Future<FetchedUser>> futures = new ArrayList<Future<FetchedUser>>(userIds.size() + screenNames.size());
+		try {
+			for (final long userId : userIds) {
+				futures.add(timelineExecutor.submit(new Callable<FetchedUser>() {
+					@Override
+					public FetchedUser call() throws Exception {
+						return fetchTimeline(userId);
 					}
+				}));
+			}
+			for (final String screenName : screenNames) {
+				futures.add(timelineExecutor.submit(new Callable<FetchedUser>() {
+					@Override
+					public FetchedUser call() throws Exception {
+						return fetchTimeline(screenName);
+					}
+				}));
+			}
 
-					logger.warning(user.getCrawlingFailedCause());
-					cro.getUsers().add(user);
-					usersError++;
+			for (Future<FetchedUser> future : futures) {
+				FetchedUser fetchedUser;
+				try {
+					fetchedUser = getResult(future);
+				} catch (TwitterException e) {
+					throw new IllegalStateException(e); // handled by fetchTimeline
+				}
+				cro.getTweets().addAll(fetchedUser.tweets);
+				if (fetchedUser.failedScreenName != null)
+					cro.getFailedUserScreenNames().add(fetchedUser.failedScreenName);
+				if (fetchedUser.user != null) {
+					try {
+						addFollowersAndFriends(fetchedUser);
+						cro.getUsers().add(fetchedUser.user);
+					} catch (TwitterException e) {
+						cro.getUsers().add(createFailedUser(fetchedUser.user.getId(), e));
+					}
 				}
-			}
 
-			if ((++usersDone % 100) == 0)
-				printStatus();
+				if ((usersDone.incrementAndGet() % 100) == 0)
+					printStatus();
+			}
+		} finally {
+			cancelAll(futures);
 		}
 
-		for (String screenName : screenNames) {
-			try {
-				ResponseList<Status> tweets = twitter.getUserTimeline(screenName, tweetsPaging);
-				if (tweets.size() > 0)
-					handleTweets(cro, tweets);
-			} catch (TwitterException e) {
-				usersError++;
-				logger.log(Level.WARNING, "Failed crawling " + screenName);
-				cro.getFailedUserScreenNames().add(screenName);
-			}
+		return cro;
+	}
 
-			if ((++usersDone % 100) == 0)
-				printStatus();
+	private FetchedUser fetchTimeline(long userId) throws InterruptedException {
+		FetchedUser fetchedUser = new FetchedUser();
+		try {
+			ResponseList<Status> tweets = getUserTimeline(userId, new Paging(1, 200));
+			if (tweets.size() > 0) {
+				handleTweets(fetchedUser, tweets);
+			} else {
+				TwitterUser user = new TwitterUser();
+				user.setId(userId);
+				user.setIgnored(true);
+				user.setCrawledAt(new Date());
+				fetchedUser.user = user;
+			}
+		} catch (TwitterException e) {
+			if ((e.getCause() == null) && "Not authorized".equals(e.getErrorMessage())) {
+				TwitterUser user = new TwitterUser();
+				user.setId(userId);
+				user.setSecured(true);
+				user.setCrawledAt(new Date());
+				fetchedUser.user = user;
+				usersSecured.incrementAndGet();
+			} else {
+				fetchedUser.user = createFailedUser(userId, e);
+			}
 		}
+		return fetchedUser;
+	}
 
-		return cro;
+	private FetchedUser fetchTimeline(String screenName) throws InterruptedException {
+		FetchedUser fetchedUser = new FetchedUser();
+		try {
+			ResponseList<Status> tweets = getUserTimeline(screenName, new Paging(1, 200));
+			if (tweets.size() > 0)
+				handleTweets(fetchedUser, tweets);
+		} catch (TwitterException e) {
+			usersError.incrementAndGet();
+			logger.log(Level.WARNING, "Failed crawling " + screenName);
+			fetchedUser.failedScreenName = screenName;
+		}
+		return fetchedUser;
 	}
 
-	private void handleTweets(ClientRequestObject cro, ResponseList<Status> tweets)
-			throws TwitterException, InterruptedException {
+	/**
+	 * Converts the tweets and their author and starts fetching the followers and friends if the user qualifies.
+	 */
+	private void handleTweets(FetchedUser fetchedUser, ResponseList<Status> tweets) {
 		Date crawledAt = new Date();
 		User user = null;
 
 		// Identifying the language
-		String languageCode = LanguageDetection.UNKNOWN_LANGUAGE;
-		try {
-			Detector detector = DetectorFactory.create();
-			for (Status tweet : tweets) {
-				detector.append(tweet.getText());
-				user = tweet.getUser();
-			}
-			languageCode = detector.detect();
-		} catch (LangDetectException e) {
-			// ignore
+		List<String> texts = new ArrayList<String>(tweets.size());
+		for (Status tweet : tweets) {
+			texts.add(tweet.getText());
+			user = tweet.getUser();
 		}
+		String languageCode = LanguageDetection.detect(texts);
 		if (languageCode.equals(LanguageDetection.UNKNOWN_LANGUAGE))
 			languageCode = "-";
 
-		cro.getTweets().addAll(Tweet.fromTwitter4j(tweets, crawledAt));
+		fetchedUser.tweets = Tweet.fromTwitter4j(tweets, crawledAt);
 		TwitterUser internalUser = TwitterUser.fromTwitter4j(user, crawledAt, languageCode);
-		Thread.sleep(WAIT_MS_BETWEEEN_REQUESTS);
+		fetchedUser.user = internalUser;
 
 		if ((user != null) &&
 			// need at least 10 tweets for reliable language detection
@@ -205,140 +421,133 @@ public class TwitterFetcher {
 			languageCode.equals("en")) {
 
 			// Followers
-			if (user.getFollowersCount() <= FOLLOW_LIMIT) {
-				IDs followers = twitter.getFollowersIDs(user.getId(), -1);
-				internalUser.getFollowersFriends().addFollowers(followers.getIDs());
-				Thread.sleep(WAIT_MS_BETWEEEN_REQUESTS);
-
-				while (followers.hasNext()) {
-					followers = twitter.getFollowersIDs(user.getId(), followers.getNextCursor());
-					internalUser.getFollowersFriends().addFollowers(followers.getIDs());
-					Thread.sleep(WAIT_MS_BETWEEEN_REQUESTS);
-				}
-			} else {
-				usersWithTooManyFollowers++;
-			}
+			if (user.getFollowersCount() <= FOLLOW_LIMIT)
+				fetchedUser.followerIds = submitFollowerIds(user.getId());
+			else
+				usersWithTooManyFollowers.incrementAndGet();
 
 			// Friends and followers
-			if ((user.getFollowersCount() > FOLLOW_LIMIT) && (user.getFriendsCount() > FRIEND_LIMIT)) {
-				usersWithTooManyFriendsAndFollowers++;
-			}
+			if ((user.getFollowersCount() > FOLLOW_LIMIT) && (user.getFriendsCount() > FRIEND_LIMIT))
+				usersWithTooManyFriendsAndFollowers.incrementAndGet();
 
 			// Friends
-			if (user.getFriendsCount() <= FRIEND_LIMIT) {
-				IDs friends = twitter.getFriendsIDs(user.getId(), -1);
-				internalUser.getFollowersFriends().addFriends(friends.getIDs());
-				Thread.sleep(WAIT_MS_BETWEEEN_REQUESTS);
-
-				while (friends.hasNext()) {
-					friends = twitter.getFriendsIDs(user.getId(), friends.getNextCursor());
-					internalUser.getFollowersFriends().addFriends(friends.getIDs());
-					Thread.sleep(WAIT_MS_BETWEEEN_REQUESTS);
-				}
-			} else {
-				usersWithTooManyFriends++;
-			}
-			usersSuccessful++;
+			if (user.getFriendsCount() <= FRIEND_LIMIT)
+				fetchedUser.friendIds = submitFriendIds(user.getId());
+			else
+				usersWithTooManyFriends.incrementAndGet();
+			usersSuccessful.incrementAndGet();
 		} else {
-			usersIgnored++;
+			usersIgnored.incrementAndGet();
 			internalUser.setIgnored(true);
 		}
-
-		cro.getUsers().add(internalUser);
 	}
 
 	public ClientRequestObject getFurtherTweetsForUserIds(Set<FurtherCrawlingUserData> furtherCrawlingUsers,
-			int maxTweetsPerUser, Date firstDate) throws InterruptedException {
+			final int maxTweetsPerUser, final Date firstDate) throws InterruptedException {
 		ClientRequestObject cro = new ClientRequestObject();
 		cro.setRequestType(ClientRequestType.DELIVER_TWEETS_AND_USERS);
 
-		for (FurtherCrawlingUserData userData : furtherCrawlingUsers) {
-			long userId = userData.id;
-			long firstTweetId = userData.firstTweetId;
-			TwitterUser twitterUser = null;
-
-			try {
-				Paging tweetsPaging = new Paging(1);
-				tweetsPaging.setMaxId(firstTweetId);
-				tweetsPaging.setCount(200);
-				Date crawledAt = new Date();
-
-				for (int i = 0; i < (maxTweetsPerUser / tweetsPaging.getCount()); i++) {
-					ResponseList<Status> tweets = twitter.getUserTimeline(userId, tweetsPaging);
-					cro.getTweets().addAll(Tweet.fromTwitter4j(tweets, crawledAt));
-					if (tweets.isEmpty())
-						break;
-
-					if ((tweets.get(0) != null) && (twitterUser == null)) {
-						twitterUser = TwitterUser.fromTwitter4j(tweets.get(0).getUser(), crawledAt, null);
-						cro.getUsers().add(twitterUser);
+		List<Future<FetchedUser>> futures = new ArrayList<Future<FetchedUser>>(furtherCrawlingUsers.size());
+		try {
+			for (final FurtherCrawlingUserData userData : furtherCrawlingUsers) {
+				futures.add(timelineExecutor.submit(new Callable<FetchedUser>() {
+					@Override
+					public FetchedUser call() throws Exception {
+						return fetchFurtherTweets(userData, maxTweetsPerUser, firstDate);
 					}
+				}));
+			}
 
-					Status lastTweet = tweets.get(tweets.size() - 1);
-					tweetsPaging.setPage(tweetsPaging.getPage() + 1);
-					if (lastTweet.getCreatedAt().before(firstDate))
-						break;
-					if (tweets.size() < tweetsPaging.getCount()) // No more tweets
-						break;
-
-					Thread.sleep(WAIT_MS_BETWEEEN_REQUESTS);
+			for (Future<FetchedUser> future : futures) {
+				FetchedUser fetchedUser;
+				try {
+					fetchedUser = getResult(future);
+				} catch (TwitterException e) {
+					throw new IllegalStateException(e); // handled by fetchFurtherTweets
 				}
-			} catch (TwitterException e) {
-				logger.log(Level.INFO, "user " + userId + " is secured?!");
+				cro.getTweets().addAll(fetchedUser.tweets);
+				if (fetchedUser.user != null)
+					cro.getUsers().add(fetchedUser.user);
 			}
+		} finally {
+			cancelAll(futures);
 		}
 		return cro;
 	}
 
+	private FetchedUser fetchFurtherTweets(FurtherCrawlingUserData userData, int maxTweetsPerUser, Date firstDate)
+			throws InterruptedException {
+		long userId = userData.id;
+		FetchedUser fetchedUser = new FetchedUser();
+		List<Tweet> fetchedTweets = new ArrayList<Tweet>();
+		fetchedUser.tweets = fetchedTweets;
+
+		try {
+			Paging tweetsPaging = new Paging(1);
+			tweetsPaging.setMaxId(userData.firstTweetId);
+			tweetsPaging.setCount(200);
+			Date crawledAt = new Date();
+
+			for (int i = 0; i < (maxTweetsPerUser / tweetsPaging.getCount()); i++) {
+				ResponseList<Status> tweets = getUserTimeline(userId, tweetsPaging);
+				fetchedTweets.addAll(Tweet.fromTwitter4j(tweets, crawledAt));
+				if (tweets.isEmpty())
+					break;
+
+				if ((tweets.get(0) != null) && (fetchedUser.user == null))
+					fetchedUser.user = TwitterUser.fromTwitter4j(tweets.get(0).getUser(), crawledAt, null);
+
+				Status lastTweet = tweets.get(tweets.size() - 1);
+				tweetsPaging.setPage(tweetsPaging.getPage() + 1);
+				if (lastTweet.getCreatedAt().before(firstDate))
+					break;
+				if (tweets.size() < tweetsPaging.getCount()) // No more tweets
+					break;
+			}
+		} catch (TwitterException e) {
+			logger.log(Level.INFO, "user " + userId + " is secured?!");
+		}
+		return fetchedUser;
+	}
+
 	public ClientRequestObject getFriendsAndFollowers(Set<FollowFriendUser> userIds) throws InterruptedException {
 		ClientRequestObject cro = new ClientRequestObject();
 		cro.setRequestType(ClientRequestType.DELIVER_FOLLOWERS_AND_FRIENDS);
 
+		List<FetchedUser> fetchedUsers = new ArrayList<FetchedUser>(userIds.size());
 		for (FollowFriendUser userData : userIds) {
-			try {
-				TwitterUser user = new TwitterUser();
-				user.setId(userData.id);
-
-				// Followers
-				if (userData.totalFollowerCount <= FOLLOW_LIMIT) {
-					IDs followers = twitter.getFollowersIDs(user.getId(), -1);
-					user.getFollowersFriends().addFollowers(followers.getIDs());
-					Thread.sleep(WAIT_MS_BETWEEEN_REQUESTS);
-
-					while (followers.hasNext()) {
-						followers = twitter.getFollowersIDs(user.getId(), followers.getNextCursor());
-						user.getFollowersFriends().addFollowers(followers.getIDs());
-						Thread.sleep(WAIT_MS_BETWEEEN_REQUESTS);
-					}
-				}
-
-				// Friends
-				if (userData.totalFriendCount <= FRIEND_LIMIT) {
-					IDs friends = twitter.getFriendsIDs(user.getId(), -1);
-					user.getFollowersFriends().addFriends(friends.getIDs());
-					Thread.sleep(WAIT_MS_BETWEEEN_REQUESTS);
-
-					while (friends.hasNext()) {
-						friends = twitter.getFriendsIDs(user.getId(), friends.getNextCursor());
-						user.getFollowersFriends().addFriends(friends.getIDs());
-						Thread.sleep(WAIT_MS_BETWEEEN_REQUESTS);
-					}
-				}
+			FetchedUser fetchedUser = new FetchedUser();
+			fetchedUser.user = new TwitterUser();
+			fetchedUser.user.setId(userData.id);
+			if (userData.totalFollowerCount <= FOLLOW_LIMIT)
+				fetchedUser.followerIds = submitFollowerIds(userData.id);
+			if (userData.totalFriendCount <= FRIEND_LIMIT)
+				fetchedUser.friendIds = submitFriendIds(userData.id);
+			fetchedUsers.add(fetchedUser);
+		}
 
-				cro.getUsers().add(user);
+		for (int i = 0; i < fetchedUsers.size(); i++) {
+			FetchedUser fetchedUser = fetchedUsers.get(i);
+			try {
+				addFollowersAndFriends(fetchedUser);
+				cro.getUsers().add(fetchedUser.user);
 			} catch (TwitterException e) {
-				logger.log(Level.INFO, "user " + userData.id + " is secured?!");
+				logger.log(Level.INFO, "user " + fetchedUser.user.getId() + " is secured?!");
+			} catch (InterruptedException e) {
+				for (FetchedUser remaining : fetchedUsers.subList(i + 1, fetchedUsers.size())) {
+					if (remaining.followerIds != null)
+						remaining.followerIds.cancel(true);
+					if (remaining.friendIds != null)
+						remaining.friendIds.cancel(true);
+				}
+				throw e;
 			}
 		}
 		return cro;
 	}
 
-	public int getCurrentRateLimit() {
-		return currentRateLimit;
-	}
-
-	private void setCurrentRateLimit(int currentRateLimit) {
-		this.currentRateLimit = currentRateLimit;
+	int getRemaining(Endpoint endpoint) {
+		return scheduler.getRemaining(endpoint);
 	}
 
 }
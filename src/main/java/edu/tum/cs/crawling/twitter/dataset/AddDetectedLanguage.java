@@ -1,83 +1,301 @@
 package edu.tum.cs.crawling.twitter.dataset;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
-import com.cybozu.labs.langdetect.Detector;
-import com.cybozu.labs.langdetect.DetectorFactory;
-import com.cybozu.labs.langdetect.LangDetectException;
-
 import edu.tum.cs.crawling.twitter.server.TwitterDao;
 import edu.tum.cs.util.LanguageDetection;
 import edu.tum.cs.util.LogConfigurator;
 
+/**
+ * Detects the language of all users without a detected language from their tweets. Users are read in chunks ordered by
+ * ID, up to 200 tweets of each user of a chunk are loaded with a single query, languages are detected by a pool of
+ * workers and a separate writer stores the results chunk by chunk, in order. After each chunk the ID of its last user
+ * is written to a checkpoint file, so that an interrupted run continues after the last committed user.
+ */
 public class AddDetectedLanguage extends LogConfigurator {
 
 	private static final Logger logger = Logger.getLogger(AddDetectedLanguage.class.getName());
 
-	public static void main(String[] args) throws Exception {
-		LanguageDetection.loadProfilesFromResources();
+	private static final int batchSize = 1000;
+	private static final int maxTweetsPerUser = 200;
 
-		Connection c = TwitterDao.getConnection();
-		try {
-			PreparedStatement psUpdateDetectedLanguage = c.prepareStatement(
-					"UPDATE user SET detected_language = ? WHERE id = ?");
-			PreparedStatement psSelectStatusTexts = c.prepareStatement(
-					"SELECT status_text FROM tweet WHERE user_id = ? LIMIT 200");
+	/** users of a chunk and their tweets */
+	private static class Chunk {
+		final long[] userIds;
+		final boolean[] ignored;
+		final List<List<String>> statusTexts;
 
-			Statement s = c.createStatement();
-			ResultSet rs = s.executeQuery("SELECT id, ignored FROM user WHERE detected_language IS NULL");
+		Chunk(int size) {
+			userIds = new long[size];
+			ignored = new boolean[size];
+			statusTexts = new ArrayList<List<String>>(size);
+		}
 
-			int i = 0, nonEn = 0, unknownLanguage = 0;
-			logger.info("Starting");
+		long getLastId() {
+			return userIds[userIds.length - 1];
+		}
+	}
+
+	/** detected languages of a chunk, null for users without tweets */
+	private static class ChunkResult {
+		final long[] userIds;
+		final String[] languages;
+		int nonEn = 0, unknownLanguage = 0;
+
+		ChunkResult(long[] userIds) {
+			this.userIds = userIds;
+			this.languages = new String[userIds.length];
+		}
+	}
+
+	private final File checkpointFile;
+	private final ExecutorService workers;
+	private final ExecutorService writer = Executors.newSingleThreadExecutor();
+	private final Semaphore chunksInProgress;
+	private volatile Exception writeError;
+	private int numUpdated = 0, nonEn = 0, unknownLanguage = 0;
+
+	public AddDetectedLanguage(File checkpointFile, int numThreads) {
+		this.checkpointFile = checkpointFile;
+		this.workers = Executors.newFixedThreadPool(numThreads);
+		// limits the chunks held in memory
+		this.chunksInProgress = new Semaphore(numThreads + 2);
+	}
+
+	private long loadCheckpoint() throws IOException {
+		if (!checkpointFile.exists())
+			return Long.MIN_VALUE;
+		String content = new String(Files.readAllBytes(checkpointFile.toPath()), StandardCharsets.US_ASCII);
+		return Long.parseLong(content.trim());
+	}
+
+	private void saveCheckpoint(long lastId) throws IOException {
+		File tmpFile = new File(checkpointFile.getPath() + ".tmp");
+		Files.write(tmpFile.toPath(), Long.toString(lastId).getBytes(StandardCharsets.US_ASCII));
+		Files.move(tmpFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static PreparedStatement prepareSelectStatusTexts(Connection c, int numUsers) throws SQLException {
+		// one limited subquery per user, so that the server does not send all tweets of very active users
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < numUsers; i++) {
+			if (i > 0)
+				sb.append(" UNION ALL ");
+			sb.append("(SELECT user_id, status_text FROM tweet WHERE user_id = ? LIMIT ").append(maxTweetsPerUser)
+					.append(')');
+		}
+		return c.prepareStatement(sb.toString());
+	}
+
+	private static Chunk readChunk(PreparedStatement psSelectUsers, PreparedStatement psSelectStatusTexts,
+			Connection c, long lastId) throws SQLException {
+		List<Long> userIds = new ArrayList<Long>(batchSize);
+		List<Boolean> ignored = new ArrayList<Boolean>(batchSize);
+		psSelectUsers.setLong(1, lastId);
+		psSelectUsers.setInt(2, batchSize);
+		ResultSet rs = psSelectUsers.executeQuery();
+		try {
 			while (rs.next()) {
-				long userId = rs.getLong(1);
-				boolean ignored = rs.getBoolean(2);
-
-				psSelectStatusTexts.setLong(1, userId);
-				ResultSet rsTweets = psSelectStatusTexts.executeQuery();
-				boolean foundTweets = false;
-				Detector detector = DetectorFactory.create();
-				while (rsTweets.next()) {
-					String statusText = rsTweets.getString(1);
-					detector.append(statusText);
-					foundTweets = true;
+				userIds.add(rs.getLong(1));
+				ignored.add(rs.getBoolean(2));
+			}
+		} finally {
+			rs.close();
+		}
+		if (userIds.isEmpty())
+			return null;
+
+		Chunk chunk = new Chunk(userIds.size());
+		Map<Long, List<String>> statusTextsByUser = new HashMap<Long, List<String>>(userIds.size() * 2);
+		for (int i = 0; i < userIds.size(); i++) {
+			chunk.userIds[i] = userIds.get(i);
+			chunk.ignored[i] = ignored.get(i);
+			List<String> statusTexts = new ArrayList<String>();
+			chunk.statusTexts.add(statusTexts);
+			statusTextsByUser.put(userIds.get(i), statusTexts);
+		}
+
+		// the last chunk is smaller and needs its own statement
+		PreparedStatement ps = (userIds.size() == batchSize) ? psSelectStatusTexts :
+				prepareSelectStatusTexts(c, userIds.size());
+		try {
+			for (int i = 0; i < userIds.size(); i++)
+				ps.setLong(i + 1, userIds.get(i));
+			rs = ps.executeQuery();
+			try {
+				while (rs.next()) {
+					statusTextsByUser.get(rs.getLong(1)).add(rs.getString(2));
 				}
-				if (!foundTweets)
-					continue;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			if (ps != psSelectStatusTexts)
+				ps.close();
+		}
+		return chunk;
+	}
 
-				String languageCode = LanguageDetection.UNKNOWN_LANGUAGE;
-				try {
-					languageCode = detector.detect();
-				} catch (LangDetectException e) {
-					// ignore
+	private static ChunkResult detectLanguages(Chunk chunk) {
+		ChunkResult result = new ChunkResult(chunk.userIds);
+		for (int i = 0; i < chunk.userIds.length; i++) {
+			List<String> statusTexts = chunk.statusTexts.get(i);
+			if (statusTexts.isEmpty())
+				continue;
+
+			String languageCode = LanguageDetection.detect(statusTexts);
+			if (!chunk.ignored[i] && !languageCode.equalsIgnoreCase("en")) {
+				if (languageCode.equalsIgnoreCase(LanguageDetection.UNKNOWN_LANGUAGE)) {
+					languageCode = "-";
+					result.unknownLanguage++;
+				} else {
+					result.nonEn++;
 				}
-				if (!ignored && !languageCode.equalsIgnoreCase("en")) {
-					if (languageCode.equalsIgnoreCase(LanguageDetection.UNKNOWN_LANGUAGE)) {
-						languageCode = "-";
-						unknownLanguage++;
-					} else {
-						nonEn++;
-					}
+			}
+			result.languages[i] = languageCode;
+		}
+		return result;
+	}
+
+	private void writeChunk(PreparedStatement psUpdateDetectedLanguage, ChunkResult result, long lastId)
+			throws SQLException, IOException {
+		int numUsers = 0;
+		for (int i = 0; i < result.userIds.length; i++) {
+			if (result.languages[i] == null)
+				continue;
+			psUpdateDetectedLanguage.setString(1, result.languages[i]);
+			psUpdateDetectedLanguage.setLong(2, result.userIds[i]);
+			psUpdateDetectedLanguage.addBatch();
+			numUsers++;
+		}
+		psUpdateDetectedLanguage.executeBatch();
+		psUpdateDetectedLanguage.getConnection().commit();
+		saveCheckpoint(lastId);
+
+		numUpdated += numUsers;
+		nonEn += result.nonEn;
+		unknownLanguage += result.unknownLanguage;
+		logger.info("i: " + numUpdated + " - nonEn: " + nonEn + " - unknownLanguage: " + unknownLanguage +
+				" - last user: " + lastId);
+	}
+
+	/** queues a chunk for the writer, which waits for its languages */
+	private void submitWrite(final PreparedStatement psUpdateDetectedLanguage,
+			final Future<ChunkResult> result, final long lastId) {
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (writeError == null)
+						writeChunk(psUpdateDetectedLanguage, result.get(), lastId);
+				} catch (ExecutionException e) {
+					writeError = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+				} catch (Exception e) {
+					writeError = e;
+				} finally {
+					chunksInProgress.release();
 				}
+			}
+		});
+	}
 
-				psUpdateDetectedLanguage.setString(1, languageCode);
-				psUpdateDetectedLanguage.setLong(2, userId);
-				psUpdateDetectedLanguage.addBatch();
+	public void run() throws Exception {
+		long lastId = loadCheckpoint();
+		if (lastId != Long.MIN_VALUE)
+			logger.info("Continuing after user " + lastId);
+
+		Connection c = TwitterDao.getConnection();
+		Connection writeConnection = TwitterDao.getConnection();
+		try {
+			writeConnection.setAutoCommit(false);
+			PreparedStatement psUpdateDetectedLanguage = writeConnection.prepareStatement(
+					"UPDATE user SET detected_language = ? WHERE id = ?");
+			PreparedStatement psSelectUsers = c.prepareStatement(
+					"SELECT id, ignored FROM user WHERE id > ? AND detected_language IS NULL ORDER BY id LIMIT ?");
+			PreparedStatement psSelectStatusTexts = prepareSelectStatusTexts(c, batchSize);
 
-				if ((++i % 1000) == 0) {
-					psUpdateDetectedLanguage.executeBatch();
-					logger.info("i: " + i + " - nonEn: " + nonEn + " - unknownLanguage: " + unknownLanguage);
+			logger.info("Starting");
+			try {
+				while (writeError == null) {
+					chunksInProgress.acquire();
+					final Chunk chunk = readChunk(psSelectUsers, psSelectStatusTexts, c, lastId);
+					if (chunk == null) {
+						chunksInProgress.release();
+						break;
+					}
+					lastId = chunk.getLastId();
+					Future<ChunkResult> result = workers.submit(new Callable<ChunkResult>() {
+						@Override
+						public ChunkResult call() {
+							return detectLanguages(chunk);
+						}
+					});
+					submitWrite(psUpdateDetectedLanguage, result, lastId);
 				}
+			} finally {
+				workers.shutdown();
+				writer.shutdown();
+				writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
 			}
-			psUpdateDetectedLanguage.executeBatch();
-			logger.info("done - i: " + i + " - nonEn: " + nonEn + " - unknownLanguage: " + unknownLanguage);
+			if (writeError != null)
+				throw writeError;
+			logger.info("done - i: " + numUpdated + " - nonEn: " + nonEn + " - unknownLanguage: " + unknownLanguage);
 		} finally {
+			writeConnection.rollback();
+			writeConnection.setAutoCommit(true);
+			writeConnection.close();
 			c.close();
 		}
 	}
 
+	public static void main(String[] args) throws Exception {
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		String checkpointFileName = "detectedLanguage.lastId";
+		int idx = 0;
+		while (idx < args.length) {
+			if ((args[idx].length() >= 2) && (args[idx].charAt(0) == '-')) {
+				switch (args[idx].charAt(1)) {
+				case 'n':
+					numThreads = Math.max(1, Integer.parseInt(args[++idx]));
+					break;
+				case 'c':
+					checkpointFileName = args[++idx];
+					break;
+				default:
+					System.err.println("usage: " + AddDetectedLanguage.class.getSimpleName() + " [options]\n" +
+							"valid options are:\n" +
+							"\t-n x\tNumber of detection threads (default: number of processors)\n" +
+							"\t-c x\tPath of the checkpoint file with the last committed user ID\n" +
+							"\t\t(default detectedLanguage.lastId), delete it to start over\n");
+					return;
+				}
+			}
+			idx++;
+		}
+
+		LanguageDetection.loadProfilesFromResources();
+		new AddDetectedLanguage(new File(checkpointFileName), numThreads).run();
+	}
+
 }
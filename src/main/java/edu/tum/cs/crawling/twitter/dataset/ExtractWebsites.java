@@ -4,6 +4,7 @@ import de.l3s.boilerpipe.extractors.ArticleExtractor;
 import edu.tum.cs.crawling.twitter.entities.Tweet;
 import edu.tum.cs.crawling.twitter.entities.Website;
 import edu.tum.cs.crawling.twitter.server.TwitterDao;
+import edu.tum.cs.util.PipelineStage;
 
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
@@ -24,23 +25,28 @@ import java.io.PrintWriter;
 import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 
+/**
+ * Downloads the websites linked in the tweets of a list of users and extracts their text. The work is done by a
+ * pipeline of stages, each with its own threads and a bounded input queue: loading the tweets of a user, fetching the
+ * linked pages, extracting the text and saving the websites in batches.
+ */
 public class ExtractWebsites {
 
 	private static final Logger logger = Logger.getLogger(ExtractWebsites.class.getName());
 
+	private static final int saveBatchSize = 150;
+	private static final long progressIntervalMs = 60 * 1000;
+
 	private static final AtomicInteger urlCount = new AtomicInteger();
 	private static final AtomicInteger badUrlCount = new AtomicInteger();
-	private static final List<Long> durations = Collections.synchronizedList(new ArrayList<Long>());
 	private static final PoolingHttpClientConnectionManager connectionManager =
 			new PoolingHttpClientConnectionManager();
 	private static final RequestConfig requestConfig = RequestConfig.custom()
@@ -54,30 +60,182 @@ public class ExtractWebsites {
 			.build();
 	private static final ArticleExtractor extractor = new ArticleExtractor();
 
-	private static int numThreads = 1;
 	private static String userAgent = "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)";
 	private static boolean writeToDatabase = true;
+	private static ResolvedUrlCache urlCache;
+	private static PrintWriter finishedIdsFile;
+
+	/** counts the websites of a user that are not saved yet */
+	private static class UserProgress {
+		final long userId;
+		final AtomicInteger numPending = new AtomicInteger(1);
+		/** the tweets could not be loaded or the websites not saved, the user is not finished */
+		volatile boolean failed = false;
+
+		UserProgress(long userId) {
+			this.userId = userId;
+		}
+
+		/** the user is finished when the last website is saved */
+		void release() {
+			if ((numPending.decrementAndGet() == 0) && !failed) {
+				synchronized (finishedIdsFile) {
+					finishedIdsFile.println(userId);
+					finishedIdsFile.flush();
+				}
+			}
+		}
+	}
+
+	/** a website on its way through the pipeline */
+	private static class Page {
+		final UserProgress user;
+		final long tweetId;
+		final String url;
+		Website website;
+		String body;
+
+		Page(UserProgress user, long tweetId, String url) {
+			this.user = user;
+			this.tweetId = tweetId;
+			this.url = url;
+		}
+	}
+
+	private static PipelineStage<Long> loadStage;
+	private static PipelineStage<Page> fetchStage;
+	private static PipelineStage<Page> extractStage;
+	private static PipelineStage<Page> saveStage;
+
+	/** a single thread, as the batch is not shared */
+	private static PipelineStage<Page> createSaveStage() {
+		return new PipelineStage<Page>("save", 1, 1000) {
+			private final List<Page> batch = new ArrayList<Page>(saveBatchSize);
+
+			@Override
+			protected void process(Page page) {
+				batch.add(page);
+				if (batch.size() >= saveBatchSize)
+					flush();
+			}
+
+			@Override
+			protected void flush() {
+				if (batch.isEmpty())
+					return;
+				boolean saved = false;
+				try {
+					if (writeToDatabase) {
+						List<Website> websites = new ArrayList<Website>(batch.size());
+						for (Page page : batch)
+							websites.add(page.website);
+						TwitterDao.saveWebsites(websites);
+					}
+					saved = true;
+				} finally {
+					// users with unsaved websites are not written to the finished IDs, so they are processed again
+					for (Page page : batch) {
+						if (!saved)
+							page.user.failed = true;
+						page.user.release();
+					}
+					batch.clear();
+				}
+			}
+		};
+	}
+
+	private static PipelineStage<Page> createExtractStage(int numThreads) {
+		return new PipelineStage<Page>("extract", numThreads, 100) {
+			@Override
+			protected void process(Page page) throws Exception {
+				try {
+					page.website.setContent(extractContent(page.body));
+					page.body = null;
+				} catch (Exception ex) {
+					page.user.release();
+					throw ex;
+				}
+				saveStage.put(page);
+			}
+		};
+	}
+
+	private static PipelineStage<Page> createFetchStage(int numThreads) {
+		return new PipelineStage<Page>("fetch", numThreads, 1000) {
+			@Override
+			protected void process(Page page) throws Exception {
+				urlCount.incrementAndGet();
+				try {
+					fetchWebsite(page);
+				} catch (Exception ex) {
+					// A lot of errors are already handled in the pipeline, catching the remaining ones here.
+					logger.log(Level.SEVERE, "error processing '" + page.url + "'", ex);
+					page.user.release();
+					return;
+				}
+				if (page.body != null)
+					extractStage.put(page);
+				else
+					saveStage.put(page);
+			}
+		};
+	}
 
-	private static List<Website> extractWebsites(String tweet, long tweetId) {
-		List<Website> websites = new ArrayList<Website>();
-		Matcher m = ResolveUrls.urlPattern.matcher(tweet);
-		while (m.find()) {
-			String url = m.group();
-			urlCount.incrementAndGet();
-			try {
-				Website website = startRequest(tweetId, url, url, 0);
-				if (website != null)
-					websites.add(website);
-			} catch (Exception ex) {
-				// A lot of errors are already handled in the pipeline, catching the remaining ones here.
-				logger.log(Level.SEVERE, "error processing '" + url + "'", ex);
+	private static PipelineStage<Long> createLoadStage(int numThreads) {
+		return new PipelineStage<Long>("load", numThreads, 100) {
+			@Override
+			protected void process(Long userId) throws Exception {
+				UserProgress user = new UserProgress(userId);
+				try {
+					for (Tweet tweet : TwitterDao.getTweetsOfUser(userId)) {
+						Tweet origTweet = tweet;
+						if (tweet.isRetweet())
+							origTweet = TwitterDao.getOriginalTweet(tweet);
+						Matcher m = ResolveUrls.urlPattern.matcher(origTweet.getStatusText());
+						while (m.find()) {
+							user.numPending.incrementAndGet();
+							fetchStage.put(new Page(user, origTweet.getId(), m.group()));
+						}
+					}
+				} catch (Exception ex) {
+					user.failed = true;
+					throw ex;
+				} finally {
+					user.release();
+				}
 			}
+		};
+	}
+
+	/**
+	 * Skips the redirects of URLs in the cache, and the request itself if an earlier GET request found the page gone.
+	 * Other failures are requested again, as they may come from HEAD requests of {@link ResolveUrls}, which many
+	 * servers refuse.
+	 */
+	private static void fetchWebsite(Page page) throws Exception {
+		ResolvedUrlCache.Entry fetched = urlCache.getFinal(page.url);
+		if ((fetched != null) && ((fetched.httpStatus == 404) || (fetched.httpStatus == 410))) {
+			Website website = new Website();
+			website.setOriginalUrl(page.url);
+			website.setTweetId(page.tweetId);
+			website.setStatusCode(fetched.httpStatus);
+			website.setResolvedUrl(fetched.targetUrl);
+			badUrlCount.incrementAndGet();
+			page.website = website;
+			return;
 		}
-		return websites;
+
+		ResolvedUrlCache.Entry cached = urlCache.resolve(page.url);
+		startRequest(page, (cached != null) ? cached.targetUrl : page.url, 0);
+		if (page.website.getStatusCode() > 0)
+			urlCache.putFinal(page.url, page.website.getResolvedUrl(), page.website.getStatusCode());
 	}
 
-	private static Website startRequest(long ID, String originalUrl, String currentUrl, int numRedirects)
-			throws Exception {
+	/**
+	 * Sets the website of the page and, if it is a text, the body for the extraction stage.
+	 */
+	private static void startRequest(Page page, String currentUrl, int numRedirects) throws Exception {
 		HttpClientContext context = new HttpClientContext();
 		HttpGet getRequest = new HttpGet(currentUrl);
 		getRequest.addHeader("Accept", "text/*");
@@ -85,8 +243,9 @@ public class ExtractWebsites {
 		getRequest.addHeader("User-Agent", userAgent);
 
 		Website website = new Website();
-		website.setOriginalUrl(originalUrl);
-		website.setTweetId(ID);
+		website.setOriginalUrl(page.url);
+		website.setTweetId(page.tweetId);
+		page.website = website;
 
 		try {
 			if (numRedirects > 20)
@@ -106,9 +265,7 @@ public class ExtractWebsites {
 				ContentType contentType = ContentType.get(response.getEntity());
 				if ((contentType != null) && (contentType.getMimeType() != null) &&
 					contentType.getMimeType().startsWith("text")) {
-					String body = EntityUtils.toString(response.getEntity());
-					String content = extractContent(body);
-					website.setContent(content);
+					page.body = EntityUtils.toString(response.getEntity());
 				} else
 					badUrlCount.incrementAndGet();
 			} else if ((statusCode >= 300) && (statusCode < 400)) {
@@ -118,7 +275,8 @@ public class ExtractWebsites {
 					String newUrl = locationHeader.getValue();
 					if (!(newUrl.startsWith("http://") || newUrl.startsWith("https://")))
 						newUrl = new URL(new URL(currentUrl), newUrl).toString();	// resolve relative URL
-					return startRequest(ID, originalUrl, newUrl, numRedirects + 1);
+					startRequest(page, newUrl, numRedirects + 1);
+					return;
 				}
 				badUrlCount.incrementAndGet();
 			} else {
@@ -128,13 +286,12 @@ public class ExtractWebsites {
 			List<URI> locations = context.getRedirectLocations();
 			if (locations != null)
 				currentUrl = locations.get(locations.size() - 1).toString();
-			logger.log(Level.SEVERE, "Error fetching content of URL '" + originalUrl + "' (" + currentUrl + ")", ex);
+			logger.log(Level.SEVERE, "Error fetching content of URL '" + page.url + "' (" + currentUrl + ")", ex);
 			badUrlCount.incrementAndGet();
 			website.setResolvedUrl(currentUrl);
 		} finally {
 			getRequest.releaseConnection();
 		}
-		return website;
 	}
 
 	private static String extractContent(String html) throws Exception {
@@ -143,29 +300,14 @@ public class ExtractWebsites {
 		return extractor.getText(html);
 	}
 
-	private static void extractWebsitesForUser(long userID) {
-		logger.info("Started " + userID);
-		long start = System.currentTimeMillis();
-		List<Website> websites = new ArrayList<Website>();
-		List<Tweet> tweets = TwitterDao.getTweetsOfUser(userID);
-		for (Tweet tweet : tweets) {
-			Tweet origTweet = tweet;
-			if (tweet.isRetweet())
-				origTweet = TwitterDao.getOriginalTweet(tweet);
-			websites.addAll(extractWebsites(origTweet.getStatusText(), origTweet.getId()));
-			if (writeToDatabase && (websites.size() > 150)) {
-				// preventing java.net.SocketException: Too many open files
-				TwitterDao.saveWebsites(websites);
-				websites.clear();
-			}
+	private static void logProgress(int numUsers) {
+		long numLoaded = loadStage.getNumProcessed();
+		logger.info(loadStage.getProgress(numUsers));
+		// later stages: extrapolate from the items per user so far
+		for (PipelineStage<?> stage : new PipelineStage<?>[] { fetchStage, extractStage, saveStage }) {
+			long expectedTotal = (numLoaded > 0) ? (stage.getNumReceived() * numUsers / numLoaded) : 0;
+			logger.info(stage.getProgress(expectedTotal));
 		}
-
-		if (writeToDatabase && !websites.isEmpty())
-			TwitterDao.saveWebsites(websites);
-
-		long durationInSeconds = (System.currentTimeMillis() - start) / 1000;
-		durations.add(durationInSeconds);
-		logger.info("Finished " + userID + ", took " + durationInSeconds + " seconds on " + tweets.size() + " tweets.");
 	}
 
 	public static Set<Long> loadUserIds(String fileName, int maxUsers) throws IOException {
@@ -190,7 +332,13 @@ public class ExtractWebsites {
 		// parse arguments
 		String idFileName = null;
 		String excludedFileName = null;
+		String cacheFileName = "urlcache.bin";
+		long cacheTtlDays = ResolvedUrlCache.defaultTtlDays;
 		int maxUserIds = Integer.MAX_VALUE;
+		int numThreads = 16;
+		int numLoadThreads = 2;
+		int numExtractThreads = Runtime.getRuntime().availableProcessors();
+		int maxConnectionsPerHost = 4;
 		int idx = 0;
 		while (idx < args.length) {
 			if ((args[idx].length() >= 2) && (args[idx].charAt(0) == '-')) {
@@ -198,6 +346,15 @@ public class ExtractWebsites {
 				case 'n':
 					numThreads = Math.max(1, Integer.parseInt(args[++idx]));
 					break;
+				case 'l':
+					numLoadThreads = Math.max(1, Integer.parseInt(args[++idx]));
+					break;
+				case 'a':
+					numExtractThreads = Math.max(1, Integer.parseInt(args[++idx]));
+					break;
+				case 'c':
+					maxConnectionsPerHost = Math.max(1, Integer.parseInt(args[++idx]));
+					break;
 				case 'm':
 					maxUserIds = Integer.parseInt(args[++idx]);
 					break;
@@ -210,15 +367,26 @@ public class ExtractWebsites {
 				case 't':
 					writeToDatabase = false;
 					break;
+				case 'r':
+					cacheFileName = args[++idx];
+					break;
+				case 'e':
+					cacheTtlDays = Long.parseLong(args[++idx]);
+					break;
 				default:
 					System.err.println("usage: " + ExtractWebsites.class.getSimpleName() + " [options] userIds\n" +
 							"valid options are:\n" +
-							"\t-n x\tNumber of threads (default 1)\n" +
+							"\t-n x\tNumber of threads fetching websites (default 16)\n" +
+							"\t-l x\tNumber of threads loading tweets (default 2)\n" +
+							"\t-a x\tNumber of threads extracting text (default: number of processors)\n" +
+							"\t-c x\tMaximum number of connections to the same host (default 4)\n" +
 							"\t-m x\tMaximum amount of user IDs to process\n" +
 							"\t-x x\tPath of the file with the user IDs to exclude\n" +
 							"\t-u x\tThe value of the User-Agent header when sending a request.\n" +
 							"\t\tDefault is the header value used by the Google Bot.\n" +
-							"\t-t\tDon\'t write to the database.\n");
+							"\t-t\tDon\'t write to the database.\n" +
+							"\t-r x\tPath of the cache of resolved URLs (default urlcache.bin)\n" +
+							"\t-e x\tIgnore cached URLs older than x days (default 30)\n");
 					return;
 				}
 			} else
@@ -234,45 +402,56 @@ public class ExtractWebsites {
 		if (excludedFileName != null)
 			userIds.removeAll(loadUserIds(excludedFileName, Integer.MAX_VALUE));
 
-		logger.info("Processing " + userIds.size() + " users with " + numThreads + " threads.");
+		logger.info("Processing " + userIds.size() + " users with " + numThreads + " fetching threads.");
 		logger.info("User-Agent is '" + userAgent + "'");
 		if (!writeToDatabase)
 			logger.info("Testing only, not writing to the database.");
+		urlCache = ResolvedUrlCache.open(cacheFileName, cacheTtlDays);
+		finishedIdsFile = new PrintWriter(new FileWriter("finishedIDs"));
 
-		Thread[] threads = new Thread[numThreads];
-		final LinkedBlockingQueue<Long> workQueue = new LinkedBlockingQueue<Long>(userIds);
-		final PrintWriter finishedIdsFile = new PrintWriter(new FileWriter("finishedIDs"));
-		for (int i = 0; i < numThreads; i++) {
-			threads[i] = new Thread() {
-				@Override
-				public void run() {
-					Long userId = workQueue.poll();
-					if (userId == null)
-						return;
-
-					extractWebsitesForUser(userId);
-
-					synchronized (finishedIdsFile) {
-						finishedIdsFile.println(userId);
-						finishedIdsFile.flush();
-
-						if (durations.size() > 0) {
-							double avgTime = 0.0;
-							for (long v : durations)
-								avgTime += v;
-							avgTime /= durations.size();
-							logger.info(workQueue.size() + " users to go. Average processing time = " + avgTime);
-							logger.info("Estimated remaining time = " + (workQueue.size() * avgTime));
-						}
+		// per-host politeness: the connection pool limits the concurrent requests to each host
+		connectionManager.setMaxTotal(numThreads);
+		connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+
+		loadStage = createLoadStage(numLoadThreads);
+		fetchStage = createFetchStage(numThreads);
+		extractStage = createExtractStage(numExtractThreads);
+		saveStage = createSaveStage();
+		saveStage.start();
+		extractStage.start();
+		fetchStage.start();
+		loadStage.start();
+
+		final int numUsers = userIds.size();
+		Thread progressThread = new Thread("progress") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(progressIntervalMs);
+						logProgress(numUsers);
 					}
+				} catch (InterruptedException ex) {
+					// done
 				}
-			};
-			threads[i].start();
-		}
-		for (Thread t : threads)
-			t.join();
-		finishedIdsFile.close();
+			}
+		};
+		progressThread.setDaemon(true);
+		progressThread.start();
+
+		for (long userId : userIds)
+			loadStage.put(userId);
+		loadStage.finish();
+		fetchStage.finish();
+		extractStage.finish();
+		saveStage.finish();
+		progressThread.interrupt();
+		logProgress(numUsers);
 
+		finishedIdsFile.close();
+		urlCache.close();
+		httpClient.close();
+		logger.info(urlCache.getStatistics());
 		logger.info("urlCount: " + urlCount);
 		logger.info("badUrlCount: " + badUrlCount);
 	}
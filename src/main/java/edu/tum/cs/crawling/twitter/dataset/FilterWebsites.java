@@ -1,18 +1,26 @@
 package edu.tum.cs.crawling.twitter.dataset;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
-import com.cybozu.labs.langdetect.Detector;
-import com.cybozu.labs.langdetect.DetectorFactory;
-import com.cybozu.labs.langdetect.LangDetectException;
-
 import edu.tum.cs.crawling.twitter.server.TwitterDao;
 import edu.tum.cs.util.LanguageDetection;
+import edu.tum.cs.util.PrefixTrie;
 
+/**
+ * Copies the English websites with content from WEBSITE to WEBSITE_FILTERED, without known login and error pages and
+ * HTML tags. The table is divided into ranges of IDs, which are processed in parallel; every thread has its own
+ * connection and inserts in batches.
+ */
 public class FilterWebsites {
 
 	private static final String[] errorPageUrlPrefix = {
@@ -25,67 +33,103 @@ public class FilterWebsites {
 	private static final Pattern htmlTag = Pattern.compile("(?m)</?[a-zA-Z][a-zA-Z0-9 \\\"=_\\-\\r\\n]*?>");
 	private static final int maxBatchSize = 10000;
 
-	private static String detectLanguage(String text) {
-		String lang = "";
-		try {
-			Detector languageDetector = DetectorFactory.create();
-			languageDetector.append(text);
-			lang = languageDetector.detect();
-		} catch (LangDetectException ex) {
-			// ignore
+	/** the stages of processing a row, for the throughput report */
+	private static final int READ = 0, FILTER = 1, DETECT = 2, WRITE = 3;
+	private static final String[] stageNames = { "read", "filter", "detect language", "write" };
+	private static final AtomicLong[] stageNanos = new AtomicLong[stageNames.length];
+	private static final AtomicLong[] stageRows = new AtomicLong[stageNames.length];
+	static {
+		for (int i = 0; i < stageNames.length; i++) {
+			stageNanos[i] = new AtomicLong();
+			stageRows[i] = new AtomicLong();
 		}
-		return lang;
 	}
 
-	public static void main(String[] args) throws Exception {
-		LanguageDetection.loadProfilesFromResources();
+	private static final PrefixTrie errorPages = new PrefixTrie(errorPageUrlPrefix);
+	private static final AtomicLong numProcessed = new AtomicLong();
+	private static final AtomicLong numKept = new AtomicLong();
+	private static long startTime;
 
-		int numProcessed = 0, numKept = 0;
-		Connection c = TwitterDao.getConnection();
-		try {
-			Statement s = c.createStatement();
-			s.executeUpdate("create table `WEBSITE_FILTERED` like `WEBSITE`");
+	/** IDs from start (inclusive) to end (exclusive) */
+	private static class Range {
+		final long start, end;
 
-			PreparedStatement si = c.prepareStatement("insert into WEBSITE_FILTERED (TWEET_ID,ORIGINAL_URL," +
-					"RESOLVED_URL,STATUS_CODE,CONTENT) values (?,?,?,?,?)");
-			int batchSize = 0;
+		Range(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * Adds the time since the given start to a stage.
+	 * @return the current time, the start of the next stage
+	 */
+	private static long addTime(int stage, long start, int numRows) {
+		long now = System.nanoTime();
+		stageNanos[stage].addAndGet(now - start);
+		stageRows[stage].addAndGet(numRows);
+		return now;
+	}
+
+	private static void printProgress() {
+		double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+		StringBuilder sb = new StringBuilder(String.format("processed %d websites, kept %d (%.0f rows/s)",
+				numProcessed.get(), numKept.get(), numProcessed.get() / Math.max(seconds, 0.001)));
+		for (int i = 0; i < stageNames.length; i++) {
+			double stageSeconds = stageNanos[i].get() / 1e9;
+			sb.append(String.format("; %s: %.0f rows/s per thread", stageNames[i],
+					stageRows[i].get() / Math.max(stageSeconds, 0.001)));
+		}
+		System.err.println(sb);
+	}
+
+	/**
+	 * @return the cleaned content, or null if the website is discarded
+	 */
+	private static String filter(String resolvedUrl, String content) {
+		// discard known login/error pages with many duplicates
+		if (errorPages.matches(resolvedUrl))
+			return null;
+
+		// discard if only content is the BOM
+		if (content.equals(bom))
+			return null;
+		// remove null bytes from UTF-16 text mistaken for single-byte encoding
+		if (content.indexOf('\u0000') >= 0)
+			content = content.replace("\u0000", "");
+
+		// remove HTML tags, even if they are split across line breaks
+		return htmlTag.matcher(content).replaceAll("");
+	}
 
-			ResultSet rs = s.executeQuery("select TWEET_ID,ORIGINAL_URL,RESOLVED_URL,STATUS_CODE,CONTENT from WEBSITE" +
-					" where CONTENT is not null");
+	private static void processRange(PreparedStatement ss, PreparedStatement si, Range range) throws SQLException {
+		ss.setLong(1, range.start);
+		ss.setLong(2, range.end);
+		int batchSize = 0;
+		long t = System.nanoTime();
+		ResultSet rs = ss.executeQuery();
+		try {
 			while (rs.next()) {
 				long tweetId = rs.getLong(1);
 				String originalUrl = rs.getString(2);
 				String resolvedUrl = rs.getString(3);
 				int statusCode = rs.getInt(4);
 				String content = rs.getString(5);
-				if ((++numProcessed % 100000) == 0)
-					System.err.println("processed " + numProcessed + " websites");
-
-				// discard known login/error pages with many duplicates
-				boolean isErrorPage = false;
-				for (String prefix : errorPageUrlPrefix) {
-					if (resolvedUrl.startsWith(prefix)) {
-						isErrorPage = true;
-						break;
-					}
-				}
-				if (isErrorPage)
-					continue;
+				numProcessed.incrementAndGet();
+				t = addTime(READ, t, 1);
 
-				// discard if only content is the BOM
-				if (content.equals(bom))
+				content = filter(resolvedUrl, content);
+				t = addTime(FILTER, t, 1);
+				if (content == null)
 					continue;
-				// remove null bytes from UTF-16 text mistaken for single-byte encoding
-				content = content.replace("\u0000", "");
-
-				// remove HTML tags, even if they are split across line breaks
-				content = htmlTag.matcher(content).replaceAll("");
 
 				// filter by language
-				if (content.isEmpty() || !detectLanguage(content).equals("en"))
+				boolean isEnglish = !content.isEmpty() && LanguageDetection.detect(content).equals("en");
+				t = addTime(DETECT, t, 1);
+				if (!isEnglish)
 					continue;
 
-				numKept++;
+				numKept.incrementAndGet();
 				si.setLong(1, tweetId);
 				si.setString(2, originalUrl);
 				si.setString(3, resolvedUrl);
@@ -94,14 +138,125 @@ public class FilterWebsites {
 				si.addBatch();
 				if (++batchSize > maxBatchSize) {
 					si.executeBatch();
+					t = addTime(WRITE, t, batchSize);
 					batchSize = 0;
+				} else
+					t = addTime(WRITE, t, 0);
+			}
+		} finally {
+			rs.close();
+		}
+		if (batchSize > 0) {
+			t = System.nanoTime();
+			si.executeBatch();
+			addTime(WRITE, t, batchSize);
+		}
+	}
+
+	private static void processRanges(ConcurrentLinkedQueue<Range> ranges) throws SQLException {
+		Connection c = TwitterDao.getConnection();
+		try {
+			PreparedStatement ss = c.prepareStatement("select TWEET_ID,ORIGINAL_URL,RESOLVED_URL,STATUS_CODE," +
+					"CONTENT from WEBSITE where ID >= ? and ID < ? and CONTENT is not null");
+			ss.setFetchSize(1000);
+			PreparedStatement si = c.prepareStatement("insert into WEBSITE_FILTERED (TWEET_ID,ORIGINAL_URL," +
+					"RESOLVED_URL,STATUS_CODE,CONTENT) values (?,?,?,?,?)");
+			Range range;
+			while ((range = ranges.poll()) != null) {
+				processRange(ss, si, range);
+				printProgress();
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	private static void loadErrorPagePrefixes(String fileName) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#"))
+					errorPages.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		long rangeSize = 100000;
+		int idx = 0;
+		while (idx < args.length) {
+			if ((args[idx].length() >= 2) && (args[idx].charAt(0) == '-')) {
+				switch (args[idx].charAt(1)) {
+				case 'n':
+					numThreads = Math.max(1, Integer.parseInt(args[++idx]));
+					break;
+				case 'r':
+					rangeSize = Math.max(1, Long.parseLong(args[++idx]));
+					break;
+				case 'p':
+					loadErrorPagePrefixes(args[++idx]);
+					break;
+				default:
+					System.err.println("usage: " + FilterWebsites.class.getSimpleName() + " [options]\n" +
+							"valid options are:\n" +
+							"\t-n x\tnumber of threads (default: number of processors)\n" +
+							"\t-r x\tnumber of IDs processed by a thread at once (default 100000)\n" +
+							"\t-p x\tfile with further URL prefixes of error pages, one per line\n");
+					return;
 				}
 			}
-			if (batchSize > 0)
-				si.executeBatch();
+			idx++;
+		}
+
+		LanguageDetection.loadProfilesFromResources();
+
+		final ConcurrentLinkedQueue<Range> ranges = new ConcurrentLinkedQueue<Range>();
+		Connection c = TwitterDao.getConnection();
+		try {
+			Statement s = c.createStatement();
+			s.executeUpdate("create table `WEBSITE_FILTERED` like `WEBSITE`");
+			ResultSet rs = s.executeQuery("select min(ID), max(ID) from WEBSITE");
+			if (rs.next() && (rs.getObject(1) != null)) {
+				for (long start = rs.getLong(1); start <= rs.getLong(2); start += rangeSize)
+					ranges.add(new Range(start, start + rangeSize));
+			}
 		} finally {
 			c.close();
 		}
+		System.err.println(ranges.size() + " ranges of " + rangeSize + " IDs, " + errorPages.size() +
+				" error page prefixes, " + numThreads + " threads");
+
+		startTime = System.currentTimeMillis();
+		final Exception[] error = new Exception[1];
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread("filter " + (i + 1)) {
+				@Override
+				public void run() {
+					try {
+						processRanges(ranges);
+					} catch (SQLException ex) {
+						// stop the other threads, too
+						ranges.clear();
+						synchronized (error) {
+							error[0] = ex;
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		if (error[0] != null)
+			throw error[0];
+
+		printProgress();
 		System.err.println("kept " + numKept + " of " + numProcessed + " websites");
 	}
 
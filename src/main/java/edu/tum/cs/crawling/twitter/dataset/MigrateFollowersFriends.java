@@ -0,0 +1,133 @@
+package edu.tum.cs.crawling.twitter.dataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.util.logging.Logger;
+
+import edu.tum.cs.crawling.twitter.entities.FollowersFriends.IdSetConverter;
+import edu.tum.cs.crawling.twitter.server.TwitterDao;
+import edu.tum.cs.util.LogConfigurator;
+
+/**
+ * Converts followers and friends that were stored as serialized HashSets into the delta-encoded format. Can be
+ * interrupted and restarted at any time: the last converted user ID is written to a checkpoint file after each batch,
+ * and a restarted run continues after it.
+ */
+public class MigrateFollowersFriends extends LogConfigurator {
+
+	private static final Logger logger = Logger.getLogger(MigrateFollowersFriends.class.getName());
+
+	private static final int batchSize = 1000;
+
+	private static byte[] convert(byte[] data) {
+		if ((data == null) || !IdSetConverter.isSerializedHashSet(data))
+			return data;
+		return IdSetConverter.encode(IdSetConverter.decode(data));
+	}
+
+	private static void setBlob(PreparedStatement ps, int idx, byte[] data) throws Exception {
+		if (data == null)
+			ps.setNull(idx, Types.BLOB);
+		else
+			ps.setBytes(idx, data);
+	}
+
+	private static long loadCheckpoint(File checkpointFile) throws IOException {
+		if (!checkpointFile.exists())
+			return Long.MIN_VALUE;
+		String content = new String(Files.readAllBytes(checkpointFile.toPath()), StandardCharsets.US_ASCII);
+		return Long.parseLong(content.trim());
+	}
+
+	private static void saveCheckpoint(File checkpointFile, long lastId) throws IOException {
+		File tmpFile = new File(checkpointFile.getPath() + ".tmp");
+		Files.write(tmpFile.toPath(), Long.toString(lastId).getBytes(StandardCharsets.US_ASCII));
+		Files.move(tmpFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String checkpointFileName = "migrateFollowersFriends.lastId";
+		int idx = 0;
+		while (idx < args.length) {
+			if ((args[idx].length() >= 2) && (args[idx].charAt(0) == '-')) {
+				switch (args[idx].charAt(1)) {
+				case 'c':
+					checkpointFileName = args[++idx];
+					break;
+				default:
+					System.err.println("usage: " + MigrateFollowersFriends.class.getSimpleName() + " [options]\n" +
+							"valid options are:\n" +
+							"\t-c x\tPath of the checkpoint file with the last converted user ID\n" +
+							"\t\t(default migrateFollowersFriends.lastId), delete it to start over\n");
+					return;
+				}
+			}
+			idx++;
+		}
+		File checkpointFile = new File(checkpointFileName);
+
+		Connection c = TwitterDao.getConnection();
+		try {
+			PreparedStatement psSelectUsers = c.prepareStatement(
+					"SELECT id, UNCOMPRESS(followers_ser), UNCOMPRESS(friends_ser) FROM user " +
+					"WHERE id > ? AND (followers_ser IS NOT NULL OR friends_ser IS NOT NULL) ORDER BY id LIMIT ?");
+			PreparedStatement psUpdateUser = c.prepareStatement(
+					"UPDATE user SET followers_ser = COMPRESS(?), friends_ser = COMPRESS(?) WHERE id = ?");
+
+			long lastId = loadCheckpoint(checkpointFile);
+			long oldSize = 0, newSize = 0;
+			int numUsers = 0, numConverted = 0, numRows;
+			if (lastId != Long.MIN_VALUE)
+				logger.info("Continuing after user " + lastId);
+			logger.info("Starting");
+			do {
+				numRows = 0;
+				psSelectUsers.setLong(1, lastId);
+				psSelectUsers.setInt(2, batchSize);
+				ResultSet rs = psSelectUsers.executeQuery();
+				try {
+					while (rs.next()) {
+						numRows++;
+						lastId = rs.getLong(1);
+						byte[] followers = rs.getBytes(2);
+						byte[] friends = rs.getBytes(3);
+						byte[] newFollowers = convert(followers);
+						byte[] newFriends = convert(friends);
+						if ((newFollowers == followers) && (newFriends == friends))
+							continue;
+
+						oldSize += ((followers != null) ? followers.length : 0) +
+								((friends != null) ? friends.length : 0);
+						newSize += ((newFollowers != null) ? newFollowers.length : 0) +
+								((newFriends != null) ? newFriends.length : 0);
+						setBlob(psUpdateUser, 1, newFollowers);
+						setBlob(psUpdateUser, 2, newFriends);
+						psUpdateUser.setLong(3, lastId);
+						psUpdateUser.addBatch();
+						numConverted++;
+					}
+				} finally {
+					rs.close();
+				}
+				psUpdateUser.executeBatch();
+				if (numRows > 0)
+					saveCheckpoint(checkpointFile, lastId);
+				numUsers += numRows;
+				logger.info("users: " + numUsers + " - converted: " + numConverted + " - uncompressed size: " +
+						oldSize + " -> " + newSize + " bytes");
+			} while (numRows == batchSize);
+			logger.info("done");
+		} finally {
+			c.close();
+		}
+	}
+
+}
@@ -1,78 +1,336 @@
 package edu.tum.cs.crawling.twitter.dataset;
 
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import edu.tum.cs.crawling.twitter.server.TwitterDao;
+import edu.tum.cs.util.LongHashSet;
+import edu.tum.cs.util.SimHash;
 
+/**
+ * Removes boilerplate websites, i.e. websites whose content appears at many different URLs, such as error pages or
+ * cookie notices. Websites are compared by SimHash fingerprints of their content, so that pages which differ only in
+ * a timestamp or an ad are still recognized. Only the ID and the fingerprint of each website are kept in memory.
+ */
 public class RemoveDuplicateWebsites {
 
-	private static Set<Integer> findDuplicateContent(int minInst) throws SQLException {
-		Map<Integer, Integer> hashToSingleId = new HashMap<Integer, Integer>();
-		Map<Integer, List<Integer>> hashToIds = new HashMap<Integer, List<Integer>>();
-		Set<Integer> seenResolvedUrls = new HashSet<Integer>();
+	private static final int chunkSize = 1000;
+	private static final int maxBatchSize = 10000;
+	static final int defaultMaxDistance = 3;
+
+	/** IDs and fingerprints of the websites, in the order they were read */
+	static class Fingerprints {
+		int size = 0;
+		int[] ids = new int[1 << 16];
+		long[] fingerprints = new long[1 << 16];
+
+		void add(int id, long fingerprint) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				fingerprints = Arrays.copyOf(fingerprints, size * 2);
+			}
+			ids[size] = id;
+			fingerprints[size++] = fingerprint;
+		}
+	}
+
+	/** contents of websites waiting for their fingerprints */
+	private static class Chunk implements Callable<long[]> {
+		final int[] ids = new int[chunkSize];
+		final List<String> contents = new ArrayList<String>(chunkSize);
+
+		@Override
+		public long[] call() {
+			long[] fingerprints = new long[contents.size()];
+			for (int i = 0; i < fingerprints.length; i++)
+				fingerprints[i] = SimHash.fingerprint(contents.get(i));
+			return fingerprints;
+		}
+	}
+
+	private static <T> T getResult(Future<T> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private static void addFingerprints(Fingerprints fingerprints, Chunk chunk, Future<long[]> future)
+			throws InterruptedException {
+		long[] result = getResult(future);
+		for (int i = 0; i < result.length; i++)
+			fingerprints.add(chunk.ids[i], result[i]);
+	}
+
+	private static long hashUrl(String url) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < url.length(); i++)
+			hash = (hash ^ url.charAt(i)) * 0x100000001b3L;
+		return hash;
+	}
+
+	/**
+	 * Streams the websites and computes the fingerprints of their content on all threads of the executor. Only the
+	 * first website with a URL is considered.
+	 */
+	private static Fingerprints readFingerprints(ExecutorService executor, int numThreads) throws SQLException,
+			InterruptedException {
+		Fingerprints fingerprints = new Fingerprints();
+		LongHashSet seenResolvedUrls = new LongHashSet();
+		Deque<Chunk> chunks = new ArrayDeque<Chunk>();
+		Deque<Future<long[]>> futures = new ArrayDeque<Future<long[]>>();
 
 		int numRead = 0;
 		Connection c = TwitterDao.getConnection();
 		try {
 			Statement s = c.createStatement();
+			s.setFetchSize(chunkSize);
 			ResultSet rs = s.executeQuery("select ID,CONTENT,RESOLVED_URL from WEBSITE_FILTERED");
+			Chunk chunk = new Chunk();
 			while (rs.next()) {
-				int id = rs.getInt(1);
-				int contentHash = rs.getString(2).hashCode();
-
 				// ignore the anchor part of the URL when checking for uniqueness
 				String url = rs.getString(3);
 				int idxAnchor = url.lastIndexOf('#');
 				if ((idxAnchor > 0) && (idxAnchor > url.lastIndexOf('/')))
 					url = url.substring(0, idxAnchor);
-				int urlHash = url.hashCode();
-
-				if (seenResolvedUrls.add(urlHash)) {
-					List<Integer> ids = hashToIds.get(contentHash);
-					if (ids == null) {
-						Integer prevId = hashToSingleId.get(contentHash);
-						if (prevId == null) {
-							hashToSingleId.put(contentHash, id);
-						} else {
-							ids = new ArrayList<Integer>(2);
-							ids.add(prevId);
-							ids.add(id);
-							hashToIds.put(contentHash, ids);
-							hashToSingleId.remove(contentHash);
-						}
-					} else {
-						ids.add(id);
+
+				if (seenResolvedUrls.add(hashUrl(url))) {
+					chunk.ids[chunk.contents.size()] = rs.getInt(1);
+					chunk.contents.add(rs.getString(2));
+					if (chunk.contents.size() == chunkSize) {
+						chunks.add(chunk);
+						futures.add(executor.submit(chunk));
+						chunk = new Chunk();
+						// keep a bounded number of contents in memory
+						if (futures.size() > (2 * numThreads))
+							addFingerprints(fingerprints, chunks.poll(), futures.poll());
 					}
 				}
 
 				if ((++numRead % 100000) == 0)
 					System.err.println("processed " + numRead + " websites");
 			}
+			chunks.add(chunk);
+			futures.add(executor.submit(chunk));
+			while (!futures.isEmpty())
+				addFingerprints(fingerprints, chunks.poll(), futures.poll());
 		} finally {
 			c.close();
 		}
+		return fingerprints;
+	}
 
-		Set<Integer> duplicateIds = new HashSet<Integer>();
-		for (List<Integer> ids : hashToIds.values()) {
-			if (ids.size() >= minInst)
-				duplicateIds.addAll(ids);
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
 		}
-		return duplicateIds;
+		return i;
 	}
 
-	private static final int maxBatchSize = 10000;
+	private static long[] addPair(long[] pairs, int numPairs, int i, int j) {
+		if (numPairs == pairs.length)
+			pairs = Arrays.copyOf(pairs, numPairs * 2);
+		pairs[numPairs] = ((long) i << 32) | j;
+		return pairs;
+	}
+
+	/**
+	 * Finds the pairs of fingerprints in a band that differ in at most maxDistance bits. Fingerprints are grouped by
+	 * the bits of the band; within a group, a fingerprint that occurred before is paired with its first occurrence
+	 * only, and the distinct fingerprints are compared pairwise. Boilerplate pages mostly have identical
+	 * fingerprints, so the distinct ones of a group are few.
+	 * @return the pairs of indices, each packed into a long
+	 */
+	private static long[] findPairsInBand(long[] fingerprints, int size, int shift, int width, int maxDistance) {
+		long mask = (1L << width) - 1;
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++)
+			keys[i] = (((fingerprints[i] >>> shift) & mask) << 32) | i;
+		Arrays.sort(keys);
+
+		long[] pairs = new long[16];
+		int numPairs = 0;
+		int[] distinct = new int[16];
+		Map<Long, Integer> firstOccurrences = new HashMap<Long, Integer>();
+		int start = 0;
+		while (start < size) {
+			int end = start + 1;
+			while ((end < size) && ((keys[end] >>> 32) == (keys[start] >>> 32)))
+				end++;
+			if (end - start == 1) {
+				start = end;
+				continue;
+			}
+
+			int numDistinct = 0;
+			firstOccurrences.clear();
+			for (int k = start; k < end; k++) {
+				int i = (int) keys[k];
+				Integer first = firstOccurrences.get(fingerprints[i]);
+				if (first != null) {
+					pairs = addPair(pairs, numPairs++, first, i);
+					continue;
+				}
+				firstOccurrences.put(fingerprints[i], i);
+				for (int d = 0; d < numDistinct; d++) {
+					int j = distinct[d];
+					if (SimHash.distance(fingerprints[i], fingerprints[j]) <= maxDistance)
+						pairs = addPair(pairs, numPairs++, j, i);
+				}
+				if (numDistinct == distinct.length)
+					distinct = Arrays.copyOf(distinct, numDistinct * 2);
+				distinct[numDistinct++] = i;
+			}
+			start = end;
+		}
+		return Arrays.copyOf(pairs, numPairs);
+	}
 
-	private static void removeWebsites(Set<Integer> ids) throws SQLException {
+	/**
+	 * Single linkage can chain fingerprints that are far apart into one cluster. The most common fingerprint of each
+	 * cluster, or the first of equally common ones, becomes its representative; members that differ from it in more
+	 * than maxDistance bits are left on their own.
+	 */
+	private static void trimClusters(long[] fingerprints, int size, int maxDistance, int[] clusters) {
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++)
+			keys[i] = ((long) clusters[i] << 32) | i;
+		Arrays.sort(keys);
+
+		// count and first index of each fingerprint in the cluster
+		Map<Long, int[]> counts = new HashMap<Long, int[]>();
+		int start = 0;
+		while (start < size) {
+			int end = start + 1;
+			while ((end < size) && ((keys[end] >>> 32) == (keys[start] >>> 32)))
+				end++;
+			if (end - start == 1) {
+				start = end;
+				continue;
+			}
+
+			counts.clear();
+			int representative = (int) keys[start];
+			int maxCount = 0;
+			for (int k = start; k < end; k++) {
+				int i = (int) keys[k];
+				int[] count = counts.get(fingerprints[i]);
+				if (count == null) {
+					count = new int[] { 0, i };
+					counts.put(fingerprints[i], count);
+				}
+				if ((++count[0] > maxCount) || ((count[0] == maxCount) && (count[1] < representative))) {
+					maxCount = count[0];
+					representative = count[1];
+				}
+			}
+			for (int k = start; k < end; k++) {
+				int i = (int) keys[k];
+				boolean close = SimHash.distance(fingerprints[i], fingerprints[representative]) <= maxDistance;
+				clusters[i] = close ? representative : i;
+			}
+			start = end;
+		}
+	}
+
+	/**
+	 * Groups fingerprints that differ in at most maxDistance bits, directly or through other fingerprints, and then
+	 * keeps only the members close to the representative of each group (see {@link #trimClusters}). The fingerprint
+	 * is divided into more than maxDistance bands, so that two close fingerprints agree in at least one band; the bands
+	 * are searched in parallel.
+	 * @return for each fingerprint, the index of the representative of its cluster, or its own index
+	 */
+	static int[] cluster(final long[] fingerprints, final int size, final int maxDistance, ExecutorService executor)
+			throws InterruptedException {
+		int numBands = Math.max(maxDistance + 1, 2);
+		List<Future<long[]>> futures = new ArrayList<Future<long[]>>(numBands);
+		for (int band = 0; band < numBands; band++) {
+			final int shift = band * 64 / numBands;
+			final int width = (band + 1) * 64 / numBands - shift;
+			futures.add(executor.submit(new Callable<long[]>() {
+				@Override
+				public long[] call() {
+					return findPairsInBand(fingerprints, size, shift, width, maxDistance);
+				}
+			}));
+		}
+
+		int[] parent = new int[size];
+		for (int i = 0; i < size; i++)
+			parent[i] = i;
+		for (Future<long[]> future : futures) {
+			for (long pair : getResult(future)) {
+				int root1 = find(parent, (int) (pair >>> 32));
+				int root2 = find(parent, (int) pair);
+				if (root1 < root2)
+					parent[root2] = root1;
+				else if (root2 < root1)
+					parent[root1] = root2;
+			}
+		}
+		for (int i = 0; i < size; i++)
+			parent[i] = find(parent, i);
+		trimClusters(fingerprints, size, maxDistance, parent);
+		return parent;
+	}
+
+	/**
+	 * Writes the clusters with at least two websites, one per line: the number of websites and their IDs.
+	 * @return the IDs of the websites in clusters with at least minInst websites
+	 */
+	private static List<Integer> writeClusters(Fingerprints fingerprints, int[] clusters, int minInst,
+			String fileName) throws IOException {
+		Map<Integer, List<Integer>> members = new HashMap<Integer, List<Integer>>();
+		for (int i = 0; i < fingerprints.size; i++) {
+			if (clusters[i] == i)
+				continue;
+			List<Integer> ids = members.get(clusters[i]);
+			if (ids == null) {
+				ids = new ArrayList<Integer>();
+				ids.add(fingerprints.ids[clusters[i]]);
+				members.put(clusters[i], ids);
+			}
+			ids.add(fingerprints.ids[i]);
+		}
+
+		List<Integer> duplicateIds = new ArrayList<Integer>();
+		PrintWriter w = new PrintWriter(fileName);
+		try {
+			for (List<Integer> ids : members.values()) {
+				StringBuilder sb = new StringBuilder().append(ids.size());
+				for (int id : ids)
+					sb.append('\t').append(id);
+				w.println(sb);
+				if (ids.size() >= minInst)
+					duplicateIds.addAll(ids);
+			}
+		} finally {
+			w.close();
+		}
+		System.err.println("found " + members.size() + " clusters of near-duplicates");
+		return duplicateIds;
+	}
+
+	private static void removeWebsites(List<Integer> ids) throws SQLException {
 		Connection c = TwitterDao.getConnection();
 		try {
 			PreparedStatement st = c.prepareStatement("delete from WEBSITE_FILTERED where ID = ?");
@@ -92,14 +350,61 @@ public class RemoveDuplicateWebsites {
 		}
 	}
 
-	public static void main(String[] args) throws SQLException {
+	public static void main(String[] args) throws Exception {
 		int minInst = 10;
-		if (args.length > 0)
-			minInst = Integer.parseInt(args[0]);
+		int maxDistance = defaultMaxDistance;
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		String clusterFileName = "duplicateClusters.tsv";
+		boolean remove = true;
+		int idx = 0;
+		while (idx < args.length) {
+			if ((args[idx].length() >= 2) && (args[idx].charAt(0) == '-')) {
+				switch (args[idx].charAt(1)) {
+				case 'k':
+					maxDistance = Integer.parseInt(args[++idx]);
+					if ((maxDistance < 0) || (maxDistance > 63)) {
+						System.err.println("maximum distance must be between 0 and 63");
+						return;
+					}
+					break;
+				case 'n':
+					numThreads = Math.max(1, Integer.parseInt(args[++idx]));
+					break;
+				case 'o':
+					clusterFileName = args[++idx];
+					break;
+				case 't':
+					remove = false;
+					break;
+				default:
+					System.err.println("usage: " + RemoveDuplicateWebsites.class.getSimpleName() +
+							" [options] [minInst]\n" +
+							"Removes websites whose content appears at least minInst times (default 10).\n" +
+							"valid options are:\n" +
+							"\t-k x\tmaximum number of different bits of two near-duplicate fingerprints\n" +
+							"\t\t(0-63, default 3; 0 finds identical content only)\n" +
+							"\t-n x\tnumber of threads (default: number of processors)\n" +
+							"\t-o x\tfile for the clusters of near-duplicates (default duplicateClusters.tsv)\n" +
+							"\t-t\tonly write the clusters, don't remove websites\n");
+					return;
+				}
+			} else
+				minInst = Integer.parseInt(args[idx]);
+			idx++;
+		}
 
-		Set<Integer> duplicateIds = findDuplicateContent(minInst);
-		System.err.println("found " + duplicateIds.size() + " duplicates, removing...");
-		removeWebsites(duplicateIds);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			Fingerprints fingerprints = readFingerprints(executor, numThreads);
+			System.err.println("read " + fingerprints.size + " websites, clustering...");
+			int[] clusters = cluster(fingerprints.fingerprints, fingerprints.size, maxDistance, executor);
+			List<Integer> duplicateIds = writeClusters(fingerprints, clusters, minInst, clusterFileName);
+			System.err.println("found " + duplicateIds.size() + " duplicates" + (remove ? ", removing..." : ""));
+			if (remove)
+				removeWebsites(duplicateIds);
+		} finally {
+			executor.shutdown();
+		}
 		System.err.println("done");
 	}
 
@@ -4,49 +4,26 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.net.HttpURLConnection;
-import java.net.SocketTimeoutException;
-import java.net.URL;
-import java.net.UnknownHostException;
 import java.security.Security;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import edu.tum.cs.crawling.twitter.dataset.UrlResolver.LinkStatus;
 import edu.tum.cs.crawling.twitter.server.TwitterDao;
 
 public class ResolveUrls {
 
-	private static class LinkStatus {
-		public int countInTweets;
-		public int countAsTarget;
-		public int httpStatus;
-		public String targetUrl;
-
-		public LinkStatus(boolean fromTweet) {
-			if (fromTweet) {
-				this.countInTweets = 1;
-				this.countAsTarget = 0;
-			} else {
-				this.countInTweets = 0;
-				this.countAsTarget = 1;
-			}
-			this.httpStatus = -1;
-			this.targetUrl = null;
-		}
-	}
-
 	public static final Pattern urlPattern =
 			Pattern.compile("(http|https)\\://[a-zA-Z0-9\\-\\.]+\\.[a-zA-Z]{2,3}(:[a-zA-Z0-9]*)?/?" +
 					"([a-zA-Z0-9\\-\\._\\?\\,\\'/\\\\\\+&%\\$#\\=~])*[^\\.\\,\\)\\(\\s\u2018\u2019\u201C\u201D'\"]",
@@ -73,8 +50,9 @@ public class ResolveUrls {
 	/**
 	 * Iterate over all Tweets in database; extract URLs and add them to a map.
 	 */
-	private static Map<String, LinkStatus> extractUrlsFromTweets(int limit, boolean tcoOnly) throws SQLException {
-		Map<String, LinkStatus> links = new HashMap<String, LinkStatus>();
+	private static ConcurrentMap<String, LinkStatus> extractUrlsFromTweets(int limit, boolean tcoOnly)
+			throws SQLException {
+		ConcurrentMap<String, LinkStatus> links = new ConcurrentHashMap<String, LinkStatus>();
 		int numURLs = 0;	// URL count before deduplication
 		int numTweets = 0;
 
@@ -99,9 +77,9 @@ public class ResolveUrls {
 		return links;
 	}
 
-	private static Map<String, LinkStatus> extractUrlsFromTweetsById(Set<Long> userIdSet, boolean tcoOnly)
+	private static ConcurrentMap<String, LinkStatus> extractUrlsFromTweetsById(Set<Long> userIdSet, boolean tcoOnly)
 			throws SQLException {
-		Map<String, LinkStatus> links = new HashMap<String, LinkStatus>();
+		ConcurrentMap<String, LinkStatus> links = new ConcurrentHashMap<String, LinkStatus>();
 		int numURLs = 0;	// URL count before deduplication
 		int numTweets = 0;
 
@@ -132,88 +110,13 @@ public class ResolveUrls {
 		return links;
 	}
 
-	/**
-	 * Send HTTP HEAD request for each URL and process the response.
-	 */
-	private static void resolveUrls(Queue<String> workQueue, Map<String, LinkStatus> links, int limit,
-			boolean singlePass, boolean followLocal, boolean printQueueSize) {
-		long t0 = System.currentTimeMillis();
-		int n = 0;
-		while (!workQueue.isEmpty() && (n < limit)) {
-			String url = workQueue.poll();
-
-			int httpStatus = -1;
-			String targetUrl = null;
-			boolean follow = true;
-
-			try {
-				URL parsedUrl = new URL(url);
-				HttpURLConnection httpConn = (HttpURLConnection) parsedUrl.openConnection();
-				httpConn.setRequestMethod("HEAD");
-				httpConn.setInstanceFollowRedirects(false);
-				httpConn.setConnectTimeout(10 * 1000);
-				httpConn.setReadTimeout(10 * 1000);
-
-				httpConn.connect();
-				httpStatus = httpConn.getResponseCode();
-				if ((httpStatus >= 300) && (httpStatus < 400))
-					targetUrl = httpConn.getHeaderField("Location");
-
-				if (targetUrl != null) {
-					// resolve relative URL
-					if (!(targetUrl.startsWith("http://") || targetUrl.startsWith("https://")))
-						targetUrl = new URL(parsedUrl, targetUrl).toString();
-
-					// crawling policy: follow redirects with target on same host?
-					if (!followLocal) {
-						URL parsedTargetUrl = new URL(targetUrl);
-						if (parsedTargetUrl.getHost().equals(parsedUrl.getHost()))
-							follow = false;
-					}
-				}
-			} catch (SocketTimeoutException ex) {
-				httpStatus = -2;
-			} catch (UnknownHostException ex) {
-				httpStatus = -3;
-			} catch (Exception ex) {
-				System.err.println("ERROR: " + ex.getMessage());
-			}
-
-			synchronized (links) {
-				if (targetUrl != null) {
-					LinkStatus targetStatus = links.get(targetUrl);
-					if (targetStatus == null) {
-						links.put(targetUrl, new LinkStatus(false));
-						if (!singlePass && follow)
-							workQueue.add(targetUrl);
-					} else
-						targetStatus.countAsTarget++;
-				}
-
-				LinkStatus status = links.get(url);
-				status.httpStatus = httpStatus;
-				status.targetUrl = targetUrl;
-			}
-
-			if ((++n % 100) == 0) {
-				long t1 = System.currentTimeMillis();
-				float ups = 100 / ((float) (t1 - t0) / 1000);
-				t0 = t1;
-				if (printQueueSize)
-					System.out.println(n + " processed, " + workQueue.size() + " remaining (" + ups + " URLs/s)");
-				else
-					System.out.println(n + " processed (" + ups + " URLs/s)");
-			}
-		}
-	}
-
 	private static void writeCsv(Map<String, LinkStatus> links, String fileName) throws IOException {
 		PrintWriter w = new PrintWriter(fileName);
 		try {
 			w.println("url\tcountInTweets\tcountAsTarget\thttpStatus\ttargetUrl");
 			for (Map.Entry<String, LinkStatus> e : links.entrySet()) {
 				LinkStatus status = e.getValue();
-				w.println(e.getKey() + "\t" + status.countInTweets + "\t" + status.countAsTarget + "\t" +
+				w.println(e.getKey() + "\t" + status.countInTweets + "\t" + status.countAsTarget.get() + "\t" +
 						status.httpStatus + "\t" + status.targetUrl);
 			}
 		} finally {
@@ -227,7 +130,10 @@ public class ResolveUrls {
 		boolean tcoOnly = false;
 		boolean singlePass = false;
 		boolean followLocal = false;
-		int numThreads = 1;
+		int numThreads = 32;
+		int maxConnectionsPerHost = 16;
+		String cacheFileName = "urlcache.bin";
+		long cacheTtlDays = ResolvedUrlCache.defaultTtlDays;
 		int tweetLimit = Integer.MAX_VALUE;
 		int urlLimit = Integer.MAX_VALUE;
 		String idListFileName = null;
@@ -253,6 +159,15 @@ public class ResolveUrls {
 				case 'n':
 					numThreads = Integer.parseInt(args[++idx]);
 					break;
+				case 'c':
+					maxConnectionsPerHost = Integer.parseInt(args[++idx]);
+					break;
+				case 'r':
+					cacheFileName = args[++idx];
+					break;
+				case 'e':
+					cacheTtlDays = Long.parseLong(args[++idx]);
+					break;
 				case 'x':
 					tweetLimit = Integer.parseInt(args[++idx]);
 					break;
@@ -274,7 +189,10 @@ public class ResolveUrls {
 							"\t-t\tprocess \"t.co\" URLs only\n" +
 							"\t-s\tsingle pass; only process URLs extracted from Tweets\n" +
 							"\t-l\tfollow relative redirects and absolute redirects where target is on the same host\n"+
-							"\t-n x\tuse x threads (default 1)\n" +
+							"\t-n x\tsend up to x requests at once (default 32)\n" +
+							"\t-c x\tsend up to x requests at once to the same host (default 16)\n" +
+							"\t-r x\tpath of the cache of resolved URLs (default urlcache.bin)\n" +
+							"\t-e x\tignore cached responses older than x days (default 30)\n" +
 							"\t-x x\textract links from the first x Tweets\n" +
 							"\t-y x\tdo not process more than x URLs\n" +
 							"\t-i x[:n] \tonly process Tweets by n users from ID list x\n");
@@ -285,7 +203,7 @@ public class ResolveUrls {
 			idx++;
 		}
 
-		final Map<String, LinkStatus> links;
+		final ConcurrentMap<String, LinkStatus> links;
 		if (idListFileName != null) {
 			Set<Long> userIdSet = new HashSet<Long>();
 			BufferedReader reader = new BufferedReader(new FileReader(idListFileName));
@@ -313,29 +231,18 @@ public class ResolveUrls {
 		if (!printOnly) {
 			long t0 = System.currentTimeMillis();
 
-			if (numThreads == 1) {
-				Queue<String> workQueue = new LinkedList<String>(links.keySet());
-				resolveUrls(workQueue, links, urlLimit, singlePass, followLocal, true);
-			} else {
-				final Queue<String> workQueue = new ConcurrentLinkedQueue<String>(links.keySet());
-				final int threadUrlLimit = urlLimit;
-				final boolean threadSinglePass = singlePass;
-				final boolean threadFollowLocal = followLocal;
-
-				Thread[] threads = new Thread[numThreads];
-				for (int i = 0; i < numThreads; i++) {
-					threads[i] = new Thread(new Runnable() {
-						public void run() { resolveUrls(workQueue, links, threadUrlLimit, threadSinglePass,
-								threadFollowLocal, false); }
-					});
-					threads[i].start();
-				}
-				for (Thread t : threads)
-					t.join();
+			UrlResolver resolver = new UrlResolver(links, singlePass, followLocal, urlLimit, numThreads,
+					maxConnectionsPerHost, true);
+			ResolvedUrlCache cache = ResolvedUrlCache.open(cacheFileName, cacheTtlDays);
+			try {
+				resolver.setCache(cache);
+				resolver.resolve(new ArrayList<String>(links.keySet()));
+			} finally {
+				cache.close();
 			}
+			System.out.println(cache.getStatistics());
 
-			float ups = Math.min(urlLimit * numThreads, links.size()) /
-					((float) (System.currentTimeMillis() - t0) / 1000);
+			float ups = resolver.getNumProcessed() / ((float) (System.currentTimeMillis() - t0) / 1000);
 			System.out.println("finished; " + ups + " URLs/s");
 		} else if (!tcoOnly) {
 			// compute ratio of "t.co" to other hosts
@@ -0,0 +1,301 @@
+package edu.tum.cs.crawling.twitter.dataset;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Remembers where URLs lead, so that short URLs are resolved only once across runs of {@link ResolveUrls} and
+ * {@link ExtractWebsites}. A response entry maps a URL to the URL it redirects to and the HTTP status code of a single
+ * request; for a status other than 3xx the target is the URL itself. A final entry maps a URL to the end of its
+ * redirect chain and the status code there, for clients that only see the whole chain. The two kinds are kept apart,
+ * so that {@link #get} only returns single responses. Entries are kept in memory and appended to a log file, which is
+ * read and compacted on startup. Entries older than the time to live are ignored; responses that may be transient
+ * (e.g. 5xx or 429) expire after an hour at the latest. All methods are thread-safe.
+ */
+public class ResolvedUrlCache implements Closeable {
+
+	private static final Logger logger = Logger.getLogger(ResolvedUrlCache.class.getName());
+
+	private static final int magic = 0x55524c43;	// "URLC"
+	private static final int version = 2;
+	private static final int maxRedirects = 20;
+	private static final long transientTtlMs = TimeUnit.HOURS.toMillis(1);
+	/** longest string writeUTF can store, in bytes of modified UTF-8 */
+	private static final int maxUtfLength = 65535;
+
+	/** record types in the log */
+	private static final byte responseRecord = 0;
+	private static final byte finalRecord = 1;
+
+	public static final long defaultTtlDays = 30;
+
+	public static class Entry {
+		public final String targetUrl;
+		public final int httpStatus;
+		public final long timestamp;
+
+		public Entry(String targetUrl, int httpStatus, long timestamp) {
+			this.targetUrl = targetUrl;
+			this.httpStatus = httpStatus;
+			this.timestamp = timestamp;
+		}
+
+		public boolean isRedirect() {
+			return (httpStatus >= 300) && (httpStatus < 400);
+		}
+
+		/**
+		 * @return whether a new request would most likely get the same response
+		 */
+		public boolean isDefinitive() {
+			return ((httpStatus >= 200) && (httpStatus < 400)) || (httpStatus == 404) || (httpStatus == 410);
+		}
+	}
+
+	private final File file;
+	private final long ttlMs;
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentMap<String, Entry> finalEntries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong numHits = new AtomicLong();
+	private final AtomicLong numMisses = new AtomicLong();
+	private final AtomicLong numExpired = new AtomicLong();
+	private DataOutputStream out;
+
+	public ResolvedUrlCache(File file, long ttlMs) throws IOException {
+		this.file = file;
+		this.ttlMs = ttlMs;
+		if (file.exists()) {
+			int numRecords = load();
+			// rewrite the log if it has a damaged tail or mostly outdated records
+			if ((numRecords < 0) || (numRecords > (2 * entries.size() + 1000)))
+				compact();
+		} else
+			compact();
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16));
+		logger.info("URL cache " + file + " has " + size() + " entries");
+	}
+
+	public static ResolvedUrlCache open(String fileName, long ttlDays) throws IOException {
+		return new ResolvedUrlCache(new File(fileName), TimeUnit.DAYS.toMillis(ttlDays));
+	}
+
+	private boolean isExpired(Entry entry, long now) {
+		long ttl = entry.isDefinitive() ? ttlMs : Math.min(ttlMs, transientTtlMs);
+		return (now - entry.timestamp) > ttl;
+	}
+
+	/**
+	 * @return the number of records read, or -1 if the end of the file is damaged or in an older format
+	 */
+	private int load() throws IOException {
+		long now = System.currentTimeMillis();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != magic)
+				throw new IOException("unsupported URL cache format in " + file);
+			int fileVersion = in.readInt();
+			if (fileVersion < version) {
+				// older logs do not tell single responses from whole chains
+				logger.warning("URL cache " + file + " has an older format, discarding it");
+				return -1;
+			} else if (fileVersion != version)
+				throw new IOException("unsupported URL cache format in " + file);
+			int numRecords = 0;
+			while (true) {
+				byte type;
+				try {
+					type = in.readByte();
+				} catch (EOFException ex) {
+					return numRecords;
+				}
+				try {
+					String url = in.readUTF();
+					String targetUrl = in.readUTF();
+					int httpStatus = in.readInt();
+					long timestamp = in.readLong();
+					numRecords++;
+					Map<String, Entry> map = (type == finalRecord) ? finalEntries : entries;
+					Entry entry = new Entry(targetUrl.isEmpty() ? null : targetUrl, httpStatus, timestamp);
+					if (!isExpired(entry, now))
+						map.put(url, entry);
+					else
+						map.remove(url);
+				} catch (EOFException ex) {
+					logger.warning("URL cache " + file + " ends with an incomplete record");
+					return -1;
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Replaces the log by the current entries.
+	 */
+	private void compact() throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile),
+				1 << 16));
+		try {
+			tmpOut.writeInt(magic);
+			tmpOut.writeInt(version);
+			for (Map.Entry<String, Entry> e : entries.entrySet())
+				write(tmpOut, responseRecord, e.getKey(), e.getValue());
+			for (Map.Entry<String, Entry> e : finalEntries.entrySet())
+				write(tmpOut, finalRecord, e.getKey(), e.getValue());
+		} finally {
+			tmpOut.close();
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void write(DataOutputStream out, byte type, String url, Entry entry) throws IOException {
+		out.writeByte(type);
+		out.writeUTF(url);
+		out.writeUTF((entry.targetUrl != null) ? entry.targetUrl : "");
+		out.writeInt(entry.httpStatus);
+		out.writeLong(entry.timestamp);
+	}
+
+	private static boolean fitsUtf(String s) {
+		if (s == null)
+			return true;
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			length += ((c >= 0x0001) && (c <= 0x007f)) ? 1 : ((c <= 0x07ff) ? 2 : 3);
+		}
+		return length <= maxUtfLength;
+	}
+
+	private Entry lookup(Map<String, Entry> map, String url) {
+		Entry entry = map.get(url);
+		if ((entry != null) && isExpired(entry, System.currentTimeMillis())) {
+			numExpired.incrementAndGet();
+			map.remove(url, entry);
+			return null;
+		}
+		return entry;
+	}
+
+	private Entry count(Entry entry) {
+		if (entry != null)
+			numHits.incrementAndGet();
+		else
+			numMisses.incrementAndGet();
+		return entry;
+	}
+
+	/**
+	 * @return the response to a request for the URL, or null if it is not known
+	 */
+	public Entry get(String url) {
+		return count(lookup(entries, url));
+	}
+
+	/**
+	 * @return the end of the redirect chain stored by {@link #putFinal}, or null if it is not known
+	 */
+	public Entry getFinal(String url) {
+		return count(lookup(finalEntries, url));
+	}
+
+	/**
+	 * Follows the redirects stored in the cache, or uses the final entry of the URL if the chain is incomplete.
+	 * @return the final URL as target and the status code of the final response, or null if neither is known
+	 */
+	public Entry resolve(String url) {
+		String startUrl = url;
+		long timestamp = Long.MAX_VALUE;
+		for (int i = 0; i <= maxRedirects; i++) {
+			Entry entry = lookup(entries, url);
+			if (entry == null)
+				break;
+			timestamp = Math.min(timestamp, entry.timestamp);
+			if (!entry.isRedirect() || (entry.targetUrl == null))
+				return count(new Entry((entry.targetUrl != null) ? entry.targetUrl : url, entry.httpStatus, timestamp));
+			url = entry.targetUrl;
+		}
+		return count(lookup(finalEntries, startUrl));
+	}
+
+	/**
+	 * Stores the response to a single request for the URL. Only HTTP status codes should be stored, not network
+	 * errors.
+	 */
+	public void put(String url, String targetUrl, int httpStatus) {
+		put(entries, responseRecord, url, new Entry(targetUrl, httpStatus, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Stores the end of the redirect chain of the URL and the status code there, when the single responses are not
+	 * known. Only HTTP status codes should be stored, not network errors.
+	 */
+	public void putFinal(String url, String finalUrl, int httpStatus) {
+		put(finalEntries, finalRecord, url, new Entry(finalUrl, httpStatus, System.currentTimeMillis()));
+	}
+
+	private void put(Map<String, Entry> map, byte type, String url, Entry entry) {
+		// the log cannot store such URLs, they are rare enough to be requested again
+		if (!fitsUtf(url) || !fitsUtf(entry.targetUrl))
+			return;
+		map.put(url, entry);
+		synchronized (this) {
+			if (out == null)
+				return;
+			try {
+				write(out, type, url, entry);
+			} catch (IOException ex) {
+				logger.warning("Could not write to URL cache " + file + ", no longer saving entries: " +
+						ex.getMessage());
+				out = null;
+			}
+		}
+	}
+
+	public int size() {
+		return entries.size() + finalEntries.size();
+	}
+
+	public long getNumHits() {
+		return numHits.get();
+	}
+
+	public long getNumMisses() {
+		return numMisses.get();
+	}
+
+	public String getStatistics() {
+		long hits = numHits.get(), misses = numMisses.get();
+		return String.format("URL cache: %d entries, %d hits, %d misses (%.1f%% hit rate), %d expired",
+				size(), hits, misses, ((hits + misses) > 0) ? (100.0 * hits / (hits + misses)) : 0.0,
+				numExpired.get());
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+}
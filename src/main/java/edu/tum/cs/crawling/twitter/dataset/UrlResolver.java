@@ -0,0 +1,341 @@
+package edu.tum.cs.crawling.twitter.dataset;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves URLs by sending HTTP HEAD requests and following redirects. Requests run on a pool of workers, with a limit
+ * on the concurrent connections to each host; connections are kept alive and reused. A redirect target is submitted
+ * as soon as it is known, ahead of the URLs at fewer hops from a tweet, so that the next hop of a chain does not wait
+ * for the rest of the queue. Host name lookups
+ * are cached; unknown hosts are not contacted again until the failed lookup expires after a minute. Optionally,
+ * responses are looked up in and added to a {@link ResolvedUrlCache}.
+ */
+public class UrlResolver {
+
+	public static final int STATUS_UNKNOWN = -1;
+	public static final int STATUS_TIMEOUT = -2;
+	public static final int STATUS_UNKNOWN_HOST = -3;
+
+	/** time after which a failed host name lookup is repeated */
+	private static final long unknownHostExpiryMs = 60 * 1000;
+
+	/** what is known about a URL; only the counters are changed by several threads */
+	public static class LinkStatus {
+		public int countInTweets;
+		public final AtomicInteger countAsTarget;
+		public volatile int httpStatus;
+		public volatile String targetUrl;
+
+		public LinkStatus(boolean fromTweet) {
+			this.countInTweets = fromTweet ? 1 : 0;
+			this.countAsTarget = new AtomicInteger(fromTweet ? 0 : 1);
+			this.httpStatus = STATUS_UNKNOWN;
+			this.targetUrl = null;
+		}
+	}
+
+	/** result of a host name lookup */
+	private static class HostLookup {
+		final boolean known;
+		final long time;
+
+		HostLookup(boolean known) {
+			this.known = known;
+			this.time = System.currentTimeMillis();
+		}
+
+		boolean isExpired() {
+			return !known && (System.currentTimeMillis() - time > unknownHostExpiryMs);
+		}
+	}
+
+	/** status code and Location header of a response */
+	private static class Response {
+		final int httpStatus;
+		final String location;
+
+		Response(int httpStatus, String location) {
+			this.httpStatus = httpStatus;
+			this.location = location;
+		}
+	}
+
+	/** a URL to process; deeper hops are run first, otherwise in the order of submission */
+	private class Task implements Runnable, Comparable<Task> {
+		final String url;
+		final int hop;
+		final long sequence;
+
+		Task(String url, int hop) {
+			this.url = url;
+			this.hop = hop;
+			this.sequence = taskSequence.getAndIncrement();
+		}
+
+		@Override
+		public int compareTo(Task o) {
+			if (hop != o.hop)
+				return (hop > o.hop) ? -1 : 1;
+			return (sequence < o.sequence) ? -1 : ((sequence == o.sequence) ? 0 : 1);
+		}
+
+		@Override
+		public void run() {
+			try {
+				process(url, hop);
+			} finally {
+				synchronized (UrlResolver.this) {
+					if (--numPending == 0)
+						UrlResolver.this.notifyAll();
+				}
+			}
+		}
+	}
+
+	private final ConcurrentMap<String, LinkStatus> links;
+	private final boolean singlePass;
+	private final boolean followLocal;
+	private final int urlLimit;
+	private final int maxConnectionsPerHost;
+	private final boolean printProgress;
+	private final ExecutorService executor;
+
+	private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+	private final ConcurrentMap<String, Future<HostLookup>> knownHosts =
+			new ConcurrentHashMap<String, Future<HostLookup>>();
+	private final AtomicInteger numSubmitted = new AtomicInteger();
+	private final AtomicInteger numProcessed = new AtomicInteger();
+	private final AtomicLong taskSequence = new AtomicLong();
+	private ResolvedUrlCache cache;
+	private int numPending = 0;
+	private long t0;
+
+	/**
+	 * @param links the URLs and their status, new redirect targets are added
+	 * @param singlePass do not follow redirects to URLs that are not in the map yet
+	 * @param followLocal follow redirects to the same host
+	 * @param urlLimit maximum number of URLs to process
+	 * @param numThreads number of concurrent requests
+	 * @param maxConnectionsPerHost number of concurrent requests to the same host
+	 */
+	public UrlResolver(ConcurrentMap<String, LinkStatus> links, boolean singlePass, boolean followLocal, int urlLimit,
+			int numThreads, int maxConnectionsPerHost, boolean printProgress) {
+		this.links = links;
+		this.singlePass = singlePass;
+		this.followLocal = followLocal;
+		this.urlLimit = urlLimit;
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.printProgress = printProgress;
+		this.executor = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "resolver " + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		// keep enough idle connections per host for reuse
+		if (Integer.getInteger("http.maxConnections", 5) < maxConnectionsPerHost)
+			System.setProperty("http.maxConnections", Integer.toString(maxConnectionsPerHost));
+	}
+
+	/**
+	 * Responses found in the cache are used without a request, new responses are added to it.
+	 */
+	public void setCache(ResolvedUrlCache cache) {
+		this.cache = cache;
+	}
+
+	public int getNumProcessed() {
+		return numProcessed.get();
+	}
+
+	/**
+	 * Resolves the URLs and the redirect targets found on the way, returns when all are done.
+	 */
+	public void resolve(Collection<String> urls) throws InterruptedException {
+		t0 = System.currentTimeMillis();
+		for (String url : urls) {
+			if (!submit(url, 0))
+				break;
+		}
+		synchronized (this) {
+			while (numPending > 0)
+				wait();
+		}
+		executor.shutdown();
+	}
+
+	private boolean submit(String url, int hop) {
+		if (numSubmitted.incrementAndGet() > urlLimit)
+			return false;
+		synchronized (this) {
+			numPending++;
+		}
+		executor.execute(new Task(url, hop));
+		return true;
+	}
+
+	private void process(String url, int hop) {
+		int httpStatus = STATUS_UNKNOWN;
+		String targetUrl = null;
+		boolean follow = true;
+
+		try {
+			URL parsedUrl = new URL(url);
+			ResolvedUrlCache.Entry cached = (cache != null) ? cache.get(url) : null;
+			if (cached != null) {
+				httpStatus = cached.httpStatus;
+				targetUrl = cached.targetUrl;
+			} else {
+				Response response = request(parsedUrl);
+				httpStatus = response.httpStatus;
+				targetUrl = response.location;
+				// resolve relative URL
+				if ((targetUrl != null) && !(targetUrl.startsWith("http://") || targetUrl.startsWith("https://")))
+					targetUrl = new URL(parsedUrl, targetUrl).toString();
+				if (cache != null)
+					cache.put(url, targetUrl, httpStatus);
+			}
+
+			// crawling policy: follow redirects with target on same host?
+			if ((targetUrl != null) && !followLocal) {
+				URL parsedTargetUrl = new URL(targetUrl);
+				if (parsedTargetUrl.getHost().equals(parsedUrl.getHost()))
+					follow = false;
+			}
+		} catch (SocketTimeoutException ex) {
+			httpStatus = STATUS_TIMEOUT;
+		} catch (UnknownHostException ex) {
+			httpStatus = STATUS_UNKNOWN_HOST;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (Exception ex) {
+			System.err.println("ERROR: " + ex.getMessage());
+		}
+
+		if (targetUrl != null) {
+			LinkStatus targetStatus = links.putIfAbsent(targetUrl, new LinkStatus(false));
+			if (targetStatus == null) {
+				if (!singlePass && follow)
+					submit(targetUrl, hop + 1);
+			} else
+				targetStatus.countAsTarget.incrementAndGet();
+		}
+
+		LinkStatus status = links.get(url);
+		status.targetUrl = targetUrl;
+		status.httpStatus = httpStatus;
+
+		int n = numProcessed.incrementAndGet();
+		if (printProgress && ((n % 100) == 0)) {
+			long t1 = System.currentTimeMillis();
+			float ups = n / ((float) (t1 - t0) / 1000);
+			int remaining;
+			synchronized (this) {
+				remaining = numPending - 1;
+			}
+			System.out.println(n + " processed, " + remaining + " remaining (" + ups + " URLs/s)");
+		}
+	}
+
+	/**
+	 * Looks up a host name once, or again if the last lookup failed a while ago; all threads asking for the same host
+	 * wait for the same lookup.
+	 */
+	private boolean isKnownHost(final String host) throws InterruptedException {
+		while (true) {
+			Future<HostLookup> lookup = knownHosts.get(host);
+			if (lookup == null) {
+				FutureTask<HostLookup> task = new FutureTask<HostLookup>(new Callable<HostLookup>() {
+					@Override
+					public HostLookup call() {
+						try {
+							InetAddress.getByName(host);
+							return new HostLookup(true);
+						} catch (UnknownHostException ex) {
+							return new HostLookup(false);
+						}
+					}
+				});
+				lookup = knownHosts.putIfAbsent(host, task);
+				if (lookup == null) {
+					lookup = task;
+					task.run();
+				}
+			}
+			HostLookup result;
+			try {
+				result = lookup.get();
+			} catch (ExecutionException ex) {
+				result = new HostLookup(false);
+			}
+			if (!result.isExpired())
+				return result.known;
+			knownHosts.remove(host, lookup);
+		}
+	}
+
+	private Response request(URL url) throws IOException, InterruptedException {
+		String host = url.getHost().toLowerCase();
+		if (!isKnownHost(host))
+			throw new UnknownHostException(host);
+
+		Semaphore permits = hostPermits.get(host);
+		if (permits == null) {
+			Semaphore newPermits = new Semaphore(maxConnectionsPerHost);
+			permits = hostPermits.putIfAbsent(host, newPermits);
+			if (permits == null)
+				permits = newPermits;
+		}
+
+		permits.acquire();
+		try {
+			HttpURLConnection httpConn = (HttpURLConnection) url.openConnection();
+			httpConn.setRequestMethod("HEAD");
+			httpConn.setInstanceFollowRedirects(false);
+			httpConn.setConnectTimeout(10 * 1000);
+			httpConn.setReadTimeout(10 * 1000);
+
+			httpConn.connect();
+			int httpStatus = httpConn.getResponseCode();
+			String location = null;
+			if ((httpStatus >= 300) && (httpStatus < 400))
+				location = httpConn.getHeaderField("Location");
+
+			// closing the stream (but not disconnecting) returns the connection to the keep-alive cache
+			InputStream is = (httpStatus < 400) ? httpConn.getInputStream() : httpConn.getErrorStream();
+			if (is != null)
+				is.close();
+			return new Response(httpStatus, location);
+		} finally {
+			permits.release();
+		}
+	}
+
+}
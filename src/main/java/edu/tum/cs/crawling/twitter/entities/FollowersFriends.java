@@ -1,8 +1,11 @@
 package edu.tum.cs.crawling.twitter.entities;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -18,6 +21,9 @@ import org.hibernate.annotations.Cache;
 import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.ColumnTransformer;
 
+import edu.tum.cs.util.DeltaEncodedLongSet;
+import edu.tum.cs.util.DeltaEncoding;
+
 @Entity
 @Table(name="USER")
 @Cacheable
@@ -26,35 +32,78 @@ public class FollowersFriends extends TwitterUserData {
 
 	private static final long serialVersionUID = 906661713587248277L;
 
+	/**
+	 * Stores sets of user IDs as sorted, delta-encoded variable-length integers, preceded by a format byte. Sets that
+	 * were stored by earlier versions as serialized HashSets can still be read, and are converted by
+	 * {@link edu.tum.cs.crawling.twitter.dataset.MigrateFollowersFriends}.
+	 */
 	@Converter
-	public static class HashSetSerializer implements AttributeConverter<HashSet<?>, byte[]> {
-		@Override
-		public byte[] convertToDatabaseColumn(HashSet<?> attribute) {
+	public static class IdSetConverter implements AttributeConverter<Set<Long>, byte[]> {
+		private static final int formatDeltaEncoded = 1;
+
+		public static byte[] encode(Set<Long> ids) {
 			try {
 				ByteArrayOutputStream bos = new ByteArrayOutputStream();
-				ObjectOutputStream oos = new ObjectOutputStream(bos);
-				oos.writeObject(attribute);
-				oos.close();
+				bos.write(formatDeltaEncoded);
+				if (ids instanceof DeltaEncodedLongSet) {
+					bos.write(((DeltaEncodedLongSet) ids).getEncoded());
+				} else {
+					long[] values = new long[ids.size()];
+					int i = 0;
+					for (long id : ids)
+						values[i++] = id;
+					DeltaEncoding.writeLongs(new DataOutputStream(bos), values);
+				}
 				return bos.toByteArray();
 			} catch (IOException ex) {
-				throw new RuntimeException("error serializing object", ex);
+				throw new RuntimeException("error encoding IDs", ex);
+			}
+		}
+
+		public static boolean isSerializedHashSet(byte[] data) {
+			return (data.length >= 2) && ((data[0] & 0xFF) == 0xAC) && ((data[1] & 0xFF) == 0xED);
+		}
+
+		@SuppressWarnings("unchecked")
+		public static Set<Long> decode(byte[] data) {
+			if (data.length == 0)	// e.g. UNCOMPRESS() of an empty string
+				return new HashSet<Long>();
+			if (isSerializedHashSet(data)) {
+				try {
+					ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+					return (Set<Long>) ois.readObject();
+				} catch (IOException ex) {
+					throw new RuntimeException("error de-serializing object", ex);
+				} catch (ClassNotFoundException ex) {
+					throw new RuntimeException("error de-serializing object", ex);
+				}
 			}
+			if (data[0] != formatDeltaEncoded)
+				throw new RuntimeException("unknown format " + data[0]);
+			return new DeltaEncodedLongSet(Arrays.copyOfRange(data, 1, data.length));
 		}
 
 		@Override
-		public HashSet<?> convertToEntityAttribute(byte[] dbData) {
-			throw new RuntimeException("de-serialization not implemented");
+		public byte[] convertToDatabaseColumn(Set<Long> attribute) {
+			return encode(attribute);
+		}
+
+		@Override
+		public Set<Long> convertToEntityAttribute(byte[] dbData) {
+			if (dbData == null)
+				return new HashSet<Long>();
+			return decode(dbData);
 		}
 	}
 
 	@Column(name="FOLLOWERS_SER", length=16777215)	// maps to MySQL MEDIUMBLOB
 	@ColumnTransformer(read = "UNCOMPRESS(FOLLOWERS_SER)", write = "COMPRESS(?)")
-	@Convert(converter = HashSetSerializer.class)
+	@Convert(converter = IdSetConverter.class)
 	private Set<Long> followers = new HashSet<Long>();
 
 	@Column(name="FRIENDS_SER", length=16777215)	// maps to MySQL MEDIUMBLOB
 	@ColumnTransformer(read = "UNCOMPRESS(FRIENDS_SER)", write = "COMPRESS(?)")
-	@Convert(converter = HashSetSerializer.class)
+	@Convert(converter = IdSetConverter.class)
 	private Set<Long> friends = new HashSet<Long>();
 
 	/**
@@ -71,13 +120,42 @@ public class FollowersFriends extends TwitterUserData {
 		return friends;
 	}
 
+	/**
+	 * @return the crawled followers in ascending order
+	 */
+	public long[] getFollowerIds() {
+		return toLongArray(followers);
+	}
+
+	/**
+	 * @return the crawled friends in ascending order
+	 */
+	public long[] getFriendIds() {
+		return toLongArray(friends);
+	}
+
+	private static long[] toLongArray(Set<Long> ids) {
+		if (ids instanceof DeltaEncodedLongSet)
+			return ((DeltaEncodedLongSet) ids).toLongArray().clone();
+		long[] values = new long[ids.size()];
+		int i = 0;
+		for (long id : ids)
+			values[i++] = id;
+		Arrays.sort(values);
+		return values;
+	}
+
 	public void addFriends(long[] ids) {
+		if (!(friends instanceof HashSet))
+			friends = new HashSet<Long>(friends);	// sets loaded from the database are read-only
 		for (long id : ids) {
 			friends.add(id);
 		}
 	}
 
 	public void addFollowers(long[] ids) {
+		if (!(followers instanceof HashSet))
+			followers = new HashSet<Long>(followers);
 		for (long id : ids) {
 			followers.add(id);
 		}
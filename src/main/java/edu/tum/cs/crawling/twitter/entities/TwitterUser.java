@@ -18,6 +18,7 @@ import org.hibernate.annotations.ColumnTransformer;
 @Entity
 @Table(name="USER", indexes = {
 		@Index(columnList = "CRAWLING_FAILED,IGNORED,SECURED", name = "filter_index"),
+		@Index(columnList = "CRAWLED_AT", name = "ind_crawled_at"),
 })
 @Cacheable
 @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
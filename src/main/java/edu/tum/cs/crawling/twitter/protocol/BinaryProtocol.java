@@ -0,0 +1,410 @@
+package edu.tum.cs.crawling.twitter.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import edu.tum.cs.crawling.twitter.entities.Tweet;
+import edu.tum.cs.crawling.twitter.entities.TwitterUser;
+import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject.ClientRequestType;
+import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject.FollowFriendUser;
+import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject.FurtherCrawlingUserData;
+import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject.ServerStatus;
+import edu.tum.cs.util.DeltaEncoding;
+
+/**
+ * Compact binary encoding of {@link ClientRequestObject} and {@link ServerResponseObject} for long-lived connections
+ * between the dumper client and server. A connection starts with the client sending {@link #magic} and an options
+ * byte, followed by any number of request/response pairs. Each message is sent as a frame consisting of the payload
+ * length (4 bytes), a flags byte, and the payload, which is optionally deflate-compressed. Numbers are written as
+ * variable-length integers, sets of IDs are delta-encoded.
+ * The magic number cannot be confused with the header of a Java serialization stream (0xACED), so the server can
+ * still accept requests of clients using ObjectOutputStream.
+ */
+public class BinaryProtocol {
+
+	/** "TDB" + protocol version */
+	public static final int magic = 0x54444201;
+
+	private static final int flagCompressed = 0x01;
+	private static final int optionCompression = 0x01;
+	/** payloads smaller than this are not worth compressing */
+	private static final int minCompressedSize = 512;
+	private static final int maxFrameSize = 256 * 1024 * 1024;
+	private static final Charset utf8 = Charset.forName("UTF-8");
+
+	// flags of TwitterUser
+	private static final int userSecured = 0x01;
+	private static final int userIgnored = 0x02;
+	private static final int userCrawlingFailed = 0x04;
+	private static final int userVerified = 0x08;
+	private static final int userGeoEnabled = 0x10;
+	private static final int userContributorsEnabled = 0x20;
+
+	/*
+	 * Framing
+	 */
+
+	public static void writeHandshake(OutputStream os, boolean compress) throws IOException {
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(magic);
+		out.writeByte(compress ? optionCompression : 0);
+		out.flush();
+	}
+
+	/**
+	 * @return true if the client wants the responses to be compressed
+	 */
+	public static boolean readHandshake(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		int m = in.readInt();
+		if (m != magic)
+			throw new IOException("unknown protocol " + Integer.toHexString(m));
+		return (in.readUnsignedByte() & optionCompression) != 0;
+	}
+
+	public static void writeFrame(OutputStream os, byte[] payload, boolean compress) throws IOException {
+		int flags = 0;
+		if (compress && (payload.length >= minCompressedSize)) {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				deflater.setInput(payload);
+				deflater.finish();
+				ByteArrayOutputStream buf = new ByteArrayOutputStream(payload.length / 2 + 64);
+				DataOutputStream dos = new DataOutputStream(buf);
+				dos.writeInt(payload.length);
+				byte[] block = new byte[8192];
+				while (!deflater.finished()) {
+					int n = deflater.deflate(block);
+					buf.write(block, 0, n);
+				}
+				payload = buf.toByteArray();
+				flags |= flagCompressed;
+			} finally {
+				deflater.end();
+			}
+		}
+
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(payload.length);
+		out.writeByte(flags);
+		out.write(payload);
+		out.flush();
+	}
+
+	/**
+	 * @return the uncompressed payload, or null if the stream ended before the start of the frame
+	 */
+	public static byte[] readFrame(InputStream is) throws IOException {
+		int b = is.read();
+		if (b < 0)
+			return null;
+		DataInputStream in = new DataInputStream(is);
+		int length = (b << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) |
+				in.readUnsignedByte();
+		if ((length < 0) || (length > maxFrameSize))
+			throw new IOException("invalid frame size " + length);
+		int flags = in.readUnsignedByte();
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+
+		if ((flags & flagCompressed) != 0) {
+			int uncompressedLength = ((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16) |
+					((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+			if ((uncompressedLength < 0) || (uncompressedLength > maxFrameSize))
+				throw new IOException("invalid frame size " + uncompressedLength);
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(payload, 4, payload.length - 4);
+				byte[] uncompressed = new byte[uncompressedLength];
+				int n = 0;
+				while (n < uncompressedLength) {
+					int m = inflater.inflate(uncompressed, n, uncompressedLength - n);
+					if ((m == 0) && (inflater.finished() || inflater.needsInput()))
+						throw new EOFException("truncated compressed frame");
+					n += m;
+				}
+				payload = uncompressed;
+			} catch (DataFormatException ex) {
+				throw new IOException("corrupt compressed frame", ex);
+			} finally {
+				inflater.end();
+			}
+		}
+		return payload;
+	}
+
+	/*
+	 * Messages
+	 */
+
+	public static byte[] encodeRequest(ClientRequestObject cro) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		out.writeByte(cro.getRequestType().ordinal());
+		DeltaEncoding.writeVarLong(out, cro.getNumberOfIds());
+		DeltaEncoding.writeVarLong(out, cro.getUsers().size());
+		for (TwitterUser user : cro.getUsers())
+			writeUser(out, user);
+		DeltaEncoding.writeVarLong(out, cro.getTweets().size());
+		for (Tweet tweet : cro.getTweets())
+			writeTweet(out, tweet);
+		writeStrings(out, cro.getFailedUserScreenNames());
+		out.flush();
+		return buf.toByteArray();
+	}
+
+	public static ClientRequestObject decodeRequest(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		ClientRequestObject cro = new ClientRequestObject();
+		cro.setRequestType(readEnum(in, ClientRequestType.values()));
+		cro.setNumberOfIds(readCount(in));
+		int numUsers = readCount(in);
+		for (int i = 0; i < numUsers; i++)
+			cro.getUsers().add(readUser(in));
+		int numTweets = readCount(in);
+		for (int i = 0; i < numTweets; i++)
+			cro.getTweets().add(readTweet(in));
+		readStrings(in, cro.getFailedUserScreenNames());
+		return cro;
+	}
+
+	public static byte[] encodeResponse(ServerResponseObject sro) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		out.writeByte(sro.getStatus().ordinal());
+		DeltaEncoding.writeLongs(out, toArray(sro.getIds()));
+		writeStrings(out, sro.getScreenNames());
+		DeltaEncoding.writeVarLong(out, sro.getFurtherCrawlingUsers().size());
+		for (FurtherCrawlingUserData userData : sro.getFurtherCrawlingUsers()) {
+			DeltaEncoding.writeSignedVarLong(out, userData.id);
+			DeltaEncoding.writeSignedVarLong(out, userData.firstTweetId);
+		}
+		DeltaEncoding.writeVarLong(out, sro.getFollowFriendsUsers().size());
+		for (FollowFriendUser userData : sro.getFollowFriendsUsers()) {
+			DeltaEncoding.writeSignedVarLong(out, userData.id);
+			DeltaEncoding.writeSignedVarLong(out, userData.totalFollowerCount);
+			DeltaEncoding.writeSignedVarLong(out, userData.totalFriendCount);
+		}
+		out.flush();
+		return buf.toByteArray();
+	}
+
+	public static ServerResponseObject decodeResponse(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		ServerResponseObject sro = new ServerResponseObject();
+		sro.setStatus(readEnum(in, ServerStatus.values()));
+		for (long id : DeltaEncoding.readLongs(in))
+			sro.getIds().add(id);
+		readStrings(in, sro.getScreenNames());
+		int numFurtherCrawlingUsers = readCount(in);
+		for (int i = 0; i < numFurtherCrawlingUsers; i++) {
+			FurtherCrawlingUserData userData = new FurtherCrawlingUserData();
+			userData.id = DeltaEncoding.readSignedVarLong(in);
+			userData.firstTweetId = DeltaEncoding.readSignedVarLong(in);
+			sro.getFurtherCrawlingUsers().add(userData);
+		}
+		int numFollowFriendUsers = readCount(in);
+		for (int i = 0; i < numFollowFriendUsers; i++) {
+			FollowFriendUser userData = new FollowFriendUser();
+			userData.id = DeltaEncoding.readSignedVarLong(in);
+			userData.totalFollowerCount = (int) DeltaEncoding.readSignedVarLong(in);
+			userData.totalFriendCount = (int) DeltaEncoding.readSignedVarLong(in);
+			sro.getFollowFriendsUsers().add(userData);
+		}
+		return sro;
+	}
+
+	/*
+	 * Entities
+	 */
+
+	private static void writeUser(DataOutput out, TwitterUser user) throws IOException {
+		DeltaEncoding.writeSignedVarLong(out, user.getId());
+		writeString(out, user.getScreenName());
+		writeString(out, user.getName());
+		writeDate(out, user.getCreatedAt());
+		writeDate(out, user.getCrawledAt());
+		writeDate(out, user.getFirstCrawledAt());
+		int flags = 0;
+		if (user.isSecured())
+			flags |= userSecured;
+		if (user.isIgnored())
+			flags |= userIgnored;
+		if (user.isCrawlingFailed())
+			flags |= userCrawlingFailed;
+		if (user.getVerified())
+			flags |= userVerified;
+		if (user.isGeoEnabled())
+			flags |= userGeoEnabled;
+		if (user.isContributorsEnabled())
+			flags |= userContributorsEnabled;
+		out.writeByte(flags);
+		writeString(out, user.getCrawlingFailedCause());
+		writeString(out, user.getDetectedLanguage());
+		DeltaEncoding.writeSignedVarLong(out, user.getTotalFollowerCount());
+		DeltaEncoding.writeSignedVarLong(out, user.getTotalFriendCount());
+		DeltaEncoding.writeSignedVarLong(out, user.getTotalTweetCount());
+		writeString(out, user.getPreferedLanguage());
+		writeString(out, user.getDescription());
+		writeString(out, user.getLocation());
+		DeltaEncoding.writeSignedVarLong(out, user.getUtcOffset());
+		DeltaEncoding.writeLongs(out, user.getFollowersFriends().getFollowerIds());
+		DeltaEncoding.writeLongs(out, user.getFollowersFriends().getFriendIds());
+	}
+
+	private static TwitterUser readUser(DataInput in) throws IOException {
+		TwitterUser user = new TwitterUser();
+		user.setId(DeltaEncoding.readSignedVarLong(in));
+		user.setScreenName(readString(in));
+		user.setName(readString(in));
+		user.setCreatedAt(readDate(in));
+		user.setCrawledAt(readDate(in));
+		user.setFirstCrawledAt(readDate(in));
+		int flags = in.readUnsignedByte();
+		user.setSecured((flags & userSecured) != 0);
+		user.setIgnored((flags & userIgnored) != 0);
+		user.setCrawlingFailed((flags & userCrawlingFailed) != 0);
+		user.setVerified((flags & userVerified) != 0);
+		user.setGeoEnabled((flags & userGeoEnabled) != 0);
+		user.setContributorsEnabled((flags & userContributorsEnabled) != 0);
+		user.setCrawlingFailedCause(readString(in));
+		user.setDetectedLanguage(readString(in));
+		user.setTotalFollowerCount((int) DeltaEncoding.readSignedVarLong(in));
+		user.setTotalFriendCount((int) DeltaEncoding.readSignedVarLong(in));
+		user.setTotalTweetCount((int) DeltaEncoding.readSignedVarLong(in));
+		user.setPreferedLanguage(readString(in));
+		user.setDescription(readString(in));
+		user.setLocation(readString(in));
+		user.setUtcOffset((int) DeltaEncoding.readSignedVarLong(in));
+		user.getFollowersFriends().addFollowers(DeltaEncoding.readLongs(in));
+		user.getFollowersFriends().addFriends(DeltaEncoding.readLongs(in));
+		return user;
+	}
+
+	private static void writeTweet(DataOutput out, Tweet tweet) throws IOException {
+		DeltaEncoding.writeSignedVarLong(out, tweet.getId());
+		DeltaEncoding.writeSignedVarLong(out, tweet.getUserId());
+		writeString(out, tweet.getCurrentScreenName());
+		writeString(out, tweet.getStatusText());
+		writeDate(out, tweet.getCreatedAt());
+		writeDate(out, tweet.getCrawledAt());
+		writeDate(out, tweet.getFirstCrawledAt());
+		DeltaEncoding.writeSignedVarLong(out, tweet.getInReplyToUserId());
+		DeltaEncoding.writeSignedVarLong(out, tweet.getInReplyToStatusId());
+		writeString(out, tweet.getInReplyToScreenname());
+		out.writeBoolean(tweet.isRetweet());
+		DeltaEncoding.writeSignedVarLong(out, tweet.getRetweetOfStatusId());
+		DeltaEncoding.writeSignedVarLong(out, tweet.getRetweetOfUserId());
+		writeString(out, tweet.getRetweetOfScreenName());
+		out.writeDouble(tweet.getLongitude());
+		out.writeDouble(tweet.getLatitude());
+		DeltaEncoding.writeSignedVarLong(out, tweet.getRetweetCount());
+	}
+
+	private static Tweet readTweet(DataInput in) throws IOException {
+		Tweet tweet = new Tweet();
+		tweet.setId(DeltaEncoding.readSignedVarLong(in));
+		tweet.setUserId(DeltaEncoding.readSignedVarLong(in));
+		tweet.setCurrentScreenName(readString(in));
+		tweet.setStatusText(readString(in));
+		tweet.setCreatedAt(readDate(in));
+		tweet.setCrawledAt(readDate(in));
+		tweet.setFirstCrawledAt(readDate(in));
+		tweet.setInReplyToUserId(DeltaEncoding.readSignedVarLong(in));
+		tweet.setInReplyToStatusId(DeltaEncoding.readSignedVarLong(in));
+		tweet.setInReplyToScreenname(readString(in));
+		tweet.setRetweet(in.readBoolean());
+		tweet.setRetweetOfStatusId(DeltaEncoding.readSignedVarLong(in));
+		tweet.setRetweetOfUserId(DeltaEncoding.readSignedVarLong(in));
+		tweet.setRetweetOfScreenName(readString(in));
+		tweet.setLongitude(in.readDouble());
+		tweet.setLatitude(in.readDouble());
+		tweet.setRetweetCount(DeltaEncoding.readSignedVarLong(in));
+		return tweet;
+	}
+
+	/*
+	 * Primitives
+	 */
+
+	private static void writeString(DataOutput out, String s) throws IOException {
+		if (s == null) {
+			DeltaEncoding.writeVarLong(out, 0);
+		} else {
+			byte[] data = s.getBytes(utf8);
+			DeltaEncoding.writeVarLong(out, data.length + 1);
+			out.write(data);
+		}
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		int length = readCount(in);
+		if (length == 0)
+			return null;
+		byte[] data = new byte[length - 1];
+		in.readFully(data);
+		return new String(data, utf8);
+	}
+
+	private static void writeStrings(DataOutput out, Collection<String> strings) throws IOException {
+		DeltaEncoding.writeVarLong(out, strings.size());
+		for (String s : strings)
+			writeString(out, s);
+	}
+
+	private static void readStrings(DataInput in, Collection<String> strings) throws IOException {
+		int n = readCount(in);
+		for (int i = 0; i < n; i++)
+			strings.add(readString(in));
+	}
+
+	private static void writeDate(DataOutput out, Date date) throws IOException {
+		out.writeBoolean(date != null);
+		if (date != null)
+			DeltaEncoding.writeSignedVarLong(out, date.getTime());
+	}
+
+	private static Date readDate(DataInput in) throws IOException {
+		if (!in.readBoolean())
+			return null;
+		return new Date(DeltaEncoding.readSignedVarLong(in));
+	}
+
+	private static int readCount(DataInput in) throws IOException {
+		long n = DeltaEncoding.readVarLong(in);
+		if ((n < 0) || (n > maxFrameSize))
+			throw new IOException("invalid count " + n);
+		return (int) n;
+	}
+
+	private static <T extends Enum<T>> T readEnum(DataInput in, T[] values) throws IOException {
+		int ordinal = in.readUnsignedByte();
+		if (ordinal >= values.length)
+			throw new IOException("invalid enum value " + ordinal);
+		return values[ordinal];
+	}
+
+	private static long[] toArray(Set<Long> values) {
+		long[] array = new long[values.size()];
+		int i = 0;
+		for (long value : values)
+			array[i++] = value;
+		return array;
+	}
+
+}
@@ -24,7 +24,9 @@ public class ServerResponseObject implements Serializable {
 	private static final long serialVersionUID = 64615300572956143L;
 
 	public enum ServerStatus {
-		UNKOWN, OK, DELIVER_IDS, STATUS_ERROR
+		UNKOWN, OK, DELIVER_IDS, STATUS_ERROR,
+		/** the server is overloaded, the request should be sent again later */
+		RETRY
 	}
 
 	private Set<Long> ids = new HashSet<Long>();
@@ -0,0 +1,136 @@
+package edu.tum.cs.crawling.twitter.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import edu.tum.cs.crawling.twitter.protocol.BinaryProtocol;
+
+/**
+ * State of a non-blocking client connection using the {@link BinaryProtocol}. The channel reads exactly one frame at a
+ * time, and does not read the next request until the response to the current one has been written, so requests of a
+ * client are processed in order and a client cannot flood the server. Only accessed by the selector thread, except for
+ * {@link #setResponse}.
+ */
+class ClientChannel {
+
+	private static final int javaSerializationMagic = 0xACED;
+	/** both the handshake and the frame header are 5 bytes long */
+	private static final int headerSize = 5;
+	private static final int maxFrameSize = 256 * 1024 * 1024;
+
+	final SocketChannel channel;
+	long lastActivity = System.currentTimeMillis();
+	boolean isProcessing = false;
+	boolean compress = false;
+
+	private boolean handshakeDone = false;
+	private boolean isJavaSerialization = false;
+	private final ByteBuffer header = ByteBuffer.allocate(headerSize);
+	private ByteBuffer frame;
+	private ByteBuffer output;
+	private volatile ByteBuffer response;
+
+	public ClientChannel(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * @return a complete frame including the header, or null if more data is needed
+	 */
+	public byte[] read() throws IOException {
+		while (true) {
+			if (frame == null) {
+				if (channel.read(header) < 0)
+					throw new EOFException();
+				lastActivity = System.currentTimeMillis();
+				if (!handshakeDone && (header.position() >= 2) &&
+					(((header.get(0) & 0xFF) << 8 | (header.get(1) & 0xFF)) == javaSerializationMagic)) {
+					isJavaSerialization = true;
+					return null;
+				}
+				if (header.hasRemaining())
+					return null;
+
+				if (!handshakeDone) {
+					compress = BinaryProtocol.readHandshake(new ByteArrayInputStream(header.array()));
+					handshakeDone = true;
+					header.clear();
+					continue;
+				}
+
+				int length = header.getInt(0);
+				if ((length < 0) || (length > maxFrameSize))
+					throw new IOException("invalid frame size " + length);
+				frame = ByteBuffer.allocate(headerSize + length);
+				frame.put(header.array());
+				header.clear();
+			}
+
+			if (channel.read(frame) < 0)
+				throw new EOFException();
+			lastActivity = System.currentTimeMillis();
+			if (frame.hasRemaining())
+				return null;
+			byte[] data = frame.array();
+			frame = null;
+			return data;
+		}
+	}
+
+	/**
+	 * @return true if the client uses Java serialization, in which case the connection has to be handed over to a
+	 * {@link TwitterDumperServerHandler}
+	 */
+	public boolean isJavaSerialization() {
+		return isJavaSerialization;
+	}
+
+	/**
+	 * @return the bytes received so far
+	 */
+	public byte[] getReceivedBytes() {
+		byte[] data = new byte[header.position()];
+		System.arraycopy(header.array(), 0, data, 0, data.length);
+		return data;
+	}
+
+	/**
+	 * Called by a worker thread when a response is ready to be sent.
+	 */
+	public void setResponse(ByteBuffer response) {
+		this.response = response;
+	}
+
+	public boolean hasResponse() {
+		return response != null;
+	}
+
+	/**
+	 * @return true if the complete response has been written
+	 */
+	public boolean write() throws IOException {
+		if (output == null) {
+			output = response;
+			response = null;
+		}
+		channel.write(output);
+		lastActivity = System.currentTimeMillis();
+		if (output.hasRemaining())
+			return false;
+		output = null;
+		isProcessing = false;
+		return true;
+	}
+
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			// ignore
+		}
+	}
+
+}
@@ -0,0 +1,433 @@
+package edu.tum.cs.crawling.twitter.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import edu.tum.cs.crawling.twitter.entities.Tweet;
+import edu.tum.cs.crawling.twitter.entities.TwitterUser;
+import edu.tum.cs.crawling.twitter.protocol.BinaryProtocol;
+import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject;
+
+/**
+ * Write-behind stage for DELIVER_TWEETS_AND_USERS requests: A delivery is appended to a journal on the local disk and
+ * can be acknowledged as soon as the journal has been synced. Writer threads combine the deliveries of many clients
+ * into large batches and store them in the database. The journal is split into segments, which are deleted once all of
+ * their deliveries have been stored (the current segment is truncated instead); segments that are left over after a
+ * crash are replayed on startup.
+ * <p>
+ * A delivery that cannot be stored while other deliveries can has already been acknowledged to the client, so it is
+ * moved to the dead-letter file instead of being discarded. The dead-letter file has the format of a segment; renaming
+ * it to a segment name replays its deliveries on the next start.
+ */
+class DeliveryJournal {
+
+	/** stores a delivery, or several merged ones, in the database */
+	interface Store {
+		void store(ClientRequestObject cro) throws Exception;
+	}
+
+	private static class Delivery {
+		public final long segment;
+		public final ClientRequestObject cro;
+
+		public Delivery(long segment, ClientRequestObject cro) {
+			this.segment = segment;
+			this.cro = cro;
+		}
+	}
+
+	private static final Logger logger = Logger.getLogger(DeliveryJournal.class.getName());
+
+	private static final long maxSegmentSize = 64 * 1024 * 1024;
+	private static final int maxQueuedDeliveries = 1000;
+	private static final int maxBatchDeliveries = 100;
+	private static final int maxBatchTweets = 20000;
+	private static final long defaultRetryDelayMs = 10 * 1000;
+	/** number of attempts before a delivery that cannot be stored while other deliveries can is moved aside */
+	private static final int maxAttempts = 5;
+	static final String deadLetterFileName = "dead-letter.log";
+
+	private final File dir;
+	private final Store store;
+	private final long retryDelayMs;
+	private final BlockingQueue<Delivery> queue = new ArrayBlockingQueue<Delivery>(maxQueuedDeliveries);
+	private final Thread[] writers;
+	private volatile long lastSuccessfulWrite = 0;
+
+	// journal state, guarded by this
+	private final Map<Long, Integer> pendingDeliveries = new HashMap<Long, Integer>();
+	private final CRC32 crc = new CRC32();
+	private long currentSegment;
+	private FileOutputStream segmentFile;
+	private DataOutputStream segmentOut;
+	private long segmentSize;
+	private long numWrittenRecords = 0;
+
+	private final Object syncLock = new Object();
+	private long numSyncedRecords = 0;
+
+	public DeliveryJournal(File dir, int numWriters, final boolean addIdsToWaitingList) throws IOException {
+		this(dir, numWriters, new Store() {
+			@Override
+			public void store(ClientRequestObject cro) throws Exception {
+				TwitterDao.saveUsers(cro.getUsers());
+				TwitterDao.saveTweets(cro.getTweets());
+				IdBroker.getInstance().extractIds(cro, addIdsToWaitingList);
+			}
+		}, defaultRetryDelayMs);
+	}
+
+	DeliveryJournal(File dir, int numWriters, Store store, long retryDelayMs) throws IOException {
+		this.dir = dir;
+		this.store = store;
+		this.retryDelayMs = retryDelayMs;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("cannot create journal directory " + dir);
+
+		writers = new Thread[numWriters];
+		for (int i = 0; i < numWriters; i++) {
+			writers[i] = new Thread(new Writer(), "journal writer " + i);
+			writers[i].start();
+		}
+
+		long[] segments = listSegments();
+		currentSegment = (segments.length > 0) ? (segments[segments.length - 1] + 1) : 0;
+		for (long segment : segments)
+			replay(segment);
+		openSegment();
+	}
+
+	private File getSegmentFile(long segment) {
+		return new File(dir, "journal-" + segment + ".log");
+	}
+
+	private long[] listSegments() {
+		String[] names = dir.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.matches("journal-\\d+\\.log");
+			}
+		});
+		long[] segments = new long[names.length];
+		for (int i = 0; i < names.length; i++)
+			segments[i] = Long.parseLong(names[i].substring(8, names[i].length() - 4));
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private void replay(long segment) throws IOException {
+		// the extra pending delivery prevents the segment from being deleted while it is read
+		addPending(segment);
+		int numDeliveries = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(getSegmentFile(segment))));
+		try {
+			while (true) {
+				byte[] data;
+				try {
+					int length = in.readInt();
+					int checksum = in.readInt();
+					if ((length < 0) || (length > maxSegmentSize))
+						break;
+					data = new byte[length];
+					in.readFully(data);
+					crc.reset();
+					crc.update(data);
+					if ((int) crc.getValue() != checksum)
+						break;	// incomplete record at the end of the segment
+				} catch (EOFException ex) {
+					break;
+				}
+
+				addPending(segment);
+				queue.put(new Delivery(segment, BinaryProtocol.decodeRequest(data)));
+				numDeliveries++;
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			in.close();
+		}
+		logger.info("Replaying " + numDeliveries + " deliveries from journal segment " + segment);
+		removePending(segment);
+	}
+
+	private void openSegment() throws IOException {
+		segmentFile = new FileOutputStream(getSegmentFile(currentSegment));
+		segmentOut = new DataOutputStream(new BufferedOutputStream(segmentFile));
+		segmentSize = 0;
+	}
+
+	private synchronized void addPending(long segment) {
+		Integer n = pendingDeliveries.get(segment);
+		pendingDeliveries.put(segment, (n != null) ? (n + 1) : 1);
+	}
+
+	private synchronized void removePending(long segment) {
+		int n = pendingDeliveries.get(segment) - 1;
+		if (n > 0) {
+			pendingDeliveries.put(segment, n);
+		} else {
+			pendingDeliveries.remove(segment);
+			if (segment != currentSegment)
+				deleteSegment(segment);
+			else if (segmentSize > 0)
+				truncateSegment();
+		}
+	}
+
+	/**
+	 * Empties the current segment once all of its deliveries have been stored, so that they are not replayed after
+	 * a restart.
+	 */
+	private void truncateSegment() {
+		try {
+			segmentOut.flush();
+			FileChannel channel = segmentFile.getChannel();
+			channel.truncate(0);
+			channel.position(0);
+			segmentSize = 0;
+		} catch (IOException ex) {
+			logger.log(Level.WARNING, "Could not truncate journal segment " + currentSegment, ex);
+		}
+	}
+
+	private void deleteSegment(long segment) {
+		if (!getSegmentFile(segment).delete())
+			logger.warning("Could not delete journal segment " + segment);
+	}
+
+	/**
+	 * Appends the delivery to the journal and queues it for storing in the database. Returns after the journal has
+	 * been synced to disk; blocks if too many deliveries are waiting to be stored.
+	 */
+	public void append(ClientRequestObject cro) throws IOException, InterruptedException {
+		byte[] data = BinaryProtocol.encodeRequest(cro);
+		long segment, record;
+		synchronized (this) {
+			if (segmentSize >= maxSegmentSize) {
+				// syncing the old segment satisfies all pending syncs
+				segmentOut.flush();
+				segmentFile.getChannel().force(false);
+				segmentOut.close();
+				long oldSegment = currentSegment++;
+				openSegment();
+				if (!pendingDeliveries.containsKey(oldSegment))
+					deleteSegment(oldSegment);
+			}
+			writeRecord(segmentOut, crc, data);
+			segmentSize += data.length + 8;
+			segment = currentSegment;
+			addPending(segment);
+			record = ++numWrittenRecords;
+		}
+		sync(record);
+		queue.put(new Delivery(segment, cro));
+	}
+
+	private static void writeRecord(DataOutputStream out, CRC32 crc, byte[] data) throws IOException {
+		crc.reset();
+		crc.update(data);
+		out.writeInt(data.length);
+		out.writeInt((int) crc.getValue());
+		out.write(data);
+		out.flush();
+	}
+
+	/**
+	 * Appends the delivery to the dead-letter file and syncs it.
+	 */
+	private synchronized void writeDeadLetter(ClientRequestObject cro) throws IOException {
+		FileOutputStream file = new FileOutputStream(new File(dir, deadLetterFileName), true);
+		try {
+			writeRecord(new DataOutputStream(new BufferedOutputStream(file)), new CRC32(),
+					BinaryProtocol.encodeRequest(cro));
+			file.getChannel().force(false);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Syncs the journal up to the specified record. Concurrent appends are covered by a single sync (group commit).
+	 */
+	private void sync(long record) throws IOException {
+		synchronized (syncLock) {
+			if (numSyncedRecords >= record)
+				return;
+			FileChannel channel;
+			long lastRecord;
+			synchronized (this) {
+				channel = segmentFile.getChannel();
+				lastRecord = numWrittenRecords;
+			}
+			try {
+				channel.force(false);
+			} catch (ClosedChannelException ex) {
+				// the segment has been rotated, which implies a sync
+			}
+			numSyncedRecords = lastRecord;
+		}
+	}
+
+	/**
+	 * @return number of deliveries that have not been stored in the database yet
+	 */
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * Stops the writer threads. Deliveries that have not been stored yet remain in the journal, the current segment
+	 * is deleted if all of its deliveries have been stored.
+	 */
+	public void close() throws InterruptedException {
+		for (Thread writer : writers)
+			writer.interrupt();
+		for (Thread writer : writers)
+			writer.join();
+		synchronized (this) {
+			try {
+				segmentOut.close();
+			} catch (IOException ex) {
+				logger.log(Level.WARNING, "Could not close journal", ex);
+			}
+			if (!pendingDeliveries.containsKey(currentSegment))
+				deleteSegment(currentSegment);
+		}
+	}
+
+	private class Writer implements Runnable {
+		@Override
+		public void run() {
+			try {
+				while (!Thread.interrupted()) {
+					Delivery first = queue.poll(1, TimeUnit.SECONDS);
+					if (first == null)
+						continue;
+					List<Delivery> batch = new ArrayList<Delivery>();
+					batch.add(first);
+					int numTweets = first.cro.getTweets().size();
+					Delivery d;
+					while ((batch.size() < maxBatchDeliveries) && (numTweets < maxBatchTweets) &&
+						   ((d = queue.poll()) != null)) {
+						batch.add(d);
+						numTweets += d.cro.getTweets().size();
+					}
+
+					try {
+						save(batch);
+					} catch (Exception ex) {
+						logger.log(Level.WARNING, "Could not store " + batch.size() +
+								" deliveries, storing them one by one", ex);
+						for (Delivery delivery : batch)
+							saveWithRetry(delivery);
+					}
+					for (Delivery delivery : batch)
+						removePending(delivery.segment);
+				}
+			} catch (InterruptedException ex) {
+				// terminate
+			}
+		}
+
+		private void saveWithRetry(Delivery delivery) throws InterruptedException {
+			long firstFailure = System.currentTimeMillis();
+			int numAttempts = 0;
+			while (true) {
+				try {
+					save(Collections.singletonList(delivery));
+					return;
+				} catch (Exception ex) {
+					numAttempts++;
+					if ((numAttempts >= maxAttempts) && (lastSuccessfulWrite > firstFailure)) {
+						// the database is available, so retrying will not help
+						try {
+							writeDeadLetter(delivery.cro);
+							logger.log(Level.SEVERE, "Moved delivery of " + delivery.cro.getUsers().size() +
+									" users and " + delivery.cro.getTweets().size() + " tweets to " +
+									deadLetterFileName, ex);
+							return;
+						} catch (IOException ioEx) {
+							logger.log(Level.SEVERE, "Could not write to " + deadLetterFileName, ioEx);
+						}
+					}
+					logger.log(Level.SEVERE, "Could not store delivery, retrying in " + (retryDelayMs / 1000) + "s",
+							ex);
+					Thread.sleep(retryDelayMs);
+				}
+			}
+		}
+
+		private void save(List<Delivery> batch) throws Exception {
+			List<ClientRequestObject> cros = new ArrayList<ClientRequestObject>(batch.size());
+			for (Delivery delivery : batch)
+				cros.add(delivery.cro);
+			ClientRequestObject cro = merge(cros);
+			logger.info("Storing " + cro.getUsers().size() + " users and " + cro.getTweets().size() + " tweets from " +
+					batch.size() + " deliveries");
+			store.store(cro);
+			lastSuccessfulWrite = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Combines several deliveries into one. Users and tweets that occur more than once are merged the same way
+	 * {@link TwitterDao} merges them with existing rows.
+	 */
+	static ClientRequestObject merge(List<ClientRequestObject> batch) {
+		if (batch.size() == 1)
+			return batch.get(0);
+
+		Map<Long, TwitterUser> users = new HashMap<Long, TwitterUser>();
+		Map<Long, Tweet> tweets = new HashMap<Long, Tweet>();
+		ClientRequestObject merged = new ClientRequestObject();
+		merged.setRequestType(ClientRequestObject.ClientRequestType.DELIVER_TWEETS_AND_USERS);
+		for (ClientRequestObject delivery : batch) {
+			for (TwitterUser user : delivery.getUsers()) {
+				TwitterUser other = users.put(user.getId(), user);
+				if ((other != null) && (other.getFirstCrawledAt() != null) &&
+					((user.getFirstCrawledAt() == null) || other.getFirstCrawledAt().before(user.getFirstCrawledAt())))
+					user.setFirstCrawledAt(other.getFirstCrawledAt());
+				if ((other != null) && (user.getDetectedLanguage() == null))
+					user.setDetectedLanguage(other.getDetectedLanguage());
+			}
+			for (Tweet tweet : delivery.getTweets()) {
+				Tweet other = tweets.put(tweet.getId(), tweet);
+				if (other != null) {
+					if ((other.getFirstCrawledAt() != null) && ((tweet.getFirstCrawledAt() == null) ||
+						other.getFirstCrawledAt().before(tweet.getFirstCrawledAt())))
+						tweet.setFirstCrawledAt(other.getFirstCrawledAt());
+					tweet.setRetweetCount(Math.max(tweet.getRetweetCount(), other.getRetweetCount()));
+				}
+			}
+			merged.getFailedUserScreenNames().addAll(delivery.getFailedUserScreenNames());
+		}
+		merged.getUsers().addAll(users.values());
+		merged.getTweets().addAll(tweets.values());
+		return merged;
+	}
+
+}
@@ -1,17 +1,19 @@
 package edu.tum.cs.crawling.twitter.server;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import edu.tum.cs.crawling.twitter.entities.Tweet;
 import edu.tum.cs.crawling.twitter.entities.TwitterUser;
@@ -20,33 +22,51 @@ import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject;
 import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject.FollowFriendUser;
 import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject.FurtherCrawlingUserData;
 import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject.ServerStatus;
+import edu.tum.cs.util.CaseInsensitiveStringSet;
+import edu.tum.cs.util.LongHashSet;
 
 public class IdBroker {
 
 	private static final Logger logger = Logger.getLogger(IdBroker.class.getName());
 
-	private static final Pattern USER_NAME_PATTERN = Pattern.compile("@([a-zA-Z0-9_\\-]+)");
-
 	private static IdBroker singleton;
 
+	private static final File snapshotFile =
+			new File(System.getProperty("edu.tum.cs.crawling.twitter.snapshot", "idbroker.snapshot"));
+	/**
+	 * Rows modified shortly before a snapshot was taken are read again on the next start. This covers requests that
+	 * were still being processed, as well as clock skew between the crawler clients (which set "crawled_at") and the
+	 * database server.
+	 */
+	private static final long snapshotOverlapMs = 60 * 60 * 1000;
+
+	/** number of users from "waiting_user" that are reserved in advance */
+	private static final int waitingUserQueueSize = 5000;
+	private static final long waitingUserTimeoutMs = 10 * 1000;
+
 	/**
 	 * Never close this connection!
 	 */
 	private Connection c;
 
 	private PreparedStatement psInsertUserIds;
-	private PreparedStatement psUpdateUserIdReserved;
 	private PreparedStatement psUpdateUserIdCrawlingFurtherReserved;
 	private PreparedStatement psUpdateUserIdScreenNameCrawled;
 	private PreparedStatement psUpdateUserIdFailed;
-	private PreparedStatement psUpdateScreenNameReserved;
 	private PreparedStatement psUpdateScreenNameFailed;
-	private PreparedStatement psSelectUsersForFriendsAndFollowers;
 
-	private Set<String> knownScreenNames = new HashSet<String>();
-	private Set<Long> knownUserIds = new HashSet<Long>();
-	private Set<Long> ignoredUserIds = new HashSet<Long>();
-	private Set<Long> usersIdsForFriendsAndFollowersOut = new HashSet<Long>();
+	private RandomRangeSampler usersForFurtherCrawlingSampler;
+	private RandomRangeSampler usersForFriendsAndFollowersSampler;
+
+	private final CaseInsensitiveStringSet knownScreenNames = new CaseInsensitiveStringSet();
+	private final MentionScanner mentionScanner = new MentionScanner();
+	private final WaitingUserQueue waitingUsers = new WaitingUserQueue(waitingUserQueueSize);
+
+	private LongHashSet knownUserIds = new LongHashSet();
+	private LongHashSet ignoredUserIds = new LongHashSet();
+	private LongHashSet usersIdsForFriendsAndFollowersOut = new LongHashSet();
+	/** set once the deduplication state is complete, an incomplete state must not be written to a snapshot */
+	private boolean stateLoaded = false;
 
 	private IdBroker() {
 		try {
@@ -63,7 +83,8 @@ public class IdBroker {
 					"`first_occurrence` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP," +
 					"UNIQUE KEY `user_id_UNIQUE` (`user_id`)," +
 					"UNIQUE KEY `screen_name_UNIQUE` (`screen_name`)," +
-					"KEY `select_index` (`is_reserved`,`is_crawled`,`is_failed`,`first_occurrence`)) " +
+					"KEY `select_index` (`is_reserved`,`is_crawled`,`is_failed`,`first_occurrence`)," +
+					"KEY `first_occurrence_index` (`first_occurrence`)) " +
 					"CHARACTER SET latin1 COLLATE latin1_bin");
 			// create table "waiting_user_for_further_tweets" if it does not yet exist
 			s.executeUpdate("CREATE TABLE IF NOT EXISTS `waiting_user_for_further_tweets` (" +
@@ -78,37 +99,21 @@ public class IdBroker {
 					"PRIMARY KEY `PRIMARY` (`user_id`)) " +
 					"CHARACTER SET latin1 COLLATE latin1_bin");
 
-			// Load existing user_ids and screen_names
-			ResultSet rs = s.executeQuery("SELECT id, screen_name FROM user");
-			while (rs.next()) {
-				knownUserIds.add(rs.getLong(1));
-				if (rs.getString(2) != null)
-					knownScreenNames.add(rs.getString(2).toLowerCase());
+			// the tables of existing installations may lack the indexes used for reading the rows since a snapshot
+			createIndexIfMissing(s, "waiting_user", "first_occurrence_index", "first_occurrence");
+			createIndexIfMissing(s, "user", "ind_crawled_at", "crawled_at");
+
+			// Load existing user_ids and screen_names. If there is a snapshot, only rows modified since the snapshot
+			// was taken are read from the database.
+			Timestamp syncTime = getDatabaseTime();
+			Timestamp since = loadSnapshot();
+			loadKnownIds(since);
+			stateLoaded = true;
+			try {
+				saveSnapshot(syncTime);
+			} catch (IOException ex) {
+				logger.log(Level.WARNING, "Could not write snapshot to '" + snapshotFile + "'", ex);
 			}
-			rs.close();
-			logger.info("Found " + knownUserIds.size() + " user IDs and " + knownScreenNames.size() +
-					" screen names in 'USER'");
-
-			// Add uncrawled users
-			rs = s.executeQuery("SELECT user_id, screen_name FROM waiting_user");
-			while (rs.next()) {
-				long userId = rs.getLong(1);
-				String screenName = rs.getString(2);
-				if (userId != 0)
-					knownUserIds.add(userId);
-				if ((screenName != null) && !screenName.isEmpty())
-					knownScreenNames.add(screenName.toLowerCase());
-			}
-			rs.close();
-			logger.info("Found " + knownUserIds.size() + " user IDs and " + knownScreenNames.size() +
-					" screen names in 'waiting_user'");
-
-			// Add ignored users
-			rs = s.executeQuery("SELECT id FROM user WHERE ignored = 1");
-			while (rs.next())
-				ignoredUserIds.add(rs.getLong(1));
-			rs.close();
-			logger.info("Found " + ignoredUserIds.size() + " ignored userIds");
 
 			// Reset existing reservations
 			s.execute("UPDATE waiting_user SET is_reserved = 0 WHERE is_reserved = 1 AND is_crawled = 0");
@@ -123,65 +128,152 @@ public class IdBroker {
 			psUpdateUserIdCrawlingFurtherReserved = c.prepareStatement(
 					"UPDATE waiting_user_for_further_tweets SET is_reserved = 1 WHERE user_id = ?");
 
-			psUpdateUserIdReserved = c.prepareStatement(
-					"UPDATE waiting_user SET is_reserved = 1 WHERE user_id = ?");
 			psUpdateUserIdScreenNameCrawled = c.prepareStatement(
 					"UPDATE LOW_PRIORITY waiting_user SET is_crawled = 1 WHERE user_id = ? OR" +
 					" (screen_name = ? AND screen_name IS NOT NULL)");
 			psUpdateUserIdFailed = c.prepareStatement(
 					"UPDATE LOW_PRIORITY waiting_user SET is_failed = 1 WHERE user_id = ?");
 
-			psUpdateScreenNameReserved = c.prepareStatement(
-					"UPDATE waiting_user SET is_reserved = 1 WHERE screen_name = ?");
 			psUpdateScreenNameFailed = c.prepareStatement(
 					"UPDATE LOW_PRIORITY waiting_user SET is_failed = 1 WHERE screen_name = ?");
 
-			psSelectUsersForFriendsAndFollowers = c.prepareStatement(
-					"SELECT id, total_follower_count, total_friend_count FROM user " +
-					"WHERE ignored = 0 AND secured = 0 AND crawling_failed = 0 AND friends_ser IS NULL AND" +
-					" followers_ser IS NULL AND (total_follower_count < 25000 OR total_friend_count < 25000) " +
-					"ORDER BY RAND() LIMIT ?");
+			usersForFurtherCrawlingSampler = new RandomRangeSampler(c, "waiting_user_for_further_tweets",
+					"user_id", "user_id, first_tweet_id",
+					"is_reserved = 0 AND is_crawled = 0 AND has_more_tweets = 1");
+			usersForFriendsAndFollowersSampler = new RandomRangeSampler(c, "user", "id",
+					"id, total_follower_count, total_friend_count",
+					"ignored = 0 AND secured = 0 AND crawling_failed = 0 AND friends_ser IS NULL AND" +
+					" followers_ser IS NULL AND (total_follower_count < 25000 OR total_friend_count < 25000)");
 
 			s.close();
+
+			// start prefetching users once all old reservations have been reset
+			Thread t = new Thread(waitingUsers, "waiting_user prefetcher");
+			t.setDaemon(true);
+			t.start();
 		} catch (SQLException e) {
 			logger.log(Level.SEVERE, "Error getting existing IDs and screen names", e);
 		}
 	}
 
-	public synchronized ServerResponseObject getIds(int numberOfIds) throws SQLException {
-		ServerResponseObject sro = new ServerResponseObject();
+	private static void createIndexIfMissing(Statement s, String table, String index, String columns)
+			throws SQLException {
+		ResultSet rs = s.executeQuery("SELECT COUNT(*) FROM information_schema.statistics " +
+				"WHERE table_schema = DATABASE() AND LOWER(table_name) = '" + table + "' AND index_name = '" + index +
+				"'");
+		rs.next();
+		boolean exists = rs.getInt(1) > 0;
+		rs.close();
+		if (!exists) {
+			logger.info("Creating index '" + index + "' on table '" + table + "'");
+			s.executeUpdate("CREATE INDEX `" + index + "` ON `" + table + "` (" + columns + ")");
+		}
+	}
 
+	private Timestamp getDatabaseTime() throws SQLException {
 		Statement s = c.createStatement();
-		ResultSet rs = s.executeQuery("SELECT user_id, screen_name FROM waiting_user " +
-				"WHERE is_reserved = 0 AND is_crawled = 0 AND is_failed = 0 " +
-				"ORDER BY first_occurrence ASC LIMIT " + numberOfIds);
+		try {
+			ResultSet rs = s.executeQuery("SELECT NOW()");
+			rs.next();
+			return rs.getTimestamp(1);
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * @return the high-water mark of the snapshot, or null if there is no usable snapshot
+	 */
+	private Timestamp loadSnapshot() {
+		if (!snapshotFile.exists())
+			return null;
+		try {
+			long highWaterMark = IdBrokerSnapshot.load(snapshotFile, knownUserIds, knownScreenNames, ignoredUserIds);
+			logger.info("Found " + knownUserIds.size() + " user IDs, " + knownScreenNames.size() +
+					" screen names and " + ignoredUserIds.size() + " ignored userIds in snapshot '" + snapshotFile +
+					"'");
+			return new Timestamp(highWaterMark);
+		} catch (IOException ex) {
+			// anything read so far is a subset of the database contents, so it is safe to continue with a full scan
+			logger.log(Level.WARNING, "Could not read snapshot '" + snapshotFile + "', loading all IDs", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Loads user IDs and screen names from the tables "user" and "waiting_user".
+	 * @param since only consider rows modified at or after this time, or all rows if null
+	 */
+	private void loadKnownIds(Timestamp since) throws SQLException {
+		PreparedStatement ps = c.prepareStatement("SELECT id, screen_name, ignored FROM user" +
+				((since != null) ? " WHERE crawled_at >= ?" : ""));
+		if (since != null)
+			ps.setTimestamp(1, since);
+		ResultSet rs = ps.executeQuery();
+		while (rs.next()) {
+			long userId = rs.getLong(1);
+			knownUserIds.add(userId);
+			if (rs.getString(2) != null)
+				knownScreenNames.add(rs.getString(2));
+			if (rs.getBoolean(3))
+				ignoredUserIds.add(userId);
+		}
+		rs.close();
+		ps.close();
+		logger.info("Found " + knownUserIds.size() + " user IDs, " + knownScreenNames.size() +
+				" screen names and " + ignoredUserIds.size() + " ignored userIds in 'USER'");
+
+		// Add uncrawled users
+		ps = c.prepareStatement("SELECT user_id, screen_name FROM waiting_user" +
+				((since != null) ? " WHERE first_occurrence >= ?" : ""));
+		if (since != null)
+			ps.setTimestamp(1, since);
+		rs = ps.executeQuery();
 		while (rs.next()) {
 			long userId = rs.getLong(1);
 			String screenName = rs.getString(2);
-			if (userId == 0)
-				sro.getScreenNames().add(screenName);
-			else
-				sro.getIds().add(userId);
+			if (userId != 0)
+				knownUserIds.add(userId);
+			if ((screenName != null) && !screenName.isEmpty())
+				knownScreenNames.add(screenName);
 		}
 		rs.close();
-		s.close();
+		ps.close();
+		logger.info("Found " + knownUserIds.size() + " user IDs and " + knownScreenNames.size() +
+				" screen names in 'waiting_user'");
+	}
 
-		if (sro.getIds().size() > 0) {
-			for (Long userId : sro.getIds()) {
-				psUpdateUserIdReserved.setLong(1, userId);
-				psUpdateUserIdReserved.addBatch();
-			}
-			psUpdateUserIdReserved.executeBatch();
-		}
+	private void saveSnapshot(Timestamp syncTime) throws IOException {
+		long t0 = System.currentTimeMillis();
+		IdBrokerSnapshot.save(snapshotFile, syncTime.getTime() - snapshotOverlapMs, knownUserIds, knownScreenNames,
+				ignoredUserIds);
+		logger.info("Wrote snapshot '" + snapshotFile + "' in " + (System.currentTimeMillis() - t0) + "ms");
+	}
 
-		if (sro.getScreenNames().size() > 0) {
-			for (String screenName : sro.getScreenNames()) {
-				psUpdateScreenNameReserved.setString(1, screenName);
-				psUpdateScreenNameReserved.addBatch();
-			}
-			psUpdateScreenNameReserved.executeBatch();
-		}
+	/**
+	 * Writes the current deduplication state to disk, so that the next start of the server only needs to read the
+	 * rows added in the meantime.
+	 */
+	public synchronized void saveSnapshot() throws SQLException, IOException {
+		if (stateLoaded)
+			saveSnapshot(getDatabaseTime());
+	}
 
+	public ServerResponseObject getIds(int numberOfIds) throws SQLException, InterruptedException {
+		ServerResponseObject sro = new ServerResponseObject();
+		List<WaitingUserQueue.Entry> entries = waitingUsers.take(numberOfIds, waitingUserTimeoutMs);
+		if (entries == null) {
+			// an empty response would make the client stop, let it ask again later instead
+			logger.warning("No users loaded from 'waiting_user' yet, asking client to retry");
+			sro.setStatus(ServerStatus.RETRY);
+			return sro;
+		}
+		for (WaitingUserQueue.Entry entry : entries) {
+			if (entry.userId == 0)
+				sro.getScreenNames().add(entry.screenName);
+			else
+				sro.getIds().add(entry.userId);
+		}
 		sro.setStatus(ServerStatus.DELIVER_IDS);
 		return sro;
 	}
@@ -189,22 +281,12 @@ public class IdBroker {
 	public synchronized ServerResponseObject getIdsForFurtherCrawling(int numberOfIds) throws SQLException {
 		ServerResponseObject sro = new ServerResponseObject();
 
-		Statement s = c.createStatement();
-		ResultSet rs = s.executeQuery("SELECT user_id, first_tweet_id FROM waiting_user_for_further_tweets " +
-				"WHERE is_reserved = 0 AND is_crawled = 0 AND has_more_tweets = 1 " +
-				"ORDER BY RAND() LIMIT " + numberOfIds);
-		while (rs.next()) {
-			long userId = rs.getLong(1);
-			long firstTweetId = rs.getLong(2);
-
+		for (long[] row : usersForFurtherCrawlingSampler.sample(numberOfIds)) {
 			FurtherCrawlingUserData userData = new FurtherCrawlingUserData();
-			userData.id = userId;
-			userData.firstTweetId = firstTweetId;
-
+			userData.id = row[0];
+			userData.firstTweetId = row[1];
 			sro.getFurtherCrawlingUsers().add(userData);
 		}
-		rs.close();
-		s.close();
 
 		if (sro.getFurtherCrawlingUsers().size() > 0) {
 			for (FurtherCrawlingUserData userData : sro.getFurtherCrawlingUsers()) {
@@ -220,10 +302,8 @@ public class IdBroker {
 	public synchronized ServerResponseObject getIdsForFollowerFriends(int numberOfIds) throws SQLException {
 		ServerResponseObject sro = new ServerResponseObject();
 
-		psSelectUsersForFriendsAndFollowers.setInt(1, Math.max(2 * numberOfIds, 50));
-		ResultSet rs = psSelectUsersForFriendsAndFollowers.executeQuery();
-		while (rs.next()) {
-			long userId = rs.getLong(1);
+		for (long[] row : usersForFriendsAndFollowersSampler.sample(Math.max(2 * numberOfIds, 50))) {
+			long userId = row[0];
 			if (usersIdsForFriendsAndFollowersOut.contains(userId))
 				continue;
 			if (sro.getFollowFriendsUsers().size() >= numberOfIds) // Enough IDs
@@ -232,16 +312,15 @@ public class IdBroker {
 
 			FollowFriendUser userData = new FollowFriendUser();
 			userData.id = userId;
-			userData.totalFollowerCount = rs.getInt(2);
-			userData.totalFriendCount = rs.getInt(3);
+			userData.totalFollowerCount = (int) row[1];
+			userData.totalFriendCount = (int) row[2];
 			sro.getFollowFriendsUsers().add(userData);
 		}
-		rs.close();
 
 		return sro;
 	}
 
-	public void extractIds(ClientRequestObject cro, boolean addIdsToWaitingList) throws SQLException {
+	public synchronized void extractIds(ClientRequestObject cro, boolean addIdsToWaitingList) throws SQLException {
 		// Update and add existing user ID
 		Set<Long> failedUserIds = new HashSet<Long>();
 		for (TwitterUser user : cro.getUsers()) {
@@ -252,7 +331,7 @@ public class IdBroker {
 				ignoredUserIds.add(user.getId());
 			knownUserIds.add(user.getId());
 			if (user.getScreenName() != null)
-				knownScreenNames.add(user.getScreenName().toLowerCase());
+				knownScreenNames.add(user.getScreenName());
 			if (user.isCrawlingFailed())
 				failedUserIds.add(user.getId());
 		}
@@ -271,7 +350,7 @@ public class IdBroker {
 			for(String failedScreenName : cro.getFailedUserScreenNames()) {
 				psUpdateScreenNameFailed.setString(1, failedScreenName);
 				psUpdateScreenNameFailed.addBatch();
-				knownScreenNames.add(failedScreenName.toLowerCase());
+				knownScreenNames.add(failedScreenName);
 			}
 			psUpdateScreenNameFailed.execute();
 		}
@@ -309,35 +388,33 @@ public class IdBroker {
 
 			// Add retweets
 			if (tweet.isRetweet()) {
-				if (!knownUserIds.contains(tweet.getRetweetOfUserId()) &&
-					!knownScreenNames.contains(tweet.getRetweetOfScreenName().toLowerCase())) {
+				boolean isNewScreenName = knownScreenNames.add(tweet.getRetweetOfScreenName());
+				if (!knownUserIds.contains(tweet.getRetweetOfUserId()) && isNewScreenName) {
 					psInsertUserIds.setLong(1, tweet.getRetweetOfUserId());
 					psInsertUserIds.setString(2, tweet.getRetweetOfScreenName());
 					psInsertUserIds.addBatch();
 				}
 				knownUserIds.add(tweet.getRetweetOfUserId());
-				knownScreenNames.add(tweet.getRetweetOfScreenName().toLowerCase());
 			}
 
 			// Add message information
 			if (tweet.getInReplyToUserId() > 0) {
-				if (!knownUserIds.contains(tweet.getInReplyToUserId()) &&
-					!knownScreenNames.contains(tweet.getInReplyToScreenname().toLowerCase())) {
+				boolean isNewScreenName = knownScreenNames.add(tweet.getInReplyToScreenname());
+				if (!knownUserIds.contains(tweet.getInReplyToUserId()) && isNewScreenName) {
 					psInsertUserIds.setLong(1, tweet.getInReplyToUserId());
 					psInsertUserIds.setString(2, tweet.getInReplyToScreenname());
 					psInsertUserIds.addBatch();
 				}
 				knownUserIds.add(tweet.getInReplyToUserId());
-				knownScreenNames.add(tweet.getInReplyToScreenname().toLowerCase());
 			}
 
 			// Add @mentions
-			for (String atMentionedScreenName : filterByPattern(tweet.getStatusText(), USER_NAME_PATTERN)) {
-				atMentionedScreenName = atMentionedScreenName.substring(1); // Remove @
-				if (!knownScreenNames.contains(atMentionedScreenName.toLowerCase())) {
-					knownScreenNames.add(atMentionedScreenName.toLowerCase());
+			String statusText = tweet.getStatusText();
+			mentionScanner.reset(statusText);
+			while (mentionScanner.find()) {
+				if (knownScreenNames.add(statusText, mentionScanner.start(), mentionScanner.end())) {
 					psInsertUserIds.setNull(1, Types.BIGINT);
-					psInsertUserIds.setString(2, atMentionedScreenName);
+					psInsertUserIds.setString(2, statusText.substring(mentionScanner.start(), mentionScanner.end()));
 					psInsertUserIds.addBatch();
 				}
 			}
@@ -345,14 +422,6 @@ public class IdBroker {
 		psInsertUserIds.executeBatch();
 	}
 
-	private static Set<String> filterByPattern(String status, Pattern pattern) {
-		Matcher hashtags = pattern.matcher(status);
-		Set<String> rCol = new HashSet<String>();
-		while (hashtags.find())
-			rCol.add(hashtags.group());
-		return rCol;
-	}
-
 	public static IdBroker getInstance() {
 		if (singleton == null)
 			singleton = new IdBroker();
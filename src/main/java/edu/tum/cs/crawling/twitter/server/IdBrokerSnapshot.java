@@ -0,0 +1,82 @@
+package edu.tum.cs.crawling.twitter.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import edu.tum.cs.util.CaseInsensitiveStringSet;
+import edu.tum.cs.util.DeltaEncoding;
+import edu.tum.cs.util.LongHashSet;
+
+/**
+ * On-disk copy of the deduplication state of {@link IdBroker}. The high-water mark is a database timestamp: All rows
+ * of "user" and "waiting_user" that were modified before the mark are reflected in the snapshot, so only newer rows
+ * need to be read when the broker is restarted.
+ */
+class IdBrokerSnapshot {
+
+	private static final int magic = 0x49445342;	// "IDSB"
+	private static final int version = 1;
+
+	/**
+	 * Writes the snapshot to a temporary file, which then replaces the target file, so that a crash while saving
+	 * leaves the previous snapshot intact.
+	 */
+	public static void save(File file, long highWaterMark, LongHashSet knownUserIds,
+			CaseInsensitiveStringSet knownScreenNames, LongHashSet ignoredUserIds) throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(new FileOutputStream(tmpFile), 1 << 16)));
+		try {
+			out.writeInt(magic);
+			out.writeInt(version);
+			out.writeLong(highWaterMark);
+			DeltaEncoding.writeLongs(out, knownUserIds.toArray());
+			DeltaEncoding.writeLongs(out, ignoredUserIds.toArray());
+			List<String> screenNames = knownScreenNames.toList();
+			out.writeInt(screenNames.size());
+			for (String screenName : screenNames)
+				out.writeUTF(screenName);
+		} finally {
+			out.close();
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Adds the user IDs and screen names stored in the snapshot to the specified collections.
+	 * @return the high-water mark of the snapshot
+	 */
+	public static long load(File file, LongHashSet knownUserIds, CaseInsensitiveStringSet knownScreenNames,
+			LongHashSet ignoredUserIds) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(file), 1 << 16)));
+		try {
+			if ((in.readInt() != magic) || (in.readInt() != version))
+				throw new IOException("unsupported snapshot format");
+			long highWaterMark = in.readLong();
+			for (long id : DeltaEncoding.readLongs(in))
+				knownUserIds.add(id);
+			for (long id : DeltaEncoding.readLongs(in))
+				ignoredUserIds.add(id);
+			int numScreenNames = in.readInt();
+			for (int i = 0; i < numScreenNames; i++)
+				knownScreenNames.add(in.readUTF());
+			return highWaterMark;
+		} finally {
+			in.close();
+		}
+	}
+
+}
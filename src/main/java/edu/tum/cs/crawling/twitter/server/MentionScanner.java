@@ -0,0 +1,59 @@
+package edu.tum.cs.crawling.twitter.server;
+
+/**
+ * Finds @mentions in a status text in a single pass, without creating any objects. Matches the same screen names as
+ * the regular expression "@([a-zA-Z0-9_\-]+)". Usage is similar to {@link java.util.regex.Matcher}.
+ */
+class MentionScanner {
+
+	private String text;
+	private int pos, start, end;
+
+	public MentionScanner reset(String text) {
+		this.text = text;
+		this.pos = 0;
+		return this;
+	}
+
+	private static boolean isScreenNameChar(char c) {
+		return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9')) ||
+				(c == '_') || (c == '-');
+	}
+
+	/**
+	 * @return true if another mention has been found
+	 */
+	public boolean find() {
+		if (text == null)
+			return false;
+		int length = text.length();
+		while (pos < length) {
+			int at = text.indexOf('@', pos);
+			if (at < 0)
+				break;
+			int i = at + 1;
+			while ((i < length) && isScreenNameChar(text.charAt(i)))
+				i++;
+			if (i > (at + 1)) {
+				start = at + 1;
+				end = i;
+				pos = i;
+				return true;
+			}
+			pos = at + 1;
+		}
+		pos = length;
+		return false;
+	}
+
+	/** @return start of the screen name, excluding the '@' */
+	public int start() {
+		return start;
+	}
+
+	/** @return end of the screen name (exclusive) */
+	public int end() {
+		return end;
+	}
+
+}
@@ -0,0 +1,138 @@
+package edu.tum.cs.crawling.twitter.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.tum.cs.util.LongHashSet;
+
+/**
+ * Draws random rows from a table without sorting the candidate set like "ORDER BY RAND()" does. Each probe picks a
+ * random value in the range of the numeric primary key and reads a short run of matching rows starting at that value
+ * via the index, so the cost of a request depends on the number of rows requested and the density of matching rows,
+ * but not on the size of the table. Rows following a large gap in the key space are somewhat more likely to be
+ * picked, which is acceptable for distributing crawl work.
+ */
+class RandomRangeSampler {
+
+	/** number of consecutive rows read per probe */
+	private static final int runLength = 10;
+	/** the key range is only refreshed periodically, new rows at the end of the range are picked up with a delay */
+	private static final long rangeRefreshMs = 10 * 60 * 1000;
+
+	private final Random random;
+	private final PreparedStatement psRange;
+	private final PreparedStatement psSample;
+	private final int numColumns;
+
+	private long minKey, maxKey;
+	private boolean isEmpty = true;
+	private long rangeTimestamp = 0;
+
+	/**
+	 * @param columns comma-separated list of numeric columns to return, the first column has to be the key
+	 * @param condition SQL condition that selects the candidate rows
+	 */
+	public RandomRangeSampler(Connection c, String table, String keyColumn, String columns, String condition)
+			throws SQLException {
+		psRange = c.prepareStatement("SELECT MIN(" + keyColumn + "), MAX(" + keyColumn + ") FROM " + table);
+		psSample = c.prepareStatement("SELECT " + columns + " FROM " + table + " WHERE (" + condition + ") AND " +
+				keyColumn + " >= ? AND " + keyColumn + " < ? ORDER BY " + keyColumn + " LIMIT ?");
+		numColumns = columns.split(",").length;
+		random = new Random();
+	}
+
+	/**
+	 * For tests, which override {@link #readRange()} and {@link #readRun}.
+	 */
+	RandomRangeSampler(int numColumns, Random random) {
+		psRange = null;
+		psSample = null;
+		this.numColumns = numColumns;
+		this.random = random;
+	}
+
+	/**
+	 * @return the smallest and the largest key, or null if the table is empty
+	 */
+	protected long[] readRange() throws SQLException {
+		ResultSet rs = psRange.executeQuery();
+		try {
+			rs.next();
+			long min = rs.getLong(1);
+			if (rs.wasNull())
+				return null;
+			return new long[] { min, rs.getLong(2) };
+		} finally {
+			rs.close();
+		}
+	}
+
+	private void refreshRange() throws SQLException {
+		long[] range = readRange();
+		isEmpty = (range == null);
+		if (!isEmpty) {
+			minKey = range[0];
+			maxKey = range[1];
+		}
+		rangeTimestamp = System.currentTimeMillis();
+	}
+
+	/**
+	 * Reads up to limit matching rows with keys in [startKey, endKey) and adds the ones with unseen keys.
+	 * @return the number of rows read, including the ones that have been seen before
+	 */
+	protected int readRun(long startKey, long endKey, int limit, List<long[]> rows, LongHashSet seenKeys)
+			throws SQLException {
+		psSample.setLong(1, startKey);
+		psSample.setLong(2, endKey);
+		psSample.setInt(3, limit);
+		ResultSet rs = psSample.executeQuery();
+		int numRead = 0;
+		try {
+			while (rs.next()) {
+				numRead++;
+				long[] row = new long[numColumns];
+				for (int i = 0; i < numColumns; i++)
+					row[i] = rs.getLong(i + 1);
+				if (seenKeys.add(row[0]))
+					rows.add(row);
+			}
+		} finally {
+			rs.close();
+		}
+		return numRead;
+	}
+
+	/**
+	 * @return up to numRows distinct rows, with the column values in the order specified in the constructor
+	 */
+	public List<long[]> sample(int numRows) throws SQLException {
+		if ((System.currentTimeMillis() - rangeTimestamp) > rangeRefreshMs)
+			refreshRange();
+
+		List<long[]> rows = new ArrayList<long[]>(numRows);
+		if (isEmpty)
+			return rows;
+
+		LongHashSet seenKeys = new LongHashSet(numRows);
+		int maxProbes = 2 * ((numRows + runLength - 1) / runLength) + 2;
+		for (int i = 0; (i < maxProbes) && (rows.size() < numRows); i++) {
+			long startKey = minKey + (long) (random.nextDouble() * (maxKey - minKey + 1));
+			int limit = Math.min(runLength, numRows - rows.size());
+			if (readRun(startKey, Long.MAX_VALUE, limit, rows, seenKeys) < limit) {
+				// reached the end of the key range, wrap around to the beginning; if only few candidates are left, this
+				// ensures they are found eventually. The two runs cover the whole key range, so further probes could
+				// only find rows that have already been seen, after scanning a sparse table yet again.
+				readRun(minKey, startKey, numRows - rows.size(), rows, seenKeys);
+				break;
+			}
+		}
+		return rows;
+	}
+
+}
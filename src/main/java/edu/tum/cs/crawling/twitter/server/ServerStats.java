@@ -0,0 +1,51 @@
+package edu.tum.cs.crawling.twitter.server;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+class ServerStats implements ServerStatsMBean {
+
+	private final ThreadPoolExecutor pool;
+
+	final AtomicInteger openConnections = new AtomicInteger();
+	final AtomicInteger inFlightRequests = new AtomicInteger();
+	final AtomicLong completedRequests = new AtomicLong();
+	final AtomicLong rejectedRequests = new AtomicLong();
+
+	public ServerStats(ThreadPoolExecutor pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	@Override
+	public int getInFlightRequests() {
+		return inFlightRequests.get();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return pool.getQueue().size();
+	}
+
+	@Override
+	public long getCompletedRequests() {
+		return completedRequests.get();
+	}
+
+	@Override
+	public long getRejectedRequests() {
+		return rejectedRequests.get();
+	}
+
+	@Override
+	public String toString() {
+		return "connections: " + getOpenConnections() + ", in flight: " + getInFlightRequests() + ", queued: " +
+				getQueueDepth() + ", completed: " + getCompletedRequests() + ", rejected: " + getRejectedRequests();
+	}
+
+}
@@ -0,0 +1,21 @@
+package edu.tum.cs.crawling.twitter.server;
+
+/**
+ * Load metrics of the {@link TwitterDumperServer}, exported via JMX.
+ */
+public interface ServerStatsMBean {
+
+	public int getOpenConnections();
+
+	/** requests that are waiting for or being processed by a worker thread */
+	public int getInFlightRequests();
+
+	/** requests waiting for a worker thread */
+	public int getQueueDepth();
+
+	public long getCompletedRequests();
+
+	/** requests that have been answered with RETRY because all workers were busy */
+	public long getRejectedRequests();
+
+}
@@ -3,8 +3,13 @@ package edu.tum.cs.crawling.twitter.server;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,6 +35,9 @@ public class TwitterDao {
 	private static final SessionFactory sessionFactory;
 	private static DataSource pooledDataSource;
 
+	/** maximum number of IDs in the "IN" clause of a single query */
+	private static final int maxIdsPerQuery = 1000;
+
 	static {
 		logger = Logger.getLogger(TwitterDao.class.getName());
 
@@ -63,6 +71,13 @@ public class TwitterDao {
 		return pooledDataSource.getConnection();
 	}
 
+	/**
+	 * For tests that compare the bulk statements with Hibernate.
+	 */
+	static Session openSession() {
+		return sessionFactory.openSession();
+	}
+
 	public static TwitterUser getUser(long id) {
 		Session session = sessionFactory.openSession();
 		try {
@@ -96,19 +111,53 @@ public class TwitterDao {
 		}
 	}
 
+	/**
+	 * Loads the specified columns of all rows of an entity with the given IDs, using one query per chunk of IDs.
+	 * @return the rows indexed by ID, the ID is the first column of each row
+	 */
+	private static Map<Long, Object[]> loadExistingRows(Session session, String query, Collection<Long> ids) {
+		Map<Long, Object[]> rows = new HashMap<Long, Object[]>();
+		List<Long> chunk = new ArrayList<Long>(Math.min(ids.size(), maxIdsPerQuery));
+		Iterator<Long> it = ids.iterator();
+		while (it.hasNext()) {
+			chunk.add(it.next());
+			if ((chunk.size() == maxIdsPerQuery) || !it.hasNext()) {
+				List<?> result = session.createQuery(query).setParameterList("ids", chunk).list();
+				for (Object o : result) {
+					Object[] row = (Object[]) o;
+					rows.put((Long) row[0], row);
+				}
+				chunk.clear();
+			}
+		}
+		return rows;
+	}
+
 	public static void saveUsers(Collection<TwitterUser> users) throws SQLException, IOException {
+		if (users.isEmpty())
+			return;
+
 		Session session = sessionFactory.openSession();
 		try {
 			Transaction transaction = session.beginTransaction();
+			List<Long> ids = new ArrayList<Long>(users.size());
+			for (TwitterUser user : users)
+				ids.add(user.getId());
+			Map<Long, Object[]> oldUsers = loadExistingRows(session,
+					"select id, firstCrawledAt, detectedLanguage from TwitterUser where id in (:ids)", ids);
+
 			for (TwitterUser user : users) {
-				TwitterUser oldUser = getUser(user.getId());
+				Object[] oldUser = oldUsers.get(user.getId());
 				if (oldUser != null) {
-					if (oldUser.getFirstCrawledAt().before(user.getFirstCrawledAt()))
-						user.setFirstCrawledAt(oldUser.getFirstCrawledAt());
+					Date oldFirstCrawledAt = (Date) oldUser[1];
+					if (oldFirstCrawledAt.before(user.getFirstCrawledAt()))
+						user.setFirstCrawledAt(oldFirstCrawledAt);
 					if (user.getDetectedLanguage() == null)
-						user.setDetectedLanguage(oldUser.getDetectedLanguage());
+						user.setDetectedLanguage((String) oldUser[2]);
+					session.update(user);
+				} else {
+					session.save(user);
 				}
-				session.saveOrUpdate(user);
 			}
 			transaction.commit();
 		} finally {
@@ -117,14 +166,23 @@ public class TwitterDao {
 	}
 
 	public static void saveTweets(Collection<Tweet> tweets) {
+		if (tweets.isEmpty())
+			return;
+
 		Session session = sessionFactory.openSession();
 		try {
 			Transaction transaction = session.beginTransaction();
+			List<Long> ids = new ArrayList<Long>(tweets.size());
+			for (Tweet tweet : tweets)
+				ids.add(tweet.getId());
+			Map<Long, Object[]> oldTweets = loadExistingRows(session,
+					"select id, firstCrawledAt, retweetCount from Tweet where id in (:ids)", ids);
+
 			for (Tweet tweet : tweets) {
-				Tweet oldTweet = (Tweet) session.byId(Tweet.class).load(tweet.getId());
+				Object[] oldTweet = oldTweets.get(tweet.getId());
 				if (oldTweet != null) {
-					tweet.setFirstCrawledAt(oldTweet.getFirstCrawledAt());
-					tweet.setRetweetCount(Math.max(tweet.getRetweetCount(), oldTweet.getRetweetCount()));
+					tweet.setFirstCrawledAt((Date) oldTweet[1]);
+					tweet.setRetweetCount(Math.max(tweet.getRetweetCount(), (Long) oldTweet[2]));
 					/*
 					if (tweet.getJSONSource() == null && oldTweet.getJSONSource() != null)
 						tweet.setJSONSource(oldTweet.getJSONSource());
@@ -1,46 +1,302 @@
 package edu.tum.cs.crawling.twitter.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import edu.tum.cs.crawling.twitter.protocol.BinaryProtocol;
+import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject;
+import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject;
+import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject.ServerStatus;
 import edu.tum.cs.util.LogConfigurator;
 
 public class TwitterDumperServer extends LogConfigurator {
 
-	/** Thread/Runnable that accepts client requests */
+	private static final Logger logger = Logger.getLogger(TwitterDumperServer.class.getName());
+
+	/**
+	 * Thread/Runnable that accepts client connections and reads requests using a single selector. Complete requests
+	 * are passed to a bounded pool of worker threads. If the queue of the pool is full, the request is answered with
+	 * {@link ServerStatus#RETRY} instead.
+	 */
 	private static class NetworkService implements Runnable {
-		private final ServerSocket serverSocket;
-		private final ExecutorService pool;
+		private final Selector selector;
+		private final ServerSocketChannel serverChannel;
+		private final ThreadPoolExecutor pool;
+		private final ServerStats stats;
+		/** keys of channels with a response that is ready to be sent, filled by the worker threads */
+		private final Queue<SelectionKey> pendingResponses = new ConcurrentLinkedQueue<SelectionKey>();
+		private final List<ClientChannel> javaSerializationClients = new ArrayList<ClientChannel>();
+		private long lastMaintenance = System.currentTimeMillis();
 
-		public NetworkService(ExecutorService pool, ServerSocket serverSocket) {
-			this.serverSocket = serverSocket;
+		public NetworkService(ThreadPoolExecutor pool, ServerStats stats, int port) throws IOException {
 			this.pool = pool;
+			this.stats = stats;
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().bind(new InetSocketAddress(port));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		}
+
+		private class RequestTask implements Runnable {
+			private final SelectionKey key;
+			private final byte[] frame;
+
+			public RequestTask(SelectionKey key, byte[] frame) {
+				this.key = key;
+				this.frame = frame;
+			}
+
+			@Override
+			public void run() {
+				ClientChannel cc = (ClientChannel) key.attachment();
+				ByteBuffer response = null;
+				try {
+					ServerResponseObject sro;
+					try {
+						ClientRequestObject cro =
+								BinaryProtocol.decodeRequest(BinaryProtocol.readFrame(new ByteArrayInputStream(frame)));
+						sro = TwitterDumperServerHandler.processRequest(cro, addIdsToWaitingList, journal);
+					} catch (IOException ex) {
+						logger.log(Level.SEVERE, "Could not decode request", ex);
+						sro = errorResponse();
+					}
+					response = encodeResponse(sro, cc.compress);
+				} catch (RuntimeException ex) {
+					logger.log(Level.SEVERE, "Could not process request", ex);
+					response = encodeResponse(errorResponse(), cc.compress);
+				} finally {
+					stats.inFlightRequests.decrementAndGet();
+					stats.completedRequests.incrementAndGet();
+					// always hand the connection back to the selector, it is closed there if there is no response
+					cc.setResponse(response);
+					pendingResponses.add(key);
+					selector.wakeup();
+				}
+			}
+		}
+
+		private static ServerResponseObject errorResponse() {
+			ServerResponseObject sro = new ServerResponseObject();
+			sro.setStatus(ServerStatus.STATUS_ERROR);
+			return sro;
+		}
+
+		private static ByteBuffer encodeResponse(ServerResponseObject sro, boolean compress) {
+			try {
+				ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				BinaryProtocol.writeFrame(buf, BinaryProtocol.encodeResponse(sro), compress);
+				return ByteBuffer.wrap(buf.toByteArray());
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);	// cannot happen with a ByteArrayOutputStream
+			}
+		}
+
+		private void accept() throws IOException {
+			SocketChannel sc = serverChannel.accept();
+			if (sc == null)
+				return;
+			sc.configureBlocking(false);
+			sc.socket().setTcpNoDelay(true);
+			sc.register(selector, SelectionKey.OP_READ, new ClientChannel(sc));
+			stats.openConnections.incrementAndGet();
+		}
+
+		private void read(SelectionKey key) throws IOException {
+			ClientChannel cc = (ClientChannel) key.attachment();
+			byte[] frame = cc.read();
+			if (cc.isJavaSerialization()) {
+				key.cancel();
+				javaSerializationClients.add(cc);
+				return;
+			}
+			if (frame == null)
+				return;
+
+			// do not read the next request before this one has been answered
+			cc.isProcessing = true;
+			key.interestOps(0);
+			stats.inFlightRequests.incrementAndGet();
+			try {
+				pool.execute(new RequestTask(key, frame));
+			} catch (RejectedExecutionException ex) {
+				stats.inFlightRequests.decrementAndGet();
+				stats.rejectedRequests.incrementAndGet();
+				ServerResponseObject sro = new ServerResponseObject();
+				sro.setStatus(ServerStatus.RETRY);
+				cc.setResponse(encodeResponse(sro, cc.compress));
+				write(key);
+			}
+		}
+
+		private void write(SelectionKey key) throws IOException {
+			ClientChannel cc = (ClientChannel) key.attachment();
+			if (cc.write())
+				key.interestOps(SelectionKey.OP_READ);
+			else
+				key.interestOps(SelectionKey.OP_WRITE);
+		}
+
+		private void close(SelectionKey key) {
+			key.cancel();
+			if (key.attachment() instanceof ClientChannel) {
+				((ClientChannel) key.attachment()).close();
+				stats.openConnections.decrementAndGet();
+			}
+		}
+
+		/**
+		 * Clients using Java serialization are served by a blocking {@link TwitterDumperServerHandler}.
+		 */
+		private void handOverJavaSerializationClients() throws IOException {
+			if (javaSerializationClients.isEmpty())
+				return;
+
+			selector.selectNow();	// deregisters the canceled keys, so that the channels can be made blocking
+			for (ClientChannel cc : javaSerializationClients) {
+				stats.openConnections.decrementAndGet();
+				try {
+					cc.channel.configureBlocking(true);
+					pool.execute(new TwitterDumperServerHandler(cc.channel.socket(), cc.getReceivedBytes(),
+							addIdsToWaitingList, journal));
+				} catch (IOException ex) {
+					logger.log(Level.WARNING, "Could not hand over connection", ex);
+					cc.close();
+				} catch (RejectedExecutionException ex) {
+					// the client cannot be told to retry, it will reconnect after an error
+					stats.rejectedRequests.incrementAndGet();
+					cc.close();
+				}
+			}
+			javaSerializationClients.clear();
+		}
+
+		private void closeIdleConnections() {
+			long now = System.currentTimeMillis();
+			for (SelectionKey key : selector.keys()) {
+				if (key.isValid() && (key.attachment() instanceof ClientChannel)) {
+					ClientChannel cc = (ClientChannel) key.attachment();
+					if (!cc.isProcessing && ((now - cc.lastActivity) > idleTimeoutMs)) {
+						logger.info("Closing idle connection from " + cc.channel.socket().getRemoteSocketAddress());
+						close(key);
+					}
+				}
+			}
 		}
 
 		@Override
 		public void run() {
 			try {
-				// Wait for client requests in infinite loop. SIGINT causes the ServerSocket to be shut down, which in
-				// turn causes ServerSocket#accept to throw an IOException that breaks out of the loop.
+				// Wait for client requests in infinite loop. SIGINT causes this thread to be interrupted, which in turn
+				// causes Selector#select to return.
 				while (!Thread.interrupted()) {
-					Socket cs = serverSocket.accept(); // wait for client request
+					selector.select(maintenanceIntervalMs);
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						try {
+							if (!key.isValid())
+								continue;
+							if (key.isAcceptable()) {
+								accept();
+							} else {
+								if (key.isReadable())
+									read(key);
+								if (key.isValid() && key.isWritable())
+									write(key);
+							}
+						} catch (IOException ex) {
+							logger.log(Level.FINE, "Closing connection", ex);
+							close(key);
+						}
+					}
+
+					SelectionKey key;
+					while ((key = pendingResponses.poll()) != null) {
+						if (!key.isValid())
+							continue;	// connection has been closed while the request was processed
+						if (!((ClientChannel) key.attachment()).hasResponse()) {
+							close(key);
+							continue;
+						}
+						try {
+							write(key);
+						} catch (IOException ex) {
+							logger.log(Level.FINE, "Closing connection", ex);
+							close(key);
+						}
+					}
 
-					// start handler thread for processing the client request
-					pool.execute(new TwitterDumperServerHandler(cs, TwitterDumperServer.addIdsToWaitingList));
+					handOverJavaSerializationClients();
+
+					if ((System.currentTimeMillis() - lastMaintenance) >= maintenanceIntervalMs) {
+						closeIdleConnections();
+						logger.info(stats.toString());
+						lastMaintenance = System.currentTimeMillis();
+					}
 				}
 			} catch (IOException ex) {
-				// ignore
+				logger.log(Level.SEVERE, "Network service failed", ex);
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					try {
+						key.channel().close();
+					} catch (IOException ex) {
+						// ignore
+					}
+				}
+				try {
+					selector.close();
+				} catch (IOException ex) {
+					// ignore
+				}
 			}
 		}
 	}
 
 	public static final int port = 3141;
 
+	/** number of requests that may be processed concurrently, should not exceed the size of the DB connection pool */
+	private static final int numWorkers =
+			Integer.getInteger("edu.tum.cs.crawling.twitter.server.workers", 12);
+	/** number of requests that may wait for a worker before clients are told to retry */
+	private static final int maxQueuedRequests =
+			Integer.getInteger("edu.tum.cs.crawling.twitter.server.queueSize", 64);
+	/** clients may wait for the rate limit to reset between two requests */
+	private static final long idleTimeoutMs = 30 * 60 * 1000;
+	private static final long maintenanceIntervalMs = 60 * 1000;
+	/** directory of the write-behind journal for delivered tweets and users, empty to store them synchronously */
+	private static final String journalDir = System.getProperty("edu.tum.cs.crawling.twitter.journal", "journal");
+	private static final int numJournalWriters =
+			Integer.getInteger("edu.tum.cs.crawling.twitter.server.journalWriters", 2);
+
 	private static boolean addIdsToWaitingList = true;
+	private static DeliveryJournal journal;
 	private static Thread t1;
 
 	public static void terminate() {
@@ -48,33 +304,54 @@ public class TwitterDumperServer extends LogConfigurator {
 	}
 
 	/**
-	 * Server listens on port 3141, each client request is handled by a thread from a thread pool. Server can be stopped
-	 * by sending SIGINT (Ctrl+C).
+	 * Server listens on port 3141, each client request is handled by a thread from a bounded thread pool. Server can
+	 * be stopped by sending SIGINT (Ctrl+C).
 	 */
 	public static void main(String[] args) throws IOException {
 		if (args.length > 0)
 			addIdsToWaitingList = Boolean.parseBoolean(args[0]);
 
-		final ExecutorService pool = Executors.newCachedThreadPool();
-		final ServerSocket serverSocket = new ServerSocket(port);
+		// load the deduplication state before accepting the first request
+		final IdBroker idBroker = IdBroker.getInstance();
 
-		t1 = new Thread(new NetworkService(pool, serverSocket));
+		if (!journalDir.isEmpty())
+			journal = new DeliveryJournal(new File(journalDir), numJournalWriters, addIdsToWaitingList);
+
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(numWorkers, numWorkers, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(maxQueuedRequests));
+		ServerStats stats = new ServerStats(pool);
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(stats,
+					new ObjectName("edu.tum.cs.crawling.twitter:type=ServerStats"));
+		} catch (JMException ex) {
+			logger.log(Level.WARNING, "Could not register server statistics", ex);
+		}
+
+		t1 = new Thread(new NetworkService(pool, stats, port));
 		t1.start();
 
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
 			public void run() {
 				System.out.println("terminating server");
+				terminate();
 				pool.shutdown();
 				try {
 					pool.awaitTermination(4L, TimeUnit.SECONDS);
-					if (!serverSocket.isClosed())
-						serverSocket.close();
-				} catch (IOException e) {
-					// ignore
+					// deliveries that have not been stored yet are replayed on the next start
+					if (journal != null)
+						journal.close();
 				} catch (InterruptedException e) {
 					// ignore
 				}
+
+				try {
+					idBroker.saveSnapshot();
+				} catch (SQLException e) {
+					System.err.println("error writing ID snapshot: " + e.getMessage());
+				} catch (IOException e) {
+					System.err.println("error writing ID snapshot: " + e.getMessage());
+				}
 			}
 		});
 	}
@@ -1,8 +1,13 @@
 package edu.tum.cs.crawling.twitter.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.Socket;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -11,6 +16,11 @@ import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject;
 import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject;
 import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject.ServerStatus;
 
+/**
+ * Executes the requests of the dumper clients. Clients using the binary protocol are served by
+ * {@link TwitterDumperServer}, which calls {@link #processRequest} from its worker threads; clients still using Java
+ * serialization send a single request per connection, which is handled by an instance of this class.
+ */
 class TwitterDumperServerHandler implements Runnable {
 
 	private static final Logger logger = Logger.getLogger(TwitterDumperServerHandler.class.getName());
@@ -18,92 +28,33 @@ class TwitterDumperServerHandler implements Runnable {
 	private static final IdBroker idBroker = IdBroker.getInstance();
 
 	private final Socket client;
+	private final byte[] prefix;
 	private final boolean addIdsToWaitingList;
-
-	public TwitterDumperServerHandler(Socket client, boolean addIdsToWaitingList) {
+	private final DeliveryJournal journal;
+
+	/**
+	 * Handles a single request of a client using Java serialization.
+	 * @param prefix bytes that have already been read from the socket
+	 */
+	public TwitterDumperServerHandler(Socket client, byte[] prefix, boolean addIdsToWaitingList,
+			DeliveryJournal journal) {
 		this.client = client;
+		this.prefix = prefix;
 		this.addIdsToWaitingList = addIdsToWaitingList;
+		this.journal = journal;
 	}
 
 	@Override
 	public void run() {
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(client.getOutputStream());
-			ObjectInputStream ois = new ObjectInputStream(client.getInputStream());
-
+			OutputStream os = new BufferedOutputStream(client.getOutputStream());
+			ObjectOutputStream oos = new ObjectOutputStream(os);
+			oos.flush();	// the client's ObjectInputStream waits for the stream header
+			ObjectInputStream ois = new ObjectInputStream(new SequenceInputStream(new ByteArrayInputStream(prefix),
+					new BufferedInputStream(client.getInputStream())));
 			ClientRequestObject cro = (ClientRequestObject) ois.readObject();
-			ServerResponseObject sro = new ServerResponseObject();
-
-			switch (cro.getRequestType()) {
-			case REQUEST_IDS:
-				try {
-					sro = idBroker.getIds(cro.getNumberOfIds());
-					sro.setStatus(ServerStatus.DELIVER_IDS);
-				} catch (Throwable e) {
-					logger.log(Level.SEVERE, "Could not handle REQUEST_IDS request", e);
-					sro.setStatus(ServerStatus.STATUS_ERROR);
-				}
-				break;
-
-			case DELIVER_TWEETS_AND_USERS:
-				try {
-					logger.info("Got " + cro.getUsers().size() + " users and " + cro.getTweets().size() +
-							" tweets: " + cro.hashCode());
-					TwitterDao.saveUsers(cro.getUsers());
-					TwitterDao.saveTweets(cro.getTweets());
-					idBroker.extractIds(cro, addIdsToWaitingList);
-					sro.setStatus(ServerStatus.OK);
-					logger.info("Saved: " + cro.hashCode());
-				} catch (Throwable e) {
-					logger.log(Level.SEVERE, "Could not handle DELIVER_TWEETS_AND_USERS request", e);
-					sro.setStatus(ServerStatus.STATUS_ERROR);
-				}
-				break;
-
-			case DELIVER_FOLLOWERS_AND_FRIENDS:
-				try {
-					logger.info("Got " + cro.getUsers().size() + " users: " + cro.hashCode());
-					TwitterDao.saveFollowersAndFriends(cro.getUsers());
-					idBroker.extractIds(cro, addIdsToWaitingList);
-					sro.setStatus(ServerStatus.OK);
-					logger.info("Saved: " + cro.hashCode());
-				} catch (Throwable e) {
-					logger.log(Level.SEVERE, "Could not handle DELIVER_FOLLOWERS_AND_FRIENDS request", e);
-					sro.setStatus(ServerStatus.STATUS_ERROR);
-				}
-				break;
-
-			case REQUEST_IDS_FOR_FURTHER_TWEETS:
-				try {
-					sro = idBroker.getIdsForFurtherCrawling(cro.getNumberOfIds());
-					sro.setStatus(ServerStatus.DELIVER_IDS);
-				} catch (Throwable e) {
-					logger.log(Level.SEVERE, "Could not handle REQUEST_IDS_FOR_FURTHER_TWEETS request", e);
-					sro.setStatus(ServerStatus.STATUS_ERROR);
-				}
-				break;
-
-			case REQUEST_IDS_FOR_FOLLOWER_FRIENDS:
-				try {
-					sro = idBroker.getIdsForFollowerFriends(cro.getNumberOfIds());
-					sro.setStatus(ServerStatus.DELIVER_IDS);
-				} catch (Throwable e) {
-					logger.log(Level.SEVERE, "Could not handle REQUEST_IDS_FOR_FOLLOWER_FRIENDS request", e);
-				}
-				break;
-
-			case UNKNOWN:
-			default:
-				logger.warning("Unknown cro.getRequestType(): " + cro.getRequestType());
-				sro.setStatus(ServerStatus.STATUS_ERROR);
-				break;
-			}
-
-			oos.writeObject(sro);
+			oos.writeObject(processRequest(cro, addIdsToWaitingList, journal));
 			oos.flush();
-			oos.close();
-			ois.close();
-			client.close();
 		} catch (IOException e) {
 			logger.log(Level.SEVERE, "IOException:" + e.getMessage(), e);
 		} catch (ClassNotFoundException e) {
@@ -119,4 +70,84 @@ class TwitterDumperServerHandler implements Runnable {
 		}
 	}
 
+	/**
+	 * @param journal if not null, tweets and users are stored asynchronously via the journal
+	 */
+	static ServerResponseObject processRequest(ClientRequestObject cro, boolean addIdsToWaitingList,
+			DeliveryJournal journal) {
+		ServerResponseObject sro = new ServerResponseObject();
+
+		switch (cro.getRequestType()) {
+		case REQUEST_IDS:
+			try {
+				sro = idBroker.getIds(cro.getNumberOfIds());
+			} catch (Throwable e) {
+				logger.log(Level.SEVERE, "Could not handle REQUEST_IDS request", e);
+				sro.setStatus(ServerStatus.STATUS_ERROR);
+			}
+			break;
+
+		case DELIVER_TWEETS_AND_USERS:
+			try {
+				logger.info("Got " + cro.getUsers().size() + " users and " + cro.getTweets().size() +
+						" tweets: " + cro.hashCode());
+				if (journal != null) {
+					journal.append(cro);
+					sro.setStatus(ServerStatus.OK);
+					logger.info("Journaled: " + cro.hashCode());
+				} else {
+					TwitterDao.saveUsers(cro.getUsers());
+					TwitterDao.saveTweets(cro.getTweets());
+					idBroker.extractIds(cro, addIdsToWaitingList);
+					sro.setStatus(ServerStatus.OK);
+					logger.info("Saved: " + cro.hashCode());
+				}
+			} catch (Throwable e) {
+				logger.log(Level.SEVERE, "Could not handle DELIVER_TWEETS_AND_USERS request", e);
+				sro.setStatus(ServerStatus.STATUS_ERROR);
+			}
+			break;
+
+		case DELIVER_FOLLOWERS_AND_FRIENDS:
+			try {
+				logger.info("Got " + cro.getUsers().size() + " users: " + cro.hashCode());
+				TwitterDao.saveFollowersAndFriends(cro.getUsers());
+				idBroker.extractIds(cro, addIdsToWaitingList);
+				sro.setStatus(ServerStatus.OK);
+				logger.info("Saved: " + cro.hashCode());
+			} catch (Throwable e) {
+				logger.log(Level.SEVERE, "Could not handle DELIVER_FOLLOWERS_AND_FRIENDS request", e);
+				sro.setStatus(ServerStatus.STATUS_ERROR);
+			}
+			break;
+
+		case REQUEST_IDS_FOR_FURTHER_TWEETS:
+			try {
+				sro = idBroker.getIdsForFurtherCrawling(cro.getNumberOfIds());
+				sro.setStatus(ServerStatus.DELIVER_IDS);
+			} catch (Throwable e) {
+				logger.log(Level.SEVERE, "Could not handle REQUEST_IDS_FOR_FURTHER_TWEETS request", e);
+				sro.setStatus(ServerStatus.STATUS_ERROR);
+			}
+			break;
+
+		case REQUEST_IDS_FOR_FOLLOWER_FRIENDS:
+			try {
+				sro = idBroker.getIdsForFollowerFriends(cro.getNumberOfIds());
+				sro.setStatus(ServerStatus.DELIVER_IDS);
+			} catch (Throwable e) {
+				logger.log(Level.SEVERE, "Could not handle REQUEST_IDS_FOR_FOLLOWER_FRIENDS request", e);
+			}
+			break;
+
+		case UNKNOWN:
+		default:
+			logger.warning("Unknown cro.getRequestType(): " + cro.getRequestType());
+			sro.setStatus(ServerStatus.STATUS_ERROR);
+			break;
+		}
+
+		return sro;
+	}
+
 }
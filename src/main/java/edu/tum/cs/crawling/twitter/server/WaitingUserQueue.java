@@ -0,0 +1,180 @@
+package edu.tum.cs.crawling.twitter.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Prefetching frontier for the table "waiting_user": A background thread reserves the users with the earliest
+ * "first_occurrence" in batches and keeps them in a bounded in-memory queue. Requests for IDs are served from the
+ * queue without touching the database, so concurrent clients do not have to wait for each other's queries.
+ * Reservations of users that are still in the queue when the server stops are reset by {@link IdBroker} on the next
+ * start.
+ */
+class WaitingUserQueue implements Runnable {
+
+	public static class Entry {
+		/** 0 if only the screen name is known */
+		public final long userId;
+		public final String screenName;
+
+		public Entry(long userId, String screenName) {
+			this.userId = userId;
+			this.screenName = screenName;
+		}
+	}
+
+	private static final Logger logger = Logger.getLogger(WaitingUserQueue.class.getName());
+
+	/** time to wait before querying the database again if there are no unreserved users */
+	private static final long idleWaitMs = 5000;
+
+	private final BlockingQueue<Entry> queue;
+	private final int capacity;
+	private final Object refillLock = new Object();
+	private boolean refillRequested = false;
+	/** whether the last query found no unreserved users; false until the first query has succeeded */
+	private volatile boolean exhausted = false;
+
+	private Connection c;
+	private PreparedStatement psSelectUsers;
+	private PreparedStatement psUpdateUserIdReserved;
+	private PreparedStatement psUpdateScreenNameReserved;
+
+	public WaitingUserQueue(int capacity) {
+		this.capacity = capacity;
+		this.queue = new ArrayBlockingQueue<Entry>(capacity);
+	}
+
+	/**
+	 * Removes up to the specified number of users from the queue. If the queue is empty, waits until the background
+	 * thread has loaded more users or the timeout has expired.
+	 * @return the reserved users, an empty list if there are no unreserved users in the database, or null if the
+	 *         background thread has not loaded any users within the timeout (because it is slow, or the database is
+	 *         not available), but there may still be unreserved users
+	 */
+	public List<Entry> take(int numberOfIds, long timeoutMs) throws InterruptedException {
+		List<Entry> entries = new ArrayList<Entry>(numberOfIds);
+		queue.drainTo(entries, numberOfIds);
+		if (queue.size() < (capacity / 2))
+			requestRefill();
+
+		if (entries.isEmpty()) {
+			Entry entry = queue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+			if (entry != null) {
+				entries.add(entry);
+				queue.drainTo(entries, numberOfIds - 1);
+			} else if (!exhausted)
+				return null;
+		}
+		return entries;
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+	private void requestRefill() {
+		synchronized (refillLock) {
+			refillRequested = true;
+			refillLock.notify();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.interrupted()) {
+				int free = capacity - queue.size();
+				boolean foundUsers = false;
+				if (free >= (capacity / 2)) {
+					try {
+						List<Entry> entries = reserveUsers(free);
+						// this thread is the only producer, so there is always enough room in the queue
+						queue.addAll(entries);
+						foundUsers = !entries.isEmpty();
+						exhausted = !foundUsers;
+					} catch (SQLException ex) {
+						logger.log(Level.SEVERE, "Could not reserve users from 'waiting_user'", ex);
+						closeConnection();	// reconnect on the next attempt
+					}
+				}
+
+				synchronized (refillLock) {
+					if (!refillRequested && !(foundUsers && (queue.size() < (capacity / 2))))
+						refillLock.wait(idleWaitMs);
+					refillRequested = false;
+				}
+			}
+		} catch (InterruptedException ex) {
+			// terminate
+		} finally {
+			closeConnection();
+		}
+	}
+
+	/**
+	 * Selects the specified number of unreserved users in order of their first occurrence, and marks them as
+	 * reserved.
+	 */
+	protected List<Entry> reserveUsers(int numberOfIds) throws SQLException {
+		if (c == null) {
+			c = TwitterDao.getConnection();
+			psSelectUsers = c.prepareStatement("SELECT user_id, screen_name FROM waiting_user " +
+					"WHERE is_reserved = 0 AND is_crawled = 0 AND is_failed = 0 " +
+					"ORDER BY first_occurrence ASC LIMIT ?");
+			psUpdateUserIdReserved = c.prepareStatement(
+					"UPDATE waiting_user SET is_reserved = 1 WHERE user_id = ?");
+			psUpdateScreenNameReserved = c.prepareStatement(
+					"UPDATE waiting_user SET is_reserved = 1 WHERE screen_name = ?");
+		}
+
+		List<Entry> entries = new ArrayList<Entry>(numberOfIds);
+		psSelectUsers.setInt(1, numberOfIds);
+		ResultSet rs = psSelectUsers.executeQuery();
+		try {
+			while (rs.next())
+				entries.add(new Entry(rs.getLong(1), rs.getString(2)));
+		} finally {
+			rs.close();
+		}
+
+		boolean hasUserIds = false, hasScreenNames = false;
+		for (Entry entry : entries) {
+			if (entry.userId == 0) {
+				psUpdateScreenNameReserved.setString(1, entry.screenName);
+				psUpdateScreenNameReserved.addBatch();
+				hasScreenNames = true;
+			} else {
+				psUpdateUserIdReserved.setLong(1, entry.userId);
+				psUpdateUserIdReserved.addBatch();
+				hasUserIds = true;
+			}
+		}
+		if (hasUserIds)
+			psUpdateUserIdReserved.executeBatch();
+		if (hasScreenNames)
+			psUpdateScreenNameReserved.executeBatch();
+		return entries;
+	}
+
+	private void closeConnection() {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (SQLException ex) {
+				logger.log(Level.WARNING, "Could not close connection", ex);
+			}
+			c = null;
+		}
+	}
+
+}
@@ -17,9 +17,6 @@ import org.apache.james.mime4j.dom.Header;
 import org.apache.james.mime4j.dom.Message;
 import org.apache.james.mime4j.stream.Field;
 
-import com.cybozu.labs.langdetect.Detector;
-import com.cybozu.labs.langdetect.DetectorFactory;
-import com.cybozu.labs.langdetect.LangDetectException;
 import com.pff.PSTMessage;
 import com.pff.PSTRecipient;
 
@@ -55,20 +52,6 @@ public class HackingTeamExporter extends EmailProcessor {
 		this.targetLanguage = targetLanguage;
 	}
 
-	private static String detectLanguage(String text) {
-		String lang = "unknown";
-		if (!text.isEmpty()) {
-			try {
-				Detector languageDetector = DetectorFactory.create();
-				languageDetector.append(text);
-				lang = languageDetector.detect();
-			} catch (LangDetectException ex) {
-				// ignore
-			}
-		}
-		return lang;
-	}
-
 	private SocialMediaUser resolveUser(String address, String name) {
 		if (!((address.indexOf('@') > 0) || address.startsWith("/O="))) {
 			if (!address.isEmpty())
@@ -162,7 +145,7 @@ public class HackingTeamExporter extends EmailProcessor {
 		sb.append(body);
 		String content = sb.toString();
 
-		if ((targetLanguage != null) && !targetLanguage.equals(detectLanguage(content)))
+		if ((targetLanguage != null) && !targetLanguage.equals(LanguageDetection.detect(content)))
 			return null;
 
 		// extract message ID (generate if missing) & reply chain (using the same heuristic for classifying messages as
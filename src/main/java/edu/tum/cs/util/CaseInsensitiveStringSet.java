@@ -0,0 +1,145 @@
+package edu.tum.cs.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thread-safe set of strings that ignores case, e.g. for Twitter screen names. Strings can be looked up and added as a
+ * region of a larger string, so that no substring has to be created to check whether a string is already known. The
+ * set is divided into independently locked stripes, each an open-addressing hash table with linear probing.
+ * Stored strings are converted to lower case.
+ */
+public class CaseInsensitiveStringSet {
+
+	private static final int numStripes = 64;
+	private static final float loadFactor = 0.6f;
+
+	private static class Stripe {
+		String[] keys = new String[16];
+		int[] hashes = new int[16];
+		int size = 0;
+
+		int find(String s, int start, int end, int hash) {
+			int mask = keys.length - 1;
+			int idx = mix(hash) & mask;
+			int length = end - start;
+			while (keys[idx] != null) {
+				String key = keys[idx];
+				if ((hashes[idx] == hash) && (key.length() == length) && key.regionMatches(true, 0, s, start, length))
+					return idx;
+				idx = (idx + 1) & mask;
+			}
+			return -(idx + 1);
+		}
+
+		void insert(int idx, String key, int hash) {
+			keys[idx] = key;
+			hashes[idx] = hash;
+			if (++size > (keys.length * loadFactor))
+				rehash();
+		}
+
+		private void rehash() {
+			String[] oldKeys = keys;
+			int[] oldHashes = hashes;
+			keys = new String[oldKeys.length * 2];
+			hashes = new int[oldKeys.length * 2];
+			int mask = keys.length - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != null) {
+					int idx = mix(oldHashes[i]) & mask;
+					while (keys[idx] != null)
+						idx = (idx + 1) & mask;
+					keys[idx] = oldKeys[i];
+					hashes[idx] = oldHashes[i];
+				}
+			}
+		}
+	}
+
+	private final Stripe[] stripes = new Stripe[numStripes];
+
+	public CaseInsensitiveStringSet() {
+		for (int i = 0; i < numStripes; i++)
+			stripes[i] = new Stripe();
+	}
+
+	/** hash code that is consistent with {@link String#regionMatches(boolean, int, String, int, int)} */
+	private static int hash(String s, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++)
+			h = 31 * h + Character.toLowerCase(Character.toUpperCase(s.charAt(i)));
+		return h;
+	}
+
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private Stripe getStripe(int hash) {
+		return stripes[(hash ^ (hash >>> 16)) & (numStripes - 1)];
+	}
+
+	public boolean contains(String s) {
+		return contains(s, 0, s.length());
+	}
+
+	public boolean contains(String s, int start, int end) {
+		int hash = hash(s, start, end);
+		Stripe stripe = getStripe(hash);
+		synchronized (stripe) {
+			return stripe.find(s, start, end, hash) >= 0;
+		}
+	}
+
+	/**
+	 * @return true if the string was not contained in the set before
+	 */
+	public boolean add(String s) {
+		return add(s, 0, s.length());
+	}
+
+	/**
+	 * Adds the region [start, end) of the string.
+	 * @return true if the string was not contained in the set before
+	 */
+	public boolean add(String s, int start, int end) {
+		int hash = hash(s, start, end);
+		Stripe stripe = getStripe(hash);
+		synchronized (stripe) {
+			int idx = stripe.find(s, start, end, hash);
+			if (idx >= 0)
+				return false;
+			stripe.insert(-idx - 1, s.substring(start, end).toLowerCase(), hash);
+			return true;
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return a copy of the contents, in lower case
+	 */
+	public List<String> toList() {
+		List<String> list = new ArrayList<String>();
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				for (String key : stripe.keys) {
+					if (key != null)
+						list.add(key);
+				}
+			}
+		}
+		return list;
+	}
+
+}
@@ -0,0 +1,87 @@
+package edu.tum.cs.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only set of long values backed by the output of {@link DeltaEncoding#writeLongs}. The values are only decoded,
+ * into a sorted primitive array, when they are first accessed, so loading a large set that is never read costs nothing
+ * beyond the encoded bytes.
+ */
+public class DeltaEncodedLongSet extends AbstractSet<Long> {
+
+	private final byte[] data;
+	private long[] values;
+
+	public DeltaEncodedLongSet(byte[] data) {
+		this.data = data;
+	}
+
+	/**
+	 * @return the encoded values, which must not be modified
+	 */
+	public byte[] getEncoded() {
+		return data;
+	}
+
+	/**
+	 * @return the values in ascending order, the array must not be modified
+	 */
+	public long[] toLongArray() {
+		if (values == null) {
+			try {
+				values = DeltaEncoding.readLongs(new DataInputStream(new ByteArrayInputStream(data)));
+			} catch (IOException ex) {
+				throw new IllegalStateException("malformed encoded set", ex);
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public int size() {
+		if (values != null)
+			return values.length;
+		try {
+			return (int) DeltaEncoding.readVarLong(new DataInputStream(new ByteArrayInputStream(data)));
+		} catch (IOException ex) {
+			throw new IllegalStateException("malformed encoded set", ex);
+		}
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return (o instanceof Long) && (Arrays.binarySearch(toLongArray(), (Long) o) >= 0);
+	}
+
+	@Override
+	public Iterator<Long> iterator() {
+		final long[] values = toLongArray();
+		return new Iterator<Long>() {
+			private int idx = 0;
+
+			@Override
+			public boolean hasNext() {
+				return idx < values.length;
+			}
+
+			@Override
+			public Long next() {
+				if (idx >= values.length)
+					throw new NoSuchElementException();
+				return values[idx++];
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+}
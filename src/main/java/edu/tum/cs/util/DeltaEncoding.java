@@ -0,0 +1,75 @@
+package edu.tum.cs.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compact encoding of sets of long values: The values are sorted, and the differences between consecutive values are
+ * written as variable-length integers (7 bits per byte, MSB set on all but the last byte). Dense ID sets such as
+ * follower lists typically need 3-5 bytes per value instead of 8.
+ */
+public class DeltaEncoding {
+
+	public static void writeVarLong(DataOutput out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	public static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("malformed variable-length integer");
+	}
+
+	/** ZigZag encoding, so that small negative values also take up few bytes */
+	public static void writeSignedVarLong(DataOutput out, long value) throws IOException {
+		writeVarLong(out, (value << 1) ^ (value >> 63));
+	}
+
+	public static long readSignedVarLong(DataInput in) throws IOException {
+		long value = readVarLong(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Writes the number of values followed by the delta-encoded values. The array is sorted in place.
+	 */
+	public static void writeLongs(DataOutput out, long[] values) throws IOException {
+		Arrays.sort(values);
+		writeVarLong(out, values.length);
+		long prev = 0;
+		for (long value : values) {
+			// the difference of two sorted values is non-negative when interpreted as an unsigned number, even if the
+			// subtraction overflows
+			writeVarLong(out, value - prev);
+			prev = value;
+		}
+	}
+
+	/**
+	 * @return the values written by {@link #writeLongs}, in ascending order
+	 */
+	public static long[] readLongs(DataInput in) throws IOException {
+		long n = readVarLong(in);
+		if ((n < 0) || (n > Integer.MAX_VALUE))
+			throw new IOException("invalid number of values: " + n);
+		long[] values = new long[(int) n];
+		long prev = 0;
+		for (int i = 0; i < values.length; i++) {
+			prev += readVarLong(in);
+			values[i] = prev;
+		}
+		return values;
+	}
+
+}
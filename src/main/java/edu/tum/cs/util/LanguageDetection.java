@@ -2,14 +2,31 @@ package edu.tum.cs.util;
 
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.IOUtils;
 
+import com.cybozu.labs.langdetect.Detector;
 import com.cybozu.labs.langdetect.DetectorFactory;
+import com.cybozu.labs.langdetect.LangDetectException;
 
+/**
+ * Language detection shared by all crawlers and tools. Texts are cut to a maximum length before they are handed to
+ * the detector, and results are cached by a hash of the text, so that duplicate texts are only analyzed once. A
+ * detector cannot be reset, but creating one only copies references to the shared profiles, so every text gets a new
+ * one. All methods are thread-safe.
+ */
 public class LanguageDetection {
 
 	private static final Logger logger = Logger.getLogger(LanguageDetection.class.getName());
@@ -17,9 +34,32 @@ public class LanguageDetection {
 	/** string returned by Detector#detect if the language could not be identified */
 	public static final String UNKNOWN_LANGUAGE = "unknown";
 
-	private static boolean profilesLoaded = false;
+	private static final int numCacheStripes = 16;
+	private static final int cacheSize =
+			Integer.getInteger("edu.tum.cs.util.LanguageDetection.cacheSize", 1 << 16);
 
-	public static void loadProfilesFromResources() {
+	private static volatile boolean profilesLoaded = false;
+	private static volatile int maxTextLength =
+			Integer.getInteger("edu.tum.cs.util.LanguageDetection.maxTextLength", 10000);
+
+	@SuppressWarnings("unchecked")
+	private static final Map<Long, String>[] cache = (Map<Long, String>[]) new Map<?, ?>[numCacheStripes];
+	static {
+		for (int i = 0; i < numCacheStripes; i++) {
+			cache[i] = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+					return size() > (cacheSize / numCacheStripes);
+				}
+			};
+		}
+	}
+
+	private static ExecutorService executor;
+
+	public static synchronized void loadProfilesFromResources() {
 		if (profilesLoaded)
 			return;
 
@@ -45,4 +85,122 @@ public class LanguageDetection {
 		}
 	}
 
+	/**
+	 * Sets the number of characters used from each text for detection, longer texts are cut. Does not affect cached
+	 * results.
+	 */
+	public static void setMaxTextLength(int maxTextLength) {
+		LanguageDetection.maxTextLength = maxTextLength;
+	}
+
+	public static int getMaxTextLength() {
+		return maxTextLength;
+	}
+
+	/**
+	 * @return the language code of the text, or {@link #UNKNOWN_LANGUAGE}
+	 */
+	public static String detect(String text) {
+		return detect(Collections.singletonList(text));
+	}
+
+	/**
+	 * Detects the language of several texts by the same author, e.g. the tweets of a user. Each text is cut to the
+	 * maximum length separately, as by {@link Detector#append(String)}.
+	 * @return the language code of the texts, or {@link #UNKNOWN_LANGUAGE}
+	 */
+	public static String detect(Iterable<String> texts) {
+		if (!profilesLoaded)
+			loadProfilesFromResources();
+
+		// cut each text and hash what remains (64 bit FNV-1a)
+		int maxLength = maxTextLength;
+		List<String> cutTexts = new ArrayList<String>();
+		long hash = 0xcbf29ce484222325L;
+		for (String text : texts) {
+			if (text == null)
+				continue;
+			if (text.length() > maxLength)
+				text = text.substring(0, maxLength);
+			cutTexts.add(text);
+			for (int i = 0; i < text.length(); i++)
+				hash = (hash ^ text.charAt(i)) * 0x100000001b3L;
+			hash = (hash ^ 0xffff) * 0x100000001b3L;
+		}
+		if (cutTexts.isEmpty())
+			return UNKNOWN_LANGUAGE;
+
+		Long key = hash;
+		Map<Long, String> stripe = cache[(int) (hash >>> 60) & (numCacheStripes - 1)];
+		synchronized (stripe) {
+			String language = stripe.get(key);
+			if (language != null)
+				return language;
+		}
+
+		String language = UNKNOWN_LANGUAGE;
+		try {
+			Detector detector = DetectorFactory.create();
+			detector.setMaxTextLength(maxLength);
+			for (String text : cutTexts)
+				detector.append(text);
+			language = detector.detect();
+		} catch (LangDetectException e) {
+			// ignore
+		}
+
+		synchronized (stripe) {
+			stripe.put(key, language);
+		}
+		return language;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "language detection");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Detects the languages of many texts using all processors.
+	 * @return the language codes, in the order of the texts
+	 */
+	public static List<String> detectAll(final List<String> texts) {
+		if (!profilesLoaded)
+			loadProfilesFromResources();
+
+		final String[] languages = new String[texts.size()];
+		int numChunks = Math.min(Runtime.getRuntime().availableProcessors() * 4, texts.size());
+		List<Future<?>> futures = new ArrayList<Future<?>>(numChunks);
+		for (int chunk = 0; chunk < numChunks; chunk++) {
+			final int start = (int) (((long) chunk * texts.size()) / numChunks);
+			final int end = (int) (((long) (chunk + 1) * texts.size()) / numChunks);
+			futures.add(getExecutor().submit(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = start; i < end; i++)
+						languages[i] = detect(texts.get(i));
+				}
+			}));
+		}
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while detecting languages", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+		return Arrays.asList(languages);
+	}
+
 }
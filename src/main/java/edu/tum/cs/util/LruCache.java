@@ -0,0 +1,58 @@
+package edu.tum.cs.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe map with a maximum size, which drops the least recently used entry when it is full.
+ */
+public class LruCache<K, V> {
+
+	private final Map<K, V> map;
+	private long numHits = 0;
+	private long numMisses = 0;
+
+	public LruCache(final int maxSize) {
+		map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return the value of the key, or null if it is not in the cache
+	 */
+	public synchronized V get(K key) {
+		V value = map.get(key);
+		if (value != null)
+			numHits++;
+		else
+			numMisses++;
+		return value;
+	}
+
+	public synchronized void put(K key, V value) {
+		map.put(key, value);
+	}
+
+	public synchronized void putAll(Map<? extends K, ? extends V> entries) {
+		map.putAll(entries);
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	public synchronized long getNumHits() {
+		return numHits;
+	}
+
+	public synchronized long getNumMisses() {
+		return numMisses;
+	}
+
+}
@@ -0,0 +1,146 @@
+package edu.tum.cs.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One stage of a processing pipeline: a bounded input queue and a number of threads that take items from it. A stage
+ * usually hands its results to the next stage, and blocks when that stage's queue is full. The stages of a pipeline
+ * are finished from the first to the last, so that every stage has processed all items when it ends.
+ */
+public abstract class PipelineStage<T> {
+
+	private static final Logger logger = Logger.getLogger(PipelineStage.class.getName());
+
+	private static final Object end = new Object();
+
+	private final String name;
+	private final BlockingQueue<Object> queue;
+	private final Thread[] threads;
+	private final AtomicLong numReceived = new AtomicLong();
+	private final AtomicLong numProcessed = new AtomicLong();
+	private final AtomicLong numFailed = new AtomicLong();
+	private long startTime;
+
+	public PipelineStage(String name, int numThreads, int capacity) {
+		this.name = name;
+		this.queue = new ArrayBlockingQueue<Object>(capacity);
+		this.threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(name + " " + (i + 1)) {
+				@Override
+				public void run() {
+					work();
+				}
+			};
+		}
+	}
+
+	/**
+	 * Processes an item. Exceptions are logged and counted as failures.
+	 */
+	protected abstract void process(T item) throws Exception;
+
+	/**
+	 * Called by each thread when its input has run dry for a second and before it ends, e.g. to write out a batch.
+	 */
+	protected void flush() throws Exception {
+	}
+
+	public void start() {
+		startTime = System.currentTimeMillis();
+		for (Thread thread : threads)
+			thread.start();
+	}
+
+	/**
+	 * Adds an item to the input queue, waits while the queue is full.
+	 */
+	public void put(T item) throws InterruptedException {
+		queue.put(item);
+		numReceived.incrementAndGet();
+	}
+
+	/**
+	 * Waits until all items that were put into this stage are processed, then stops the threads.
+	 */
+	public void finish() throws InterruptedException {
+		for (int i = 0; i < threads.length; i++)
+			queue.put(end);
+		for (Thread thread : threads)
+			thread.join();
+	}
+
+	private void work() {
+		try {
+			while (true) {
+				Object item = queue.poll(1, TimeUnit.SECONDS);
+				if ((item == null) || (item == end)) {
+					try {
+						flush();
+					} catch (Exception ex) {
+						logger.log(Level.SEVERE, name + ": flush failed", ex);
+					}
+					if (item == end)
+						break;
+					continue;
+				}
+
+				try {
+					@SuppressWarnings("unchecked")
+					T t = (T) item;
+					process(t);
+				} catch (Exception ex) {
+					logger.log(Level.SEVERE, name + ": processing failed", ex);
+					numFailed.incrementAndGet();
+				}
+				numProcessed.incrementAndGet();
+			}
+		} catch (InterruptedException ex) {
+			logger.warning(name + ": interrupted");
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getNumReceived() {
+		return numReceived.get();
+	}
+
+	public long getNumProcessed() {
+		return numProcessed.get();
+	}
+
+	public long getNumFailed() {
+		return numFailed.get();
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * @param expectedTotal the number of items this stage is expected to process in total, or 0 if unknown
+	 * @return a line with the number of items, the throughput and the estimated remaining time
+	 */
+	public String getProgress(long expectedTotal) {
+		long processed = numProcessed.get();
+		double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+		double rate = processed / seconds;
+		StringBuilder sb = new StringBuilder(String.format("%s: %d processed, %d failed, %d queued, %.1f/s",
+				name, processed, numFailed.get(), queue.size(), rate));
+		if ((expectedTotal > 0) && (rate > 0)) {
+			long remainingSeconds = (long) (Math.max(0, expectedTotal - processed) / rate);
+			sb.append(String.format(", %d of ~%d, ETA %d:%02d:%02d", processed, expectedTotal,
+					remainingSeconds / 3600, (remainingSeconds / 60) % 60, remainingSeconds % 60));
+		}
+		return sb.toString();
+	}
+
+}
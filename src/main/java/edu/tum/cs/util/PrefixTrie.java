@@ -0,0 +1,87 @@
+package edu.tum.cs.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of prefixes, stored as a trie, that tells whether a string starts with any of them. Checking a string takes
+ * time proportional to the length of the longest matching path, independent of the number of prefixes. Lookups are
+ * thread-safe as long as no prefixes are added concurrently.
+ */
+public class PrefixTrie {
+
+	private static class Node {
+		char[] keys = new char[0];
+		Node[] children = new Node[0];
+		boolean isPrefixEnd = false;
+
+		Node getChild(char key) {
+			int idx = Arrays.binarySearch(keys, key);
+			return (idx >= 0) ? children[idx] : null;
+		}
+
+		Node addChild(char key) {
+			int idx = Arrays.binarySearch(keys, key);
+			if (idx >= 0)
+				return children[idx];
+			idx = -idx - 1;
+			char[] newKeys = new char[keys.length + 1];
+			Node[] newChildren = new Node[children.length + 1];
+			System.arraycopy(keys, 0, newKeys, 0, idx);
+			System.arraycopy(children, 0, newChildren, 0, idx);
+			System.arraycopy(keys, idx, newKeys, idx + 1, keys.length - idx);
+			System.arraycopy(children, idx, newChildren, idx + 1, children.length - idx);
+			Node child = new Node();
+			newKeys[idx] = key;
+			newChildren[idx] = child;
+			keys = newKeys;
+			children = newChildren;
+			return child;
+		}
+	}
+
+	private final Node root = new Node();
+	private int size = 0;
+
+	public PrefixTrie() {
+	}
+
+	public PrefixTrie(String... prefixes) {
+		for (String prefix : prefixes)
+			add(prefix);
+	}
+
+	/**
+	 * @return true if the prefix was not in the set
+	 */
+	public boolean add(String prefix) {
+		Node node = root;
+		for (int i = 0; i < prefix.length(); i++)
+			node = node.addChild(prefix.charAt(i));
+		if (node.isPrefixEnd)
+			return false;
+		node.isPrefixEnd = true;
+		size++;
+		return true;
+	}
+
+	/**
+	 * @return true if the string starts with one of the prefixes
+	 */
+	public boolean matches(String s) {
+		Node node = root;
+		for (int i = 0; ; i++) {
+			if (node.isPrefixEnd)
+				return true;
+			if (i == s.length())
+				return false;
+			node = node.getChild(s.charAt(i));
+			if (node == null)
+				return false;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+}
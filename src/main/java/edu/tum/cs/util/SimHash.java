@@ -0,0 +1,69 @@
+package edu.tum.cs.util;
+
+/**
+ * 64 bit SimHash fingerprints of texts. The features of a text are pairs of consecutive words, compared case
+ * insensitively; texts that share most of their word pairs have fingerprints that differ in few bits. A text with a
+ * single word is represented by that word, an empty text by 0.
+ */
+public class SimHash {
+
+	private static final long fnvOffset = 0xcbf29ce484222325L;
+	private static final long fnvPrime = 0x100000001b3L;
+
+	/** spreads the bits of a hash (the finalizer of MurmurHash3) */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static void addFeature(int[] votes, long hash) {
+		for (int bit = 0; bit < 64; bit++)
+			votes[bit] += (((hash >>> bit) & 1) != 0) ? 1 : -1;
+	}
+
+	public static long fingerprint(CharSequence text) {
+		int[] votes = new int[64];
+		int numFeatures = 0;
+		long prevWord = 0;
+		long word = fnvOffset;
+		boolean inWord = false;
+		boolean havePrevWord = false;
+		for (int i = 0; i <= text.length(); i++) {
+			char ch = (i < text.length()) ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(ch)) {
+				word = (word ^ Character.toLowerCase(ch)) * fnvPrime;
+				inWord = true;
+			} else if (inWord) {
+				if (havePrevWord) {
+					addFeature(votes, mix(prevWord * 31 + word));
+					numFeatures++;
+				}
+				prevWord = word;
+				havePrevWord = true;
+				word = fnvOffset;
+				inWord = false;
+			}
+		}
+		if (numFeatures == 0)
+			return havePrevWord ? mix(prevWord) : 0;
+
+		long fingerprint = 0;
+		for (int bit = 0; bit < 64; bit++) {
+			if (votes[bit] > 0)
+				fingerprint |= 1L << bit;
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * @return the number of bits in which the fingerprints differ
+	 */
+	public static int distance(long fingerprint1, long fingerprint2) {
+		return Long.bitCount(fingerprint1 ^ fingerprint2);
+	}
+
+}
@@ -0,0 +1,86 @@
+package edu.tum.cs.crawling.facebook.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class TestElementIndex {
+
+	private static final String url = "https://www.facebook.com/test";
+
+	private static UserProfileExtractor createExtractor(int numPosts) {
+		return new UserProfileExtractorCurrent("test",
+				Collections.singletonMap(url, TestHtmlDocumentBuilder.createTimelinePage(numPosts)), false);
+	}
+
+	@Test
+	public void testSameAsXPath() {
+		UserProfileExtractor extractor = createExtractor(20);
+		Document doc = extractor.fetchPage(url);
+
+		List<Element> posts = extractor.findElements(doc, "//div[@class=\"bw bx by\"]");
+		assertEquals(20, posts.size());
+		assertEquals(posts, extractor.findElementsByClass(doc, "div", "bw bx by"));
+		int numComments = 0;
+		for (Element post : posts) {
+			List<Element> comments = extractor.findElementsByClass(post, "div", "UFICommentContentBlock");
+			assertEquals(extractor.findElements(post, ".//div[@class=\"UFICommentContentBlock\"]"), comments);
+			numComments += comments.size();
+			assertEquals(extractor.findElements(post, ".//div[@class=\"UFICommentContentBlock\"]/span/a"),
+					extractor.findElementsByClass(post, "div", "UFICommentContentBlock", "./span/a"));
+			assertEquals(extractor.findElements(post, ".//div[@class=\"ca\"]//td/a"),
+					extractor.findElementsByClass(post, "div", "ca", ".//td/a"));
+			assertEquals(extractor.findElement(post, ".//h3[@class=\"cb\"]/strong/a"),
+					extractor.findElementByClass(post, "h3", "cb", "./strong/a"));
+			// not a descendant of itself
+			assertTrue(extractor.findElementsByClass(post, "div", "bw bx by").isEmpty());
+		}
+		assertEquals(30, numComments);
+
+		assertEquals(extractor.findElements(doc, "//div[@id=\"root\"]/div/div"),
+				extractor.findElementsById(doc, "div", "root", "./div/div"));
+		assertEquals(posts.get(3), extractor.findElementById(posts.get(2).getParentNode(), "div", "u_0_3", null));
+		assertNull(extractor.findElementById(posts.get(2), "div", "u_0_3", null));
+		assertNull(extractor.findElementByClass(doc, "span", "UFICommentContentBlock"));
+	}
+
+	@Test
+	public void testBenchmark() {
+		UserProfileExtractor extractor = createExtractor(2000);
+		Document doc = extractor.fetchPage(url);
+		List<Element> posts = extractor.findElements(doc, "//div[@class=\"bw bx by\"]");
+		final int numRuns = 5;
+
+		for (int run = 0; run <= numRuns; run++) {
+			// the first run is the warm-up
+			long start = System.currentTimeMillis();
+			for (Element post : posts) {
+				for (Element comment : extractor.findElements(post, ".//div[@class=\"UFICommentContentBlock\"]"))
+					extractor.findElement(comment, ".//span[@class=\"UFICommentBody\"]");
+				extractor.findElements(post, ".//div[@class=\"UFILikeSentenceText\"]/span/a");
+				extractor.findElement(post, ".//div[@class=\"mtm _5pco\"]");
+			}
+			long xpathTime = System.currentTimeMillis() - start;
+
+			start = System.currentTimeMillis();
+			for (Element post : posts) {
+				for (Element comment : extractor.findElementsByClass(post, "div", "UFICommentContentBlock"))
+					extractor.findElementByClass(comment, "span", "UFICommentBody");
+				extractor.findElementsByClass(post, "div", "UFILikeSentenceText", "./span/a");
+				extractor.findElementByClass(post, "div", "mtm _5pco");
+			}
+			long indexTime = System.currentTimeMillis() - start;
+			if (run > 0)
+				System.err.println(String.format("%d posts: %d ms with XPath, %d ms with index", posts.size(),
+						xpathTime, indexTime));
+		}
+	}
+
+}
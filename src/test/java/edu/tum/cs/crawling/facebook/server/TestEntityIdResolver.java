@@ -0,0 +1,174 @@
+package edu.tum.cs.crawling.facebook.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.tum.cs.crawling.facebook.entities.*;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestEntityIdResolver {
+
+	private static final int numThreads = 8;
+	private static final int numProfilesPerThread = 5;
+	private static final int numPersons = 200;
+	private static final int numFriends = 100;
+
+	private static Connection conn;
+
+	@BeforeClass
+	public static void prepareDatabase() {
+		try {
+			conn = DriverManager.getConnection("jdbc:mysql://localhost/" + TestFacebookDao.dbName,
+					TestFacebookDao.dbUserName, TestFacebookDao.dbPassword);
+		} catch (SQLException ex) {
+			System.err.println("error connecting to test database");
+			ex.printStackTrace();
+		}
+	}
+
+	@Before
+	public void initializeDao() throws Exception {
+		if (conn != null)
+			FacebookDao.initialize("localhost", TestFacebookDao.dbName, TestFacebookDao.dbUserName,
+					TestFacebookDao.dbPassword);
+	}
+
+	@After
+	public void shutdownDao() throws SQLException {
+		if (conn != null)
+			FacebookDao.shutdown();
+	}
+
+	@AfterClass
+	public static void cleanUpDatabase() throws SQLException {
+		if (conn == null)
+			return;
+
+		try {
+			// drop all generated tables
+			Statement st = conn.createStatement();
+			for (String table : TestFacebookDao.tables) {
+				try {
+					st.executeUpdate("drop table " + table);
+				} catch (SQLException ex) {
+					System.err.println("error deleting table '" + table + "' from test database: " + ex.getMessage());
+				}
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	/** a profile whose friends overlap with the ones of the profiles before and after it */
+	private static UserProfile buildProfile(int idx) {
+		Person user = new Person("ru" + idx, "Resolver User " + idx);
+		PersonDetails emptyPersonDetails = new PersonDetails("", "", 'u', 'u', (Date) null,
+				Collections.<String>emptySet(), "", "", "", "", "", "", "", "", "", "", "", "", "",
+				Collections.<FamilyMember>emptySet(), Collections.<EducationItem>emptyList(),
+				Collections.<WorkItem>emptyList());
+		Set<Person> friends = new HashSet<Person>();
+		for (int i = idx * 10; i < idx * 10 + numFriends; i++)
+			friends.add(new Person("rf" + (i % numPersons), "Resolver Friend " + (i % numPersons)));
+		return new UserProfile(user, emptyPersonDetails, Collections.<Post>emptyList(), friends.size(), friends,
+				Collections.<Site>emptySet(), "en");
+	}
+
+	private static int countRows(Statement st, String query) throws SQLException {
+		ResultSet rs = st.executeQuery(query);
+		try {
+			rs.next();
+			return rs.getInt(1);
+		} finally {
+			rs.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentSaves() throws Exception {
+		if (conn == null) {
+			System.err.println("database not available, skipping test");
+			return;
+		}
+
+		// all threads start at once and insert the same persons
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		final AtomicReference<Exception> error = new AtomicReference<Exception>();
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						startSignal.await();
+						for (int i = 0; i < numProfilesPerThread; i++)
+							FacebookDao.saveUserProfile(buildProfile(i * numThreads + thread));
+					} catch (Exception ex) {
+						error.compareAndSet(null, ex);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		startSignal.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		assertNull(error.get());
+
+		// every person is stored once, and every friendship refers to it
+		Statement st = conn.createStatement();
+		assertEquals(numPersons, countRows(st, "select count(*) from person where personFbId like \"rf%\""));
+		assertEquals(numThreads * numProfilesPerThread, countRows(st,
+				"select count(*) from person where personFbId like \"ru%\""));
+		assertEquals(numThreads * numProfilesPerThread * numFriends, countRows(st, "select count(*) from " +
+				"friendswith, person where friendswith.personId=person.personId and person.personFbId like \"ru%\""));
+	}
+
+	@Test
+	public void testTruncatedId() throws Exception {
+		if (conn == null) {
+			System.err.println("database not available, skipping test");
+			return;
+		}
+
+		// the Facebook ID is longer than the column, the inserted row cannot be found: not a conflict to retry
+		StringBuilder fbId = new StringBuilder();
+		while (fbId.length() <= 64)
+			fbId.append("rt");
+		Connection c = FacebookDao.getConnection();
+		try {
+			c.setAutoCommit(false);
+			EntityIdResolver ids = new EntityIdResolver(null);
+			ids.resolve(c);
+			try {
+				ids.getPersonId(fbId.toString(), "Truncated Person");
+				fail("no exception for a truncated ID");
+			} catch (SQLException ex) {
+				assertNotEquals("40001", ex.getSQLState());
+			}
+		} finally {
+			c.rollback();
+			c.close();
+		}
+	}
+
+}
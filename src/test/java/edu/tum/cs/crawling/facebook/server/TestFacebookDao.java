@@ -18,6 +18,7 @@ import java.util.List;
 import java.util.Set;
 
 import edu.tum.cs.crawling.facebook.entities.*;
+import edu.tum.cs.util.LruCache;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -32,13 +33,20 @@ public class TestFacebookDao {
 	 * grant all on crawler_unit_test.* to 'unittest'@'localhost' identified by 'test';
 	 * MySQL has to be configured for full UTF-8 support: character-set-server = utf8mb4
 	 */
-	private static final String dbName = "crawler_unit_test";
-	private static final String dbUserName = "unittest";
-	private static final String dbPassword = "test";
+	static final String dbName = "crawler_unit_test";
+	static final String dbUserName = "unittest";
+	static final String dbPassword = "test";
 
 	private static final int numFakeProfiles = 2;
 
-	private static final String[] tables = {
+	private static final int numBenchmarkProfiles = 10;
+	private static final int numBenchmarkPersons = 5000;
+	private static final int numBenchmarkFriends = 2000;
+	private static final int numBenchmarkPosts = 100;
+	private static final int numBenchmarkLikes = 20;
+	private static final int numBenchmarkComments = 5;
+
+	static final String[] tables = {
 		"sitelikes", "workwithperson", "workproject", "workitem", "educationwithperson", "educationclass",
 		"educationitem", "familymember", "spokenlanguages", "persondetails", "friendswith", "withperson",
 		"mentionedperson", "mentionedsite", "lifeevent", "comment", "likes", "normalpost", "embeddablepost", "photo",
@@ -262,4 +270,86 @@ public class TestFacebookDao {
 		rs.close();
 	}
 
+	private static Set<Person> benchmarkPersons(int first, int count) {
+		Set<Person> persons = new HashSet<Person>();
+		for (int i = first; i < first + count; i++)
+			persons.add(new Person("bf" + (i % numBenchmarkPersons), "Benchmark Person " + (i % numBenchmarkPersons)));
+		return persons;
+	}
+
+	/** a profile with many friends and posts, which overlap with the other benchmark profiles */
+	private static UserProfile buildBenchmarkProfile(int idx) {
+		Person user = new Person("bench" + idx, "Benchmark User " + idx);
+		PersonDetails emptyPersonDetails = new PersonDetails("", "", 'u', 'u', (Date) null,
+				Collections.<String>emptySet(), "", "", "", "", "", "", "", "", "", "", "", "", "",
+				Collections.<FamilyMember>emptySet(), Collections.<EducationItem>emptyList(),
+				Collections.<WorkItem>emptyList());
+		Set<Person> friends = benchmarkPersons(idx * 500, numBenchmarkFriends);
+		Set<Site> sites = new HashSet<Site>();
+		for (int i = 0; i < 50; i++)
+			sites.add(new Site("bs" + (idx + i), "Benchmark Site " + (idx + i)));
+
+		List<Post> posts = new ArrayList<Post>();
+		for (int i = 0; i < numBenchmarkPosts; i++) {
+			int first = idx * 500 + i * numBenchmarkLikes;
+			NormalPost post = new NormalPost(new NormalPostHeader("bp" + idx + "_" + i, NormalPostHeader.Type.NONE,
+					user, new Date(), null, null, benchmarkPersons(first, 2)), "Benchmark post " + i, null,
+					benchmarkPersons(first + 2, 2), Collections.singleton(new Site("bs" + i, "Benchmark Site " + i)));
+			post.getLikes().addAll(benchmarkPersons(first, numBenchmarkLikes));
+			for (int j = 0; j < numBenchmarkComments; j++) {
+				Comment comment = new Comment(new Person("bf" + ((first + j) % numBenchmarkPersons),
+						"Benchmark Person " + ((first + j) % numBenchmarkPersons)), new Date(), "Benchmark comment");
+				comment.getLikes().addAll(benchmarkPersons(first + j, 3));
+				post.getComments().add(comment);
+			}
+			posts.add(post);
+		}
+		return new UserProfile(user, emptyPersonDetails, posts, friends.size(), friends, sites, "en");
+	}
+
+	private static int countRows(Statement st, String query) throws SQLException {
+		ResultSet rs = st.executeQuery(query);
+		try {
+			rs.next();
+			return rs.getInt(1);
+		} finally {
+			rs.close();
+		}
+	}
+
+	/** measures the throughput of saving large profiles */
+	@Test
+	public void testBenchmark() throws Exception {
+		if (conn == null) {
+			System.err.println("database not available, skipping test");
+			return;
+		}
+
+		List<UserProfile> profiles = new ArrayList<UserProfile>(numBenchmarkProfiles);
+		for (int i = 0; i < numBenchmarkProfiles; i++)
+			profiles.add(buildBenchmarkProfile(i));
+		LruCache<String, Integer> personIdCache = new LruCache<String, Integer>(numBenchmarkPersons);
+		long start = System.currentTimeMillis();
+		for (UserProfile profile : profiles)
+			FacebookDao.saveUserProfile(profile, personIdCache);
+		double seconds = Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+		// a post has 7 rows with its mentions, a comment 5 rows with its likes
+		int numRows = numBenchmarkProfiles * (numBenchmarkFriends + numBenchmarkPosts * (7 + numBenchmarkLikes +
+				numBenchmarkComments * 5));
+		System.err.println(String.format("saved %d profiles in %.1f s (%.1f profiles/s, about %.0f rows/s), " +
+				"%d/%d person cache hits", numBenchmarkProfiles, seconds, numBenchmarkProfiles / seconds,
+				numRows / seconds, personIdCache.getNumHits(), personIdCache.getNumHits() +
+				personIdCache.getNumMisses()));
+
+		Statement st = conn.createStatement();
+		assertEquals(numBenchmarkProfiles * numBenchmarkFriends, countRows(st, "select count(*) from friendswith, " +
+				"person where friendswith.personId=person.personId and person.personFbId like \"bench%\""));
+		assertEquals(numBenchmarkProfiles * numBenchmarkPosts * (numBenchmarkLikes + numBenchmarkComments * 3),
+				countRows(st, "select count(*) from likes, post, person where likes.postId=post.postId and " +
+				"post.wallId=person.personId and person.personFbId like \"bench%\""));
+		assertEquals(numBenchmarkProfiles * numBenchmarkPosts * numBenchmarkComments, countRows(st,
+				"select count(*) from comment, post, person where comment.commentId=post.postId and " +
+				"post.wallId=person.personId and person.personFbId like \"bench%\""));
+	}
+
 }
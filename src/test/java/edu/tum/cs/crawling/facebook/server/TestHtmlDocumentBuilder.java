@@ -0,0 +1,182 @@
+package edu.tum.cs.crawling.facebook.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.htmlcleaner.DomSerializer;
+import org.htmlcleaner.HtmlCleaner;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+public class TestHtmlDocumentBuilder {
+
+	/** directory with archived profiles (*.warc.gz) for the benchmark */
+	private static final String archiveDir = System.getProperty("edu.tum.cs.crawling.facebook.benchmarkArchives");
+
+	private static final int numBenchmarkRuns = 5;
+
+	/**
+	 * @return a page that looks like a scrolled timeline of the mobile site
+	 */
+	static String createTimelinePage(int numPosts) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<!DOCTYPE html><html xmlns=\"http://www.w3.org/1999/xhtml\"><head><title>Timeline</title>");
+		sb.append("<style>div.c { color: red; }</style>");
+		sb.append("<script type=\"text/javascript\">/*<![CDATA[*/ var x = 1 < 2 && 3 > 2; /*]]>*/</script></head>");
+		sb.append("<body><div id=\"root\"><div id=\"structured_composer_async_container\">");
+		for (int i = 0; i < numPosts; i++) {
+			sb.append("<div class=\"bw bx by\" id=\"u_0_").append(i).append("\"><div class=\"ca\"><h3 class=\"cb\">");
+			sb.append("<strong><a href=\"/profile.php?id=").append(i).append("&amp;refid=17\">Hans M&uuml;ller ");
+			sb.append(i).append("</a></strong> shared a <a href=\"/story.php?story_fbid=").append(i);
+			sb.append("&amp;id=4\">link</a>.</h3><!-- post ").append(i).append(" -->");
+			sb.append("<div class=\" cc\t\" data-sigil=\"\"><span><p>Caf&eacute; &amp; Bar &#8364; &lt;").append(i);
+			sb.append("&gt;<br>second line<p>unclosed paragraph</span></div>");
+			sb.append("<table class=\"cd\"><tr><td><img src=\"/img/").append(i).append(".jpg\" alt=\"\"></td>");
+			sb.append("<td><a href=\"https://www.example.org/?a=1&amp;b=").append(i).append("\">Example</a></td>");
+			sb.append("</tr></table></div><div class=\"ce\"><abbr>").append(i % 28 + 1);
+			sb.append(" March at 13:37</abbr><span class=\"cf\">&middot;</span><a href=\"/ufi/reaction/?ft_ent_");
+			sb.append("identifier=").append(i).append("&amp;av=1\">").append(i % 50).append(" Likes</a>");
+			sb.append("<a href=\"/story.php?story_fbid=").append(i).append("&amp;id=4&amp;p=0\">Comment</a>");
+			sb.append("</div><div class=\"UFIList\">");
+			for (int j = 0; j < i % 4; j++) {
+				sb.append("<div class=\"UFICommentContentBlock\"><a class=\"UFICommentActorName\" href=\"/c");
+				sb.append(j).append("\">Commenter ").append(j).append("</a><span class=\"UFICommentBody\">Nice ");
+				sb.append("<a href=\"/x\">post</a></span><abbr>Yesterday</abbr></div>");
+			}
+			sb.append("</div></div>\n");
+		}
+		sb.append("</div></div></body></html>");
+		return sb.toString();
+	}
+
+	/**
+	 * Appends an outline of the DOM tree, ignoring comments and node boundaries within text.
+	 */
+	private static void appendOutline(StringBuilder sb, Node node) {
+		if (node.getNodeType() == Node.ELEMENT_NODE) {
+			Element element = (Element) node;
+			sb.append('<').append(element.getNodeName());
+			NamedNodeMap attrs = element.getAttributes();
+			for (int i = 0; i < attrs.getLength(); i++)
+				sb.append(' ').append(attrs.item(i).getNodeName()).append("='").append(attrs.item(i).getNodeValue())
+						.append('\'');
+			sb.append('>');
+			for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling())
+				appendOutline(sb, child);
+			sb.append("</").append(element.getNodeName()).append('>');
+		} else if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE)
+			sb.append(node.getNodeValue());
+	}
+
+	private static String outline(Document doc) {
+		StringBuilder sb = new StringBuilder();
+		appendOutline(sb, doc.getDocumentElement());
+		return sb.toString();
+	}
+
+	private static Document parseWithDomSerializer(String source) throws Exception {
+		HtmlCleaner cleaner = new HtmlCleaner();
+		cleaner.getProperties().setDeserializeEntities(true);
+		return new DomSerializer(cleaner.getProperties(), false).createDOM(cleaner.clean(source));
+	}
+
+	@Test
+	public void testSameAsDomSerializer() throws Exception {
+		String page = createTimelinePage(5);
+		Document expected = parseWithDomSerializer(page);
+		Document actual = new HtmlDocumentBuilder().parse(page);
+		assertEquals(outline(expected), outline(actual));
+		assertEquals(expected.getDocumentElement().getNamespaceURI(), actual.getDocumentElement().getNamespaceURI());
+
+		// attribute values keep their entities, text is decoded
+		Element link = (Element) actual.getElementsByTagName("a").item(0);
+		assertEquals("/profile.php?id=0&amp;refid=17", link.getAttribute("href"));
+		assertEquals("Hans Müller 0", link.getTextContent());
+	}
+
+	/**
+	 * @return the number of bytes allocated by the current thread, or -1 if not supported by the JVM
+	 */
+	private static long getAllocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled())
+				return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static void printRate(String what, String unit, int count, long startTime, long startBytes) {
+		double seconds = Math.max(System.currentTimeMillis() - startTime, 1) / 1000.0;
+		long bytes = getAllocatedBytes() - startBytes;
+		System.err.println(String.format("%s: %d %ss in %.1f s (%.1f %ss/s, %.2f MB allocated per %s, %.0f MB/s)",
+				what, count, unit, seconds, count / seconds, unit, bytes / 1048576.0 / count, unit,
+				bytes / 1048576.0 / seconds));
+	}
+
+	private static void benchmarkParsing(String what, List<String> pages) throws Exception {
+		// warm-up
+		for (String page : pages) {
+			parseWithDomSerializer(page);
+			new HtmlDocumentBuilder().parse(page);
+		}
+
+		long startTime = System.currentTimeMillis();
+		long startBytes = getAllocatedBytes();
+		for (int run = 0; run < numBenchmarkRuns; run++) {
+			for (String page : pages)
+				parseWithDomSerializer(page);
+		}
+		printRate(what + ", HtmlCleaner + DomSerializer", "page", numBenchmarkRuns * pages.size(), startTime,
+				startBytes);
+
+		startTime = System.currentTimeMillis();
+		startBytes = getAllocatedBytes();
+		for (int run = 0; run < numBenchmarkRuns; run++) {
+			HtmlDocumentBuilder builder = new HtmlDocumentBuilder();
+			for (String page : pages)
+				builder.parse(page);
+		}
+		printRate(what + ", HtmlDocumentBuilder", "page", numBenchmarkRuns * pages.size(), startTime, startBytes);
+	}
+
+	@Test
+	public void testBenchmark() throws Exception {
+		List<String> pages = new ArrayList<String>();
+		for (int i = 0; i < 5; i++)
+			pages.add(createTimelinePage(1000));
+		benchmarkParsing("synthetic timelines", pages);
+
+		if (archiveDir == null) {
+			System.err.println("no archive directory given, skipping benchmark of archived profiles");
+			return;
+		}
+		List<WarcArchiver.Archive> archives = new ArrayList<WarcArchiver.Archive>();
+		pages.clear();
+		for (File file : new File(archiveDir).listFiles()) {
+			if (file.getName().endsWith(".warc.gz")) {
+				WarcArchiver.Archive archive = WarcArchiver.loadPageSource(file);
+				archives.add(archive);
+				pages.addAll(archive.pageSource.values());
+			}
+		}
+		benchmarkParsing("archived pages", pages);
+
+		long startTime = System.currentTimeMillis();
+		long startBytes = getAllocatedBytes();
+		for (WarcArchiver.Archive archive : archives)
+			UserProfileExtractor.createExtractor(archive.date, archive.userId, archive.pageSource, true)
+					.extractProfile();
+		printRate("archived profiles", "profile", archives.size(), startTime, startBytes);
+	}
+
+}
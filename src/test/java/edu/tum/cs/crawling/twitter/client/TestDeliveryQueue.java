@@ -0,0 +1,168 @@
+package edu.tum.cs.crawling.twitter.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.tum.cs.crawling.twitter.entities.TwitterUser;
+import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject;
+import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject.ClientRequestType;
+import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject;
+import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject.ServerStatus;
+
+public class TestDeliveryQueue {
+
+	/** server that can be switched off, remembers the users it received and rejects the users in rejectedUsers */
+	private static class FakeServer implements DeliveryQueue.Sender {
+		final Set<Long> receivedUsers = Collections.synchronizedSet(new HashSet<Long>());
+		final Set<Long> rejectedUsers = Collections.synchronizedSet(new HashSet<Long>());
+		volatile boolean reachable;
+		volatile ServerStatus status = ServerStatus.OK;
+
+		FakeServer(boolean reachable) {
+			this.reachable = reachable;
+		}
+
+		@Override
+		public ServerResponseObject sendRequest(ClientRequestObject cro) throws IOException {
+			if (!reachable)
+				throw new IOException("Connection refused");
+			ServerResponseObject sro = new ServerResponseObject();
+			sro.setStatus(status);
+			for (TwitterUser user : cro.getUsers()) {
+				if (rejectedUsers.contains(user.getId()))
+					sro.setStatus(ServerStatus.STATUS_ERROR);
+			}
+			if (sro.getStatus() != status)
+				return sro;
+			if (status == ServerStatus.OK) {
+				for (TwitterUser user : cro.getUsers())
+					receivedUsers.add(user.getId());
+			}
+			return sro;
+		}
+	}
+
+	private static ClientRequestObject createBatch(long userId) {
+		ClientRequestObject cro = new ClientRequestObject();
+		cro.setRequestType(ClientRequestType.DELIVER_TWEETS_AND_USERS);
+		TwitterUser user = new TwitterUser();
+		user.setId(userId);
+		user.setCrawledAt(new Date());
+		cro.getUsers().add(user);
+		return cro;
+	}
+
+	private static int countFiles(File dir, String suffix) {
+		int count = 0;
+		for (String name : dir.list()) {
+			if (name.endsWith(suffix))
+				count++;
+		}
+		return count;
+	}
+
+	private static int countSpoolFiles(File dir) {
+		return countFiles(dir, ".bin");
+	}
+
+	@Test
+	public void testSpoolAndRecover() throws Exception {
+		File spoolDir = Files.createTempDirectory("spool").toFile();
+		try {
+			// the server is down: all batches end up on disk
+			FakeServer server = new FakeServer(false);
+			DeliveryQueue queue = new DeliveryQueue(server, spoolDir, 2, 10);
+			for (long userId = 1; userId <= 10; userId++)
+				queue.add(createBatch(userId));
+			queue.close();
+			assertEquals(10, countSpoolFiles(spoolDir));
+			assertTrue(server.receivedUsers.isEmpty());
+
+			// after a restart, new and spooled batches are delivered once the server is back
+			queue = new DeliveryQueue(server, spoolDir, 2, 10);
+			queue.add(createBatch(11));
+			Thread.sleep(50);
+			server.reachable = true;
+			long timeout = System.currentTimeMillis() + 10000;
+			while ((countSpoolFiles(spoolDir) > 0) && (System.currentTimeMillis() < timeout))
+				Thread.sleep(10);
+			queue.add(createBatch(12));
+			queue.close();
+			assertEquals(0, countSpoolFiles(spoolDir));
+			assertEquals(12, server.receivedUsers.size());
+		} finally {
+			for (File file : spoolDir.listFiles())
+				file.delete();
+			spoolDir.delete();
+		}
+	}
+
+	@Test
+	public void testErrorStatus() throws Exception {
+		File spoolDir = Files.createTempDirectory("spool").toFile();
+		try {
+			// the server is reachable but does not store the batches: they are kept until it does
+			FakeServer server = new FakeServer(true);
+			server.status = ServerStatus.STATUS_ERROR;
+			DeliveryQueue queue = new DeliveryQueue(server, spoolDir, 2, 10);
+			for (long userId = 1; userId <= 3; userId++)
+				queue.add(createBatch(userId));
+			long timeout = System.currentTimeMillis() + 10000;
+			while ((countSpoolFiles(spoolDir) < 3) && (System.currentTimeMillis() < timeout))
+				Thread.sleep(10);
+			assertTrue(server.receivedUsers.isEmpty());
+
+			server.status = ServerStatus.OK;
+			timeout = System.currentTimeMillis() + 10000;
+			while ((countSpoolFiles(spoolDir) > 0) && (System.currentTimeMillis() < timeout))
+				Thread.sleep(10);
+			queue.close();
+			assertEquals(0, countSpoolFiles(spoolDir));
+			assertEquals(3, server.receivedUsers.size());
+		} finally {
+			for (File file : spoolDir.listFiles())
+				file.delete();
+			spoolDir.delete();
+		}
+	}
+
+	@Test
+	public void testRejectedBatch() throws Exception {
+		File spoolDir = Files.createTempDirectory("spool").toFile();
+		try {
+			// the oldest spooled batch is always rejected
+			FakeServer server = new FakeServer(false);
+			server.rejectedUsers.add(1L);
+			DeliveryQueue queue = new DeliveryQueue(server, spoolDir, 2, 10, 3);
+			queue.add(createBatch(1));
+			queue.add(createBatch(2));
+			long timeout = System.currentTimeMillis() + 10000;
+			while ((countSpoolFiles(spoolDir) < 2) && (System.currentTimeMillis() < timeout))
+				Thread.sleep(10);
+			server.reachable = true;
+
+			// it is moved aside after a few attempts, and the batches behind it are delivered
+			while ((countSpoolFiles(spoolDir) > 0) && (System.currentTimeMillis() < timeout))
+				Thread.sleep(10);
+			queue.close();
+			assertEquals(0, countSpoolFiles(spoolDir));
+			assertEquals(1, countFiles(spoolDir, ".bin.bad"));
+			assertEquals(Collections.singleton(2L), server.receivedUsers);
+		} finally {
+			for (File file : spoolDir.listFiles())
+				file.delete();
+			spoolDir.delete();
+		}
+	}
+
+}
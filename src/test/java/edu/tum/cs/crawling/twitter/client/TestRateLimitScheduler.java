@@ -0,0 +1,439 @@
+package edu.tum.cs.crawling.twitter.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.tum.cs.crawling.twitter.client.RateLimitScheduler.Clock;
+import edu.tum.cs.crawling.twitter.client.RateLimitScheduler.Endpoint;
+import edu.tum.cs.crawling.twitter.entities.TwitterUser;
+import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject;
+
+import twitter4j.IDs;
+import twitter4j.RateLimitStatus;
+import twitter4j.ResponseList;
+import twitter4j.Status;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.User;
+
+public class TestRateLimitScheduler {
+
+	private static final long minute = 60 * 1000;
+
+	/** clock that only advances when a thread sleeps */
+	private static class SimulatedClock implements Clock {
+		private final Thread testThread = Thread.currentThread();
+		private final List<Long> wakeUpTimes = new ArrayList<Long>();
+		private long now = 1000000;
+		private int pendingRequests = 0;
+
+		@Override
+		public synchronized long currentTimeMillis() {
+			return now;
+		}
+
+		@Override
+		public synchronized void sleep(long ms) {
+			now += ms;
+		}
+
+		synchronized void advance(long ms) {
+			now += ms;
+		}
+
+		/** @return true if the test thread and all fetcher threads except the current one are waiting */
+		private boolean isIdle() {
+			for (Thread t : Thread.getAllStackTraces().keySet()) {
+				if ((t == Thread.currentThread()) || ((t != testThread) && !t.getName().contains(" fetcher ")))
+					continue;
+				if ((t.getState() != Thread.State.WAITING) && (t.getState() != Thread.State.TIMED_WAITING))
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Sleeps until the specified time and then permits a request. Like a discrete event simulation, the time only
+		 * advances to the earliest wake-up time once all threads are idle and all permitted requests have reached the
+		 * endpoint, so the simulation does not depend on thread timing.
+		 */
+		synchronized void sleepUntil(long time) throws InterruptedException {
+			wakeUpTimes.add(time);
+			try {
+				int idleChecks = 0;
+				while (now < time) {
+					if ((pendingRequests == 0) && (time == Collections.min(wakeUpTimes)) && isIdle())
+						idleChecks++;
+					else
+						idleChecks = 0;
+					// threads that have just been woken up may still appear to be waiting, so check twice
+					if (idleChecks >= 2) {
+						now = time;
+						notifyAll();
+					} else {
+						wait(1);
+					}
+				}
+			} finally {
+				wakeUpTimes.remove(Long.valueOf(time));
+			}
+			pendingRequests++;
+		}
+
+		synchronized void requestPermitted() {
+			pendingRequests++;
+		}
+
+		synchronized void requestReceived() {
+			pendingRequests--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Scheduler that tells the simulated clock about the permitted requests. Time does not advance while permitted
+	 * requests are on their way to the endpoint, so the simulation does not depend on thread timing.
+	 */
+	private static class SimulatedScheduler extends RateLimitScheduler {
+		private final SimulatedClock clock;
+		private final ThreadLocal<Long> wakeUpTime = new ThreadLocal<Long>();
+
+		SimulatedScheduler(SimulatedClock clock) {
+			super(clock);
+			this.clock = clock;
+		}
+
+		@Override
+		synchronized long reserve(Endpoint endpoint) {
+			long waitMs = super.reserve(endpoint);
+			if (waitMs <= 0)
+				clock.requestPermitted();
+			else
+				wakeUpTime.set(clock.currentTimeMillis() + waitMs);
+			return waitMs;
+		}
+
+		@Override
+		public void acquire(Endpoint endpoint) throws InterruptedException {
+			if (reserve(endpoint) > 0)
+				clock.sleepUntil(wakeUpTime.get());
+		}
+	}
+
+	private static class FakeRateLimitStatus implements RateLimitStatus {
+		private static final long serialVersionUID = 1L;
+		private final int limit, remaining, secondsUntilReset;
+
+		FakeRateLimitStatus(int limit, int remaining, int secondsUntilReset) {
+			this.limit = limit;
+			this.remaining = remaining;
+			this.secondsUntilReset = secondsUntilReset;
+		}
+
+		@Override
+		public int getRemaining() {
+			return remaining;
+		}
+
+		@Override
+		public int getLimit() {
+			return limit;
+		}
+
+		@Override
+		public int getResetTimeInSeconds() {
+			return 0;
+		}
+
+		@Override
+		public int getSecondsUntilReset() {
+			return secondsUntilReset;
+		}
+	}
+
+	private static class FakeResponseList extends ArrayList<Status> implements ResponseList<Status> {
+		private static final long serialVersionUID = 1L;
+		private final RateLimitStatus rateLimitStatus;
+
+		FakeResponseList(RateLimitStatus rateLimitStatus) {
+			this.rateLimitStatus = rateLimitStatus;
+		}
+
+		@Override
+		public RateLimitStatus getRateLimitStatus() {
+			return rateLimitStatus;
+		}
+
+		@Override
+		public int getAccessLevel() {
+			return 0;
+		}
+	}
+
+	private static class FakeIDs implements IDs {
+		private static final long serialVersionUID = 1L;
+		private final long[] ids;
+		private final long nextCursor;
+		private final RateLimitStatus rateLimitStatus;
+
+		FakeIDs(long[] ids, long nextCursor, RateLimitStatus rateLimitStatus) {
+			this.ids = ids;
+			this.nextCursor = nextCursor;
+			this.rateLimitStatus = rateLimitStatus;
+		}
+
+		@Override
+		public long[] getIDs() {
+			return ids;
+		}
+
+		@Override
+		public boolean hasPrevious() {
+			return false;
+		}
+
+		@Override
+		public long getPreviousCursor() {
+			return 0;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return nextCursor != 0;
+		}
+
+		@Override
+		public long getNextCursor() {
+			return nextCursor;
+		}
+
+		@Override
+		public RateLimitStatus getRateLimitStatus() {
+			return rateLimitStatus;
+		}
+
+		@Override
+		public int getAccessLevel() {
+			return 0;
+		}
+	}
+
+	/** implements an interface with the given property values, all other methods return null, 0 or false */
+	private static <T> T fake(Class<T> cls, final Map<String, Object> values) {
+		return cls.cast(Proxy.newProxyInstance(cls.getClassLoader(), new Class<?>[] { cls }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("hashCode"))
+					return System.identityHashCode(proxy);
+				if (method.getName().equals("equals"))
+					return proxy == args[0];
+				if (values.containsKey(method.getName()))
+					return values.get(method.getName());
+				Class<?> type = method.getReturnType();
+				if (type == boolean.class)
+					return false;
+				if (type == int.class)
+					return 0;
+				if (type == long.class)
+					return 0L;
+				if (type == double.class)
+					return 0.0;
+				if (type == float.class)
+					return 0.0f;
+				return null;
+			}
+		}));
+	}
+
+	/** rate limited endpoint that counts the requests per window like Twitter does */
+	private static class FakeEndpoint {
+		final int limit;
+		long resetAt = 0;
+		int requestsInWindow = 0;
+		int rejected = 0;
+		final List<Integer> requestsPerWindow = new ArrayList<Integer>();
+
+		FakeEndpoint(int limit) {
+			this.limit = limit;
+		}
+
+		synchronized RateLimitStatus request(long now) throws TwitterException {
+			if (now >= resetAt) {
+				if (resetAt > 0)
+					requestsPerWindow.add(requestsInWindow);
+				resetAt = now + RateLimitScheduler.windowMs;
+				requestsInWindow = 0;
+			}
+			if (requestsInWindow >= limit) {
+				rejected++;
+				throw new TwitterException("Rate limit exceeded", null, 429);
+			}
+			requestsInWindow++;
+			return new FakeRateLimitStatus(limit, limit - requestsInWindow, (int) ((resetAt - now) / 1000));
+		}
+	}
+
+	/** Twitter with rate limited user timelines, followers and friends */
+	private static class FakeTwitter implements InvocationHandler {
+		final SimulatedClock clock;
+		final FakeEndpoint timeline = new FakeEndpoint(Endpoint.USER_TIMELINE.defaultLimit);
+		final FakeEndpoint followers = new FakeEndpoint(Endpoint.FOLLOWERS_IDS.defaultLimit);
+		final FakeEndpoint friends = new FakeEndpoint(Endpoint.FRIENDS_IDS.defaultLimit);
+
+		FakeTwitter(SimulatedClock clock) {
+			this.clock = clock;
+		}
+
+		private FakeResponseList getUserTimeline(long userId, RateLimitStatus status) {
+			Map<String, Object> userValues = new HashMap<String, Object>();
+			userValues.put("getId", userId);
+			userValues.put("getScreenName", "user" + userId);
+			userValues.put("getCreatedAt", new Date(0));
+			userValues.put("getFollowersCount", 7500);
+			userValues.put("getFriendsCount", 100);
+			User user = fake(User.class, userValues);
+
+			FakeResponseList tweets = new FakeResponseList(status);
+			for (int i = 0; i < 20; i++) {
+				Map<String, Object> statusValues = new HashMap<String, Object>();
+				statusValues.put("getId", (userId * 100) + i);
+				statusValues.put("getUser", user);
+				statusValues.put("getCreatedAt", new Date(1000L * i));
+				statusValues.put("getText", "This is a rather long English sentence about the weather and the news " +
+						"that I have read in the newspaper this morning, number " + i);
+				tweets.add(fake(Status.class, statusValues));
+			}
+			return tweets;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws TwitterException {
+			try {
+				long now = clock.currentTimeMillis();
+				if (method.getName().equals("getUserTimeline"))
+					return getUserTimeline((Long) args[0], timeline.request(now));
+				if (method.getName().equals("getFollowersIDs")) {
+					// two pages of followers
+					long userId = (Long) args[0];
+					long cursor = (Long) args[1];
+					RateLimitStatus status = followers.request(now);
+					if (cursor == -1)
+						return new FakeIDs(new long[] { userId + 1, userId + 2 }, 1, status);
+					return new FakeIDs(new long[] { userId + 3 }, 0, status);
+				}
+				if (method.getName().equals("getFriendsIDs"))
+					return new FakeIDs(new long[] { (Long) args[0] + 4 }, 0, friends.request(now));
+				throw new UnsupportedOperationException(method.getName());
+			} finally {
+				clock.requestReceived();
+			}
+		}
+	}
+
+	@Test
+	public void testReserve() {
+		SimulatedClock clock = new SimulatedClock();
+		RateLimitScheduler scheduler = new RateLimitScheduler(clock);
+
+		for (int i = 0; i < 15; i++)
+			assertEquals(0, scheduler.reserve(Endpoint.FOLLOWERS_IDS));
+		assertEquals(0, scheduler.getRemaining(Endpoint.FOLLOWERS_IDS));
+		// other endpoints are not affected
+		assertEquals(0, scheduler.reserve(Endpoint.USER_TIMELINE));
+		// the next requests have to wait for the following windows
+		assertEquals(RateLimitScheduler.windowMs, scheduler.reserve(Endpoint.FOLLOWERS_IDS));
+		for (int i = 1; i < 15; i++)
+			assertEquals(RateLimitScheduler.windowMs, scheduler.reserve(Endpoint.FOLLOWERS_IDS));
+		assertEquals(2 * RateLimitScheduler.windowMs, scheduler.reserve(Endpoint.FOLLOWERS_IDS));
+
+		// the requests reserved ahead use up the tokens of the next window
+		clock.advance(RateLimitScheduler.windowMs);
+		assertEquals(0, scheduler.getRemaining(Endpoint.FOLLOWERS_IDS));
+		assertEquals(RateLimitScheduler.windowMs, scheduler.reserve(Endpoint.FOLLOWERS_IDS));
+
+		// headers reporting fewer remaining requests are taken into account
+		clock.advance(2 * RateLimitScheduler.windowMs);
+		assertEquals(0, scheduler.reserve(Endpoint.USER_TIMELINE));
+		scheduler.update(Endpoint.USER_TIMELINE, new FakeRateLimitStatus(180, 1, 600));
+		assertEquals(1, scheduler.getRemaining(Endpoint.USER_TIMELINE));
+		assertEquals(0, scheduler.reserve(Endpoint.USER_TIMELINE));
+		assertEquals(600 * 1000 + RateLimitScheduler.resetMarginMs, scheduler.reserve(Endpoint.USER_TIMELINE));
+
+		// a refused request empties the bucket until the reported reset
+		assertEquals(0, scheduler.reserve(Endpoint.FRIENDS_IDS));
+		scheduler.rateLimitExceeded(Endpoint.FRIENDS_IDS, new FakeRateLimitStatus(15, 0, 60));
+		assertEquals(60 * 1000 + RateLimitScheduler.resetMarginMs, scheduler.reserve(Endpoint.FRIENDS_IDS));
+	}
+
+	/**
+	 * Keeps one endpoint busy for several hours of simulated time: the scheduler must never exceed the limit and use
+	 * every window completely.
+	 */
+	@Test
+	public void testUtilization() throws Exception {
+		SimulatedClock clock = new SimulatedClock();
+		RateLimitScheduler scheduler = new RateLimitScheduler(clock);
+		FakeEndpoint endpoint = new FakeEndpoint(Endpoint.FOLLOWERS_IDS.defaultLimit);
+		long end = clock.currentTimeMillis() + (8 * RateLimitScheduler.windowMs);
+		int numRequests = 0;
+		while (clock.currentTimeMillis() < end) {
+			scheduler.acquire(Endpoint.FOLLOWERS_IDS);
+			scheduler.update(Endpoint.FOLLOWERS_IDS, endpoint.request(clock.currentTimeMillis()));
+			numRequests++;
+			clock.advance(500); // request latency
+		}
+		assertEquals(0, endpoint.rejected);
+		for (int requests : endpoint.requestsPerWindow)
+			assertEquals(endpoint.limit, requests);
+		assertTrue(numRequests >= (8 * endpoint.limit));
+	}
+
+	@Test
+	public void testFetcher() throws Exception {
+		SimulatedClock clock = new SimulatedClock();
+		FakeTwitter fakeTwitter = new FakeTwitter(clock);
+		Twitter twitter = (Twitter) Proxy.newProxyInstance(Twitter.class.getClassLoader(),
+				new Class<?>[] { Twitter.class }, fakeTwitter);
+		TwitterFetcher fetcher = new TwitterFetcher(twitter, new SimulatedScheduler(clock));
+
+		// 20 users need 20 timeline, 40 followers and 20 friends requests
+		Set<Long> userIds = new HashSet<Long>();
+		for (long userId = 1000; userId < 1200; userId += 10)
+			userIds.add(userId);
+		long start = clock.currentTimeMillis();
+		ClientRequestObject cro = fetcher.getTweetsAndUsersForIds(userIds, new HashSet<String>());
+		long elapsed = clock.currentTimeMillis() - start;
+
+		assertEquals(20, cro.getUsers().size());
+		assertEquals(20 * 20, cro.getTweets().size());
+		for (TwitterUser user : cro.getUsers()) {
+			assertTrue(userIds.contains(user.getId()));
+			long id = user.getId();
+			assertArrayEquals(new long[] { id + 1, id + 2, id + 3 }, user.getFollowersFriends().getFollowerIds());
+			assertArrayEquals(new long[] { id + 4 }, user.getFollowersFriends().getFriendIds());
+		}
+
+		assertEquals(0, fakeTwitter.timeline.rejected + fakeTwitter.followers.rejected + fakeTwitter.friends.rejected);
+		// 40 follower requests need three windows, all other requests fit into them
+		assertTrue(elapsed >= (2 * RateLimitScheduler.windowMs));
+		assertTrue("took " + (elapsed / minute) + "m", elapsed < ((2 * RateLimitScheduler.windowMs) + minute));
+		for (int requests : fakeTwitter.followers.requestsPerWindow)
+			assertEquals(fakeTwitter.followers.limit, requests);
+	}
+
+}
@@ -0,0 +1,40 @@
+package edu.tum.cs.crawling.twitter.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestTwitterAccountPool {
+
+	@Test
+	public void testPartition() {
+		List<Integer> items = new ArrayList<Integer>();
+		for (int i = 0; i < 100; i++)
+			items.add(i);
+
+		List<Set<Integer>> parts = TwitterAccountPool.partition(items, new int[] { 181, 1, 61, 120 });
+		assertEquals(4, parts.size());
+		Set<Integer> all = new HashSet<Integer>();
+		for (Set<Integer> part : parts)
+			all.addAll(part);
+		assertEquals(100, all.size());
+		// shares are proportional to the remaining requests
+		assertEquals(50, parts.get(0).size(), 1);
+		assertTrue(parts.get(1).size() <= 1);
+		assertEquals(17, parts.get(2).size(), 1);
+		assertEquals(33, parts.get(3).size(), 1);
+
+		// exhausted accounts share evenly
+		parts = TwitterAccountPool.partition(items, new int[] { 1, 1, 1 });
+		assertEquals(34, parts.get(0).size());
+		assertEquals(33, parts.get(1).size());
+		assertEquals(33, parts.get(2).size());
+	}
+
+}
@@ -0,0 +1,133 @@
+package edu.tum.cs.crawling.twitter.dataset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import edu.tum.cs.util.SimHash;
+
+public class TestRemoveDuplicateWebsites {
+
+	private static final String[] words = { "cookie", "privacy", "policy", "accept", "page", "not", "found", "news",
+			"weather", "sports", "login", "account", "password", "share", "tweet", "follow", "home", "contact", "about",
+			"search", "results", "video", "photo", "comment", "reply", "world", "market", "today", "report", "update" };
+
+	private static String generateText(Random rnd, int numWords) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < numWords; i++)
+			sb.append(words[rnd.nextInt(words.length)]).append(' ');
+		return sb.toString();
+	}
+
+	@Test
+	public void testSimHash() {
+		Random rnd = new Random(1);
+		String text = generateText(rnd, 300);
+		String changed = text + " Last updated 2015-03-02 12:34";
+		String other = generateText(rnd, 300);
+		assertEquals(SimHash.fingerprint(text), SimHash.fingerprint(text.toUpperCase()));
+		assertTrue(SimHash.distance(SimHash.fingerprint(text), SimHash.fingerprint(changed)) <= 3);
+		assertTrue(SimHash.distance(SimHash.fingerprint(text), SimHash.fingerprint(other)) > 10);
+		assertEquals(0, SimHash.fingerprint(" .. "));
+	}
+
+	@Test
+	public void testCluster() throws InterruptedException {
+		// 20 templates, each page appears with a few variations; 500 unique pages. A variation changes a few of the
+		// 2000 features of a page, which flips up to about 6 bits.
+		Random rnd = new Random(2);
+		List<String> texts = new ArrayList<String>();
+		List<Integer> templateOf = new ArrayList<Integer>();
+		for (int t = 0; t < 20; t++) {
+			String template = generateText(rnd, 2000);
+			for (int v = 0; v < 5; v++) {
+				texts.add(template + " posted " + rnd.nextInt(1000) + " minutes ago");
+				templateOf.add(t);
+			}
+		}
+		for (int i = 0; i < 500; i++) {
+			texts.add(generateText(rnd, 200));
+			templateOf.add(-1);
+		}
+
+		long[] fingerprints = new long[texts.size()];
+		for (int i = 0; i < fingerprints.length; i++)
+			fingerprints[i] = SimHash.fingerprint(texts.get(i));
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			// every member is close to the representative of its cluster, all variations of a template are found
+			int[] clusters = RemoveDuplicateWebsites.cluster(fingerprints, fingerprints.length, 6, executor);
+			int numClustered = 0;
+			for (int i = 0; i < fingerprints.length; i++) {
+				if (templateOf.get(i) >= 0) {
+					assertEquals(templateOf.get(i), templateOf.get(clusters[i]));
+					assertTrue(SimHash.distance(fingerprints[i], fingerprints[clusters[i]]) <= 6);
+					if (clusters[i] != i)
+						numClustered++;
+				} else
+					assertEquals(i, clusters[i]);
+			}
+			assertEquals(20 * 4, numClustered);
+
+			// with the default distance, pages are only grouped with variations of the same template
+			clusters = RemoveDuplicateWebsites.cluster(fingerprints, fingerprints.length,
+					RemoveDuplicateWebsites.defaultMaxDistance, executor);
+			numClustered = 0;
+			for (int i = 0; i < fingerprints.length; i++) {
+				if (clusters[i] != i) {
+					assertEquals(templateOf.get(i), templateOf.get(clusters[i]));
+					assertTrue(templateOf.get(i) >= 0);
+					numClustered++;
+				}
+			}
+			assertTrue(numClustered > 0);
+
+			// identical content only
+			fingerprints[1] = fingerprints[0];
+			clusters = RemoveDuplicateWebsites.cluster(fingerprints, fingerprints.length, 0, executor);
+			assertEquals(0, clusters[1]);
+			assertEquals(2, clusters[2]);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testChainedMembers() throws InterruptedException {
+		// b is close to a and c, but a and c are not close, and all three agree in the bands that do not contain the
+		// changed bits: c is chained to the cluster of a, but too far from its representative
+		long a = 0x0123456789abcdefL;
+		long b = a ^ 0x7L;
+		long c = b ^ 0x38L;
+		long[] fingerprints = { a, b, c, ~a, a };
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			int[] clusters = RemoveDuplicateWebsites.cluster(fingerprints, fingerprints.length,
+					RemoveDuplicateWebsites.defaultMaxDistance, executor);
+			assertEquals(0, clusters[0]);
+			assertEquals(0, clusters[1]);
+			assertEquals(2, clusters[2]);
+			assertEquals(3, clusters[3]);
+			assertEquals(0, clusters[4]);
+
+			// the most common fingerprint is the representative, even if it does not come first
+			fingerprints = new long[] { c, b, b, a };
+			clusters = RemoveDuplicateWebsites.cluster(fingerprints, fingerprints.length,
+					RemoveDuplicateWebsites.defaultMaxDistance, executor);
+			assertEquals(1, clusters[0]);
+			assertEquals(1, clusters[1]);
+			assertEquals(1, clusters[2]);
+			assertEquals(1, clusters[3]);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
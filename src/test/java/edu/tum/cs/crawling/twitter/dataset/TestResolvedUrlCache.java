@@ -0,0 +1,101 @@
+package edu.tum.cs.crawling.twitter.dataset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class TestResolvedUrlCache {
+
+	@Test
+	public void testResolve() throws Exception {
+		File dir = Files.createTempDirectory("urlcache").toFile();
+		File file = new File(dir, "urlcache.bin");
+		try {
+			ResolvedUrlCache cache = new ResolvedUrlCache(file, 60000);
+			cache.put("http://t.co/a", "http://bit.ly/b", 301);
+			cache.put("http://bit.ly/b", "http://example.com/c", 302);
+			cache.put("http://example.com/c", "http://example.com/c", 200);
+			cache.put("http://t.co/d", "http://example.com/gone", 404);
+			cache.put("http://t.co/e", "http://bit.ly/unknown", 301);
+
+			assertEquals(301, cache.get("http://t.co/a").httpStatus);
+			ResolvedUrlCache.Entry entry = cache.resolve("http://t.co/a");
+			assertEquals("http://example.com/c", entry.targetUrl);
+			assertEquals(200, entry.httpStatus);
+			assertEquals(404, cache.resolve("http://t.co/d").httpStatus);
+			assertNull(cache.resolve("http://t.co/e"));
+			assertNull(cache.get("http://t.co/x"));
+			assertEquals(3, cache.getNumHits());
+			assertEquals(2, cache.getNumMisses());
+
+			// newer entries replace older ones
+			cache.put("http://t.co/d", "http://example.com/back", 200);
+			cache.close();
+
+			// reopen, with a damaged record at the end
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.seek(raf.length());
+				raf.writeUTF("http://t.co/incomplete");
+			} finally {
+				raf.close();
+			}
+			cache = new ResolvedUrlCache(file, 60000);
+			assertEquals(5, cache.size());
+			assertEquals("http://example.com/c", cache.resolve("http://t.co/a").targetUrl);
+			assertEquals("http://example.com/back", cache.resolve("http://t.co/d").targetUrl);
+			cache.put("http://t.co/f", null, 200);
+			// final entries are only used to resolve the whole chain
+			cache.putFinal("http://t.co/h", "http://example.com/h", 200);
+			cache.close();
+
+			cache = new ResolvedUrlCache(file, 60000);
+			assertEquals(7, cache.size());
+			assertEquals("http://t.co/f", cache.resolve("http://t.co/f").targetUrl);
+			assertNull(cache.get("http://t.co/h"));
+			assertEquals("http://example.com/h", cache.resolve("http://t.co/h").targetUrl);
+			assertEquals("http://example.com/h", cache.getFinal("http://t.co/h").targetUrl);
+			assertNull(cache.getFinal("http://t.co/a"));
+			assertTrue(cache.resolve("http://t.co/h").isDefinitive());
+			assertFalse(new ResolvedUrlCache.Entry(null, 503, 0).isDefinitive());
+			assertFalse(new ResolvedUrlCache.Entry(null, 429, 0).isDefinitive());
+			cache.close();
+
+			// URLs too long for the log are not cached, and do not stop later entries from being saved
+			StringBuilder sb = new StringBuilder("http://example.com/");
+			while (sb.length() <= 70000)
+				sb.append("long/");
+			cache = new ResolvedUrlCache(file, 60000);
+			cache.put(sb.toString(), "http://example.com/i", 301);
+			cache.put("http://t.co/i", sb.toString(), 301);
+			cache.put("http://t.co/j", "http://example.com/j", 200);
+			assertNull(cache.get(sb.toString()));
+			assertNull(cache.get("http://t.co/i"));
+			cache.close();
+			cache = new ResolvedUrlCache(file, 60000);
+			assertEquals(200, cache.get("http://t.co/j").httpStatus);
+			cache.close();
+
+			// entries expire
+			Thread.sleep(20);
+			cache = new ResolvedUrlCache(file, 10);
+			assertEquals(0, cache.size());
+			cache.put("http://t.co/g", "http://example.com/g", 200);
+			Thread.sleep(20);
+			assertNull(cache.get("http://t.co/g"));
+			cache.close();
+		} finally {
+			for (File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+package edu.tum.cs.crawling.twitter.dataset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.tum.cs.crawling.twitter.dataset.UrlResolver.LinkStatus;
+
+public class TestUrlResolver {
+
+	private static HttpServer server;
+	private static ExecutorService serverExecutor;
+	private static volatile int latencyMs = 0;
+	private static final AtomicInteger numRequests = new AtomicInteger();
+	private static final List<String> requestedPaths = Collections.synchronizedList(new ArrayList<String>());
+
+	/**
+	 * Answers /r/<hops>/<id> with a redirect to /r/<hops - 1>/<id> on the other host name (localhost and 127.0.0.1
+	 * take turns, so that the redirects are not local), and /r/0/<id> with 200, after the configured latency.
+	 */
+	@BeforeClass
+	public static void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+		server.createContext("/r/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				numRequests.incrementAndGet();
+				requestedPaths.add(exchange.getRequestURI().getPath());
+				try {
+					Thread.sleep(latencyMs);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				String[] path = exchange.getRequestURI().getPath().split("/");
+				int hops = Integer.parseInt(path[2]);
+				if (hops > 0) {
+					String host = exchange.getRequestHeaders().getFirst("Host").startsWith("localhost") ?
+							"127.0.0.1" : "localhost";
+					exchange.getResponseHeaders().add("Location", "http://" + host + ":" +
+							server.getAddress().getPort() + "/r/" + (hops - 1) + "/" + path[3]);
+					exchange.sendResponseHeaders(301, -1);
+				} else
+					exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+			}
+		});
+		serverExecutor = Executors.newCachedThreadPool();
+		server.setExecutor(serverExecutor);
+		server.start();
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		server.stop(0);
+		serverExecutor.shutdown();
+	}
+
+	private static ConcurrentMap<String, LinkStatus> createLinks(int numUrls, int hops) {
+		ConcurrentMap<String, LinkStatus> links = new ConcurrentHashMap<String, LinkStatus>();
+		for (int i = 0; i < numUrls; i++)
+			links.put("http://localhost:" + server.getAddress().getPort() + "/r/" + hops + "/" + i,
+					new LinkStatus(true));
+		return links;
+	}
+
+	@Test
+	public void testResolve() throws InterruptedException {
+		latencyMs = 2;
+		ConcurrentMap<String, LinkStatus> links = createLinks(50, 3);
+		List<String> urls = new ArrayList<String>(links.keySet());
+		new UrlResolver(links, false, false, Integer.MAX_VALUE, 8, 4, false).resolve(urls);
+		assertEquals(50 * 4, links.size());
+		for (String url : urls) {
+			LinkStatus status = links.get(url);
+			for (int hops = 3; hops > 0; hops--) {
+				assertEquals(url, 301, status.httpStatus);
+				status = links.get(status.targetUrl);
+				assertEquals(1, status.countAsTarget.get());
+			}
+			assertEquals(200, status.httpStatus);
+			assertNull(status.targetUrl);
+		}
+
+		// single pass: redirect targets are recorded, but not requested
+		links = createLinks(50, 3);
+		new UrlResolver(links, true, false, Integer.MAX_VALUE, 8, 4, false).resolve(
+				new ArrayList<String>(links.keySet()));
+		assertEquals(50 * 2, links.size());
+		int numRequested = 0;
+		for (LinkStatus status : links.values()) {
+			if (status.httpStatus != UrlResolver.STATUS_UNKNOWN)
+				numRequested++;
+		}
+		assertEquals(50, numRequested);
+
+		// URL limit, counting redirect targets
+		links = createLinks(50, 3);
+		UrlResolver resolver = new UrlResolver(links, false, false, 30, 8, 4, false);
+		resolver.resolve(new ArrayList<String>(links.keySet()));
+		assertEquals(30, resolver.getNumProcessed());
+	}
+
+	@Test
+	public void testNextHopFirst() throws InterruptedException {
+		latencyMs = 0;
+		ConcurrentMap<String, LinkStatus> links = createLinks(20, 2);
+		requestedPaths.clear();
+		new UrlResolver(links, false, false, Integer.MAX_VALUE, 1, 1, false).resolve(
+				new ArrayList<String>(links.keySet()));
+		// with a single worker, every chain is followed to its end before the next URL is started
+		assertEquals(20 * 3, requestedPaths.size());
+		for (int i = 0; i < requestedPaths.size(); i += 3) {
+			String id = requestedPaths.get(i).substring("/r/2/".length());
+			for (int hops = 2; hops >= 0; hops--)
+				assertEquals("/r/" + hops + "/" + id, requestedPaths.get(i + 2 - hops));
+		}
+	}
+
+	@Test
+	public void testCache() throws Exception {
+		latencyMs = 0;
+		File dir = Files.createTempDirectory("urlcache").toFile();
+		try {
+			ResolvedUrlCache cache = new ResolvedUrlCache(new File(dir, "urlcache.bin"), 60000);
+			ConcurrentMap<String, LinkStatus> links = createLinks(20, 2);
+			UrlResolver resolver = new UrlResolver(links, false, false, Integer.MAX_VALUE, 4, 4, false);
+			resolver.setCache(cache);
+			int before = numRequests.get();
+			resolver.resolve(new ArrayList<String>(links.keySet()));
+			assertEquals(20 * 3, numRequests.get() - before);
+			assertEquals(20 * 3, cache.size());
+
+			// a second run needs no requests and gives the same result
+			ConcurrentMap<String, LinkStatus> cachedLinks = createLinks(20, 2);
+			resolver = new UrlResolver(cachedLinks, false, false, Integer.MAX_VALUE, 4, 4, false);
+			resolver.setCache(cache);
+			before = numRequests.get();
+			resolver.resolve(new ArrayList<String>(cachedLinks.keySet()));
+			assertEquals(0, numRequests.get() - before);
+			assertEquals(links.size(), cachedLinks.size());
+			for (String url : links.keySet()) {
+				assertEquals(links.get(url).httpStatus, cachedLinks.get(url).httpStatus);
+				assertEquals(links.get(url).targetUrl, cachedLinks.get(url).targetUrl);
+			}
+			assertEquals(20 * 3, cache.getNumHits());
+			cache.close();
+		} finally {
+			for (File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+	}
+
+	private static float benchmark(int numThreads, int maxConnectionsPerHost) throws InterruptedException {
+		ConcurrentMap<String, LinkStatus> links = createLinks(100, 2);
+		UrlResolver resolver = new UrlResolver(links, false, false, Integer.MAX_VALUE, numThreads,
+				maxConnectionsPerHost, false);
+		long start = System.nanoTime();
+		resolver.resolve(new ArrayList<String>(links.keySet()));
+		return resolver.getNumProcessed() * 1e9f / (System.nanoTime() - start);
+	}
+
+	@Test
+	public void testBenchmark() throws InterruptedException {
+		latencyMs = 10;
+		benchmark(8, 8); // warm up
+		System.err.println(String.format("URL resolution with %d ms latency: %.0f URLs/s with 1 thread, " +
+				"%.0f URLs/s with 32 threads and 16 connections per host", latencyMs, benchmark(1, 1),
+				benchmark(32, 16)));
+	}
+
+}
@@ -0,0 +1,76 @@
+package edu.tum.cs.crawling.twitter.entities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.tum.cs.crawling.twitter.entities.FollowersFriends.IdSetConverter;
+import edu.tum.cs.util.DeltaEncodedLongSet;
+
+public class TestFollowersFriends {
+
+	private static final int numFollowers = 25000;
+
+	private static HashSet<Long> generateIds() {
+		Random rnd = new Random(42);
+		HashSet<Long> ids = new HashSet<Long>();
+		while (ids.size() < numFollowers)
+			ids.add((long) rnd.nextInt(Integer.MAX_VALUE));
+		return ids;
+	}
+
+	@Test
+	public void testRoundTrip() {
+		HashSet<Long> ids = generateIds();
+		byte[] data = IdSetConverter.encode(ids);
+		Set<Long> decoded = IdSetConverter.decode(data);
+		assertTrue(decoded instanceof DeltaEncodedLongSet);
+		assertEquals(ids.size(), decoded.size());
+		assertEquals(ids, decoded);
+		assertTrue(decoded.contains(ids.iterator().next()));
+		assertFalse(decoded.contains(-1L));
+
+		// re-encoding a loaded set does not have to decode it
+		assertArrayEquals(data, IdSetConverter.encode(decoded));
+
+		FollowersFriends ff = new FollowersFriends();
+		ff.addFollowers(new long[] { 3, 1, 2 });
+		assertArrayEquals(new long[] { 1, 2, 3 }, ff.getFollowerIds());
+		assertTrue(IdSetConverter.decode(IdSetConverter.encode(new HashSet<Long>())).isEmpty());
+		assertTrue(IdSetConverter.decode(new byte[0]).isEmpty());
+	}
+
+	@Test
+	public void testSerializedHashSet() throws Exception {
+		HashSet<Long> ids = generateIds();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(ids);
+		oos.close();
+		byte[] serialized = bos.toByteArray();
+
+		assertTrue(IdSetConverter.isSerializedHashSet(serialized));
+		assertEquals(ids, IdSetConverter.decode(serialized));
+
+		byte[] encoded = IdSetConverter.encode(ids);
+		assertFalse(IdSetConverter.isSerializedHashSet(encoded));
+		System.err.println(numFollowers + " IDs: " + serialized.length + " bytes serialized, " + encoded.length +
+				" bytes delta-encoded");
+		assertTrue(encoded.length < serialized.length / 4);
+
+		long[] sorted = ((DeltaEncodedLongSet) IdSetConverter.decode(encoded)).toLongArray();
+		assertEquals(ids.size(), sorted.length);
+		for (int i = 1; i < sorted.length; i++)
+			assertTrue(sorted[i - 1] < sorted[i]);
+	}
+
+}
@@ -0,0 +1,169 @@
+package edu.tum.cs.crawling.twitter.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.tum.cs.crawling.twitter.entities.Tweet;
+import edu.tum.cs.crawling.twitter.entities.TwitterUser;
+import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject.ClientRequestType;
+import edu.tum.cs.crawling.twitter.protocol.ServerResponseObject.ServerStatus;
+
+public class TestBinaryProtocol {
+
+	private static final int numUsers = 50;
+	private static final int tweetsPerUser = 100;
+	private static final int followersPerUser = 2000;
+	private static final int numIterations = 5;
+
+	private static ClientRequestObject createRequest() {
+		Random rnd = new Random(42);
+		ClientRequestObject cro = new ClientRequestObject();
+		cro.setRequestType(ClientRequestType.DELIVER_TWEETS_AND_USERS);
+		long tweetId = 300000000000000000L;
+		for (int i = 0; i < numUsers; i++) {
+			TwitterUser user = new TwitterUser();
+			user.setId(10000000L + rnd.nextInt(100000000));
+			user.setScreenName("user" + i);
+			user.setName("User Name " + i);
+			user.setCreatedAt(new Date(1200000000000L + rnd.nextInt(1000000000)));
+			user.setCrawledAt(new Date());
+			user.setVerified(rnd.nextBoolean());
+			user.setTotalFollowerCount(rnd.nextInt(100000));
+			user.setDescription("Beschreibung mit Umlauten: äöü, and an emoji 😀");
+			user.setUtcOffset(-3600);
+			long[] followers = new long[followersPerUser];
+			for (int j = 0; j < followers.length; j++)
+				followers[j] = rnd.nextInt(500000000);
+			user.getFollowersFriends().addFollowers(followers);
+			cro.getUsers().add(user);
+
+			for (int j = 0; j < tweetsPerUser; j++) {
+				Tweet tweet = new Tweet();
+				tweet.setId(tweetId += rnd.nextInt(100000));
+				tweet.setUserId(user.getId());
+				tweet.setCurrentScreenName(user.getScreenName());
+				tweet.setStatusText("@user" + rnd.nextInt(numUsers) + " this is tweet number " + j +
+						" http://t.co/abcdefgh");
+				tweet.setCreatedAt(new Date(1300000000000L + j * 60000L));
+				tweet.setInReplyToUserId(-1);
+				tweet.setInReplyToStatusId(-1);
+				tweet.setRetweetOfStatusId(-1);
+				tweet.setLatitude(48.15);
+				tweet.setLongitude(11.57);
+				cro.getTweets().add(tweet);
+			}
+		}
+		cro.getFailedUserScreenNames().add("failed");
+		return cro;
+	}
+
+	private static byte[] serialize(Object o) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(buf);
+		oos.writeObject(o);
+		oos.close();
+		return buf.toByteArray();
+	}
+
+	private static byte[] frame(byte[] payload, boolean compress) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		BinaryProtocol.writeFrame(buf, payload, compress);
+		return buf.toByteArray();
+	}
+
+	@Test
+	public void testRequestRoundTrip() throws Exception {
+		ClientRequestObject cro = createRequest();
+		ClientRequestObject decoded = BinaryProtocol.decodeRequest(
+				BinaryProtocol.readFrame(new ByteArrayInputStream(frame(BinaryProtocol.encodeRequest(cro), true))));
+
+		assertEquals(cro.getRequestType(), decoded.getRequestType());
+		assertEquals(cro.getUsers(), decoded.getUsers());
+		assertEquals(cro.getTweets(), decoded.getTweets());
+		assertEquals(cro.getFailedUserScreenNames(), decoded.getFailedUserScreenNames());
+		for (TwitterUser user : cro.getUsers()) {
+			for (TwitterUser decodedUser : decoded.getUsers()) {
+				if (decodedUser.getId() == user.getId()) {
+					assertEquals(user.getDescription(), decodedUser.getDescription());
+					assertEquals(user.getCreatedAt(), decodedUser.getCreatedAt());
+					assertEquals(user.getVerified(), decodedUser.getVerified());
+					assertEquals(user.getUtcOffset(), decodedUser.getUtcOffset());
+					assertEquals(user.getFollowersFriends().getFollowers(),
+							decodedUser.getFollowersFriends().getFollowers());
+				}
+			}
+		}
+		for (Tweet tweet : cro.getTweets()) {
+			for (Tweet decodedTweet : decoded.getTweets()) {
+				if (decodedTweet.getId() == tweet.getId()) {
+					assertEquals(tweet.getStatusText(), decodedTweet.getStatusText());
+					assertEquals(tweet.getInReplyToStatusId(), decodedTweet.getInReplyToStatusId());
+					assertEquals(tweet.getLatitude(), decodedTweet.getLatitude(), 0.0);
+					assertEquals(tweet.getCrawledAt(), decodedTweet.getCrawledAt());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testResponseRoundTrip() throws Exception {
+		ServerResponseObject sro = new ServerResponseObject();
+		sro.setStatus(ServerStatus.DELIVER_IDS);
+		for (long id = 1; id <= 100; id++)
+			sro.getIds().add(id * 7919);
+		sro.getScreenNames().add("someone");
+		ServerResponseObject.FurtherCrawlingUserData userData = new ServerResponseObject.FurtherCrawlingUserData();
+		userData.id = 4711;
+		userData.firstTweetId = -1;
+		sro.getFurtherCrawlingUsers().add(userData);
+
+		ServerResponseObject decoded = BinaryProtocol.decodeResponse(BinaryProtocol.encodeResponse(sro));
+		assertEquals(sro.getStatus(), decoded.getStatus());
+		assertEquals(sro.getIds(), decoded.getIds());
+		assertEquals(sro.getScreenNames(), decoded.getScreenNames());
+		assertEquals(1, decoded.getFurtherCrawlingUsers().size());
+		assertEquals(-1, decoded.getFurtherCrawlingUsers().iterator().next().firstTweetId);
+	}
+
+	/** compares the size and the encoding/decoding throughput to Java serialization */
+	@Test
+	public void testCompareToSerialization() throws Exception {
+		ClientRequestObject cro = createRequest();
+
+		long t0 = System.nanoTime();
+		int serializedSize = 0;
+		for (int i = 0; i < numIterations; i++) {
+			byte[] data = serialize(cro);
+			serializedSize = data.length;
+			new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+		}
+		long t1 = System.nanoTime();
+		int binarySize = 0, compressedSize = 0;
+		for (int i = 0; i < numIterations; i++) {
+			byte[] payload = BinaryProtocol.encodeRequest(cro);
+			binarySize = frame(payload, false).length;
+			byte[] data = frame(payload, true);
+			compressedSize = data.length;
+			BinaryProtocol.decodeRequest(BinaryProtocol.readFrame(new ByteArrayInputStream(data)));
+		}
+		long t2 = System.nanoTime();
+
+		System.err.println("serialization: " + serializedSize + " bytes, " +
+				(numIterations * 1000000000L / Math.max(t1 - t0, 1)) + " requests/s");
+		System.err.println("binary: " + binarySize + " bytes, " + compressedSize + " bytes compressed, " +
+				(numIterations * 1000000000L / Math.max(t2 - t1, 1)) + " requests/s");
+		assertTrue(binarySize < serializedSize / 2);
+		assertTrue(compressedSize < binarySize);
+	}
+
+}
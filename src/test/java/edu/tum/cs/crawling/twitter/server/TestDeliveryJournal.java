@@ -0,0 +1,265 @@
+package edu.tum.cs.crawling.twitter.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.tum.cs.crawling.twitter.entities.Tweet;
+import edu.tum.cs.crawling.twitter.entities.TwitterUser;
+import edu.tum.cs.crawling.twitter.protocol.BinaryProtocol;
+import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject;
+import edu.tum.cs.crawling.twitter.protocol.ClientRequestObject.ClientRequestType;
+
+public class TestDeliveryJournal {
+
+	/** remembers the stored users, fails for the users in failingUsers */
+	private static class FakeStore implements DeliveryJournal.Store {
+		final Set<Long> storedUsers = Collections.synchronizedSet(new HashSet<Long>());
+		final Set<Long> failingUsers = Collections.synchronizedSet(new HashSet<Long>());
+
+		@Override
+		public void store(ClientRequestObject cro) throws Exception {
+			for (TwitterUser user : cro.getUsers()) {
+				if (failingUsers.contains(user.getId()))
+					throw new Exception("cannot store user " + user.getId());
+			}
+			for (TwitterUser user : cro.getUsers())
+				storedUsers.add(user.getId());
+		}
+
+		void waitFor(int numUsers) throws InterruptedException {
+			long timeout = System.currentTimeMillis() + 10000;
+			while ((storedUsers.size() < numUsers) && (System.currentTimeMillis() < timeout))
+				Thread.sleep(10);
+			assertEquals(numUsers, storedUsers.size());
+		}
+	}
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = Files.createTempDirectory("journal").toFile();
+	}
+
+	@After
+	public void deleteDir() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	private static ClientRequestObject createDelivery(long userId) {
+		ClientRequestObject cro = new ClientRequestObject();
+		cro.setRequestType(ClientRequestType.DELIVER_TWEETS_AND_USERS);
+		cro.getUsers().add(createUser(userId, new Date()));
+		cro.getTweets().add(createTweet(userId * 1000, userId, new Date(), 0));
+		return cro;
+	}
+
+	private static TwitterUser createUser(long userId, Date firstCrawledAt) {
+		TwitterUser user = new TwitterUser();
+		user.setId(userId);
+		user.setCrawledAt(new Date());
+		user.setFirstCrawledAt(firstCrawledAt);
+		return user;
+	}
+
+	private static Tweet createTweet(long tweetId, long userId, Date firstCrawledAt, long retweetCount) {
+		Tweet tweet = new Tweet();
+		tweet.setId(tweetId);
+		tweet.setUserId(userId);
+		tweet.setStatusText("tweet " + tweetId);
+		tweet.setFirstCrawledAt(firstCrawledAt);
+		tweet.setRetweetCount(retweetCount);
+		return tweet;
+	}
+
+	private static void writeRecord(DataOutputStream out, byte[] data) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		out.writeInt(data.length);
+		out.writeInt((int) crc.getValue());
+		out.write(data);
+	}
+
+	/**
+	 * @return the users of the deliveries in a journal file
+	 */
+	private static Set<Long> readUsers(File file) throws IOException {
+		Set<Long> users = new HashSet<Long>();
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			while (in.available() > 0) {
+				byte[] data = new byte[in.readInt()];
+				in.readInt();
+				in.readFully(data);
+				for (TwitterUser user : BinaryProtocol.decodeRequest(data).getUsers())
+					users.add(user.getId());
+			}
+		} finally {
+			in.close();
+		}
+		return users;
+	}
+
+	private List<String> listSegments() {
+		List<String> names = new ArrayList<String>();
+		for (String name : dir.list()) {
+			if (name.startsWith("journal-"))
+				names.add(name);
+		}
+		return names;
+	}
+
+	@Test
+	public void testAppendAndTruncate() throws Exception {
+		final FakeStore store = new FakeStore();
+		final DeliveryJournal journal = new DeliveryJournal(dir, 2, store, 10);
+		// concurrent appends share syncs
+		Thread[] clients = new Thread[8];
+		for (int i = 0; i < clients.length; i++) {
+			final int client = i;
+			clients[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 50; j++)
+							journal.append(createDelivery(client * 1000 + j));
+					} catch (Exception ex) {
+						throw new RuntimeException(ex);
+					}
+				}
+			};
+			clients[i].start();
+		}
+		for (Thread client : clients)
+			client.join();
+		store.waitFor(400);
+
+		// the current segment is emptied once all of its deliveries are stored
+		File segment = new File(dir, listSegments().get(0));
+		long timeout = System.currentTimeMillis() + 10000;
+		while ((segment.length() > 0) && (System.currentTimeMillis() < timeout))
+			Thread.sleep(10);
+		assertEquals(0, segment.length());
+
+		// and deleted on close
+		journal.append(createDelivery(9999));
+		store.waitFor(401);
+		journal.close();
+		assertTrue(listSegments().isEmpty());
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		// two segments left over after a crash, the second one ends with a torn record
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(dir, "journal-3.log")));
+		try {
+			writeRecord(out, BinaryProtocol.encodeRequest(createDelivery(1)));
+			writeRecord(out, BinaryProtocol.encodeRequest(createDelivery(2)));
+		} finally {
+			out.close();
+		}
+		out = new DataOutputStream(new FileOutputStream(new File(dir, "journal-4.log")));
+		try {
+			writeRecord(out, BinaryProtocol.encodeRequest(createDelivery(3)));
+			byte[] data = BinaryProtocol.encodeRequest(createDelivery(4));
+			out.writeInt(data.length);
+			out.writeInt(0);	// wrong checksum
+			out.write(data, 0, data.length / 2);
+		} finally {
+			out.close();
+		}
+
+		FakeStore store = new FakeStore();
+		DeliveryJournal journal = new DeliveryJournal(dir, 1, store, 10);
+		store.waitFor(3);
+		assertEquals(new HashSet<Long>(Arrays.asList(1L, 2L, 3L)), store.storedUsers);
+
+		// replayed segments are deleted, new deliveries go to a new segment
+		long timeout = System.currentTimeMillis() + 10000;
+		while ((listSegments().size() > 1) && (System.currentTimeMillis() < timeout))
+			Thread.sleep(10);
+		assertEquals(Arrays.asList("journal-5.log"), listSegments());
+		journal.close();
+	}
+
+	@Test
+	public void testDeadLetter() throws Exception {
+		FakeStore store = new FakeStore();
+		store.failingUsers.add(13L);
+		DeliveryJournal journal = new DeliveryJournal(dir, 2, store, 10);
+		journal.append(createDelivery(13));
+		// other deliveries can be stored, so the failing one is moved aside after a few attempts
+		File deadLetterFile = new File(dir, DeliveryJournal.deadLetterFileName);
+		long timeout = System.currentTimeMillis() + 10000;
+		int numAppended = 0;
+		while ((deadLetterFile.length() == 0) && (System.currentTimeMillis() < timeout)) {
+			journal.append(createDelivery(100 + numAppended++));
+			Thread.sleep(5);
+		}
+		store.waitFor(numAppended);
+		// all deliveries of the segment are done once it has been emptied
+		File segment = new File(dir, listSegments().get(0));
+		while ((segment.length() > 0) && (System.currentTimeMillis() < timeout))
+			Thread.sleep(10);
+		journal.close();
+		assertEquals(Collections.singleton(13L), readUsers(deadLetterFile));
+		assertFalse(store.storedUsers.contains(13L));
+		assertTrue(listSegments().isEmpty());
+
+		// the dead letter is not replayed by itself
+		store = new FakeStore();
+		journal = new DeliveryJournal(dir, 1, store, 10);
+		Thread.sleep(100);
+		journal.close();
+		assertTrue(store.storedUsers.isEmpty());
+	}
+
+	@Test
+	public void testMerge() {
+		Date early = new Date(1000000), late = new Date(2000000);
+		ClientRequestObject first = new ClientRequestObject();
+		first.getUsers().add(createUser(1, late));
+		first.getTweets().add(createTweet(10, 1, early, 7));
+		first.getFailedUserScreenNames().add("a");
+		ClientRequestObject second = new ClientRequestObject();
+		second.getUsers().add(createUser(1, early));
+		second.getUsers().add(createUser(2, late));
+		second.getTweets().add(createTweet(10, 1, late, 3));
+		second.getFailedUserScreenNames().add("b");
+
+		ClientRequestObject merged = DeliveryJournal.merge(Arrays.asList(first, second));
+		assertEquals(2, merged.getUsers().size());
+		for (TwitterUser user : merged.getUsers())
+			assertEquals((user.getId() == 1) ? early : late, user.getFirstCrawledAt());
+		assertEquals(1, merged.getTweets().size());
+		Tweet tweet = merged.getTweets().iterator().next();
+		assertEquals(early, tweet.getFirstCrawledAt());
+		assertEquals(7, tweet.getRetweetCount());
+		assertEquals(new HashSet<String>(Arrays.asList("a", "b")),
+				new HashSet<String>(merged.getFailedUserScreenNames()));
+	}
+
+}
@@ -0,0 +1,52 @@
+package edu.tum.cs.crawling.twitter.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import edu.tum.cs.util.CaseInsensitiveStringSet;
+import edu.tum.cs.util.LongHashSet;
+
+public class TestIdBrokerSnapshot {
+
+	@Test
+	public void testSaveLoad() throws Exception {
+		LongHashSet knownUserIds = new LongHashSet();
+		long[] ids = { 0L, 1L, 2L, 12L, 1337L, 1L << 40, Long.MAX_VALUE, -5L, Long.MIN_VALUE };
+		for (long id : ids)
+			knownUserIds.add(id);
+		LongHashSet ignoredUserIds = new LongHashSet();
+		ignoredUserIds.add(1337L);
+		CaseInsensitiveStringSet knownScreenNames = new CaseInsensitiveStringSet();
+		knownScreenNames.add("JSmith");
+		knownScreenNames.add("jörg_");
+		long highWaterMark = System.currentTimeMillis();
+
+		File file = File.createTempFile("idbroker", ".snapshot");
+		try {
+			IdBrokerSnapshot.save(file, highWaterMark, knownUserIds, knownScreenNames, ignoredUserIds);
+
+			LongHashSet loadedUserIds = new LongHashSet();
+			LongHashSet loadedIgnoredUserIds = new LongHashSet();
+			CaseInsensitiveStringSet loadedScreenNames = new CaseInsensitiveStringSet();
+			assertEquals(highWaterMark,
+					IdBrokerSnapshot.load(file, loadedUserIds, loadedScreenNames, loadedIgnoredUserIds));
+			assertEquals(ids.length, loadedUserIds.size());
+			for (long id : ids)
+				assertTrue(loadedUserIds.contains(id));
+			assertEquals(1, loadedIgnoredUserIds.size());
+			assertTrue(loadedIgnoredUserIds.contains(1337L));
+			assertEquals(new HashSet<String>(knownScreenNames.toList()),
+					new HashSet<String>(loadedScreenNames.toList()));
+			assertTrue(loadedScreenNames.contains("jsmith"));
+			assertTrue(loadedScreenNames.contains("JÖRG_"));
+		} finally {
+			file.delete();
+		}
+	}
+
+}
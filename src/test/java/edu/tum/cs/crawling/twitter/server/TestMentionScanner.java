@@ -0,0 +1,156 @@
+package edu.tum.cs.crawling.twitter.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import edu.tum.cs.util.CaseInsensitiveStringSet;
+
+public class TestMentionScanner {
+
+	private static final Pattern USER_NAME_PATTERN = Pattern.compile("@([a-zA-Z0-9_\\-]+)");
+
+	private static final String[] words = { "the", "new", "Ich", "bin", "heute", "#tum", "http://t.co/aBc123", "RT",
+			"lol", "München", "@", "a@b.de", "@@", "email:", "ü@x", "…" };
+
+	private static List<String> generateTweets(int count) {
+		Random rnd = new Random(42);
+		List<String> tweets = new ArrayList<String>(count);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			sb.setLength(0);
+			int numWords = 5 + rnd.nextInt(15);
+			for (int j = 0; j < numWords; j++) {
+				if (j > 0)
+					sb.append(' ');
+				if (rnd.nextInt(6) == 0)
+					sb.append("@User_").append(rnd.nextInt(5000)).append(rnd.nextBoolean() ? ":" : "");
+				else
+					sb.append(words[rnd.nextInt(words.length)]);
+			}
+			tweets.add(sb.toString());
+		}
+		return tweets;
+	}
+
+	private static List<String> findWithRegex(String text) {
+		List<String> result = new ArrayList<String>();
+		Matcher m = USER_NAME_PATTERN.matcher(text);
+		while (m.find())
+			result.add(m.group(1));
+		return result;
+	}
+
+	private static List<String> findWithScanner(MentionScanner scanner, String text) {
+		List<String> result = new ArrayList<String>();
+		scanner.reset(text);
+		while (scanner.find())
+			result.add(text.substring(scanner.start(), scanner.end()));
+		return result;
+	}
+
+	@Test
+	public void testSameAsRegex() {
+		MentionScanner scanner = new MentionScanner();
+		String[] special = { "", "@", "@@a", "a@", "@-_", "x@y@z", "@ä", "@abc@def", "RT @Foo: @bar!" };
+		for (String text : special)
+			assertEquals(text, findWithRegex(text), findWithScanner(scanner, text));
+		for (String text : generateTweets(10000))
+			assertEquals(text, findWithRegex(text), findWithScanner(scanner, text));
+	}
+
+	@Test
+	public void testCaseInsensitiveSet() {
+		CaseInsensitiveStringSet set = new CaseInsensitiveStringSet();
+		assertTrue(set.add("JSmith"));
+		assertFalse(set.add("jsmith"));
+		assertTrue(set.contains("JSMITH"));
+		String text = "RT @jSmith: hi @Other";
+		assertFalse(set.add(text, 4, 10));
+		assertTrue(set.add(text, 16, 21));
+		assertTrue(set.contains("other"));
+		assertFalse(set.contains("othe"));
+		assertEquals(2, set.size());
+		assertEquals(new HashSet<String>(Arrays.asList("jsmith", "other")), new HashSet<String>(set.toList()));
+	}
+
+	@Test
+	public void testConcurrentAdd() throws Exception {
+		final CaseInsensitiveStringSet set = new CaseInsensitiveStringSet();
+		final AtomicInteger numAdded = new AtomicInteger();
+		final int numNames = 20000;
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final boolean upperCase = (t % 2) == 0;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < numNames; i++) {
+						if (set.add((upperCase ? "USER_" : "user_") + i))
+							numAdded.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(numNames, set.size());
+		assertEquals(numNames, numAdded.get());
+	}
+
+	/** rough comparison of the old (regex, HashSet of lower case names) and the new way of finding new mentions */
+	@Test
+	public void testPerformance() {
+		List<String> tweets = generateTweets(50000);
+		long regexCount = 0, scannerCount = 0, regexTime = Long.MAX_VALUE, scannerTime = Long.MAX_VALUE;
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			Set<String> known = new HashSet<String>();
+			regexCount = 0;
+			for (String text : tweets) {
+				Matcher m = USER_NAME_PATTERN.matcher(text);
+				Set<String> mentions = new HashSet<String>();
+				while (m.find())
+					mentions.add(m.group());
+				for (String mention : mentions) {
+					mention = mention.substring(1);
+					if (!known.contains(mention.toLowerCase())) {
+						known.add(mention.toLowerCase());
+						regexCount++;
+					}
+				}
+			}
+			regexTime = Math.min(regexTime, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			CaseInsensitiveStringSet knownNames = new CaseInsensitiveStringSet();
+			MentionScanner scanner = new MentionScanner();
+			scannerCount = 0;
+			for (String text : tweets) {
+				scanner.reset(text);
+				while (scanner.find()) {
+					if (knownNames.add(text, scanner.start(), scanner.end()))
+						scannerCount++;
+				}
+			}
+			scannerTime = Math.min(scannerTime, System.nanoTime() - start);
+		}
+		assertEquals(regexCount, scannerCount);
+		System.err.println("mention extraction: regex " + (regexTime / tweets.size()) + " ns/tweet, scanner " +
+				(scannerTime / tweets.size()) + " ns/tweet");
+	}
+
+}
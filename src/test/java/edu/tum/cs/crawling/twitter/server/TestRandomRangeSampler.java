@@ -0,0 +1,124 @@
+package edu.tum.cs.crawling.twitter.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.tum.cs.util.LongHashSet;
+
+public class TestRandomRangeSampler {
+
+	/** a table with the given keys, all of them matching */
+	private static class SimulatedSampler extends RandomRangeSampler {
+		private final long[] keys;
+		int numRowsRead = 0;
+
+		SimulatedSampler(Random random, long... keys) {
+			super(1, random);
+			this.keys = keys;
+		}
+
+		@Override
+		protected long[] readRange() {
+			return (keys.length == 0) ? null : new long[] { keys[0], keys[keys.length - 1] };
+		}
+
+		@Override
+		protected int readRun(long startKey, long endKey, int limit, List<long[]> rows, LongHashSet seenKeys) {
+			int numRead = 0;
+			for (int i = 0; (i < keys.length) && (numRead < limit); i++) {
+				if ((keys[i] >= startKey) && (keys[i] < endKey)) {
+					numRead++;
+					if (seenKeys.add(keys[i]))
+						rows.add(new long[] { keys[i] });
+				}
+			}
+			numRowsRead += numRead;
+			return numRead;
+		}
+	}
+
+	/** always draws the same value */
+	private static class FixedRandom extends Random {
+		private static final long serialVersionUID = 1L;
+		private final double value;
+
+		FixedRandom(double value) {
+			this.value = value;
+		}
+
+		@Override
+		public double nextDouble() {
+			return value;
+		}
+	}
+
+	private static long[] range(long from, long to) {
+		long[] keys = new long[(int) (to - from + 1)];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = from + i;
+		return keys;
+	}
+
+	private static long[] sortedKeys(List<long[]> rows) {
+		long[] keys = new long[rows.size()];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = rows.get(i)[0];
+		Arrays.sort(keys);
+		return keys;
+	}
+
+	@Test
+	public void testWrapAround() throws Exception {
+		// the probe starts at key 96 and finds only 5 rows up to the end of the range, the rest is read from the start
+		SimulatedSampler sampler = new SimulatedSampler(new FixedRandom(0.95), range(1, 100));
+		List<long[]> rows = sampler.sample(10);
+		assertEquals(Arrays.toString(new long[] { 1, 2, 3, 4, 5, 96, 97, 98, 99, 100 }),
+				Arrays.toString(sortedKeys(rows)));
+		assertEquals(10, sampler.numRowsRead);
+	}
+
+	@Test
+	public void testNoDuplicates() throws Exception {
+		// every probe starts at the same key, the rows of later probes have been seen already
+		SimulatedSampler sampler = new SimulatedSampler(new FixedRandom(0.0), range(1, 100));
+		List<long[]> rows = sampler.sample(20);
+		assertEquals(Arrays.toString(range(1, 10)), Arrays.toString(sortedKeys(rows)));
+
+		// random probes on a sparse table
+		long[] keys = new long[200];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = i * 1000L + 7;
+		sampler = new SimulatedSampler(new Random(1), keys);
+		for (int run = 0; run < 100; run++) {
+			rows = sampler.sample(50);
+			assertTrue(rows.size() <= 50);
+			LongHashSet seen = new LongHashSet();
+			for (long[] row : rows) {
+				assertTrue(seen.add(row[0]));
+				assertTrue(Arrays.binarySearch(keys, row[0]) >= 0);
+			}
+		}
+	}
+
+	@Test
+	public void testSmallRange() throws Exception {
+		// fewer rows than requested: all of them are found, the range is scanned at most once
+		for (int run = 0; run < 100; run++) {
+			SimulatedSampler sampler = new SimulatedSampler(new Random(run), 5, 7, 9);
+			List<long[]> rows = sampler.sample(10);
+			assertEquals("[5, 7, 9]", Arrays.toString(sortedKeys(rows)));
+			assertEquals(3, sampler.numRowsRead);
+		}
+
+		assertTrue(new SimulatedSampler(new Random(), new long[0]).sample(10).isEmpty());
+		assertTrue(new SimulatedSampler(new Random(), 42).sample(0).isEmpty());
+		assertEquals(1, new SimulatedSampler(new Random(), 42).sample(5).size());
+	}
+
+}
@@ -13,9 +13,14 @@ import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.List;
 
+import org.hibernate.Session;
+import org.hibernate.Transaction;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -51,6 +56,8 @@ public class TestTwitterDumperServer {
 		if (isDbAvailable()) {
 			System.setProperty("edu.tum.cs.crawling.twitter.dburl", testDbUrl);
 			System.setProperty("hibernate.hbm2ddl.auto", "update");
+			// store deliveries synchronously, so that they can be checked right away
+			System.setProperty("edu.tum.cs.crawling.twitter.journal", "");
 			TwitterDumperServer.main(new String[0]);
 		} else
 			skipTest = true;
@@ -172,6 +179,155 @@ public class TestTwitterDumperServer {
 		}
 	}
 
+	private static final long baseBenchmarkId = 1000000L;
+	private static final int numBenchmarkUsers = 1000;
+	private static final int numBenchmarkTweets = 5000;
+
+	private static void printRate(String operation, int numRows, long startTime) {
+		long duration = Math.max(System.currentTimeMillis() - startTime, 1);
+		System.err.println(operation + ": " + numRows + " rows in " + duration + "ms (" +
+				(1000L * numRows / duration) + " rows/s)");
+	}
+
+	private static List<TwitterUser> generateBenchmarkUsers(Date firstCrawledAt, String language) {
+		List<TwitterUser> users = new ArrayList<TwitterUser>(numBenchmarkUsers);
+		for (int i = 0; i < numBenchmarkUsers; i++) {
+			TwitterUser user = generateUser("Benchmark User " + i, baseBenchmarkId + i);
+			user.setFirstCrawledAt(firstCrawledAt);
+			user.setDetectedLanguage(language);
+			users.add(user);
+		}
+		return users;
+	}
+
+	private static List<Tweet> generateBenchmarkTweets(Date firstCrawledAt, long retweetCount) {
+		List<Tweet> tweets = new ArrayList<Tweet>(numBenchmarkTweets);
+		for (int i = 0; i < numBenchmarkTweets; i++) {
+			Tweet tweet = new Tweet();
+			tweet.setId(baseBenchmarkId + i);
+			tweet.setUserId(baseBenchmarkId + (i % numBenchmarkUsers));
+			tweet.setStatusText("benchmark tweet " + i);
+			tweet.setFirstCrawledAt(firstCrawledAt);
+			tweet.setRetweetCount(retweetCount);
+			tweets.add(tweet);
+		}
+		return tweets;
+	}
+
+	/** saves the users one by one with Hibernate, as before the bulk statements, for comparison */
+	private static void saveUsersWithHibernate(Collection<TwitterUser> users) {
+		Session session = TwitterDao.openSession();
+		try {
+			Transaction transaction = session.beginTransaction();
+			for (TwitterUser user : users) {
+				TwitterUser oldUser = TwitterDao.getUser(user.getId());
+				if (oldUser != null) {
+					if (oldUser.getFirstCrawledAt().before(user.getFirstCrawledAt()))
+						user.setFirstCrawledAt(oldUser.getFirstCrawledAt());
+					if (user.getDetectedLanguage() == null)
+						user.setDetectedLanguage(oldUser.getDetectedLanguage());
+				}
+				session.saveOrUpdate(user);
+			}
+			transaction.commit();
+		} finally {
+			session.close();
+		}
+	}
+
+	/** saves the tweets one by one with Hibernate, as before the bulk statements, for comparison */
+	private static void saveTweetsWithHibernate(Collection<Tweet> tweets) {
+		Session session = TwitterDao.openSession();
+		try {
+			Transaction transaction = session.beginTransaction();
+			for (Tweet tweet : tweets) {
+				Tweet oldTweet = (Tweet) session.byId(Tweet.class).load(tweet.getId());
+				if (oldTweet != null) {
+					tweet.setFirstCrawledAt(oldTweet.getFirstCrawledAt());
+					tweet.setRetweetCount(Math.max(tweet.getRetweetCount(), oldTweet.getRetweetCount()));
+					// the old tweet is attached to the session, so it has to be merged instead of updated
+					session.merge(tweet);
+				} else {
+					session.save(tweet);
+				}
+			}
+			transaction.commit();
+		} finally {
+			session.close();
+		}
+	}
+
+	private static void deleteBenchmarkRows(Statement st) throws SQLException {
+		st.executeUpdate("delete from `tweet` where ID >= " + baseBenchmarkId);
+		st.executeUpdate("delete from `user` where ID >= " + baseBenchmarkId);
+	}
+
+	private static int countRows(Statement st, String query) throws SQLException {
+		ResultSet rs = st.executeQuery(query);
+		try {
+			rs.next();
+			return rs.getInt(1);
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Measures the throughput of inserting and updating users and tweets with Hibernate one by one and with the bulk
+	 * statements, and checks the merge rules.
+	 */
+	@Test
+	public void testBulkSave() throws Exception {
+		if (skipTest) {
+			System.err.println("database not available, skipping test");
+			return;
+		}
+
+		Date firstCrawl = new Date(System.currentTimeMillis() - 24 * 60 * 60 * 1000);
+		Date secondCrawl = new Date();
+		Connection conn = DriverManager.getConnection(testDbUrl);
+		try {
+			long t0 = System.currentTimeMillis();
+			saveUsersWithHibernate(generateBenchmarkUsers(firstCrawl, "de"));
+			printRate("insert users, Hibernate", numBenchmarkUsers, t0);
+			t0 = System.currentTimeMillis();
+			saveTweetsWithHibernate(generateBenchmarkTweets(firstCrawl, 5));
+			printRate("insert tweets, Hibernate", numBenchmarkTweets, t0);
+			t0 = System.currentTimeMillis();
+			saveUsersWithHibernate(generateBenchmarkUsers(secondCrawl, null));
+			printRate("update users, Hibernate", numBenchmarkUsers, t0);
+			t0 = System.currentTimeMillis();
+			saveTweetsWithHibernate(generateBenchmarkTweets(secondCrawl, 3));
+			printRate("update tweets, Hibernate", numBenchmarkTweets, t0);
+			deleteBenchmarkRows(conn.createStatement());
+
+			t0 = System.currentTimeMillis();
+			TwitterDao.saveUsers(generateBenchmarkUsers(firstCrawl, "de"));
+			printRate("insert users", numBenchmarkUsers, t0);
+			t0 = System.currentTimeMillis();
+			TwitterDao.saveTweets(generateBenchmarkTweets(firstCrawl, 5));
+			printRate("insert tweets", numBenchmarkTweets, t0);
+
+			t0 = System.currentTimeMillis();
+			TwitterDao.saveUsers(generateBenchmarkUsers(secondCrawl, null));
+			printRate("update users", numBenchmarkUsers, t0);
+			t0 = System.currentTimeMillis();
+			TwitterDao.saveTweets(generateBenchmarkTweets(secondCrawl, 3));
+			printRate("update tweets", numBenchmarkTweets, t0);
+
+			// first crawl date, detected language and highest retweet count have to be retained
+			Statement st = conn.createStatement();
+			String firstCrawlCondition = "FIRST_CRAWLED_AT < '" + new Timestamp(secondCrawl.getTime() - 1000) + "'";
+			assertEquals(numBenchmarkUsers, countRows(st, "select count(*) from `user` where ID >= " +
+					baseBenchmarkId + " and DETECTED_LANGUAGE = 'de' and " + firstCrawlCondition));
+			assertEquals(numBenchmarkTweets, countRows(st, "select count(*) from `tweet` where ID >= " +
+					baseBenchmarkId + " and RETWEET_COUNT = 5 and " + firstCrawlCondition));
+		} finally {
+			deleteBenchmarkRows(conn.createStatement());
+			conn.close();
+		}
+	}
+
 	private static final String[] tables = {
 		"tweet", "user", "website", "waiting_user", "waiting_user_for_further_tweets"
 	};
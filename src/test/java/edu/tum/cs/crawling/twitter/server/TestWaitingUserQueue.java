@@ -0,0 +1,136 @@
+package edu.tum.cs.crawling.twitter.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import edu.tum.cs.util.LongHashSet;
+
+public class TestWaitingUserQueue {
+
+	private static final int numUsers = 200000;
+	private static final int numClients = 16;
+	private static final int usersPerRequest = 50;
+
+	/** simulates the table "waiting_user", including the latency of the database round trip */
+	private static class SimulatedQueue extends WaitingUserQueue {
+		private long nextUserId = 1;
+		public int numQueries = 0;
+
+		public SimulatedQueue(int capacity) {
+			super(capacity);
+		}
+
+		@Override
+		protected List<Entry> reserveUsers(int numberOfIds) {
+			numQueries++;
+			try {
+				Thread.sleep(5);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			List<Entry> entries = new ArrayList<Entry>(numberOfIds);
+			while ((entries.size() < numberOfIds) && (nextUserId <= numUsers))
+				entries.add(new Entry(nextUserId++, null));
+			return entries;
+		}
+	}
+
+	@Test
+	public void testConcurrentClients() throws Exception {
+		final SimulatedQueue queue = new SimulatedQueue(5000);
+		Thread loader = new Thread(queue);
+		loader.start();
+
+		final LongHashSet deliveredIds = new LongHashSet(numUsers);
+		final AtomicInteger numDuplicates = new AtomicInteger();
+		final AtomicInteger numRequests = new AtomicInteger();
+		Thread[] clients = new Thread[numClients];
+		long t0 = System.currentTimeMillis();
+		for (int i = 0; i < numClients; i++) {
+			clients[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						List<WaitingUserQueue.Entry> entries;
+						do {
+							entries = queue.take(usersPerRequest, 500);
+							numRequests.incrementAndGet();
+							if (entries == null)
+								continue;
+							synchronized (deliveredIds) {
+								for (WaitingUserQueue.Entry entry : entries) {
+									if (!deliveredIds.add(entry.userId))
+										numDuplicates.incrementAndGet();
+								}
+							}
+						} while ((entries == null) || !entries.isEmpty());
+					} catch (InterruptedException ex) {
+						// terminate
+					}
+				}
+			};
+			clients[i].start();
+		}
+		for (Thread t : clients)
+			t.join();
+		long duration = Math.max(System.currentTimeMillis() - t0, 1);
+		loader.interrupt();
+		loader.join();
+
+		System.err.println(numClients + " clients: " + numRequests.get() + " requests in " + duration + "ms (" +
+				(1000L * numRequests.get() / duration) + " requests/s, " + queue.numQueries + " database queries)");
+		assertEquals(0, numDuplicates.get());
+		assertEquals(numUsers, deliveredIds.size());
+		assertTrue(queue.numQueries < (numUsers / usersPerRequest));
+	}
+
+	@Test
+	public void testSlowLoader() throws Exception {
+		WaitingUserQueue queue = new WaitingUserQueue(100) {
+			private int numQueries = 0;
+
+			@Override
+			protected List<Entry> reserveUsers(int numberOfIds) throws SQLException {
+				numQueries++;
+				if (numQueries == 1) {
+					try {
+						Thread.sleep(300);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+					throw new SQLException("database not available");
+				}
+				List<Entry> entries = new ArrayList<Entry>();
+				if (numQueries == 2)
+					entries.add(new Entry(1, null));
+				return entries;
+			}
+		};
+		Thread loader = new Thread(queue);
+		loader.start();
+		try {
+			// the first query is slow and fails, but that does not mean that there are no more users
+			assertNull(queue.take(10, 100));
+			List<WaitingUserQueue.Entry> entries;
+			while ((entries = queue.take(10, 100)) == null)
+				;
+			assertEquals(1, entries.size());
+			// the next query finds no more users
+			while ((entries = queue.take(10, 100)) == null)
+				;
+			assertTrue(entries.isEmpty());
+		} finally {
+			loader.interrupt();
+			loader.join();
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+package edu.tum.cs.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cybozu.labs.langdetect.Detector;
+import com.cybozu.labs.langdetect.DetectorFactory;
+import com.cybozu.labs.langdetect.LangDetectException;
+
+public class TestLanguageDetection {
+
+	private static final String[] english = { "the", "weather", "is", "really", "nice", "today", "and", "I", "think",
+			"we", "should", "go", "for", "a", "walk", "in", "park", "with", "our", "friends", "before", "dinner" };
+	private static final String[] german = { "das", "Wetter", "ist", "heute", "wirklich", "schön", "und", "ich",
+			"glaube", "wir", "sollten", "mit", "unseren", "Freunden", "im", "Park", "spazieren", "gehen" };
+
+	@BeforeClass
+	public static void loadProfiles() {
+		LanguageDetection.loadProfilesFromResources();
+	}
+
+	private static List<String> generateTexts(String[] words, int count, int length, long seed) {
+		Random rnd = new Random(seed);
+		List<String> texts = new ArrayList<String>(count);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			sb.setLength(0);
+			while (sb.length() < length)
+				sb.append(words[rnd.nextInt(words.length)]).append(' ');
+			sb.append(i);
+			texts.add(sb.toString());
+		}
+		return texts;
+	}
+
+	@Test
+	public void testDetect() {
+		assertEquals("en", LanguageDetection.detect("The weather is really nice today, let's go for a walk."));
+		assertEquals("de", LanguageDetection.detect(generateTexts(german, 1, 100, 1).get(0)));
+		assertEquals(LanguageDetection.UNKNOWN_LANGUAGE, LanguageDetection.detect(""));
+		assertEquals(LanguageDetection.UNKNOWN_LANGUAGE, LanguageDetection.detect(Arrays.asList((String) null)));
+		assertEquals("en", LanguageDetection.detect(generateTexts(english, 15, 80, 2)));
+
+		List<String> texts = new ArrayList<String>(generateTexts(english, 50, 140, 3));
+		texts.addAll(generateTexts(german, 50, 140, 4));
+		List<String> languages = LanguageDetection.detectAll(texts);
+		assertEquals(texts.size(), languages.size());
+		for (int i = 0; i < texts.size(); i++)
+			assertEquals(texts.get(i), (i < 50) ? "en" : "de", languages.get(i));
+	}
+
+	private static void benchmark(String name, List<String> texts) throws LangDetectException {
+		// a new detector for the whole text, as before
+		long start = System.nanoTime();
+		for (String text : texts) {
+			Detector detector = DetectorFactory.create();
+			detector.append(text);
+			detector.detect();
+		}
+		long baseline = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (String text : texts)
+			LanguageDetection.detect("single " + text);
+		long single = System.nanoTime() - start;
+
+		List<String> batch = new ArrayList<String>(texts.size());
+		for (String text : texts)
+			batch.add("batch " + text);
+		start = System.nanoTime();
+		LanguageDetection.detectAll(batch);
+		long parallel = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		LanguageDetection.detectAll(batch);
+		long cached = System.nanoTime() - start;
+
+		System.err.println(String.format("%s: %.0f docs/s uncached detector, %.0f docs/s on one thread, " +
+				"%.0f docs/s in parallel, %.0f docs/s cached", name, texts.size() * 1e9 / baseline,
+				texts.size() * 1e9 / single, texts.size() * 1e9 / parallel, texts.size() * 1e9 / cached));
+	}
+
+	@Test
+	public void testBenchmark() throws LangDetectException {
+		// warm up
+		LanguageDetection.detectAll(generateTexts(english, 500, 140, 5));
+
+		benchmark("tweets", generateTexts(english, 2000, 140, 6));
+		benchmark("web pages", generateTexts(english, 100, 50000, 7));
+	}
+
+}
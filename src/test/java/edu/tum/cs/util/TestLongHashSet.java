@@ -0,0 +1,56 @@
+package edu.tum.cs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestLongHashSet {
+
+	@Test
+	public void testAddContains() {
+		LongHashSet set = new LongHashSet();
+		assertTrue(set.isEmpty());
+		assertFalse(set.contains(0L));
+
+		assertTrue(set.add(0L));
+		assertFalse(set.add(0L));
+		assertTrue(set.add(-1L));
+		assertTrue(set.add(Long.MAX_VALUE));
+		assertTrue(set.add(Long.MIN_VALUE));
+		assertEquals(4, set.size());
+		assertTrue(set.contains(0L));
+		assertTrue(set.contains(-1L));
+		assertTrue(set.contains(Long.MIN_VALUE));
+		assertFalse(set.contains(1L));
+
+		set.clear();
+		assertTrue(set.isEmpty());
+		assertFalse(set.contains(0L));
+		assertFalse(set.contains(-1L));
+	}
+
+	@Test
+	public void testAgainstHashSet() {
+		// compare to a reference implementation, forcing several resize operations
+		Random rnd = new Random(1337L);
+		Set<Long> reference = new HashSet<Long>();
+		LongHashSet set = new LongHashSet(4);
+		for (int i = 0; i < 100000; i++) {
+			// draw from a small range to get some duplicates
+			long value = (rnd.nextInt(3) == 0) ? rnd.nextLong() : rnd.nextInt(50000);
+			assertEquals(reference.add(value), set.add(value));
+		}
+		assertEquals(reference.size(), set.size());
+		for (long value : reference)
+			assertTrue(set.contains(value));
+		for (int i = 50000; i < 60000; i++)
+			assertEquals(reference.contains((long) i), set.contains(i));
+	}
+
+}
@@ -0,0 +1,28 @@
+package edu.tum.cs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class TestLruCache {
+
+	@Test
+	public void testEviction() {
+		LruCache<String, Integer> cache = new LruCache<String, Integer>(3);
+		cache.put("a", 1);
+		cache.put("b", 2);
+		cache.put("c", 3);
+		assertEquals(1, (int) cache.get("a"));	// "b" is now the least recently used entry
+		cache.put("d", 4);
+
+		assertEquals(3, cache.size());
+		assertNull(cache.get("b"));
+		assertEquals(1, (int) cache.get("a"));
+		assertEquals(3, (int) cache.get("c"));
+		assertEquals(4, (int) cache.get("d"));
+		assertEquals(4, cache.getNumHits());
+		assertEquals(1, cache.getNumMisses());
+	}
+
+}
@@ -0,0 +1,57 @@
+package edu.tum.cs.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestPipelineStage {
+
+	@Test
+	public void testPipeline() throws InterruptedException {
+		final List<Integer> saved = Collections.synchronizedList(new ArrayList<Integer>());
+		final PipelineStage<Integer> save = new PipelineStage<Integer>("save", 1, 4) {
+			private final List<Integer> batch = new ArrayList<Integer>();
+
+			@Override
+			protected void process(Integer item) {
+				batch.add(item);
+				if (batch.size() == 7)
+					flush();
+			}
+
+			@Override
+			protected void flush() {
+				saved.addAll(batch);
+				batch.clear();
+			}
+		};
+		PipelineStage<Integer> square = new PipelineStage<Integer>("square", 3, 2) {
+			@Override
+			protected void process(Integer item) throws InterruptedException {
+				if (item == 13)
+					throw new IllegalArgumentException("unlucky");
+				save.put(item * item);
+			}
+		};
+		save.start();
+		square.start();
+		for (int i = 0; i < 100; i++)
+			square.put(i);
+		square.finish();
+		save.finish();
+
+		assertEquals(100, square.getNumProcessed());
+		assertEquals(1, square.getNumFailed());
+		assertEquals(99, save.getNumReceived());
+		assertEquals(99, saved.size());
+		long sum = 0;
+		for (int item : saved)
+			sum += item;
+		assertEquals(328350 - 169, sum);
+	}
+
+}
@@ -0,0 +1,30 @@
+package edu.tum.cs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestPrefixTrie {
+
+	@Test
+	public void testMatches() {
+		PrefixTrie trie = new PrefixTrie("https://accounts.google.com/ServiceLogin",
+				"https://www.facebook.com/login.php", "https://www.facebook.com/");
+		assertTrue(trie.matches("https://accounts.google.com/ServiceLogin?continue=x"));
+		assertTrue(trie.matches("https://accounts.google.com/ServiceLogin"));
+		assertTrue(trie.matches("https://www.facebook.com/somebody"));
+		assertFalse(trie.matches("https://accounts.google.com/"));
+		assertFalse(trie.matches("http://www.facebook.com/login.php"));
+		assertFalse(trie.matches(""));
+
+		assertFalse(trie.add("https://www.facebook.com/"));
+		assertTrue(trie.add("http://"));
+		assertEquals(4, trie.size());
+		assertTrue(trie.matches("http://www.facebook.com/login.php"));
+
+		assertTrue(new PrefixTrie("").matches("anything"));
+	}
+
+}